@@ -43,6 +43,12 @@ public class Attributes {
 	 */
 	private Extruder e;
 	
+	/**
+	 * How many layers' worth of material is laid down at once.  This is 1
+	 * except for sparse infill that is only put down every few layers.
+	 */
+	private double layers = 1;
+	
 	/**
 	 * Constructor - it is permissible to set any argument null.  If you know
 	 * what you're doing of course...
@@ -60,6 +66,18 @@ public class Attributes {
 		e = null;
 	}
 	
+	/**
+	 * Copy, but laying down more than one layer's worth of material at once
+	 * @param a
+	 * @param layers
+	 */
+	public Attributes(Attributes a, double layers)
+	{
+		this(a.material, a.parent, a.part, a.app);
+		e = a.e;
+		this.layers = layers;
+	}
+	
 	/**
 	 * Just say the name of the material
 	 */
@@ -90,6 +108,11 @@ public class Attributes {
 	 */
 	public Appearance getAppearance() { return app; }
 	
+	/**
+	 * @return how many layers' worth of material to lay down
+	 */
+	public double getLayers() { return layers; }
+	
 	/**
 	 * Find my extruder in the list (if not known) or just
 	 * return it (if known).
@@ -0,0 +1,236 @@
+package org.reprap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3d;
+
+import org.reprap.geometry.Producer;
+import org.reprap.geometry.polygons.Point2D;
+import org.reprap.geometry.polyhedra.AllSTLsToBuild;
+import org.reprap.geometry.polyhedra.STLObject;
+import org.reprap.utilities.Debug;
+
+/**
+ * Slices STL and RFO files to a G-code file without the GUI, so it can be run from
+ * scripts and on machines with no one at them:
+ *
+ *   java org.reprap.BatchSlicer [options] file.stl|file.rfo ...
+ *
+ * Options:
+ *
+ *   -o file          the G-code file to write (default: the first input file with .gcode on the end)
+ *   -machine name    the machine configuration to use, rather than the active one
+ *   -set name=value  change a preference for this run only
+ *   -material name   the material for the STL files after it (default: the first extruder's)
+ *   -noCentre        leave STL files where they are, rather than putting them in the middle of the bed
+ *
+ * STL files are placed as the GUI places them when they are loaded.  RFO files keep the
+ * places and materials saved in them.  An STL file exported from OpenSCAD is read with
+ * its CSG file, just as in the GUI.
+ *
+ * It exits with 0 if the G-code was written, 1 if the arguments were wrong, and 2 if the
+ * slicing failed.
+ */
+public class BatchSlicer
+{
+	public static final int ok = 0;
+	public static final int badArguments = 1;
+	public static final int failed = 2;
+
+	private static void usage(String why)
+	{
+		Debug.e("BatchSlicer: " + why);
+		Debug.a("Usage: java org.reprap.BatchSlicer [-o file.gcode] [-machine name] [-set name=value]... " +
+				"[-material name] [-noCentre] file.stl|file.rfo ...");
+	}
+
+	/**
+	 * Load an STL file, placing it as RepRapBuild.anotherSTLFile() does.
+	 * @param fileName
+	 * @param material
+	 * @param centre
+	 * @param printer
+	 * @return the thing, or null if the file can't be read
+	 */
+	private static STLObject loadSTL(String fileName, String material, boolean centre, Printer printer)
+	{
+		STLObject stl = new STLObject();
+		Attributes att = stl.addSTL(fileName, null, Preferences.unselectedApp(), null);
+		if(att == null || stl.numChildren() <= 0)
+			return null;
+		if(centre)
+		{
+			Point2D middle = Point2D.mul(0.5, printer.getBedNorthEast());
+			Vector3d v = new Vector3d(middle.x(), middle.y(), 0);
+			Vector3d e = stl.extent();
+			e.z = 0;
+			e.x = -0.5*e.x;
+			e.y = -0.5*e.y;
+			v.add(e);
+			stl.translate(v);
+		}
+		att.setMaterial(material);
+		return stl;
+	}
+
+	/**
+	 * Slice the files in the arguments
+	 * @param args
+	 * @return what to exit with
+	 * @throws Exception
+	 */
+	public static int run(String[] args) throws Exception
+	{
+		String output = null;
+		String machine = null;
+		List<String> settings = new ArrayList<String>();
+
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-o") || args[i].equals("-machine") || args[i].equals("-set") || args[i].equals("-material"))
+			{
+				if(i + 1 >= args.length)
+				{
+					usage(args[i] + " needs a value");
+					return badArguments;
+				}
+				if(args[i].equals("-o"))
+					output = args[i + 1];
+				else if(args[i].equals("-machine"))
+					machine = args[i + 1];
+				else if(args[i].equals("-set"))
+				{
+					if(args[i + 1].indexOf('=') <= 0)
+					{
+						usage("-set needs name=value, not " + args[i + 1]);
+						return badArguments;
+					}
+					settings.add(args[i + 1]);
+				}
+				i++;
+			} else if(args[i].startsWith("-") && !args[i].equals("-noCentre"))
+			{
+				usage("unknown option " + args[i]);
+				return badArguments;
+			}
+		}
+
+		// The preferences have to be right before the printer is made
+
+		if(machine != null && !Preferences.useMachine(machine))
+			return badArguments;
+
+		// There is only one build in each run, so there's no point keeping its layers
+
+		Preferences.setGlobalBool("KeepLayers", false);
+		for(int i = 0; i < settings.size(); i++)
+		{
+			String s = settings.get(i);
+			int eq = s.indexOf('=');
+			Preferences.setGlobalString(s.substring(0, eq), s.substring(eq + 1));
+		}
+
+		Printer printer = Main.withoutGUI();
+		printer.setTopDown(!Preferences.loadGlobalBool("BuildBottomUp"));
+
+		// Load everything
+
+		AllSTLsToBuild stls = new AllSTLsToBuild();
+		String material = Preferences.allMaterials()[0];
+		boolean centre = true;
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-o") || args[i].equals("-machine") || args[i].equals("-set"))
+			{
+				i++;
+				continue;
+			}
+			if(args[i].equals("-material"))
+			{
+				material = args[++i];
+				if(printer.getExtruder(material) == null)
+				{
+					usage("no extruder has the material " + material);
+					return badArguments;
+				}
+				continue;
+			}
+			if(args[i].equals("-noCentre"))
+			{
+				centre = false;
+				continue;
+			}
+
+			String fileName = args[i];
+			if(!new File(fileName).exists())
+			{
+				usage("can't find " + fileName);
+				return badArguments;
+			}
+			if(output == null)
+				output = fileName.substring(0, Math.max(fileName.lastIndexOf('.'), 0)) + ".gcode";
+			String lower = fileName.toLowerCase();
+			if(lower.endsWith(".rfo"))
+				stls.add(RFO.load(fileName));
+			else if(lower.endsWith(".stl"))
+			{
+				STLObject stl = loadSTL(fileName, material, centre, printer);
+				if(stl == null)
+				{
+					Debug.e("BatchSlicer: can't read " + fileName);
+					return failed;
+				}
+				stls.add(stl);
+			} else if(lower.endsWith(".scad"))
+			{
+				usage("OpenSCAD files can't be read; export " + fileName + " from OpenSCAD as an STL file");
+				return badArguments;
+			} else
+			{
+				usage("not an STL or RFO file: " + fileName);
+				return badArguments;
+			}
+		}
+		if(stls.size() <= 0)
+		{
+			usage("nothing to slice");
+			return badArguments;
+		}
+
+		// Slice it all
+
+		if(printer.openGCodeFileForOutput(output) == null)
+			return failed;
+		long start = System.currentTimeMillis();
+		Producer producer = new Producer(printer, stls);
+		producer.produce();
+		producer.dispose();
+		if(printer.isCancelled())
+			return failed;
+		Debug.a("BatchSlicer: " + stls.size() + " things sliced to " + output + " in " +
+				(System.currentTimeMillis() - start)/1000 + "s");
+		return ok;
+	}
+
+	public static void main(String[] args)
+	{
+		// Java3D won't load when AWT says it is headless, which it does by default if 
+		// there's no display.  Nothing here opens a window, so that's safe.
+		
+		System.setProperty("java.awt.headless", "false");
+		Thread.currentThread().setName("Main");
+		int status;
+		try
+		{
+			status = run(args);
+		} catch (Throwable e)
+		{
+			Debug.e("BatchSlicer: " + e.toString());
+			e.printStackTrace();
+			status = failed;
+		}
+		System.exit(status);
+	}
+}
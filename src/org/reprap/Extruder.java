@@ -234,6 +234,12 @@ public interface Extruder
      */
     public double getExtrusionHeight();
 
+    /**
+     * @return the height in millimeters of the layer being laid down now; this
+     * is the extrusion height unless the layers are adaptive
+     */
+    public double getLayerHeight();
+
     /**
      * @return the cooling period in seconds
      */
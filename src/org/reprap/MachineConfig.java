@@ -0,0 +1,166 @@
+package org.reprap;
+
+import org.reprap.utilities.Debug;
+
+/**
+ * The machine preferences that are wanted for every move or every polygon, read once
+ * from the Preferences and held as plain typed values.  A MachineConfig never changes
+ * once it is made, so it can be shared by any number of threads without locking.
+ *
+ * There is always one current MachineConfig.  When the preferences are refreshed a
+ * whole new one is made and then swapped in, so anyone reading it sees either all the
+ * old values or all the new ones.  A build takes its own copy at the start (see
+ * LayerRules) so changing the preferences half way through doesn't affect it.
+ */
+public class MachineConfig
+{
+	/**
+	 * The current settings
+	 */
+	private static volatile MachineConfig current = null;
+
+	private final boolean repRapAccelerations;
+	private final boolean extrusionRelative;
+	private final boolean pathOptimise;
+	private final boolean shield;
+	private final boolean interLayerCooling;
+	private final boolean travelOptimise;
+	private final double travelOptimiseTime;
+	private final double workingX;
+	private final double workingY;
+	private final double workingZ;
+	private final double dumpX;
+	private final double dumpY;
+	private final int numberOfExtruders;
+	private final int lookAheadMoves;
+	private final double junctionDeviation;
+	private final boolean arcFitting;
+	private final double arcTolerance;
+	private final boolean compactGCodeNumbers;
+	private final boolean adaptiveLayers;
+	private final int sparseInfillLayers;
+	private final int diskSliceCache;
+	private final boolean keepLayers;
+	private final boolean treeSupport;
+	private final double treeSupportSpacing;
+	private final double treeSupportAngle;
+	private final int sliceAhead;
+
+	/**
+	 * Read everything from the preferences
+	 */
+	private MachineConfig()
+	{
+		repRapAccelerations = loadBool("RepRapAccelerations", true);
+		extrusionRelative = loadBool("ExtrusionRelative", false);
+		pathOptimise = loadBool("PathOptimise", false);
+		shield = loadBool("Shield", false);
+		interLayerCooling = loadBool("InterLayerCooling", false);
+		travelOptimise = loadBool("TravelOptimise", false);
+		travelOptimiseTime = loadDouble("TravelOptimiseTime(ms)", 50);
+		workingX = loadDouble("WorkingX(mm)", 200);
+		workingY = loadDouble("WorkingY(mm)", 200);
+		workingZ = loadDouble("WorkingZ(mm)", 100);
+		dumpX = loadDouble("DumpX(mm)", 0);
+		dumpY = loadDouble("DumpY(mm)", 0);
+		numberOfExtruders = loadInt("NumberOfExtruders", 1);
+		lookAheadMoves = loadInt("LookAheadMoves", 0);
+		junctionDeviation = loadDouble("JunctionDeviation(mm)", 0.05);
+		arcFitting = loadBool("ArcFitting", false);
+		arcTolerance = loadDouble("ArcTolerance(mm)", 0.02);
+		compactGCodeNumbers = loadBool("CompactGCodeNumbers", false);
+		adaptiveLayers = loadBool("AdaptiveLayers", false);
+		sparseInfillLayers = Math.max(1, loadInt("SparseInfillLayers", 1));
+		diskSliceCache = loadInt("DiskSliceCache(MB)", 0);
+		keepLayers = loadBool("KeepLayers", false);
+		treeSupport = loadBool("TreeSupport", false);
+		treeSupportSpacing = loadDouble("TreeSupportSpacing(mm)", 3);
+		treeSupportAngle = loadDouble("TreeSupportAngle(degrees)", 40);
+		sliceAhead = Math.max(1, loadInt("SliceAhead(layers)", 2));
+	}
+
+	private static boolean loadBool(String name, boolean dflt)
+	{
+		try
+		{
+			return Preferences.loadGlobalBool(name);
+		} catch (Exception e)
+		{
+			Debug.e("MachineConfig: " + name + " - " + e.toString());
+			return dflt;
+		}
+	}
+
+	private static int loadInt(String name, int dflt)
+	{
+		try
+		{
+			return Preferences.loadGlobalInt(name);
+		} catch (Exception e)
+		{
+			Debug.e("MachineConfig: " + name + " - " + e.toString());
+			return dflt;
+		}
+	}
+
+	private static double loadDouble(String name, double dflt)
+	{
+		try
+		{
+			return Preferences.loadGlobalDouble(name);
+		} catch (Exception e)
+		{
+			Debug.e("MachineConfig: " + name + " - " + e.toString());
+			return dflt;
+		}
+	}
+
+	/**
+	 * @return the current settings (read from the preferences the first time)
+	 */
+	public static MachineConfig get()
+	{
+		MachineConfig c = current;
+		if(c == null)
+			c = refresh();
+		return c;
+	}
+
+	/**
+	 * Re-read the preferences and make the result the current settings
+	 * @return the new settings
+	 */
+	public static MachineConfig refresh()
+	{
+		MachineConfig c = new MachineConfig();
+		current = c;
+		return c;
+	}
+
+	public boolean getRepRapAccelerations() { return repRapAccelerations; }
+	public boolean getExtrusionRelative() { return extrusionRelative; }
+	public boolean getPathOptimise() { return pathOptimise; }
+	public boolean getShield() { return shield; }
+	public boolean getInterLayerCooling() { return interLayerCooling; }
+	public boolean getTravelOptimise() { return travelOptimise; }
+	public double getTravelOptimiseTime() { return travelOptimiseTime; }
+	public double getWorkingX() { return workingX; }
+	public double getWorkingY() { return workingY; }
+	public double getWorkingZ() { return workingZ; }
+	public double getDumpX() { return dumpX; }
+	public double getDumpY() { return dumpY; }
+	public int getNumberOfExtruders() { return numberOfExtruders; }
+	public int getLookAheadMoves() { return lookAheadMoves; }
+	public double getJunctionDeviation() { return junctionDeviation; }
+	public boolean getArcFitting() { return arcFitting; }
+	public double getArcTolerance() { return arcTolerance; }
+	public boolean getCompactGCodeNumbers() { return compactGCodeNumbers; }
+	public boolean getAdaptiveLayers() { return adaptiveLayers; }
+	public int getSparseInfillLayers() { return sparseInfillLayers; }
+	public int getDiskSliceCache() { return diskSliceCache; }
+	public boolean getKeepLayers() { return keepLayers; }
+	public boolean getTreeSupport() { return treeSupport; }
+	public double getTreeSupportSpacing() { return treeSupportSpacing; }
+	public double getTreeSupportAngle() { return treeSupportAngle; }
+	public int getSliceAhead() { return sliceAhead; }
+}
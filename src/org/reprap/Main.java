@@ -58,6 +58,8 @@ public class Main {
     
     private static boolean repRapAttached = false;
     
+    private static boolean noGUI = false;
+    
     private Producer producer = null;
     
     private Printer printer = null;
@@ -108,6 +110,37 @@ public class Main {
         }
 	}
 
+	/**
+	 * A Main with no windows, just the printer
+	 * @param p
+	 */
+	private Main(Printer p)
+	{
+		ftd = new RrDeleteOnExit();
+		printer = p;
+	}
+	
+	/**
+	 * Set up the printer without any windows, for slicing without the GUI.
+	 * (Java3D won't run with java.awt.headless set, so that can't be used to tell.)
+	 * @return the printer
+	 * @throws Exception
+	 */
+	public static Printer withoutGUI() throws Exception
+	{
+		noGUI = true;
+		gui = new Main(MachineFactory.create());
+		return gui.printer;
+	}
+	
+	/**
+	 * @return true if there are no windows
+	 */
+	public static boolean noGUI()
+	{
+		return noGUI;
+	}
+
 	private void createAndShowGUI() throws Exception {
         JFrame.setDefaultLookAndFeelDecorated(false);
         mainFrame = new JFrame("RepRap build bed    |     mouse:  left - rotate   middle - zoom   right - translate     |    grid: 20 mm");
@@ -591,6 +624,8 @@ public class Main {
         
         public RrGraphics getGraphics()
         {
+        	if(builder == null)
+        		return null;
         	return builder.getRrGraphics();
         }
 
@@ -21,6 +21,7 @@ import java.util.Properties;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import javax.media.j3d.Appearance;
 import javax.media.j3d.Material;
 import javax.vecmath.Color3f;
@@ -46,6 +47,11 @@ public class Preferences {
 	private static Preferences globalPrefs = null;
 	private static String[] allMachines = null;
 	
+	/**
+	 * The machine configuration to use instead of the active one (null for the active one)
+	 */
+	private static String machineForRun = null;
+	
 	//Properties fallbackPreferences;
 	Properties mainPreferences;
 	
@@ -208,6 +214,8 @@ public class Preferences {
 	 */
 	public static String getActiveMachineName()
 	{
+		if(machineForRun != null)
+			return machineForRun;
 		if(allMachines == null)
 			allMachines = getAllMachines();
 		for (String machine : allMachines)
@@ -228,6 +236,35 @@ public class Preferences {
 		return getUsersRootDir() + getActiveMachineName() + File.separatorChar;
 	}
 	
+	/**
+	 * Use the machine configuration named for the rest of this run, without changing
+	 * which one is active (so several runs at once can each use their own).
+	 * @param machine
+	 * @return false if there is no such configuration
+	 */
+	public static boolean useMachine(String machine)
+	{
+		File mainDir = new File(getUsersRootDir());
+		if(!mainDir.exists())
+			copySystemConfigurations(mainDir);
+		if(!new File(getUsersRootDir() + machine + File.separatorChar + propsFile).exists())
+		{
+			Debug.e("Preferences.useMachine(): there is no machine configuration " + machine + " in " + getUsersRootDir());
+			return false;
+		}
+		machineForRun = machine;
+		try
+		{
+			globalPrefs = new Preferences();
+			return true;
+		}
+		catch(IOException e)
+		{
+			Debug.e("Preferences.useMachine(): " + e.toString());
+			return false;
+		}
+	}
+	
 	/**
 	 * Set the active machine to the one named
 	 * @param newActiveMachine
@@ -485,6 +522,25 @@ public class Preferences {
 		return globalPrefs.loadBool(name);
 	}
 	
+	/**
+	 * All the preferences, sorted by name, one "name=value" per line.  Two
+	 * lots of preferences are the same if these are.
+	 * @return
+	 * @throws IOException
+	 */
+	public static String allGlobal() throws IOException {
+		initIfNeeded();
+		List<String> names = new ArrayList<String>();
+		Enumeration<?> e = globalPrefs.mainPreferences.propertyNames();
+		while(e.hasMoreElements())
+			names.add((String)e.nextElement());
+		Collections.sort(names);
+		StringBuilder result = new StringBuilder();
+		for(int i = 0; i < names.size(); i++)
+			result.append(names.get(i) + "=" + globalPrefs.mainPreferences.getProperty(names.get(i)) + "\n");
+		return result.toString();
+	}
+
 	public static void saveGlobal() throws IOException {		
 		initIfNeeded();
 		globalPrefs.save(false);
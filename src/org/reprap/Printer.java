@@ -6,6 +6,7 @@ import java.io.PrintStream;
 import javax.swing.JCheckBoxMenuItem;
 import org.reprap.geometry.LayerRules;
 import org.reprap.geometry.polygons.Point2D;
+import org.reprap.machines.PrintEstimator;
 import org.reprap.utilities.RrGraphics;
 
 
@@ -68,6 +69,24 @@ public interface Printer {
 	 */
 	public void printTo(double x, double y, double z, double feedrate, boolean stopExtruder, boolean closeValve) throws RepRapException, IOException, Exception;
 	
+	/**
+	 * Move the printer carriage round a circular arc in the XY plane <b>while extruding material<b>
+	 * 
+	 * @param x absolute x position of the end of the arc
+	 * @param y absolute y position of the end of the arc
+	 * @param cx absolute x position of the centre of the arc
+	 * @param cy absolute y position of the centre of the arc
+	 * @param clockwise true to go clockwise, false to go anticlockwise
+	 * @param z absolute z position (which should not change)
+	 * @param stopExtruder
+	 * @param closeValve
+	 * @throws RepRapException
+	 * @throws IOException 
+	 * @throws Exception 
+	 */
+	public void printArcTo(double x, double y, double cx, double cy, boolean clockwise, double z, double feedrate, 
+			boolean stopExtruder, boolean closeValve) throws RepRapException, IOException, Exception;
+	
 	/**
 	 * Get the feedrate currently being used
 	 * @return
@@ -313,6 +332,11 @@ public interface Printer {
 	 */
 	public Extruder[] getExtruders();
 	
+	/**
+	 * @return the machine settings as they were at the last refreshPreferences()
+	 */
+	public MachineConfig getConfig();
+	
 	/**
 	 * Stop the extrude motor (if any)
 	 * @throws IOException
@@ -532,6 +556,13 @@ public interface Printer {
 	 */
 	public String setGCodeFileForOutput(String fileRoot);
 	
+	/**
+	 * Set an output file without asking the user
+	 * @param fileName
+	 * @return the name of the file, or null if it can't be written
+	 */
+	public String openGCodeFileForOutput(String fileName);
+	
 	/**
 	 * If a file replay is being done, do it and return true
 	 * otherwise return false.
@@ -618,6 +649,12 @@ public interface Printer {
 	 */
 	public String getOutputFilename();
 
+	/**
+	 * Get the estimator timing the G-codes as they are output
+	 * @return the estimator, or null if they aren't being timed
+	 */
+	public PrintEstimator getEstimator();
+
 	/**
 	 * Get the list of files on the RepRap's SD card (if any)
 	 * @return
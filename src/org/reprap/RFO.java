@@ -16,7 +16,16 @@ import java.nio.channels.*;
 import java.util.zip.*;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 import org.xml.sax.XMLReader;
@@ -53,6 +62,16 @@ public class RFO
 	static final String stlPrefix = "rfo-";
 	static final String stlSuffix = ".stl";
 	
+	/**
+	 * Everything in the compressed .rfo file is in this directory
+	 */
+	static final String rfoEntry = "rfo/";
+	
+	/**
+	 * Buffer size for reading and writing .rfo files
+	 */
+	static final int bufferSize = 1 << 16;
+	
 	//**************************************************************************************
 	//
 	// XML file writing.  The legend file that ties everything together is XML.  This writes
@@ -65,21 +84,13 @@ public class RFO
 		int sp;
 		
 		/**
-		 * Create an XML file called LegendFile starting with XML entry start.
-		 * @param LegendFile
+		 * Write XML to legend starting with XML entry start.
+		 * @param legend
 		 * @param start
 		 */
-		XMLOut(String LegendFile, String start)
+		XMLOut(OutputStream legend, String start)
 		{
-			FileOutputStream fileStream = null;
-			try
-			{
-				fileStream = new FileOutputStream(LegendFile);
-			} catch (Exception e)
-			{
-				Debug.e("XMLOut(): " + e);
-			}
-			XMLStream = new PrintStream(fileStream);
+			XMLStream = new PrintStream(legend);
 			stack = new String[top];
 			sp = 0;
 			push(start);
@@ -145,22 +156,29 @@ public class RFO
 	//
 	// XML file reading.  This reads the legend file.
 	
+	/**
+	 * An object in the legend file: the STL files that make it up, their materials, 
+	 * and where it goes.
+	 */
+	class ObjectIn
+	{
+		List<String> locations = new ArrayList<String>();
+		List<String> materials = new ArrayList<String>();
+		Transform3D transform;
+	}
+	
 	class XMLIn extends DefaultHandler
 	{
 		/**
-		 * The rfo that we are reading in
+		 * The objects read so far
 		 */
-		private RFO rfo;
+		private List<ObjectIn> objects;
 		
 		/**
-		 * The STL being read
+		 * The object being read
 		 */
-		private STLObject stl;
+		private ObjectIn object;
 		
-		/**
-		 * The first of a list of STLs being read.
-		 */
-		private STLObject firstSTL;
 		/**
 		 * The current XML item
 		 */
@@ -190,14 +208,13 @@ public class RFO
 		private int rowNumber = 0;
 		
 		/**
-		 * Open up legendFile and use it to build RFO rfo.
-		 * @param legendFile
-		 * @param r
+		 * Read the objects in legend.
+		 * @param legend
 		 */
-		XMLIn(String legendFile, RFO r)
+		XMLIn(InputStream legend)
 		{
 			super();
-			rfo = r;
+			objects = new ArrayList<ObjectIn>();
 			element = "";
 			location = "";
 			filetype = "";
@@ -218,7 +235,7 @@ public class RFO
 			xr.setErrorHandler(this);
 			try
 			{
-				xr.parse(new InputSource(legendFile));
+				xr.parse(new InputSource(legend));
 			} catch (Exception e)
 			{
 				Debug.e("XMLIn() 2: " + e);
@@ -285,8 +302,7 @@ public class RFO
 				
 			} else if(element.equalsIgnoreCase("object"))
 			{
-				stl = new STLObject();
-				firstSTL = null;
+				object = new ObjectIn();
 			} else  if(element.equalsIgnoreCase("files"))
 			{
 				
@@ -324,18 +340,15 @@ public class RFO
 				
 			} else if(element.equalsIgnoreCase("object"))
 			{
-				stl.setTransform(transform);
-				rfo.astl.add(stl);
+				object.transform = transform;
+				objects.add(object);
 			} else  if(element.equalsIgnoreCase("files"))
 			{
 				
 			} else if(element.equalsIgnoreCase("file"))
 			{
-				//org.reprap.Attributes att = stl.addSTL("file:" + rfoDir + location, null, Preferences.unselectedApp(), firstSTL);
-				org.reprap.Attributes att = stl.addSTL(rfoDir + location, null, Preferences.unselectedApp(), firstSTL);
-				if(firstSTL == null)
-					firstSTL = stl;
-				att.setMaterial(material);
+				object.locations.add(location);
+				object.materials.add(material);
 				location = "";
 				filetype = "";
 				material = "";
@@ -387,21 +400,6 @@ public class RFO
 	 */
 	private String path;
 	
-	/**
-	 * The temporary directory
-	 */
-	private String tempDir;
-	
-	/**
-	 * The location of the temporary RFO directory
-	 */
-	private String  rfoDir;
-	
-	/**
-	 * The unique temporary directory name
-	 */
-	private String uniqueName;
-	
 	/**
 	 * The collection of objects being written out or read in.
 	 */
@@ -433,20 +431,6 @@ public class RFO
 				path = fn.substring(0, sepIndex + 1);
 		} else
 			path = "";
-		
-		uniqueName = "rfo" + Long.toString(System.nanoTime());
-
-		tempDir = System.getProperty("java.io.tmpdir") + File.separator + uniqueName;
-		
-		File rfod = new File(tempDir);
-		if(!rfod.mkdir())
-			throw new RuntimeException(tempDir);
-		tempDir += File.separator;
-		rfoDir = tempDir + "rfo";
-		rfod = new File(rfoDir);
-		if(!rfod.mkdir())
-			throw new RuntimeException(rfoDir);
-		rfoDir += File.separator;
 	}
 	
 
@@ -530,28 +514,29 @@ public class RFO
 //	}
 	
 	/**
+	 * Give each distinct STL file a unique number.  Files used more than once (the same
+	 * file on disc, or the same file read from an rfo file) only get one.
 	 * 
-	 * Copy each unique STL file to a directory.  Files used more
-	 * than once are only copied once.
-	 *
 	 * @param astltb
-	 * @param rfod
+	 * @return for each distinct file, the index of the object and the part of it it came from
 	 */
-	public static List<String> copySTLs(AllSTLsToBuild astltb, String rfod)
+	private static List<int[]> numberSTLs(AllSTLsToBuild astltb)
 	{
 		int u = 0;
-		List<String> uniqueNames = new ArrayList<String>();
+		List<int[]> distinct = new ArrayList<int[]>();
 		for(int i = 0; i < astltb.size(); i++)
 		{
 			for(int subMod1 = 0; subMod1 < astltb.get(i).size(); subMod1++)
 			{
 				String s = astltb.get(i).fileAndDirectioryItCameFrom(subMod1);
+				byte[] d = astltb.get(i).stlDataItCameFrom(subMod1);
 				astltb.get(i).setUnique(subMod1, u);
 				for(int j = 0; j < i; j++)
 				{
 					for(int subMod2 = 0; subMod2 < astltb.get(j).size(); subMod2++)
 					{
-						if(s.equals(astltb.get(j).fileAndDirectioryItCameFrom(subMod2)))
+						if(s.equals(astltb.get(j).fileAndDirectioryItCameFrom(subMod2)) && 
+								d == astltb.get(j).stlDataItCameFrom(subMod2))
 						{
 							astltb.get(i).setUnique(subMod1, astltb.get(j).getUnique(subMod2));
 							break;
@@ -560,22 +545,117 @@ public class RFO
 				}
 				if(astltb.get(i).getUnique(subMod1) == u)
 				{
-					String un = astltb.get(i).fileItCameFrom(subMod1);
-					copyFile(s, rfod + un);
-					uniqueNames.add(un);
-
-					String csgFile = CSGReader.CSGFileExists(s);
-					if(csgFile != null)
-					{
-						int sepIndex = csgFile.lastIndexOf(File.separator);
-						String justFile = csgFile.substring(sepIndex + 1, csgFile.length());
-						copyFile(csgFile, rfod + justFile);
-					}
-
+					distinct.add(new int[] {i, subMod1});
 					u++;
 				}
 			}
 		}
+		return distinct;
+	}
+	
+	/**
+	 * The names the distinct STL files are given in the rfo file: the names they had,
+	 * unless an earlier file has already taken the name (two parts called part.stl in
+	 * different directories, say), when they are numbered instead.
+	 * @param astltb
+	 * @param distinct from numberSTLs()
+	 * @return
+	 */
+	private static List<String> uniqueNames(AllSTLsToBuild astltb, List<int[]> distinct)
+	{
+		List<String> names = new ArrayList<String>();
+		Set<String> taken = new HashSet<String>();
+		taken.add(legendName.toLowerCase());
+		int k = 0;
+		for(int i = 0; i < distinct.size(); i++)
+		{
+			String un = astltb.get(distinct.get(i)[0]).fileItCameFrom(distinct.get(i)[1]);
+			while(un == null || nameTaken(taken, un))
+				un = stlPrefix + k++ + stlSuffix;
+			taken.add(un.toLowerCase());
+			if(csgName(un) != null)
+				taken.add(csgName(un).toLowerCase());
+			names.add(un);
+		}
+		return names;
+	}
+	
+	/**
+	 * Has an STL file name, or the name of its CSG file, already been used?  Names
+	 * that differ only in case count as the same, as they do on some discs.
+	 * @param taken
+	 * @param stlName
+	 * @return
+	 */
+	private static boolean nameTaken(Set<String> taken, String stlName)
+	{
+		if(taken.contains(stlName.toLowerCase()))
+			return true;
+		String csg = csgName(stlName);
+		return csg != null && taken.contains(csg.toLowerCase());
+	}
+	
+	/**
+	 * The name of the CSG file that goes with an STL file
+	 * @param stlName
+	 * @return
+	 */
+	private static String csgName(String stlName)
+	{
+		if(!stlName.toLowerCase().endsWith(stlSuffix))
+			return null;
+		return stlName.substring(0, stlName.length() - stlSuffix.length()) + ".csg";
+	}
+	
+	/**
+	 * Write data to a file
+	 * @param data
+	 * @param to
+	 */
+	private static void writeFile(byte[] data, String to)
+	{
+		try
+		{
+			OutputStream out = new FileOutputStream(to);
+			out.write(data);
+			out.close();
+		} catch (Exception e)
+		{
+			Debug.e("RFO.writeFile(): " + e);
+		}
+	}
+	
+	/**
+	 * 
+	 * Copy each unique STL file to a directory.  Files used more
+	 * than once are only copied once.
+	 *
+	 * @param astltb
+	 * @param rfod
+	 */
+	public static List<String> copySTLs(AllSTLsToBuild astltb, String rfod)
+	{
+		List<int[]> distinct = numberSTLs(astltb);
+		List<String> uniqueNames = uniqueNames(astltb, distinct);
+		for(int i = 0; i < distinct.size(); i++)
+		{
+			STLObject stlo = astltb.get(distinct.get(i)[0]);
+			int subMod = distinct.get(i)[1];
+			String s = stlo.fileAndDirectioryItCameFrom(subMod);
+			String un = uniqueNames.get(i);
+			if(stlo.stlDataItCameFrom(subMod) != null)
+			{
+				writeFile(stlo.stlDataItCameFrom(subMod), rfod + un);
+				if(stlo.csgDataItCameFrom(subMod) != null)
+					writeFile(stlo.csgDataItCameFrom(subMod), rfod + csgName(un));
+				continue;
+			}
+			copyFile(s, rfod + un);
+
+			String csgFile = CSGReader.CSGFileExists(s);
+			if(csgFile != null && csgName(un) != null)
+				copyFile(csgFile, rfod + csgName(un));
+		}
 		return uniqueNames;
 	}
 	
@@ -599,16 +679,16 @@ public class RFO
 	
 	/**
 	 * Create the legend file
-	 *
+	 * @param legend
 	 */
-	private void createLegend()
+	private void createLegend(OutputStream legend)
 	{
 		if (uNames == null)
 		{
 			Debug.e("RFO.createLegend(): no list of unique names saved.");
 			return;
 		}
-		xml = new XMLOut(rfoDir + legendName, "reprap-fab-at-home-build version=\"0.1\"");
+		xml = new XMLOut(legend, "reprap-fab-at-home-build version=\"0.1\"");
 		for(int i = 0; i < astl.size(); i++)
 		{
 			xml.push("object name=\"object-" + i + "\"");
@@ -628,41 +708,166 @@ public class RFO
 	}
 	
 	/**
-	 * The entire temporary directory with the legend file and ann the STLs is complete.
-	 * Compress it into the required rfo file using zip.  Note we delete the temporary files as we
-	 * go along, ending up by deleting the directory containing them.
+	 * Is this a binary STL file?  They are already compact, so there's not much to
+	 * be gained by compressing them.
+	 * @param data
+	 * @return
+	 */
+	private static boolean binarySTL(byte[] data)
+	{
+		if(data.length < 84)
+			return false;
+		long faces = (data[80] & 0xffL) | (data[81] & 0xffL) << 8 | (data[82] & 0xffL) << 16 | (data[83] & 0xffL) << 24;
+		return data.length == 84 + 50*faces;
+	}
+	
+	/**
+	 * Read a whole file
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] readFile(File f) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try
+		{
+			byte[] data = new byte[(int)f.length()];
+			in.readFully(data);
+			return data;
+		} finally
+		{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Put data into the rfo file as an entry called name, either compressed or stored as it is.
+	 * @param rfoFile
+	 * @param name
+	 * @param data
+	 * @param stored
+	 * @throws IOException
+	 */
+	private static void putEntry(ZipOutputStream rfoFile, String name, byte[] data, boolean stored) throws IOException
+	{
+		ZipEntry entry = new ZipEntry(rfoEntry + name);
+		if(stored)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		rfoFile.putNextEntry(entry);
+		rfoFile.write(data);
+		rfoFile.closeEntry();
+	}
+	
+	/**
+	 * Copy a file on disc into the rfo file as a compressed entry called name.
+	 * @param rfoFile
+	 * @param name
+	 * @param f
+	 * @param buffer
+	 * @throws IOException
+	 */
+	private static void putEntry(ZipOutputStream rfoFile, String name, File f, byte[] buffer) throws IOException
+	{
+		rfoFile.putNextEntry(new ZipEntry(rfoEntry + name));
+		InputStream in = new FileInputStream(f);
+		try
+		{
+			int bytesIn;
+			while((bytesIn = in.read(buffer)) != -1) 
+				rfoFile.write(buffer, 0, bytesIn);
+		} finally
+		{
+			in.close();
+		}
+		rfoFile.closeEntry();
+	}
+	
+	/**
+	 * The file on disc an STL came from
+	 * @param s
+	 * @return
+	 */
+	private static File fileOnDisc(String s)
+	{
+		int fIndex = s.indexOf("file:");
+		if(fIndex < 0)
+			return new File(s);
+		return new File(s.substring(fIndex + 5, s.length()));
+	}
+	
+	/**
+	 * Write the legend file and each unique STL file (and its CSG file) straight into the 
+	 * rfo zip file.  STL files that came from an rfo file are written from memory; the others 
+	 * are copied from disc.  It is all written to a temporary file that then replaces the rfo 
+	 * file, so that is never left half written.
 	 *
 	 */
 	private void compress()
 	{
+		File rfo = new File(path + fileName);
+		File temp = new File(path + fileName + ".tmp");
+		ZipOutputStream rfoFile = null;
 		try
 		{
-			ZipOutputStream rfoFile = new ZipOutputStream(new FileOutputStream(path + fileName)); 
-			File dirToZip = new File(rfoDir); 
-			String[] fileList = dirToZip.list(); 
-			byte[] buffer = new byte[4096]; 
-			int bytesIn = 0; 
-
-			for(int i=0; i<fileList.length; i++) 
-			{ 
-				File f = new File(dirToZip, fileList[i]); 
-				FileInputStream fis = new FileInputStream(f); 
-				String zEntry = f.getPath();
-				//Debug.a("\n" + zEntry);
-				int start = zEntry.indexOf(uniqueName);
-				zEntry = zEntry.substring(start + uniqueName.length() + 1, zEntry.length());
-				//Debug.a(tempDir);
-				//Debug.a(zEntry + "\n");
-				ZipEntry entry = new ZipEntry(zEntry); 
-				rfoFile.putNextEntry(entry); 
-				while((bytesIn = fis.read(buffer)) != -1) 
-					rfoFile.write(buffer, 0, bytesIn); 
-				fis.close();
+			boolean store = Preferences.loadGlobalBool("RFOStoreBinarySTL");
+			List<int[]> distinct = numberSTLs(astl);
+			uNames = uniqueNames(astl, distinct);
+			
+			rfoFile = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), bufferSize));
+			ByteArrayOutputStream legend = new ByteArrayOutputStream();
+			createLegend(legend);
+			putEntry(rfoFile, legendName, legend.toByteArray(), false);
+			
+			byte[] buffer = new byte[bufferSize];
+			for(int i = 0; i < distinct.size(); i++)
+			{
+				STLObject stlo = astl.get(distinct.get(i)[0]);
+				int subMod = distinct.get(i)[1];
+				File f = fileOnDisc(stlo.fileAndDirectioryItCameFrom(subMod));
+				byte[] data = stlo.stlDataItCameFrom(subMod);
+				if(data == null && store)
+					data = readFile(f);
+				if(data != null)
+					putEntry(rfoFile, uNames.get(i), data, store && binarySTL(data));
+				else
+					putEntry(rfoFile, uNames.get(i), f, buffer);
+				
+				String csg = csgName(uNames.get(i));
+				if(stlo.csgDataItCameFrom(subMod) != null)
+					putEntry(rfoFile, csg, stlo.csgDataItCameFrom(subMod), false);
+				else if(stlo.stlDataItCameFrom(subMod) == null)
+				{
+					String csgFile = CSGReader.CSGFileExists(stlo.fileAndDirectioryItCameFrom(subMod));
+					if(csgFile != null)
+						putEntry(rfoFile, csg, new File(csgFile), buffer);
+				}
 			}
 			rfoFile.close();
+			rfoFile = null;
+			if(rfo.exists() && !rfo.delete())
+				throw new IOException("can't replace " + rfo);
+			if(!temp.renameTo(rfo))
+				throw new IOException("can't rename " + temp);
 		} catch (Exception e)
 		{
 			Debug.e("RFO.compress(): " + e);
+			if(rfoFile != null)
+			{
+				try
+				{
+					rfoFile.close();
+				} catch (IOException e1)
+				{}
+			}
+			temp.delete();
 		}
 	}
 	
@@ -696,11 +901,7 @@ public class RFO
 		RFO rfo = new RFO(fn, allSTL);
 		if(!RFO.checkFile(rfo.path, rfo.fileName))
 			return;
-		rfo.uNames = RFO.copySTLs(allSTL, rfo.rfoDir);
-		rfo.createLegend();
 		rfo.compress();
-		File t = new File(rfo.tempDir);
-		recursiveDelete(t);
 	}
 	
 	//******************************************************************************************
@@ -708,71 +909,148 @@ public class RFO
 	// .rfo reading
 	
 	/**
-	 * Arrghhh!!!!
+	 * Read a whole entry from the rfo file
+	 * @param rfoFile
+	 * @param ze
+	 * @return
+	 * @throws IOException
 	 */
-	private String processSeparators(String is)
+	private static byte[] readEntry(ZipFile rfoFile, ZipEntry ze) throws IOException
 	{
-		String result = "";
-		for(int i = 0; i < is.length(); i++)
+		InputStream is = rfoFile.getInputStream(ze);
+		try
 		{
-			if(is.charAt(i) == '\\')
+			if(ze.getSize() >= 0)
 			{
-				if(File.separator.charAt(0) == '/')
-					result += '/';
-				else
-					result += '\\';
-			} else if(is.charAt(i) == '/')
-			{
-				if(File.separator.charAt(0) == '\\')
-					result += '\\';
-				else
-					result += '/';
-			} else
-				result += is.charAt(i);
+				byte[] data = new byte[(int)ze.getSize()];
+				new DataInputStream(is).readFully(data);
+				return data;
+			}
+			ByteArrayOutputStream os = new ByteArrayOutputStream(bufferSize);
+			byte[] buffer = new byte[bufferSize];
+			int bytesIn;
+			while((bytesIn = is.read(buffer)) != -1) 
+				os.write(buffer, 0, bytesIn);
+			return os.toByteArray();
+		} finally
+		{
+			is.close();
 		}
-		
-		return result;
 	}
 	
 	/**
-	 * This uncompresses the zip that is the rfo file into the temporary directory.
+	 * This reads the rfo file straight from the zip, with nothing written to disc.  The legend
+	 * is read first, then each STL file it names (once, however many times it is used).  The
+	 * STL files are turned into Java3D geometry in parallel, which is most of the work, then the
+	 * objects are put together in the order in the legend.  ZipFile reads the zip's directory once
+	 * when it is opened, so finding each entry is cheap.
 	 */
-	private void unCompress()
+	private void unCompress() throws IOException, InterruptedException, ExecutionException
 	{
+		ZipFile rfoFile = new ZipFile(path + fileName);
 		try
 		{
-			byte[] buffer = new byte[4096];
-			int bytesIn;
-			ZipFile rfoFile = new ZipFile(path + fileName);
+			// Entries are in a directory, with / or (from old files) \ as a separator
+			
+			Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
 			Enumeration<? extends ZipEntry> allFiles = rfoFile.entries();
 			while(allFiles.hasMoreElements())
 			{
-				ZipEntry ze = (ZipEntry)allFiles.nextElement();
-				InputStream is = rfoFile.getInputStream(ze);
-				String fName = processSeparators(ze.getName());
-				File element = new File(tempDir + fName);
-				org.reprap.Main.ftd.add(element);
-				FileOutputStream os = new FileOutputStream(element);
-				while((bytesIn = is.read(buffer)) != -1) 
-					os.write(buffer, 0, bytesIn);
-				os.close();
+				ZipEntry ze = allFiles.nextElement();
+				String name = ze.getName();
+				name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+				if(!ze.isDirectory())
+					entries.put(name, ze);
 			}
-		} catch (Exception e)
+			
+			ZipEntry legend = entries.get(legendName);
+			if(legend == null)
+			{
+				Debug.e("RFO.unCompress(): no " + legendName + " in " + path + fileName);
+				return;
+			}
+			InputStream is = rfoFile.getInputStream(legend);
+			XMLIn xi = new XMLIn(is);
+			is.close();
+			
+			Map<String, byte[]> stls = new HashMap<String, byte[]>();
+			Map<String, byte[]> csgs = new HashMap<String, byte[]>();
+			for(ObjectIn o : xi.objects)
+			{
+				for(String location : o.locations)
+				{
+					if(stls.containsKey(location))
+						continue;
+					ZipEntry ze = entries.get(location);
+					if(ze == null)
+					{
+						Debug.e("RFO.unCompress(): " + location + " is not in " + path + fileName);
+						stls.put(location, null);
+						continue;
+					}
+					stls.put(location, readEntry(rfoFile, ze));
+					String csg = csgName(location);
+					if(csg != null && entries.containsKey(csg))
+						csgs.put(location, readEntry(rfoFile, entries.get(csg)));
+				}
+			}
+			
+			ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try
+			{
+				List<List<Future<STLObject.Mesh>>> meshes = new ArrayList<List<Future<STLObject.Mesh>>>();
+				for(ObjectIn o : xi.objects)
+				{
+					List<Future<STLObject.Mesh>> m = new ArrayList<Future<STLObject.Mesh>>();
+					for(final String location : o.locations)
+					{
+						final byte[] stl = stls.get(location);
+						final byte[] csg = csgs.get(location);
+						if(stl == null)
+						{
+							m.add(null);
+							continue;
+						}
+						m.add(pool.submit(new Callable<STLObject.Mesh>()
+						{
+							public STLObject.Mesh call()
+							{
+								return new STLObject.Mesh(location, stl, csg);
+							}
+						}));
+					}
+					meshes.add(m);
+				}
+				
+				for(int i = 0; i < xi.objects.size(); i++)
+				{
+					ObjectIn o = xi.objects.get(i);
+					STLObject stl = new STLObject();
+					STLObject firstSTL = null;
+					for(int j = 0; j < o.locations.size(); j++)
+					{
+						if(meshes.get(i).get(j) == null)
+							continue;
+						org.reprap.Attributes att = stl.addSTL(meshes.get(i).get(j).get(), null, Preferences.unselectedApp(), firstSTL);
+						if(firstSTL == null)
+							firstSTL = stl;
+						att.setMaterial(o.materials.get(j));
+					}
+					if(firstSTL == null)
+						continue;
+					stl.setTransform(o.transform);
+					astl.add(stl);
+				}
+			} finally
+			{
+				pool.shutdown();
+			}
+		} finally
 		{
-			Debug.e("RFO.unCompress(): " + e);
+			rfoFile.close();
 		}
 	}
 	
-	/**
-	 * This reads the legend file and does what it says.
-	 *
-	 */
-	private void interpretLegend()
-	{
-		@SuppressWarnings("unused")
-		XMLIn xi = new XMLIn(rfoDir + legendName, this);
-	}
-	
 	/**
 	 * This is what gets called to read an rfo file from filename fn.
 	 * @param fn
@@ -783,34 +1061,14 @@ public class RFO
 		if(!fn.endsWith(".rfo"))
 			fn += ".rfo";
 		RFO rfo = new RFO(fn, null);
-		File rfod = new File(rfo.tempDir);
-		org.reprap.Main.ftd.add(rfod);
-		rfod = new File(rfo.rfoDir);
-		org.reprap.Main.ftd.add(rfod);
-		
 		rfo.astl = new AllSTLsToBuild();
-		rfo.unCompress();
 		try
 		{
-			rfo.interpretLegend();
+			rfo.unCompress();
 		} catch (Exception e)
 		{
 			Debug.e("RFO.load(): exception - " + e.toString());
 		}
-		
-		// Tidy up - delete the temporary files and the directory
-		// containing them.
-		
-//		File td = new File(rfo.rfoDir);
-//		String[] fileList = td.list(); 
-//		for(int i=0; i<fileList.length; i++) 
-//		{ 
-//			File f = new File(rfo.rfoDir, fileList[i]);
-//			if(!f.delete())
-//				Debug.e("RFO.AllSTLsToBuild(): Can't delete file: " + fileList[i]);
-//		}
-//		if(!td.delete())
-//			Debug.e("RFO.AllSTLsToBuild(): Can't delete file: " + rfo.rfoDir);
 		return rfo.astl;
 	}
 }
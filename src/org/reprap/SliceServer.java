@@ -0,0 +1,378 @@
+package org.reprap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reprap.utilities.Debug;
+
+/**
+ * Slices the jobs put in a queue directory, several at once:
+ *
+ *   java org.reprap.SliceServer [-workers n] [-memory MB] [-timeout minutes] queueDirectory
+ *
+ * A job is a file name.job in the queue directory holding the arguments for BatchSlicer,
+ * one to a line (blank lines and lines starting with # are left out).  File names in it
+ * that aren't absolute are taken to be in the queue directory.  A job can also have
+ * -memory MB and -timeout minutes lines of its own to override the server's.  Write
+ * a job under another name and rename it to name.job, so it isn't read half written.
+ *
+ * While a job is being sliced it is renamed name.running-server, where server is the
+ * process and host slicing it.  When it has finished it is renamed name.done or
+ * name.failed, and what BatchSlicer printed is in name.log.  Any number of servers can
+ * share a queue.  Each touches the jobs it is slicing every time it looks for new ones;
+ * a job that hasn't been touched for five minutes was left by a server that stopped,
+ * and the first server to see it puts it back in the queue.
+ *
+ * Each job is sliced in a JVM of its own.  That is what gives each its own memory limit,
+ * and it is the only way to slice several at once, as the preferences and the printer
+ * are global.
+ */
+public class SliceServer
+{
+	private static final String job = ".job";
+	private static final String running = ".running";
+	private static final String done = ".done";
+	private static final String failed = ".failed";
+	private static final String log = ".log";
+
+	/**
+	 * How often to look for new jobs (ms)
+	 */
+	private static final long poll = 1000;
+
+	/**
+	 * How long a running job can go untouched before it is taken to be abandoned (ms)
+	 */
+	private static final long stale = 300000;
+
+	private File queue;
+	private int workers;
+	private int memory;
+	private int timeout;
+	private ExecutorService pool;
+	private AtomicInteger busy = new AtomicInteger(0);
+	private Timer timer = new Timer("SliceServer timeouts", true);
+
+	/**
+	 * The ending of the jobs this server has claimed, and the jobs themselves
+	 */
+	private String claim;
+	private Set<File> mine = new HashSet<File>();
+
+	/**
+	 * @param queue the directory jobs are put in
+	 * @param workers how many jobs to slice at once
+	 * @param memory the default most memory for each job (MB)
+	 * @param timeout the default longest time for each job (minutes, 0 for no limit)
+	 */
+	public SliceServer(File queue, int workers, int memory, int timeout)
+	{
+		this.queue = queue;
+		this.workers = workers;
+		this.memory = memory;
+		this.timeout = timeout;
+		pool = Executors.newFixedThreadPool(workers);
+
+		// pid@host, with nothing in it that could be taken for the start of an ending
+
+		claim = running + "-" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9@_-]", "_");
+	}
+
+	/**
+	 * @param f
+	 * @param ending
+	 * @return a file in the queue with the same name as f, but a different ending
+	 */
+	private File renamed(File f, String ending)
+	{
+		String name = f.getName();
+		return new File(queue, name.substring(0, name.length() - ending(name).length()) + ending);
+	}
+
+	/**
+	 * @param name
+	 * @return the ending of name from its last '.', or "" if it has none
+	 */
+	private static String ending(String name)
+	{
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot);
+	}
+
+	/**
+	 * @param ending
+	 * @return the files in the queue with that ending, oldest first
+	 */
+	private File[] files(final String ending)
+	{
+		return files(new FileFilter()
+		{
+			public boolean accept(File f)
+			{
+				return f.isFile() && f.getName().endsWith(ending);
+			}
+		});
+	}
+
+	/**
+	 * @return the jobs being sliced by any server, oldest first
+	 */
+	private File[] claimed()
+	{
+		return files(new FileFilter()
+		{
+			public boolean accept(File f)
+			{
+				return f.isFile() && ending(f.getName()).startsWith(running + "-");
+			}
+		});
+	}
+
+	/**
+	 * @param filter
+	 * @return the files in the queue that filter accepts, oldest first
+	 */
+	private File[] files(FileFilter filter)
+	{
+		File[] result = queue.listFiles(filter);
+		if(result == null)
+			return new File[0];
+		final long[] modified = new long[result.length];
+		Integer[] order = new Integer[result.length];
+		for(int i = 0; i < result.length; i++)
+		{
+			modified[i] = result[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return modified[a] < modified[b] ? -1 : (modified[a] > modified[b] ? 1 : 0);
+			}
+		});
+		File[] sorted = new File[result.length];
+		for(int i = 0; i < result.length; i++)
+			sorted[i] = result[order[i]];
+		return sorted;
+	}
+
+	/**
+	 * Take jobs from the queue for ever.
+	 * @throws InterruptedException
+	 */
+	public void serve() throws InterruptedException
+	{
+		Debug.a("SliceServer: slicing the jobs in " + queue + ", " + workers + " at once as " + claim.substring(running.length() + 1));
+		while(true)
+		{
+			touch();
+			reclaim();
+			File[] jobs = files(job);
+			for(int i = 0; i < jobs.length && busy.get() < workers; i++)
+			{
+				// Renaming it claims it; another server may have got there first
+
+				final File claimed = renamed(jobs[i], claim);
+				if(!jobs[i].renameTo(claimed))
+					continue;
+				synchronized(mine)
+				{
+					mine.add(claimed);
+				}
+				busy.incrementAndGet();
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							slice(claimed);
+						} finally
+						{
+							synchronized(mine)
+							{
+								mine.remove(claimed);
+							}
+							busy.decrementAndGet();
+						}
+					}
+				});
+			}
+			Thread.sleep(poll);
+		}
+	}
+
+	/**
+	 * Show the other servers that the jobs this one is slicing haven't been abandoned.
+	 */
+	private void touch()
+	{
+		long now = System.currentTimeMillis();
+		synchronized(mine)
+		{
+			for(File f : mine)
+				f.setLastModified(now);
+		}
+	}
+
+	/**
+	 * Put jobs left by servers that have stopped back in the queue.
+	 */
+	private void reclaim()
+	{
+		File[] left = claimed();
+		long old = System.currentTimeMillis() - stale;
+		for(int i = 0; i < left.length; i++)
+		{
+			synchronized(mine)
+			{
+				if(mine.contains(left[i]))
+					continue;
+			}
+			if(left[i].lastModified() > old)
+				continue;
+
+			// Another server may put it back first
+
+			if(left[i].renameTo(renamed(left[i], job)))
+				Debug.a("SliceServer: putting " + left[i].getName() + " back in the queue");
+		}
+	}
+
+	/**
+	 * Slice one job in a JVM of its own, and rename it for how it went.
+	 * @param jobFile
+	 */
+	private void slice(File jobFile)
+	{
+		String name = jobFile.getName();
+		name = name.substring(0, name.length() - ending(name).length());
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+			List<String> args = new ArrayList<String>();
+			int mb = memory;
+			int minutes = timeout;
+			BufferedReader in = new BufferedReader(new FileReader(jobFile));
+			try
+			{
+				String line;
+				while((line = in.readLine()) != null)
+				{
+					line = line.trim();
+					if(line.length() > 0 && !line.startsWith("#"))
+						args.add(line);
+				}
+			} finally
+			{
+				in.close();
+			}
+			for(int i = args.size() - 2; i >= 0; i--)
+			{
+				if(args.get(i).equals("-memory"))
+					mb = Integer.parseInt(args.get(i + 1));
+				else if(args.get(i).equals("-timeout"))
+					minutes = Integer.parseInt(args.get(i + 1));
+				else
+					continue;
+				args.remove(i + 1);
+				args.remove(i);
+			}
+
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			command.add("-Xmx" + mb + "m");
+			command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+			command.add("-Duser.home=" + System.getProperty("user.home"));
+			for(String p : System.getProperties().stringPropertyNames())
+				if(p.startsWith("j3d."))
+					command.add("-D" + p + "=" + System.getProperty(p));
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(BatchSlicer.class.getName());
+			command.addAll(args);
+
+			Debug.a("SliceServer: slicing " + name + " (" + mb + "MB)");
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.directory(queue);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(new File(queue, name + log));
+			final Process p = pb.start();
+			TimerTask kill = null;
+			if(minutes > 0)
+			{
+				kill = new TimerTask()
+				{
+					public void run()
+					{
+						p.destroy();
+					}
+				};
+				timer.schedule(kill, minutes*60000L);
+			}
+			int status = p.waitFor();
+			if(kill != null)
+				kill.cancel();
+			ok = status == BatchSlicer.ok;
+			if(!ok)
+				Debug.e("SliceServer: " + name + " failed (" + status + "); see " + name + log);
+		} catch (IOException e)
+		{
+			Debug.e("SliceServer: " + name + " - " + e.toString());
+		} catch (NumberFormatException e)
+		{
+			Debug.e("SliceServer: " + name + " - bad -memory or -timeout: " + e.toString());
+		} catch (InterruptedException e)
+		{
+			Debug.e("SliceServer: " + name + " interrupted");
+		}
+		if(!jobFile.renameTo(renamed(jobFile, ok ? done : failed)))
+			Debug.e("SliceServer: " + name + " was put back in the queue while it was being sliced");
+		if(ok)
+			Debug.a("SliceServer: " + name + " done in " + (System.currentTimeMillis() - start)/1000 + "s");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int workers = Runtime.getRuntime().availableProcessors();
+		int memory = 1024;
+		int timeout = 0;
+		File queue = null;
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-workers") && i + 1 < args.length)
+				workers = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-memory") && i + 1 < args.length)
+				memory = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-timeout") && i + 1 < args.length)
+				timeout = Integer.parseInt(args[++i]);
+			else if(!args[i].startsWith("-") && queue == null)
+				queue = new File(args[i]);
+			else
+				queue = null;
+		}
+		if(queue == null || !queue.isDirectory() || workers < 1 || memory < 1)
+		{
+			Debug.a("Usage: java org.reprap.SliceServer [-workers n] [-memory MB] [-timeout minutes] queueDirectory");
+			System.exit(BatchSlicer.badArguments);
+		}
+		new SliceServer(queue.getAbsoluteFile(), workers, memory, timeout).serve();
+	}
+}
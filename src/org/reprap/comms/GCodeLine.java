@@ -0,0 +1,212 @@
+package org.reprap.comms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable buffer for building one line of G-code without making Strings.
+ * Numbers are written straight into it as fixed-point decimals.
+ *
+ * In the normal (compatible) mode numbers come out exactly as Double.toString()
+ * would write them (so 100 is "100.0"), which keeps the output byte-for-byte the same
+ * as that made by adding doubles to Strings.  In compact mode trailing zeros
+ * and decimal points are dropped (100 is "100"), which makes the files smaller.
+ */
+public class GCodeLine
+{
+	/**
+	 * The end of a line as written by PrintStream.println()
+	 */
+	private static final byte[] lineEnd = System.getProperty("line.separator").getBytes();
+
+	/**
+	 * Powers of ten for the number of decimal places
+	 */
+	private static final double[] powers = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+	/**
+	 * The characters of the line
+	 */
+	private byte[] buf = new byte[128];
+
+	/**
+	 * How many are in use
+	 */
+	private int len = 0;
+
+	/**
+	 * Working space for digits (they are generated backwards)
+	 */
+	private byte[] digits = new byte[24];
+
+	/**
+	 * Write numbers as compactly as possible?
+	 */
+	private boolean compact = false;
+
+	public GCodeLine()
+	{
+	}
+
+	/**
+	 * @param c true to drop trailing zeros and decimal points
+	 */
+	public void setCompact(boolean c)
+	{
+		compact = c;
+	}
+
+	/**
+	 * Empty the line ready to build another
+	 * @return this
+	 */
+	public GCodeLine reset()
+	{
+		len = 0;
+		return this;
+	}
+
+	/**
+	 * @return number of bytes in the line
+	 */
+	public int length()
+	{
+		return len;
+	}
+
+	/**
+	 * @return the characters of the line; only the first length() are used
+	 */
+	public byte[] bytes()
+	{
+		return buf;
+	}
+
+	private void room(int extra)
+	{
+		if(len + extra <= buf.length)
+			return;
+		byte[] b = new byte[Math.max(len + extra, 2*buf.length)];
+		System.arraycopy(buf, 0, b, 0, len);
+		buf = b;
+	}
+
+	/**
+	 * Add a single (ASCII) character
+	 * @param c
+	 * @return this
+	 */
+	public GCodeLine append(char c)
+	{
+		if(c > 127)
+			return append(String.valueOf(c));
+		room(1);
+		buf[len++] = (byte)c;
+		return this;
+	}
+
+	/**
+	 * Add some text
+	 * @param s
+	 * @return this
+	 */
+	public GCodeLine append(String s)
+	{
+		int n = s.length();
+		room(n);
+		for(int i = 0; i < n; i++)
+		{
+			char c = s.charAt(i);
+			if(c > 127)
+			{
+				// Not plain ASCII - let the platform encode it as PrintStream would
+
+				byte[] b = s.substring(i).getBytes();
+				room(b.length);
+				System.arraycopy(b, 0, buf, len, b.length);
+				len += b.length;
+				return this;
+			}
+			buf[len++] = (byte)c;
+		}
+		return this;
+	}
+
+	/**
+	 * Add a number given to a fixed number of decimal places.  In compatible mode
+	 * the result is the same as Double.toString(v), so v should already have been rounded
+	 * to that many places; if it hasn't, or it's too big or small for fixed-point,
+	 * Double.toString(v) is used.
+	 * @param v
+	 * @param places (0 to 6)
+	 * @return this
+	 */
+	public GCodeLine append(double v, int places)
+	{
+		double p = powers[places];
+		double scaled = v*p;
+		if(Double.isNaN(v) || Double.isInfinite(v) || Math.abs(scaled) >= 1.0e15)
+			return append(Double.toString(v));
+		long m = Math.round(scaled);
+		if(!compact)
+		{
+			double a = Math.abs(v);
+			if(m/p != v || (a != 0 && (a < 1.0e-3 || a >= 1.0e7)))
+				return append(Double.toString(v));
+		}
+
+		// Compatible mode keeps the sign of -0.0 as Double.toString() does
+
+		boolean negative = m < 0 || (m == 0 && !compact && (1/v) < 0);
+		if(m < 0)
+			m = -m;
+
+		// Generate the digits backwards, at least places + 1 of them
+
+		int nd = 0;
+		while(m != 0 || nd <= places)
+		{
+			digits[nd++] = (byte)('0' + m%10);
+			m = m/10;
+		}
+
+		// Skip trailing zeros after the decimal point
+
+		int first = 0;
+		while(first < places && digits[first] == '0')
+			first++;
+
+		room(nd + 3);
+		if(negative)
+			buf[len++] = '-';
+		for(int i = nd - 1; i >= places; i--)
+			buf[len++] = digits[i];
+		if(first < places)
+		{
+			buf[len++] = '.';
+			for(int i = places - 1; i >= first; i--)
+				buf[len++] = digits[i];
+		} else if(!compact)
+		{
+			buf[len++] = '.';
+			buf[len++] = '0';
+		}
+		return this;
+	}
+
+	/**
+	 * Write the line followed by a line end
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(buf, 0, len);
+		out.write(lineEnd, 0, lineEnd.length);
+	}
+
+	public String toString()
+	{
+		return new String(buf, 0, len);
+	}
+}
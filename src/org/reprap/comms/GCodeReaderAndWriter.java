@@ -14,6 +14,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
 
 //import gnu.io.CommPortIdentifier;
 //import gnu.io.NoSuchPortException;
@@ -23,10 +24,12 @@ import java.util.Date;
 
 import org.reprap.utilities.Debug;
 import org.reprap.utilities.RrGraphics;
+import org.reprap.utilities.StageMetrics;
 import org.reprap.utilities.ExtensionFileFilter;
 //import org.reprap.Main;
 import org.reprap.Preferences;
 import org.reprap.geometry.LayerRules;
+import org.reprap.machines.PrintEstimator;
 
 public class GCodeReaderAndWriter
 {
@@ -34,12 +37,19 @@ public class GCodeReaderAndWriter
 	// A positive number returned is a request for that line number
 	// to be resent.
 	
+	private static final long dudResponse = -4;
 	private static final long shutDown = -3;
 	//private static final long startOrNullResponse = -2;
 	private static final long allSentOK = -1;
+	
+	/**
+	 * Give up if a line has to be resent more than this many times
+	 */
+	private static final int maxResends = 10;
 	private double eTemp;
 	private double bTemp;
-	private String[] sdFiles = new String[0];
+	private static final String[] noFiles = new String[0];
+	private String[] sdFiles = noFiles;
 	private double x, y, z, e;
 	private RrGraphics simulationPlot = null;
 	private String lastResp;
@@ -81,6 +91,11 @@ public class GCodeReaderAndWriter
 	 */
 	private InputStream serialInStream = null;
 	
+	/**
+	 * The thread that reads and parses the replies from serialInStream
+	 */
+	private SerialReader serialReader = null;
+	
 	/**
 	 * The root file name for output (without ".gcode" on the end)
 	 */
@@ -144,13 +159,27 @@ public class GCodeReaderAndWriter
 	private long lineNumber;
 	
 	/**
-	 * The ring buffer that stores the commands for 
-	 * possible resend requests.
+	 * Stores the commands sent for possible resend requests.
 	 */
-	private int head, tail;
-	private static final int buflen = 10; // No too long, or pause doesn't work well
-	private String[] ringBuffer;
-	private long[] ringLines;
+	private ResendBuffer resendBuffer;
+	
+	/**
+	 * How many numbered lines may be sent before their "ok"s come back.
+	 * 1 means send a line and wait for its reply before sending the next.
+	 */
+	private int window = 1;
+	
+	/**
+	 * The number of the oldest line sent that the machine has not yet acknowledged.
+	 * Lines oldestUnacked to lineNumber - 1 are in flight.
+	 */
+	private long oldestUnacked;
+	
+	/**
+	 * Set when the machine says something we didn't expect while lines are
+	 * in flight.  We then wait for each line's reply for the rest of the run.
+	 */
+	private boolean stopAndWait = false;
 	
 	/**
 	 * The transmission to the RepRap machine is handled by
@@ -160,6 +189,26 @@ public class GCodeReaderAndWriter
 	private Thread bufferThread = null;
 	private int myPriority;
 	
+	/**
+	 * When building, the lines go into sendQueue and a thread of their own
+	 * sends them, so the machine is kept busy while the next layer is worked out.
+	 * The queue holds sendQueueSize lines; when it is full whoever is queueing waits.
+	 * 0 means send each line as it is queued.  sendLock is held while a line is
+	 * sent, and unsent counts the lines queued but not yet sent.
+	 */
+	private int sendQueueSize = 0;
+	private ArrayBlockingQueue<String> sendQueue = null;
+	private Thread senderThread = null;
+	private final Object sendLock = new Object();
+	private int unsent = 0;
+	private volatile Exception senderError = null;
+	private StageMetrics senderMetrics = null;
+	
+	/**
+	 * If this is set, everything queued is fed to it as well
+	 */
+	private PrintEstimator estimator = null;
+	
 	/**
 	 * Some commands (at the moment just M105 - get temperature and M114 - get coords) generate
 	 * a response.  Return that as a string.
@@ -191,12 +240,41 @@ public class GCodeReaderAndWriter
 		paused = false;
 		iAmPaused = false;
 		alreadyReversed = false;
-		ringBuffer = new String[buflen];
-		ringLines = new long[buflen];
-		head = 0;
-		tail = 0;
+		try
+		{
+			window = Preferences.loadGlobalInt("GCodeWindow");
+		} catch (Exception ex)
+		{
+			Debug.e("Cannot load preference GCodeWindow.");
+			window = 1;
+		}
+		if(window < 1)
+			window = 1;
+		try
+		{
+			sendQueueSize = Preferences.loadGlobalInt("GCodeSendQueue(lines)");
+		} catch (Exception ex)
+		{
+			Debug.e("Cannot load preference GCodeSendQueue(lines).");
+			sendQueueSize = 0;
+		}
+		stopAndWait = false;
+		int resendBytes;
+		try
+		{
+			resendBytes = Preferences.loadGlobalInt("GCodeResendBuffer(bytes)");
+		} catch (Exception ex)
+		{
+			Debug.e("Cannot load preference GCodeResendBuffer(bytes).");
+			resendBytes = 4096;
+		}
+		
+		// The resend buffer must hold every line in flight, however long they are
+		
+		resendBuffer = new ResendBuffer(Math.max(resendBytes, 128*window), window);
 		nonRunningWarn = true;
 		lineNumber = 0;
+		oldestUnacked = 0;
 		//threadLock = false;
 		exhaustBuffer = false;
 		responsesExpected = 0;
@@ -240,6 +318,35 @@ public class GCodeReaderAndWriter
 		return fileOutStream != null;
 	}
 
+	/**
+	 * Change how many lines may be in flight at once (normally set from
+	 * the GCodeWindow preference).
+	 * @param w
+	 */
+	public void setWindow(int w)
+	{
+		window = Math.max(1, w);
+		if(resendBuffer.slots() < window)
+			resendBuffer = new ResendBuffer(128*window, window);
+	}
+	
+	/**
+	 * Talk to a pretend machine rather than a real one
+	 * @param vp
+	 */
+	public void openVirtualPrinter(VirtualPrinter vp)
+	{
+		if(serialReader != null)
+			serialReader.halt();
+		serialReader = null;
+		serialInStream = vp.getInputStream();
+		serialOutStream = new PrintStream(vp.getOutputStream());
+		lineNumber = 0;
+		oldestUnacked = 0;
+		stopAndWait = false;
+		Debug.d("GCodeReaderAndWriter: talking to a virtual printer.");
+	}
+	
 	/**
 	 * Stop the printer building.
 	 * This _shouldn't_ also stop it being controlled interactively.
@@ -317,6 +424,8 @@ public class GCodeReaderAndWriter
 						bytes += line.length();
 						fractionDone = (double)bytes/(double)fileInStreamLength;
 						setFractionDone(fractionDone, -1, -1);
+						if(paused)
+							drain();
 						while(paused)
 						{
 							iAmPaused = true;
@@ -325,6 +434,7 @@ public class GCodeReaderAndWriter
 						}
 						iAmPaused = false;
 					}
+					drain();
 					fileInStream.close();
 				} catch (Exception e) 
 				{  
@@ -342,6 +452,8 @@ public class GCodeReaderAndWriter
 	
 	public void setFractionDone(double fractionDone, int layer, int outOf)
 	{
+		if(org.reprap.Main.noGUI())
+			return;
 		org.reprap.gui.botConsole.BotConsoleFrame.getBotConsoleFrame().setFractionDone(fractionDone, layer, outOf);
 	}
 	
@@ -409,30 +521,6 @@ public class GCodeReaderAndWriter
 		return "*" + cs;
 	}
 	
-	private void ringAdd(long ln, String cmd)
-	{
-		head++;
-		if(head >= ringBuffer.length)
-			head = 0;
-		ringBuffer[head] = cmd;
-		ringLines[head] = ln;
-	}
-	
-	private String ringGet(long ln)
-	{
-		int h = head;
-		do
-		{
-			if(ringLines[h] == ln)
-				return ringBuffer[h];
-			h--;
-			if(h < 0)
-				h = ringBuffer.length - 1;
-		} while(h != head);
-		Debug.e("ringGet: line " + ln + " not stored");
-		return "";
-	}
-	
 	/**
 	 * Send a command to the machine.  Return true if a response is expected; 
 	 * false if not.
@@ -440,6 +528,19 @@ public class GCodeReaderAndWriter
 	 * @return
 	 */
 	private boolean sendLine(String cmd)
+	{
+		return sendLine(cmd, true);
+	}
+	
+	/**
+	 * Send a command to the machine, keeping a copy for resends if record is true.
+	 * Lines being resent are already in the resend buffer, and adding them again
+	 * would push out lines that are still in flight.
+	 * @param cmd
+	 * @param record
+	 * @return
+	 */
+	private boolean sendLine(String cmd, boolean record)
 	{
 		int com = cmd.indexOf(';');
 		if(com > 0)
@@ -449,7 +550,8 @@ public class GCodeReaderAndWriter
 			cmd = cmd.trim();
 			if(cmd.length() > 0)
 			{
-				ringAdd(lineNumber, cmd);
+				if(record)
+					resendBuffer.add(lineNumber, cmd);
 				cmd = "N" + lineNumber + " " + cmd + " ";
 				cmd += checkSum(cmd);
 				serialOutStream.print(cmd + "\n");				
@@ -471,7 +573,11 @@ public class GCodeReaderAndWriter
 	}
 	
 	/**
-	 * Queue a command.  
+	 * Queue a command.  If the window is more than one line, G codes are sent
+	 * without waiting for the replies to the ones before, as long as no more than
+	 * window lines are waiting for their "ok"s.  Anything else (M codes and so on, some
+	 * of which return values) is sent when everything before it has been acknowledged,
+	 * and its reply is waited for.
 	 */
 	private void bufferQueue(String cmd) throws Exception
 	{	
@@ -484,92 +590,294 @@ public class GCodeReaderAndWriter
 			return;
 		}
 		
-
+		if(window <= 1 || stopAndWait || !cmd.startsWith("G"))
+		{
+			awaitAcks();
+			sendAndWait(cmd);
+			return;
+		}
+		
+		// Wait for credit
+		
+		while(lineNumber - oldestUnacked >= window)
+			collectResponse();
+		
+		if(stopAndWait)
+		{
+			sendAndWait(cmd);
+			return;
+		}
+		
 		if(sendLine(cmd))
+			lineNumber++;
+	}
+	
+	/**
+	 * Send one line and wait for the machine's reply to it,
+	 * resending lines as requested.
+	 * @param cmd
+	 * @throws Exception
+	 */
+	private void sendAndWait(String cmd) throws Exception
+	{
+		if(!sendLine(cmd))
 		{
-			long resp = waitForResponse();
-			if(resp == shutDown)
-			{
-				throw new Exception("The RepRap machine has flagged a hard error!");
-			} else if (resp == allSentOK)
-			{
-				lineNumber++;
-				return;
-			} else // Must be a re-send line number
+			Debug.d("bufferQueue(): did not send " + cmd);
+			return;
+		}
+		long sent = lineNumber;
+		lineNumber++;
+		long resp = waitForResponse();
+		if(resp == shutDown)
+			throw new Exception("The RepRap machine has flagged a hard error!");
+		if(resp == allSentOK)
+		{
+			oldestUnacked = lineNumber;
+			return;
+		}
+		if(resp == dudResponse)
+			resp = sent;
+		resendFrom(resp);
+	}
+	
+	/**
+	 * Deal with the machine's next reply to a line in flight.  An "ok" acknowledges
+	 * the oldest line.  Anything else stops the pipelining: we then resend from the line
+	 * the machine asks for (or the oldest one in flight), one line at a time.
+	 * @throws Exception
+	 */
+	private void collectResponse() throws Exception
+	{
+		long resp = waitForResponse();
+		if(resp == shutDown)
+			throw new Exception("The RepRap machine has flagged a hard error!");
+		if(resp == allSentOK)
+		{
+			oldestUnacked++;
+			return;
+		}
+		Debug.e("GCodeReaderAndWriter.collectResponse(): unexpected reply with " + (lineNumber - oldestUnacked) + 
+				" lines in flight; reverting to stop-and-wait.");
+		stopAndWait = true;
+		if(resp == dudResponse || resp < oldestUnacked)
+			resp = oldestUnacked;
+		discardInput();
+		resendFrom(resp);
+	}
+	
+	/**
+	 * Wait until every line sent has been acknowledged
+	 * @throws Exception
+	 */
+	private void awaitAcks() throws Exception
+	{
+		while(oldestUnacked < lineNumber)
+			collectResponse();
+	}
+	
+	/**
+	 * Wait until every line queued has been sent and acknowledged
+	 * @throws Exception
+	 */
+	public void drain() throws Exception
+	{
+		flushSender();
+		synchronized(sendLock)
+		{
+			awaitAcks();
+		}
+	}
+	
+	/**
+	 * Start the thread that sends the lines in sendQueue
+	 */
+	private void startSender()
+	{
+		sendQueue = new ArrayBlockingQueue<String>(sendQueueSize);
+		senderMetrics = new StageMetrics("Sending");
+		senderError = null;
+		unsent = 0;
+		senderThread = new Thread()
+		{
+			public void run()
 			{
-				long gotTo = lineNumber;
-				lineNumber = resp;
-				String rCmd = " ";
-				while(lineNumber <= gotTo && !rCmd.contentEquals(""))
+				Thread.currentThread().setName("GCode sender");
+				while(true)
 				{
-					rCmd = ringGet(lineNumber);
-					if(sendLine(rCmd))
+					long t0 = System.nanoTime();
+					String cmd;
+					try
 					{
-						resp = waitForResponse();
-						if (resp == allSentOK)
-							return;
-						if(resp == shutDown)
-							throw new Exception("The RepRap machine has flagged a hard error!");
+						cmd = sendQueue.take();
+					} catch (InterruptedException ex)
+					{
+						return;
 					}
+					long t1 = System.nanoTime();
+					senderMetrics.starved(t1 - t0);
+					synchronized(sendLock)
+					{
+						try
+						{
+							if(senderError == null)
+								bufferQueue(cmd);
+						} catch (Exception ex)
+						{
+							Debug.e("GCodeReaderAndWriter sender: " + ex.toString());
+							senderError = ex;
+						}
+						unsent--;
+						if(senderError != null)
+						{
+							// Don't send anything more that was queued before the error
+							
+							unsent -= sendQueue.size();
+							sendQueue.clear();
+						}
+						sendLock.notifyAll();
+					}
+					senderMetrics.done(System.nanoTime() - t1);
 				}
 			}
-		} 
-		Debug.d("bufferQueue(): did not send " + cmd);	
+		};
+		senderThread.setDaemon(true);
+		senderThread.start();
 	}
 	
-	private void resetReceived()
+	/**
+	 * Stop the sending thread.  Anything still in its queue is not sent.
+	 */
+	private void stopSender()
 	{
-		eTemp = Double.NEGATIVE_INFINITY;
-		bTemp = Double.NEGATIVE_INFINITY;
-		x = Double.NEGATIVE_INFINITY;
-		y = Double.NEGATIVE_INFINITY;
-		z = Double.NEGATIVE_INFINITY;
-		e = Double.NEGATIVE_INFINITY;
+		if(senderThread == null)
+			return;
+		senderThread.interrupt();
+		senderThread = null;
+		sendQueue = null;
+		if(senderMetrics.items() > 0)
+			Debug.a(senderMetrics.toString());
 	}
 	
 	/**
-	 * Pick out a value from the returned string
-	 * @param s
-	 * @param coord
-	 * @return
+	 * Wait until the sending thread has sent every line queued for it.
+	 * If it failed to send one, throw what went wrong.
+	 * @throws Exception
 	 */
-	private double parseReturnedValue(String s, String cue)
+	private void flushSender() throws Exception
+	{
+		if(senderThread == null || Thread.currentThread() == senderThread)
+			return;
+		synchronized(sendLock)
+		{
+			while(unsent > 0 && senderError == null)
+				sendLock.wait();
+		}
+		checkSender();
+	}
+	
+	private void checkSender() throws Exception
 	{
-		int i = s.indexOf(cue);
-		if(i < 0)
-			return Double.NEGATIVE_INFINITY;
-		i += cue.length();
-		String ss = s.substring(i);
-		int j = ss.indexOf(" ");
-		if(j < 0)
-			return Double.parseDouble(ss);
-		else
-			return Double.parseDouble(ss.substring(0, j));
+		Exception ex = senderError;
+		if(ex != null)
+		{
+			senderError = null;
+			throw ex;
+		}
 	}
 	
 	/**
-	 * Pick up a list of comma-separated names and transliterate them to lower-case
-	 * This code allows file names to have spaces in, but this is ***highly*** depricated.
-	 * @param s
-	 * @param cue
-	 * @return
+	 * Send a line to the machine, through the sending thread if we have one.
+	 * G codes and comments go into its queue.  M codes wait until the queue
+	 * is empty and are then sent straight away, as the caller may want the reply.
+	 * @param cmd
+	 * @throws Exception
 	 */
-	private String[] parseReturnedNames(String s, String cue)
+	private void send(String cmd) throws Exception
 	{
-		int i = s.indexOf(cue);
-		if(i < 0)
-			return new String[0];
-		i += cue.length();
-		String ss = s.substring(i);
-		int j = ss.indexOf(",}");
-		if(j < 0)
-			ss = ss.substring(0,ss.indexOf("}"));  // Must end in "name}"
-		else
-			ss = ss.substring(0,j);    // Must end in "name,}"
-		String[] result = ss.split(",");
-		for(i = 0; i < result.length; i++)
-			result[i] = result[i].toLowerCase();
-		return result;
+		if(sendQueueSize <= 0 || serialOutStream == null)
+		{
+			bufferQueue(cmd);
+			return;
+		}
+		if(senderThread == null)
+			startSender();
+		if(cmd.startsWith("M"))
+		{
+			flushSender();
+			synchronized(sendLock)
+			{
+				bufferQueue(cmd);
+			}
+			return;
+		}
+		checkSender();
+		synchronized(sendLock)
+		{
+			unsent++;
+		}
+		long t0 = System.nanoTime();
+		sendQueue.put(cmd);
+		senderMetrics.queued(System.nanoTime() - t0, sendQueue.size());
+	}
+	
+	/**
+	 * Throw away anything the machine has sent that hasn't been read yet
+	 * (such as replies to lines that it ignored after an error).
+	 */
+	private void discardInput()
+	{
+		sleep(100);
+		SerialReader sr = reader();
+		if(sr != null)
+			sr.clear();
+	}
+	
+	/**
+	 * Resend lines from line number from up to the last one sent, waiting for
+	 * the reply to each.  If the machine asks for a resend, go back to the line it asks for.
+	 * @param from
+	 * @throws Exception
+	 */
+	private void resendFrom(long from) throws Exception
+	{
+		long upTo = lineNumber;
+		int tries = 0;
+		long ln = from;
+		while(ln < upTo)
+		{
+			String rCmd = resendBuffer.get(ln);
+			lineNumber = ln;
+			if(!sendLine(rCmd, false))
+				break;
+			long resp = waitForResponse();
+			if(resp == shutDown)
+				throw new Exception("The RepRap machine has flagged a hard error!");
+			if(resp == allSentOK)
+				ln++;
+			else
+			{
+				tries++;
+				if(tries > maxResends)
+				{
+					Debug.e("GCodeReaderAndWriter.resendFrom(): giving up resending line " + ln);
+					break;
+				}
+				if(resp != dudResponse)
+					ln = resp;
+			}
+		}
+		lineNumber = upTo;
+		oldestUnacked = upTo;
+	}
+	
+	private void resetReceived()
+	{
+		eTemp = Double.NEGATIVE_INFINITY;
+		bTemp = Double.NEGATIVE_INFINITY;
+		x = Double.NEGATIVE_INFINITY;
+		y = Double.NEGATIVE_INFINITY;
+		z = Double.NEGATIVE_INFINITY;
+		e = Double.NEGATIVE_INFINITY;
 	}
 	
 	/**
@@ -709,24 +1017,37 @@ public class GCodeReaderAndWriter
 	}
 
 	/**
-	 * Parse the string sent back from the RepRap machine.
+	 * The thread reading what the machine sends back, started when it's first needed
+	 * @return the reader, or null if there's nothing to read from
+	 */
+	private SerialReader reader()
+	{
+		if(serialReader == null && serialInStream != null)
+		{
+			serialReader = new SerialReader(serialInStream);
+			serialReader.start();
+		}
+		return serialReader;
+	}
+
+	/**
+	 * Wait for the next reply from the RepRap machine (which the serial reader has
+	 * already picked apart) and act on it.
 	 *
 	 */
 	private long waitForResponse()
 	{
-		int i;
-		String resp = "";
 		long result = allSentOK;
-		String lns;
 		resetReceived();
-		boolean goAgain;
 		Date timer = new Date();
 		long startWait = timer.getTime();
 		long timeNow;
 		long increment = 2000;
 		long longWait = 10*60*1000; // 10 mins...
+		SerialReader sr = reader();
+		GCodeResponse r = null;
 		
-		for(;;)
+		while(r == null)
 		{
 			timeNow = timer.getTime() - startWait;
 			if(timeNow > increment)
@@ -746,82 +1067,87 @@ public class GCodeReaderAndWriter
 				}
 			}
 			
-			try
-			{
-				i = serialInStream.read();
-			} catch (Exception e)
-			{
-				i = -1;
-			}
-
-			//anything found?
-			if (i >= 0)
-			{
-				char c = (char)i;
+			if(sr == null)
+				sleep(100);
+			else
+				r = sr.next(increment);
+		}
 
-				//is it at the end of the line?
-				if (c == '\n' || c == '\r')
-				{
-					goAgain = false;
-					if (resp.startsWith("start") || resp.contentEquals("")) // Startup or null string...
-					{
-						resp = "";
-						goAgain = true;
-					} else if (resp.startsWith("!!")) // Horrible hard fault?
-					{
-						result = shutDown;
-						Debug.e("GCodeWriter.waitForResponse(): RepRap hard fault!  RepRap said: " + resp);
-						
-					} else if (resp.startsWith("//")) // immediate DEBUG "comment" from the firmware  ( like C++ )
-					{
-						Debug.d("GCodeWriter.waitForResponse(): " + resp);
-						resp = "";
-						goAgain = true;
-					} else if (resp.endsWith("\\")) // lines ending in a single backslash are considered "continued" to the next line, like "C"
-					{
-					//	Debug.d("GCodeWriter.waitForResponse(): " + resp);
-					//	resp = ""; don't clear the previuos response...
-						goAgain = true; // but do "go again"
-					} else if (resp.startsWith("rs")) // Re-send request?
-					{
-						lns = resp.substring(3);
-						int sp = lns.indexOf(" ");
-						if(sp > 0)
-							lns = lns.substring(0, sp);
-						result = Long.parseLong(lns);
-						Debug.e("GCodeWriter.waitForResponse() - request to resend from line " + result +
-								".  RepRap said: " + resp);
-					} else if (!resp.startsWith("ok")) // Must be "ok" if not those - check
-					{
-						Debug.e("GCodeWriter.waitForResponse() - dud response from RepRap:" + resp + " (hex: " + toHex(resp) + ")");
-						result = lineNumber; // Try to send the last line again
-					}
-					
-					// Have we got temperatures and/or coordinates and/or filenames?
-					
-					eTemp = parseReturnedValue(resp, " T:");
-					bTemp = parseReturnedValue(resp, " B:");
-					sdFiles = parseReturnedNames(resp, " Files: {");
-					if(resp.indexOf(" C:") >= 0)
-					{
-						x = parseReturnedValue(resp, " X:");
-						y = parseReturnedValue(resp, " Y:");
-						z = parseReturnedValue(resp, " Z:");
-						e = parseReturnedValue(resp, " E:");
-					}
-					
-					if(!goAgain)
-					{
-						Debug.c("Response: " + resp);
-						lastResp = resp.substring(2);
-						return result;
-					}
-				} else
-					resp += c;
-			}
+		switch(r.kind())
+		{
+		case HARD_FAULT:
+			result = shutDown;
+			Debug.e("GCodeWriter.waitForResponse(): RepRap hard fault!  RepRap said: !!" + r.text());
+			break;
+			
+		case RESEND:
+			result = r.line();
+			Debug.e("GCodeWriter.waitForResponse() - request to resend from line " + result +
+					".  RepRap said: rs" + r.text());
+			break;
+			
+		case DUD:
+			Debug.e("GCodeWriter.waitForResponse() - dud response from RepRap:" + r.text() + " (hex: " + toHex(r.text()) + ")");
+			result = dudResponse; // Try to send the last line again
+			break;
+			
+		default:
 		}
+
+		// Have we got temperatures and/or coordinates and/or filenames?
+
+		eTemp = r.eTemp();
+		bTemp = r.bTemp();
+		sdFiles = r.sdFiles() == null ? noFiles : r.sdFiles();
+		x = r.x();
+		y = r.y();
+		z = r.z();
+		e = r.e();
+
+		if(Debug.c())
+			Debug.c("Response: " + r);
+		lastResp = r.kind() == GCodeResponse.Kind.DUD && r.text().length() >= 2 ? r.text().substring(2) : r.text();
+		return result;
 	}
 		
+	/**
+	 * Trim a command and replace pairs of spaces by single ones (as
+	 * trim().replaceAll("  ", " ") does), without using a regular expression
+	 * and without making a new String when there's nothing to do.
+	 * @param cmd
+	 * @return tidied command
+	 */
+	private static String tidy(String cmd)
+	{
+		cmd = cmd.trim();
+		if(cmd.indexOf("  ") < 0)
+			return cmd;
+		int n = cmd.length();
+		StringBuilder sb = new StringBuilder(n);
+		for(int i = 0; i < n; i++)
+		{
+			char c = cmd.charAt(i);
+			sb.append(c);
+			if(c == ' ' && i + 1 < n && cmd.charAt(i + 1) == ' ')
+				i++;
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Estimate the time for what is queued from now on
+	 * @param pe the estimator, or null to stop estimating
+	 */
+	public void setEstimator(PrintEstimator pe)
+	{
+		estimator = pe;
+	}
+	
+	public PrintEstimator getEstimator()
+	{
+		return estimator;
+	}
+	
 	/**
 	 * Send a G-code command to the machine or into a file.
 	 * @param cmd
@@ -829,8 +1155,10 @@ public class GCodeReaderAndWriter
 	public void queue(String cmd) throws Exception
 	{
 		//trim it and cleanup.
-		cmd = cmd.trim();
-		cmd = cmd.replaceAll("  ", " ");
+		cmd = tidy(cmd);
+		
+		if(estimator != null)
+			estimator.line(cmd);
 		
 		if(fileOutStream != null)
 		{
@@ -838,9 +1166,33 @@ public class GCodeReaderAndWriter
 			if(g != null)
 				cmd += "; " + g;
 			fileOutStream.println(cmd);
-			Debug.c("G-code: " + cmd + " written to file");
+			if(Debug.c())
+				Debug.c("G-code: " + cmd + " written to file");
 		} else
-			bufferQueue(cmd);
+			send(cmd);
+	}
+	
+	/**
+	 * Queue a command built in a GCodeLine.  When writing to a file the line's
+	 * bytes go straight out without being made into a String.  The line must
+	 * already be tidy (no leading or trailing spaces or double spaces).
+	 * @param line
+	 * @throws Exception
+	 */
+	public void queue(GCodeLine line) throws Exception
+	{
+		if(estimator != null)
+			estimator.line(line.bytes(), 0, line.length());
+		if(fileOutStream != null)
+		{
+			String g = Debug.g();
+			if(g != null)
+				line.append("; ").append(g);
+			line.writeTo(fileOutStream);
+			if(Debug.c())
+				Debug.c("G-code: " + line + " written to file");
+		} else
+			send(line.toString());
 	}
 	
 	/**
@@ -1008,50 +1360,66 @@ public class GCodeReaderAndWriter
 		//opFileIndex = -1;
 		int result = chooser.showSaveDialog(null);
 		if (result == JFileChooser.APPROVE_OPTION)
-		{
-			opFileName = chooser.getSelectedFile().getAbsolutePath();
-			if(opFileName.endsWith(gcodeExtension))
-				opFileName = opFileName.substring(0, opFileName.length() - 6);
+			return openGCodeFileForOutput(topDown, chooser.getSelectedFile());
+		fileOutStream = null;
+		return null;
+	}
+	
+	/**
+	 * Open a file to write the G-codes to without asking which (for slicing from
+	 * the command line).
+	 * @param topDown
+	 * @param file
+	 * @return the name of the file, or null if it can't be written
+	 */
+	public String openGCodeFileForOutput(boolean topDown, File file)
+	{
+		opFileName = file.getAbsolutePath();
+		if(opFileName.endsWith(gcodeExtension))
+			opFileName = opFileName.substring(0, opFileName.length() - 6);
 
-			try
+		try
+		{
+			boolean doe = false;
+			String fn = opFileName;
+			if(topDown)
 			{
-				boolean doe = false;
-				String fn = opFileName;
-				if(topDown)
-				{
-					//opFileIndex = 0;
-					fn += firstEnding;
-					fn += tmpString;
-					doe = true;
-				}
-				fn += gcodeExtension;
-				
-				Debug.d("opening: " + fn);
-				File fl = new File(fn);
-				if(doe) fl.deleteOnExit();
-				FileOutputStream fileStream = new FileOutputStream(fl);
-				fileOutStream = new PrintStream(fileStream);
-				String shortName = chooser.getSelectedFile().getName();
-				if(!shortName.endsWith(gcodeExtension))
-					shortName += gcodeExtension;
-				layerFileNames = System.getProperty("java.io.tmpdir") + File.separator + shortName;
-				File rfod = new File(layerFileNames);
-				if(!rfod.mkdir())
-					throw new RuntimeException(layerFileNames);
-				rfod.deleteOnExit();
-				layerFileNames += File.separator;
-				return shortName;
-			} catch (FileNotFoundException e) 
+				//opFileIndex = 0;
+				fn += firstEnding;
+				fn += tmpString;
+				doe = true;
+			}
+			fn += gcodeExtension;
+			
+			Debug.d("opening: " + fn);
+			File fl = new File(fn);
+			if(doe) fl.deleteOnExit();
+			FileOutputStream fileStream = new FileOutputStream(fl);
+			fileOutStream = new PrintStream(fileStream);
+			String shortName = file.getName();
+			if(!shortName.endsWith(gcodeExtension))
+				shortName += gcodeExtension;
+			layerFileNames = System.getProperty("java.io.tmpdir") + File.separator + shortName;
+			
+			// Another run may be writing a file of the same name
+			
+			File rfod = new File(layerFileNames);
+			for(int i = 1; !rfod.mkdir(); i++)
 			{
-				//opFileArray = null;
-				//opFileIndex = -1;
-				Debug.e("Can't write to file '" + opFileName);
-				opFileName = null;
-				fileOutStream = null;
+				if(i > 1000)
+					throw new RuntimeException(layerFileNames);
+				rfod = new File(layerFileNames + "-" + i);
 			}
-		}
-		else
+			layerFileNames = rfod.getPath();
+			rfod.deleteOnExit();
+			layerFileNames += File.separator;
+			return shortName;
+		} catch (FileNotFoundException e) 
 		{
+			//opFileArray = null;
+			//opFileIndex = -1;
+			Debug.e("Can't write to file '" + opFileName);
+			opFileName = null;
 			fileOutStream = null;
 		}
 		return null;
@@ -1072,8 +1440,6 @@ public class GCodeReaderAndWriter
 				while(exhaustBuffer) sleep(200);
 			}
 			bufferThread = null;
-			head = 0;
-			tail = 0;
 		}
 	}
 	
@@ -1098,22 +1464,25 @@ public class GCodeReaderAndWriter
 //		}
 		
 		//opFileArray[opFileIndex] = opFileName + lc.getMachineLayer() + tmpString + gcodeExtension;
-		lc.setLayerFileName(layerFileNames + "reprap" + lc.getMachineLayer() + tmpString + gcodeExtension);
-		//System.out.println("Name out: " + lc.getLayerFileName());
-		if(!lc.getReversing())
-		try
-		{
-			//File fl = new File(opFileArray[opFileIndex]);
-			File fl = new File(lc.getLayerFileName());
-			fl.deleteOnExit();
-			FileOutputStream fileStream = new FileOutputStream(fl);
-			fileOutStream = new PrintStream(fileStream);
-			//System.out.println("Opening: " + lc.getLayerFileName());
-		} catch (Exception e)
+		if(lc.getReversing())
+			return;
+		
+		// All the layers go into one spool file, from which reverseLayers() copies them
+		// back in the opposite order.
+		
+		if(lc.getLayerSpool() == null)
 		{
-			//Debug.e("Can't write to file " + opFileArray[opFileIndex]);
-			Debug.e("Can't write to file " + lc.getLayerFileName());
+			String spoolName = layerFileNames + "reprap" + tmpString + gcodeExtension;
+			try
+			{
+				lc.setLayerSpool(new LayerSpool(spoolName));
+			} catch (Exception e)
+			{
+				Debug.e("Can't write to file " + spoolName);
+				return;
+			}
 		}
+		fileOutStream = lc.getLayerSpool().startingLayer(lc.getMachineLayer());
 	}
 	
 	public void finishedLayer(LayerRules lc)
@@ -1122,11 +1491,8 @@ public class GCodeReaderAndWriter
 		//if(lc.getPrologueFileName() == null)
 			//return;
 		//System.out.println("Name close: " + lc.getLayerFileName());
-		if(!lc.getReversing())
-		{
-			//System.out.println("Closing: " + lc.getLayerFileName());
-			fileOutStream.close();
-		}
+		if(!lc.getReversing() && lc.getLayerSpool() != null)
+			lc.getLayerSpool().finishedLayer(lc.getMachineLayer());
 		//opFileIndex++;
 	}
 	
@@ -1163,6 +1529,15 @@ public class GCodeReaderAndWriter
 	{
 		
 		Debug.d("disposing of GCodeReaderAndWriter.");
+		try
+		{
+			if(serialOutStream != null)
+				drain();
+		} catch (Exception e)
+		{
+			Debug.e("GCodeReaderAndWriter.finish(): " + e.toString());
+		}
+		stopSender();
 		//lc.reverseLayers(opFileName + gcodeExtension);
 		//	// Wait for the ring buffer to be exhausted
 		//	if(fileOutStream == null && bufferThread != null)
@@ -1173,6 +1548,9 @@ public class GCodeReaderAndWriter
 
 		try
 		{
+			if (serialReader != null)
+				serialReader.halt();
+
 			if (serialInStream != null)
 				serialInStream.close();
 
@@ -0,0 +1,88 @@
+package org.reprap.comms;
+
+/**
+ * One reply from the RepRap machine, as picked out of the serial stream by
+ * SerialReader.  Values that weren't in the reply are Double.NEGATIVE_INFINITY.
+ */
+public class GCodeResponse
+{
+	public enum Kind
+	{
+		/**
+		 * "ok" - the last line was accepted
+		 */
+		OK,
+
+		/**
+		 * "rs n" - please resend from line n
+		 */
+		RESEND,
+
+		/**
+		 * "!!" - the machine has a hard fault
+		 */
+		HARD_FAULT,
+
+		/**
+		 * Something we don't understand
+		 */
+		DUD
+	}
+
+	/**
+	 * A plain "ok" with nothing else in it.  These are by far the commonest replies,
+	 * so they all share this one object.
+	 */
+	public static final GCodeResponse plainOK = new GCodeResponse(Kind.OK, "");
+
+	private Kind kind;
+	private String text;
+	private long line = -1;
+	private double eTemp = Double.NEGATIVE_INFINITY;
+	private double bTemp = Double.NEGATIVE_INFINITY;
+	private double x = Double.NEGATIVE_INFINITY;
+	private double y = Double.NEGATIVE_INFINITY;
+	private double z = Double.NEGATIVE_INFINITY;
+	private double e = Double.NEGATIVE_INFINITY;
+	private String[] sdFiles = null;
+
+	GCodeResponse(Kind k, String t)
+	{
+		kind = k;
+		text = t;
+	}
+
+	void setLine(long l) { line = l; }
+	void setTemperatures(double et, double bt) { eTemp = et; bTemp = bt; }
+	void setCoordinates(double xx, double yy, double zz, double ee) { x = xx; y = yy; z = zz; e = ee; }
+	void setSDFiles(String[] f) { sdFiles = f; }
+
+	public Kind kind() { return kind; }
+
+	/**
+	 * @return the reply after its first two characters (so for "ok T:200" this is " T:200")
+	 */
+	public String text() { return text; }
+
+	/**
+	 * @return the line number asked for by a resend request
+	 */
+	public long line() { return line; }
+
+	public double eTemp() { return eTemp; }
+	public double bTemp() { return bTemp; }
+	public double x() { return x; }
+	public double y() { return y; }
+	public double z() { return z; }
+	public double e() { return e; }
+
+	/**
+	 * @return SD card file names, or null if the reply didn't list any
+	 */
+	public String[] sdFiles() { return sdFiles; }
+
+	public String toString()
+	{
+		return kind + ":" + text;
+	}
+}
@@ -0,0 +1,235 @@
+package org.reprap.comms;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.reprap.machines.PrintEstimator;
+import org.reprap.utilities.Debug;
+
+/**
+ * When layers are made top-down their G-codes have to be written out in the
+ * reverse order.  This collects all the layers in one append-only spool file
+ * and remembers where each layer starts and ends in it.  The layers can then be
+ * copied into the final file in any order by FileChannel.transferTo(), which
+ * avoids copying them through the program byte by byte.  If the output is
+ * being timed the layers are passed through the estimator on their way instead.
+ */
+public class LayerSpool
+{
+	/**
+	 * Size of the write buffer in front of the spool file
+	 */
+	private static final int bufferSize = 1 << 16;
+
+	/**
+	 * The spool file
+	 */
+	private File file;
+
+	/**
+	 * Where we write to it
+	 */
+	private FileOutputStream spoolStream = null;
+
+	/**
+	 * Buffered text output to the spool for the G-codes
+	 */
+	private PrintStream spoolOut = null;
+
+	/**
+	 * Where we read it back from (opened when the first layer is copied)
+	 */
+	private FileInputStream spoolIn = null;
+
+	/**
+	 * Space to copy layers through when they are being timed
+	 */
+	private byte[] copyBuffer = null;
+
+	/**
+	 * The start and end offsets of each layer in the spool (-1 if not written)
+	 */
+	private long[] layerStart;
+	private long[] layerEnd;
+
+	/**
+	 * Open a new spool file
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public LayerSpool(String fileName) throws IOException
+	{
+		file = new File(fileName);
+		file.deleteOnExit();
+		spoolStream = new FileOutputStream(file);
+		spoolOut = new PrintStream(new BufferedOutputStream(spoolStream, bufferSize));
+		layerStart = new long[0];
+		layerEnd = new long[0];
+		grow(64);
+	}
+
+	/**
+	 * Make sure the offset index has room for layer
+	 * @param layer
+	 */
+	private void grow(int layer)
+	{
+		if(layer < layerStart.length)
+			return;
+		int len = Math.max(layer + 1, 2*layerStart.length);
+		long[] s = new long[len];
+		long[] e = new long[len];
+		System.arraycopy(layerStart, 0, s, 0, layerStart.length);
+		System.arraycopy(layerEnd, 0, e, 0, layerEnd.length);
+		for(int i = layerStart.length; i < len; i++)
+		{
+			s[i] = -1;
+			e[i] = -1;
+		}
+		layerStart = s;
+		layerEnd = e;
+	}
+
+	/**
+	 * Where we are in the spool file, after pushing out anything buffered
+	 * @return offset
+	 * @throws IOException
+	 */
+	private long position() throws IOException
+	{
+		spoolOut.flush();
+		return spoolStream.getChannel().position();
+	}
+
+	/**
+	 * Start recording a layer
+	 * @param layer
+	 * @return the stream to write the layer's G-codes to
+	 */
+	public PrintStream startingLayer(int layer)
+	{
+		grow(layer);
+		try
+		{
+			layerStart[layer] = position();
+			layerEnd[layer] = -1;
+		} catch (IOException e)
+		{
+			Debug.e("LayerSpool.startingLayer(): " + e.toString());
+		}
+		return spoolOut;
+	}
+
+	/**
+	 * Finish recording a layer
+	 * @param layer
+	 */
+	public void finishedLayer(int layer)
+	{
+		grow(layer);
+		try
+		{
+			layerEnd[layer] = position();
+		} catch (IOException e)
+		{
+			Debug.e("LayerSpool.finishedLayer(): " + e.toString());
+		}
+	}
+
+	/**
+	 * Has a layer been recorded?
+	 * @param layer
+	 * @return
+	 */
+	public boolean hasLayer(int layer)
+	{
+		return layer >= 0 && layer < layerStart.length && layerStart[layer] >= 0 && layerEnd[layer] >= layerStart[layer];
+	}
+
+	/**
+	 * Append a recorded layer to the end of an output file.  Anything buffered in
+	 * front of out must be flushed before this is called.
+	 * @param layer
+	 * @param out
+	 * @param pe if not null, the layer's G-codes are given to this as they are copied
+	 */
+	public void copyLayer(int layer, FileOutputStream out, PrintEstimator pe)
+	{
+		if(!hasLayer(layer))
+		{
+			Debug.e("LayerSpool.copyLayer(): no record of layer " + layer);
+			return;
+		}
+		try
+		{
+			if(spoolIn == null)
+			{
+				spoolOut.flush();
+				spoolIn = new FileInputStream(file);
+			}
+			FileChannel from = spoolIn.getChannel();
+			FileChannel to = out.getChannel();
+			long pos = layerStart[layer];
+			long end = layerEnd[layer];
+			ByteBuffer buf = null;
+			if(pe != null)
+			{
+				if(copyBuffer == null)
+					copyBuffer = new byte[bufferSize];
+				buf = ByteBuffer.wrap(copyBuffer);
+			}
+			while(pos < end)
+			{
+				long n;
+				if(pe == null)
+					n = from.transferTo(pos, end - pos, to);
+				else
+				{
+					buf.clear();
+					buf.limit((int)Math.min(copyBuffer.length, end - pos));
+					n = from.read(buf, pos);
+					if(n > 0)
+					{
+						buf.flip();
+						while(buf.hasRemaining())
+							to.write(buf);
+						pe.read(copyBuffer, 0, (int)n);
+					}
+				}
+				if(n <= 0)
+				{
+					Debug.e("LayerSpool.copyLayer(): transfer stalled at " + pos + " in layer " + layer);
+					return;
+				}
+				pos += n;
+			}
+		} catch (IOException e)
+		{
+			Debug.e("LayerSpool.copyLayer(): " + e.toString());
+		}
+	}
+
+	/**
+	 * All done - close and delete the spool file
+	 */
+	public void close()
+	{
+		try
+		{
+			spoolOut.close();
+			if(spoolIn != null)
+				spoolIn.close();
+		} catch (IOException e)
+		{
+			Debug.e("LayerSpool.close(): " + e.toString());
+		}
+		spoolIn = null;
+		file.delete();
+	}
+}
@@ -0,0 +1,142 @@
+package org.reprap.comms;
+
+import org.reprap.utilities.Debug;
+
+/**
+ * Keeps copies of the numbered G-code lines sent to the machine so that they
+ * can be sent again if it asks for them.  A line is found directly from its
+ * line number (line number modulo the number of slots), and the text is kept
+ * in a ring of bytes whose size is set in bytes.  The oldest lines are
+ * overwritten as new ones are added, so the lines that can be resent are the
+ * most recent ones that fit in that many bytes (and slots).
+ */
+public class ResendBuffer
+{
+	/**
+	 * The fewest slots we'll have
+	 */
+	private static final int minSlots = 16;
+
+	/**
+	 * A guess at the length of a typical line, for working out how many slots
+	 * to have for a given number of bytes
+	 */
+	private static final int typicalLine = 24;
+
+	/**
+	 * The text of the lines, end to end
+	 */
+	private byte[] data;
+
+	/**
+	 * Total bytes ever added (the position in data is this modulo data.length)
+	 */
+	private long written = 0;
+
+	/**
+	 * For each slot the line number stored there, where its text starts (as
+	 * a count of bytes ever added), and how long it is
+	 */
+	private long[] lineNumbers;
+	private long[] starts;
+	private int[] lengths;
+
+	/**
+	 * slots - 1 (slots is a power of 2)
+	 */
+	private int mask;
+
+	/**
+	 * @param bytes how much text to keep
+	 * @param lines the number of lines that must always be kept
+	 */
+	public ResendBuffer(int bytes, int lines)
+	{
+		if(bytes < 256)
+			bytes = 256;
+		int slots = minSlots;
+		while(slots < bytes/typicalLine || slots < lines)
+			slots = slots << 1;
+		data = new byte[bytes];
+		lineNumbers = new long[slots];
+		starts = new long[slots];
+		lengths = new int[slots];
+		for(int i = 0; i < slots; i++)
+			lineNumbers[i] = -1;
+		mask = slots - 1;
+	}
+
+	/**
+	 * @return the number of lines that can be held (if they're short enough)
+	 */
+	public int slots()
+	{
+		return mask + 1;
+	}
+
+	/**
+	 * Record a line
+	 * @param ln its line number
+	 * @param cmd the G-code (plain ASCII)
+	 */
+	public void add(long ln, String cmd)
+	{
+		int n = cmd.length();
+		int slot = (int)(ln & mask);
+		if(n > data.length)
+		{
+			Debug.e("ResendBuffer.add(): line " + ln + " is longer than the whole buffer.");
+			lineNumbers[slot] = -1;
+			return;
+		}
+		int p = (int)(written % data.length);
+		for(int i = 0; i < n; i++)
+		{
+			data[p++] = (byte)cmd.charAt(i);
+			if(p >= data.length)
+				p = 0;
+		}
+		lineNumbers[slot] = ln;
+		starts[slot] = written;
+		lengths[slot] = n;
+		written += n;
+	}
+
+	/**
+	 * Is a line still held?
+	 * @param ln
+	 * @return
+	 */
+	public boolean has(long ln)
+	{
+		if(ln < 0)
+			return false;
+		int slot = (int)(ln & mask);
+		return lineNumbers[slot] == ln && starts[slot] >= written - data.length;
+	}
+
+	/**
+	 * Get a line back
+	 * @param ln
+	 * @return the G-code, or "" if it's been overwritten
+	 */
+	public String get(long ln)
+	{
+		if(!has(ln))
+		{
+			Debug.e("ResendBuffer.get(): line " + ln + " not stored");
+			return "";
+		}
+		int slot = (int)(ln & mask);
+		int n = lengths[slot];
+		int p = (int)(starts[slot] % data.length);
+		char[] c = new char[n];
+		for(int i = 0; i < n; i++)
+		{
+			c[i] = (char)(data[p++] & 0xff);
+			if(p >= data.length)
+				p = 0;
+		}
+		return new String(c);
+	}
+}
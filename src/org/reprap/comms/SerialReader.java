@@ -0,0 +1,351 @@
+package org.reprap.comms;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.reprap.utilities.Debug;
+
+/**
+ * A thread that reads everything the RepRap machine sends back, splits it into
+ * lines and turns each line into a GCodeResponse.  It reads as much as is available
+ * at a time into a buffer and picks the replies apart byte by byte, so nothing is
+ * made for an ordinary "ok" at all.  Replies are put on a lock-free queue for
+ * whoever is sending to the machine to take.
+ *
+ * Lines starting "start" (the machine resetting) and blank lines are ignored.
+ * Lines starting "//" are firmware debug messages and are just reported.  A line
+ * ending in a backslash is joined to the one after it.
+ */
+public class SerialReader extends Thread
+{
+	/**
+	 * Where the replies come from
+	 */
+	private InputStream in;
+
+	/**
+	 * Raw bytes as read
+	 */
+	private byte[] readBuffer = new byte[4096];
+
+	/**
+	 * The line being assembled
+	 */
+	private byte[] line = new byte[256];
+	private int lineLength = 0;
+
+	/**
+	 * The replies waiting to be dealt with
+	 */
+	private ConcurrentLinkedQueue<GCodeResponse> replies = new ConcurrentLinkedQueue<GCodeResponse>();
+
+	/**
+	 * The thread (if any) waiting in next() for a reply
+	 */
+	private volatile Thread waiter = null;
+
+	/**
+	 * Set false to stop the thread
+	 */
+	private volatile boolean running = true;
+
+	private static final byte[] startCue = {'s', 't', 'a', 'r', 't'};
+	private static final byte[] tCue = {' ', 'T', ':'};
+	private static final byte[] bCue = {' ', 'B', ':'};
+	private static final byte[] cCue = {' ', 'C', ':'};
+	private static final byte[] xCue = {' ', 'X', ':'};
+	private static final byte[] yCue = {' ', 'Y', ':'};
+	private static final byte[] zCue = {' ', 'Z', ':'};
+	private static final byte[] eCue = {' ', 'E', ':'};
+	private static final byte[] filesCue = {' ', 'F', 'i', 'l', 'e', 's', ':', ' ', '{'};
+
+	public SerialReader(InputStream is)
+	{
+		super("RepRap serial reader");
+		in = is;
+		setDaemon(true);
+	}
+
+	public void run()
+	{
+		while(running)
+		{
+			int n;
+			try
+			{
+				n = in.read(readBuffer, 0, readBuffer.length);
+			} catch (Exception e)
+			{
+				n = -1;
+			}
+
+			// Nothing there (or the port timed out) - don't spin
+
+			if(n <= 0)
+			{
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+
+			for(int i = 0; i < n; i++)
+			{
+				byte c = readBuffer[i];
+				if(c == '\n' || c == '\r')
+					endOfLine();
+				else
+				{
+					if(lineLength >= line.length)
+					{
+						byte[] b = new byte[2*line.length];
+						System.arraycopy(line, 0, b, 0, lineLength);
+						line = b;
+					}
+					line[lineLength++] = c;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop reading
+	 */
+	public void halt()
+	{
+		running = false;
+		interrupt();
+	}
+
+	/**
+	 * Get the next reply, waiting up to timeout milliseconds for one.
+	 * @param timeout
+	 * @return the reply, or null if none came in time
+	 */
+	public GCodeResponse next(long timeout)
+	{
+		GCodeResponse r = replies.poll();
+		if(r != null)
+			return r;
+		long end = System.nanoTime() + timeout*1000000;
+		waiter = Thread.currentThread();
+		try
+		{
+			while((r = replies.poll()) == null)
+			{
+				long left = end - System.nanoTime();
+				if(left <= 0)
+					return null;
+				LockSupport.parkNanos(this, left);
+			}
+		} finally
+		{
+			waiter = null;
+		}
+		return r;
+	}
+
+	/**
+	 * Throw away any replies that haven't been dealt with
+	 */
+	public void clear()
+	{
+		replies.clear();
+	}
+
+	/**
+	 * Post a reply and wake up anyone waiting for it
+	 * @param r
+	 */
+	private void post(GCodeResponse r)
+	{
+		replies.offer(r);
+		Thread w = waiter;
+		if(w != null)
+			LockSupport.unpark(w);
+	}
+
+	private boolean startsWith(byte[] cue)
+	{
+		if(lineLength < cue.length)
+			return false;
+		for(int i = 0; i < cue.length; i++)
+			if(line[i] != cue[i])
+				return false;
+		return true;
+	}
+
+	private boolean startsWith(char a, char b)
+	{
+		return lineLength >= 2 && line[0] == a && line[1] == b;
+	}
+
+	/**
+	 * Find a cue in the line
+	 * @param cue
+	 * @return index of the first byte after the cue, or -1 if it isn't there
+	 */
+	private int find(byte[] cue)
+	{
+		int last = lineLength - cue.length;
+		for(int i = 0; i <= last; i++)
+		{
+			int j = 0;
+			while(j < cue.length && line[i + j] == cue[j])
+				j++;
+			if(j == cue.length)
+				return i + cue.length;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a number from the line up to the next space or the end.
+	 * @param i where the number starts
+	 * @return its value, or Double.NEGATIVE_INFINITY if it's not a number
+	 */
+	private double number(int i)
+	{
+		if(i < 0)
+			return Double.NEGATIVE_INFINITY;
+		boolean negative = false;
+		if(i < lineLength && (line[i] == '-' || line[i] == '+'))
+		{
+			negative = line[i] == '-';
+			i++;
+		}
+		double v = 0;
+		double scale = 1;
+		boolean digits = false;
+		boolean point = false;
+		int exponent = 0;
+		for(; i < lineLength && line[i] != ' '; i++)
+		{
+			byte c = line[i];
+			if(c >= '0' && c <= '9')
+			{
+				v = v*10 + (c - '0');
+				if(point)
+					scale *= 10;
+				digits = true;
+			} else if(c == '.' && !point)
+				point = true;
+			else if((c == 'e' || c == 'E') && digits)
+			{
+				i++;
+				boolean eNeg = false;
+				if(i < lineLength && (line[i] == '-' || line[i] == '+'))
+				{
+					eNeg = line[i] == '-';
+					i++;
+				}
+				boolean eDigits = false;
+				for(; i < lineLength && line[i] >= '0' && line[i] <= '9'; i++)
+				{
+					exponent = exponent*10 + (line[i] - '0');
+					eDigits = true;
+				}
+				if(!eDigits || (i < lineLength && line[i] != ' '))
+					return Double.NEGATIVE_INFINITY;
+				if(eNeg)
+					exponent = -exponent;
+				break;
+			} else
+				return Double.NEGATIVE_INFINITY;
+		}
+		if(!digits)
+			return Double.NEGATIVE_INFINITY;
+		v = v/scale;
+		if(exponent != 0)
+			v = v*Math.pow(10, exponent);
+		return negative ? -v : v;
+	}
+
+	/**
+	 * The comma-separated names after " Files: {" in lower case
+	 * (this is rare, so Strings are fine here).
+	 * @param i
+	 * @return
+	 */
+	private String[] names(int i)
+	{
+		String ss = new String(line, i, lineLength - i);
+		int j = ss.indexOf(",}");
+		if(j < 0)
+		{
+			j = ss.indexOf("}");
+			if(j < 0)
+				j = ss.length();
+		}
+		String[] result = ss.substring(0, j).split(",");
+		for(int k = 0; k < result.length; k++)
+			result[k] = result[k].toLowerCase();
+		return result;
+	}
+
+	/**
+	 * A whole line has arrived - work out what it is
+	 */
+	private void endOfLine()
+	{
+		if(lineLength == 0 || startsWith(startCue))
+		{
+			lineLength = 0;
+			return;
+		}
+
+		if(startsWith('/', '/'))
+		{
+			if(Debug.d())
+				Debug.d("SerialReader: " + new String(line, 0, lineLength));
+			lineLength = 0;
+			return;
+		}
+
+		// Continued on the next line?  Keep the backslash, as it always has been.
+
+		if(line[lineLength - 1] == '\\')
+			return;
+
+		GCodeResponse r;
+		if(startsWith('!', '!'))
+		{
+			r = new GCodeResponse(GCodeResponse.Kind.HARD_FAULT, new String(line, 2, lineLength - 2));
+		} else if(startsWith('r', 's'))
+		{
+			r = new GCodeResponse(GCodeResponse.Kind.RESEND, new String(line, 2, lineLength - 2));
+			long l = 0;
+			boolean ok = false;
+			for(int i = 3; i < lineLength && line[i] >= '0' && line[i] <= '9'; i++)
+			{
+				l = l*10 + (line[i] - '0');
+				ok = true;
+			}
+			if(ok)
+				r.setLine(l);
+			else
+				r = new GCodeResponse(GCodeResponse.Kind.DUD, new String(line, 0, lineLength));
+		} else if(startsWith('o', 'k'))
+		{
+			if(lineLength == 2)
+			{
+				post(GCodeResponse.plainOK);
+				lineLength = 0;
+				return;
+			}
+			r = new GCodeResponse(GCodeResponse.Kind.OK, new String(line, 2, lineLength - 2));
+		} else
+			r = new GCodeResponse(GCodeResponse.Kind.DUD, new String(line, 0, lineLength));
+
+		// Have we got temperatures and/or coordinates and/or filenames?
+
+		r.setTemperatures(number(find(tCue)), number(find(bCue)));
+		if(find(cCue) >= 0)
+			r.setCoordinates(number(find(xCue)), number(find(yCue)), number(find(zCue)), number(find(eCue)));
+		int f = find(filesCue);
+		if(f >= 0)
+			r.setSDFiles(names(f));
+
+		lineLength = 0;
+		post(r);
+	}
+}
@@ -0,0 +1,438 @@
+package org.reprap.comms;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.reprap.utilities.Debug;
+
+/**
+ * A pretend RepRap machine at the end of a pair of pipes, for testing how fast and
+ * how reliably GCodeReaderAndWriter talks to a machine without having one.
+ *
+ * It checks line numbers and checksums as the firmware does, and replies "ok",
+ * "rs n" (please resend from line n) or "!!" (after M112).  M105 and M114 reply with
+ * temperatures and the position.  Moves go into a planner buffer of fixed size that is
+ * emptied at a set time per command, and the "ok" for a line is not sent until it
+ * fits in the buffer, so the sender is held up by the machine just as it would be
+ * by a real one.  Noise can be added to the lines as they arrive (so the checksum
+ * fails) and to the replies (so the sender gets something it doesn't understand).
+ *
+ * A line that is garbled is always asked for again.  After a line with the wrong
+ * number only one resend request is sent; later lines are ignored until the
+ * one asked for arrives.
+ */
+public class VirtualPrinter
+{
+	/**
+	 * The pipes.  The host writes to hostOut and reads hostIn.
+	 */
+	private PipedInputStream hostIn;
+	private PipedOutputStream hostOut;
+	private PipedInputStream fromHost;
+	private PrintStream toHost;
+
+	/**
+	 * Moves waiting to be done
+	 */
+	private ArrayBlockingQueue<String> planner;
+
+	/**
+	 * Time to carry out each command (ns)
+	 */
+	private long commandTime = 0;
+
+	/**
+	 * Chances (0 - 1) of a line in or a reply out being corrupted
+	 */
+	private double lineNoise = 0;
+	private double replyNoise = 0;
+	private Random random = new Random(0);
+
+	/**
+	 * The line number we expect next
+	 */
+	private long expected = 0;
+
+	/**
+	 * Ignoring lines until the one asked for turns up?
+	 */
+	private boolean skipping = false;
+
+	/**
+	 * Where the machine is, and its temperatures
+	 */
+	private double x = 0, y = 0, z = 0, e = 0;
+	private double eTemp = 20, bTemp = 20;
+
+	/**
+	 * What happened
+	 */
+	private volatile long linesReceived = 0;
+	private volatile long commandsDone = 0;
+	private volatile long resendsAsked = 0;
+	private volatile long corruptLines = 0;
+	private volatile long corruptReplies = 0;
+
+	private volatile boolean running = true;
+	private Thread firmware;
+	private Thread steppers;
+
+	/**
+	 * @param plannerSize the number of moves the machine can hold waiting to be done
+	 * @throws IOException
+	 */
+	public VirtualPrinter(int plannerSize) throws IOException
+	{
+		hostIn = new PipedInputStream(1 << 16);
+		toHost = new PrintStream(new PipedOutputStream(hostIn));
+		fromHost = new PipedInputStream(1 << 16);
+		hostOut = new PipedOutputStream(fromHost);
+		planner = new ArrayBlockingQueue<String>(Math.max(1, plannerSize));
+	}
+
+	/**
+	 * @return what the host reads the machine's replies from
+	 */
+	public InputStream getInputStream()
+	{
+		return hostIn;
+	}
+
+	/**
+	 * @return what the host writes G-codes to
+	 */
+	public OutputStream getOutputStream()
+	{
+		return hostOut;
+	}
+
+	/**
+	 * @param ms time taken to carry out each command
+	 */
+	public void setCommandTime(double ms)
+	{
+		commandTime = (long)(ms*1000000);
+	}
+
+	/**
+	 * @param line chance (0 - 1) of a character in a line arriving wrong
+	 * @param reply chance (0 - 1) of a reply going back wrong
+	 * @param seed for the random numbers
+	 */
+	public void setNoise(double line, double reply, long seed)
+	{
+		lineNoise = line;
+		replyNoise = reply;
+		random = new Random(seed);
+	}
+
+	public long linesReceived() { return linesReceived; }
+	public long commandsDone() { return commandsDone; }
+	public long resendsAsked() { return resendsAsked; }
+	public long corruptLines() { return corruptLines; }
+	public long corruptReplies() { return corruptReplies; }
+
+	/**
+	 * Turn the machine on
+	 */
+	public void start()
+	{
+		steppers = new Thread()
+		{
+			public void run()
+			{
+				while(running)
+				{
+					try
+					{
+						planner.take();
+					} catch (InterruptedException ex)
+					{
+						continue;
+					}
+					if(commandTime > 0)
+						LockSupport.parkNanos(commandTime);
+					commandsDone++;
+				}
+			}
+		};
+		steppers.setName("Virtual printer steppers");
+		steppers.setDaemon(true);
+		steppers.start();
+
+		firmware = new Thread()
+		{
+			public void run()
+			{
+				BufferedReader br = new BufferedReader(new InputStreamReader(fromHost));
+				reply("start");
+				while(running)
+				{
+					try
+					{
+						String line = br.readLine();
+						if(line == null)
+							break;
+						obey(line);
+					} catch (InterruptedException ex)
+					{
+					} catch (IOException ex)
+					{
+						if(running)
+							Debug.e("VirtualPrinter: " + ex.toString());
+						break;
+					}
+				}
+			}
+		};
+		firmware.setName("Virtual printer firmware");
+		firmware.setDaemon(true);
+		firmware.start();
+	}
+
+	/**
+	 * Turn the machine off
+	 */
+	public void stop()
+	{
+		running = false;
+		if(firmware != null)
+			firmware.interrupt();
+		if(steppers != null)
+			steppers.interrupt();
+		try
+		{
+			hostOut.close();
+			toHost.close();
+		} catch (IOException ex)
+		{}
+	}
+
+	private void reply(String s)
+	{
+		if(replyNoise > 0 && random.nextDouble() < replyNoise)
+		{
+			corruptReplies++;
+			s = "x" + s;
+		}
+		toHost.print(s + "\n");
+		toHost.flush();
+	}
+
+	private void resend()
+	{
+		resendsAsked++;
+		skipping = true;
+		reply("rs " + expected);
+	}
+
+	/**
+	 * Deal with one line from the host
+	 * @param line
+	 * @throws InterruptedException
+	 */
+	private void obey(String line) throws InterruptedException
+	{
+		linesReceived++;
+		if(lineNoise > 0 && line.length() > 0 && random.nextDouble() < lineNoise)
+		{
+			char[] c = line.toCharArray();
+			int i = random.nextInt(c.length);
+			c[i] = (char)(c[i] ^ (1 << random.nextInt(7)));
+			line = new String(c);
+			corruptLines++;
+		}
+		line = line.trim();
+		if(line.length() == 0)
+			return;
+
+		if(!line.startsWith("N") && line.indexOf('*') >= 0)
+		{
+			resend();  // The N must have been garbled
+			return;
+		}
+
+		if(line.startsWith("N"))
+		{
+			int star = line.lastIndexOf('*');
+			int sp = line.indexOf(' ');
+			if(star < 0 || sp < 0 || sp > star)
+			{
+				resend();
+				return;
+			}
+			int cs = 0;
+			for(int i = 0; i < star; i++)
+				cs = cs ^ line.charAt(i);
+			cs &= 0xff;
+			long n;
+			int sent;
+			try
+			{
+				n = Long.parseLong(line.substring(1, sp));
+				sent = Integer.parseInt(line.substring(star + 1).trim());
+			} catch (NumberFormatException ex)
+			{
+				resend();
+				return;
+			}
+			if(cs != sent)
+			{
+				resend();
+				return;
+			}
+			String cmd = line.substring(sp + 1, star).trim();
+			if(cmd.startsWith("M110"))
+			{
+				expected = n;
+				skipping = false;
+			}
+			if(n != expected)
+			{
+				if(!skipping)
+					resend();
+				return;
+			}
+			skipping = false;
+			expected++;
+			line = cmd;
+		}
+
+		execute(line);
+	}
+
+	/**
+	 * Carry out a G-code and reply to it
+	 * @param cmd
+	 * @throws InterruptedException
+	 */
+	private void execute(String cmd) throws InterruptedException
+	{
+		if(cmd.startsWith("G0 ") || cmd.startsWith("G1 ") || cmd.equals("G0") || cmd.equals("G1"))
+		{
+			x = value(cmd, 'X', x);
+			y = value(cmd, 'Y', y);
+			z = value(cmd, 'Z', z);
+			e = value(cmd, 'E', e);
+			planner.put(cmd);
+			reply("ok");
+		} else if(cmd.startsWith("G28"))
+		{
+			x = 0;
+			y = 0;
+			z = 0;
+			planner.put(cmd);
+			reply("ok");
+		} else if(cmd.startsWith("G92"))
+		{
+			x = value(cmd, 'X', x);
+			y = value(cmd, 'Y', y);
+			z = value(cmd, 'Z', z);
+			e = value(cmd, 'E', e);
+			reply("ok");
+		} else if(cmd.startsWith("M104") || cmd.startsWith("M109"))
+		{
+			eTemp = value(cmd, 'S', eTemp);
+			reply("ok");
+		} else if(cmd.startsWith("M140") || cmd.startsWith("M190"))
+		{
+			bTemp = value(cmd, 'S', bTemp);
+			reply("ok");
+		} else if(cmd.startsWith("M105"))
+			reply("ok T:" + eTemp + " B:" + bTemp);
+		else if(cmd.startsWith("M114"))
+			reply("ok C: X:" + x + " Y:" + y + " Z:" + z + " E:" + e);
+		else if(cmd.startsWith("M112"))
+			reply("!! emergency stop");
+		else if(cmd.startsWith("M400"))
+		{
+			while(!planner.isEmpty())
+				LockSupport.parkNanos(100000);
+			reply("ok");
+		} else
+			reply("ok");
+	}
+
+	/**
+	 * The number after a letter in a G-code
+	 * @param cmd
+	 * @param letter
+	 * @param old what to return if the letter isn't there
+	 * @return
+	 */
+	private static double value(String cmd, char letter, double old)
+	{
+		int i = cmd.indexOf(" " + letter);
+		if(i < 0)
+			return old;
+		i += 2;
+		int j = cmd.indexOf(' ', i);
+		if(j < 0)
+			j = cmd.length();
+		try
+		{
+			return Double.parseDouble(cmd.substring(i, j));
+		} catch (NumberFormatException ex)
+		{
+			return old;
+		}
+	}
+
+	/**
+	 * Time sending moves to a virtual printer.
+	 * Arguments (all optional): lines window line-noise command-time(ms) planner-size
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		double noise = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+		double time = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		int plannerSize = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+		VirtualPrinter vp = new VirtualPrinter(plannerSize);
+		vp.setCommandTime(time);
+		vp.setNoise(noise, 0, 1);
+		vp.start();
+		GCodeReaderAndWriter gcode = new GCodeReaderAndWriter();
+		gcode.setWindow(window);
+		gcode.openVirtualPrinter(vp);
+
+		long start = System.nanoTime();
+		long tempTime = 0;
+		int temps = 0;
+		for(int i = 0; i < lines; i++)
+		{
+			gcode.queue("G1 X" + (i%200) + ".0 Y" + (i%150) + ".5 E" + i + ".0");
+			if(i%1000 == 999)
+			{
+				long t = System.nanoTime();
+				gcode.queue("M105");
+				tempTime += System.nanoTime() - t;
+				temps++;
+			}
+		}
+		gcode.drain();
+		double s = (System.nanoTime() - start)*1.0e-9;
+
+		System.out.println("Lines: " + lines + "  window: " + window + "  time: " + s + " s  (" + (int)(lines/s) + " lines/s)");
+		while(!vp.planner.isEmpty())
+			LockSupport.parkNanos(1000000);
+		System.out.println("Lines received: " + vp.linesReceived() + "  corrupted: " + vp.corruptLines() +
+				"  resends asked for: " + vp.resendsAsked() + "  moves done: " + vp.commandsDone());
+		if(temps > 0)
+			System.out.println("Mean M105 round trip: " + tempTime*1.0e-6/temps + " ms");
+		vp.stop();
+		System.exit(0);
+	}
+}
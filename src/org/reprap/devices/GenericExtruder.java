@@ -62,7 +62,7 @@ public abstract class GenericExtruder implements Extruder
 	/**
 	 * The actual extrusion speed
 	 */
-	//protected double extrusionSpeed;
+	protected double extrusionSpeed = 200;
 	
 	/**
 	 * The time to run the extruder at the start
@@ -424,7 +424,7 @@ public abstract class GenericExtruder implements Extruder
 		{
 			result = Preferences.loadGlobalInt(prefName + "Address");
 			maxExtruderSpeed = 255; //Preferences.loadGlobalInt(prefName + "MaxSpeed(0..255)");
-//			extrusionSpeed = Preferences.loadGlobalDouble(prefName + "ExtrusionSpeed(mm/minute)");
+			extrusionSpeed = Preferences.loadGlobalDouble(prefName + "ExtrusionSpeed(mm/minute)");
 			purgeTime = Preferences.loadGlobalDouble(prefName + "Purge(ms)");
 			//extrusionPWM = Preferences.loadGlobalDouble(prefName + "ExtrusionPWM(0..1)");
 			extrusionPWM = -1;
@@ -750,14 +750,7 @@ public abstract class GenericExtruder implements Extruder
      */
     private double getRegularExtruderSpeed()
     {
-    	try
-    	{
-    		return Preferences.loadGlobalDouble(prefName + "ExtrusionSpeed(mm/minute)");
-    	} catch (Exception e)
-    	{
-    		Debug.e(e.toString());
-    		return 200;  //Hack
-    	}
+    	return extrusionSpeed;
     }
     
     private double getSeparationSpeed()
@@ -804,6 +797,17 @@ public abstract class GenericExtruder implements Extruder
     	return extrusionHeight;
     } 
     
+    /* (non-Javadoc)
+     * @see org.reprap.Extruder#getLayerHeight()
+     */
+    public double getLayerHeight()
+    {
+    	LayerRules lr = printer.getLayerRules();
+    	if(lr != null && lr.getAdaptive())
+    		return lr.getMachineLayerHeight();
+    	return extrusionHeight;
+    } 
+    
     /**
      * At the top and bottom return the fine width; in between
      * return the braod one.  If the braod one is negative, just do fine.
@@ -1289,7 +1293,7 @@ public abstract class GenericExtruder implements Extruder
     	if(getFeedDiameter() < 0)
     		return distance;
     	
-    	double r = distance*getExtrusionHeight()*getExtrusionSize()/(getFeedDiameter()*getFeedDiameter()*Math.PI/4);
+    	double r = distance*getLayerHeight()*getExtrusionSize()/(getFeedDiameter()*getFeedDiameter()*Math.PI/4);
     	//Debug.g("d/D: " + r/distance + ", m: " + getMaterial());
     	return r;
     }
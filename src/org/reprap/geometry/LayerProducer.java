@@ -7,17 +7,20 @@ package org.reprap.geometry;
 
 //import java.io.IOException;
 
+import org.reprap.MachineConfig;
 import org.reprap.Printer;
 import org.reprap.Attributes;
 import org.reprap.Preferences;
 //import org.reprap.ReprapException;
 //import org.reprap.devices.pseudo.LinePrinter;
+import org.reprap.geometry.polygons.ArcFitter;
 import org.reprap.geometry.polygons.Point2D;
 //import org.reprap.geometry.polygons.RrCSGPolygonList;
 import org.reprap.geometry.polygons.Polygon;
 //import org.reprap.geometry.polygons.PolygonAttributes;
 import org.reprap.geometry.polygons.PolygonList;
 import org.reprap.geometry.polygons.Rectangle;
+import org.reprap.machines.LookAheadPlanner;
 import org.reprap.utilities.Debug;
 import org.reprap.utilities.RrGraphics;
 
@@ -109,6 +112,17 @@ public class LayerProducer {
 	 */
 	private double currentFeedrate;
 	
+	/**
+	 * Plans the speeds round corners when RepRap accelerations are used (null to use
+	 * the simpler scheme in Polygon)
+	 */
+	private LookAheadPlanner planner = null;
+	
+	/**
+	 * Finds runs of sides that can be printed as arcs (null if the machine isn't to use G2/G3)
+	 */
+	private ArcFitter arcFitter = null;
+	
 	/**
 	 * Record the end of each polygon as a clue where to start next
 	 */
@@ -153,12 +167,18 @@ public class LayerProducer {
 		
 		allPolygons = ap;
 		
+		MachineConfig config = lc.getConfig();
+		if(config.getLookAheadMoves() > 0)
+			planner = new LookAheadPlanner(config.getLookAheadMoves(), config.getJunctionDeviation());
+		if(config.getArcFitting())
+			arcFitter = new ArcFitter(config.getArcTolerance());
+		
 		if(simulationPlot != null)
 		{
 			if(!simulationPlot.isInitialised())
 			{
 				Rectangle rec = lc.getBox();
-				if(Preferences.loadGlobalBool("Shield"))
+				if(config.getShield())
 					rec.expand(Point2D.add(rec.sw(), new Point2D(-7, -7))); // TODO: Yuk - this should be a parameter
 				simulationPlot.init(rec, false, "" + lc.getModelLayer() + " (z=" + lc.getModelZ() + ")");
 			} else
@@ -196,18 +216,20 @@ public class LayerProducer {
 	
 	/**
 	 * speed up for short lines
-	 * @param p
+	 * @param x
+	 * @param y
 	 * @return
 	 * @throws Exception 
 	 */
-	private boolean shortLine(Point2D p, boolean stopExtruder, boolean closeValve) throws Exception
+	private boolean shortLine(double x, double y, boolean stopExtruder, boolean closeValve) throws Exception
 	{
 		Printer printer = layerConditions.getPrinter();
 		double shortLen = printer.getExtruder().getShortLength();
 		if(shortLen < 0)
 			return false;
-		Point2D a = Point2D.sub(posNow(), p);
-		double amod = a.mod();
+		double ax = printer.getX() - x;
+		double ay = printer.getY() - y;
+		double amod = Math.sqrt(ax*ax + ay*ay);
 		if(amod > shortLen) {
 //			Debug.d("Long segment.  Current feedrate is: " + currentFeedrate);
 			return false;
@@ -217,18 +239,19 @@ public class LayerProducer {
 // TODO: FIX THIS
 //		printer.setSpeed(LinePrinter.speedFix(printer.getExtruder().getXYSpeed(), 
 //				printer.getExtruder().getShortSpeed()));
-		printer.printTo(p.x(), p.y(), layerConditions.getMachineZ(), printer.getExtruder().getShortLineFeedrate(), stopExtruder, closeValve);
+		printer.printTo(x, y, layerConditions.getMachineZ(), printer.getExtruder().getShortLineFeedrate(), stopExtruder, closeValve);
 		//printer.setFeedrate(currentFeedrate);
 		return true;	
 	}
 	
 	/**
-	 * @param first First point, the end of the line segment to be plotted to from the current position.
-	 * @param second Second point, the end of the next line segment; used for angle calculations
+	 * @param p The polygon being plotted
+	 * @param first Index of the first point, the end of the line segment to be plotted to from the current position.
+	 * @param second Index of the second point, the end of the next line segment; used for angle calculations
 	 * @param turnOff True if the extruder should be turned off at the end of this segment.
 	 * @throws Exception 
 	 */
-	private void plot(Point2D first, Point2D second, boolean stopExtruder, boolean closeValve) throws Exception
+	private void plot(Polygon p, int first, int second, boolean stopExtruder, boolean closeValve) throws Exception
 	{
 		Printer printer = layerConditions.getPrinter();
 		if (printer.isCancelled()) return;
@@ -242,7 +265,9 @@ public class LayerProducer {
 			} catch (Exception ex) {}
 		}
 		
-		if(shortLine(first, stopExtruder, closeValve))
+		double x = p.x(first);
+		double y = p.y(first);
+		if(shortLine(x, y, stopExtruder, closeValve))
 			return;
 		
 		double z = layerConditions.getMachineZ();
@@ -250,7 +275,7 @@ public class LayerProducer {
 		double speedUpLength = printer.getExtruder().getAngleSpeedUpLength();
 		if(speedUpLength > 0)
 		{
-			segmentSpeeds ss = new segmentSpeeds(posNow(), first, second, 
+			segmentSpeeds ss = new segmentSpeeds(posNow(), new Point2D(x, y), p.point(second), 
 					speedUpLength);
 			if(ss.abandon)
 				return;
@@ -273,7 +298,7 @@ public class LayerProducer {
 			//pos = ss.p3;
 		// Leave speed set for the start of the next line.
 		} else
-			printer.printTo(first.x(), first.y(), z, currentFeedrate, stopExtruder, closeValve);
+			printer.printTo(x, y, z, currentFeedrate, stopExtruder, closeValve);
 	}
 	
 	private void singleMove(Point2D p)
@@ -343,6 +368,51 @@ public class LayerProducer {
 	}
 
 
+	/**
+	 * See if the sides of a polygon from vertex i - 1 onwards can be printed as an arc.
+	 * They can't if they'd be printed specially (short lines or speed-ups at corners), and the arc
+	 * mustn't go past where the extruder or valve is turned off or (with accelerations) the speed changes.
+	 * @param p
+	 * @param i
+	 * @param acc
+	 * @param extrudeBackLength
+	 * @param valveBackLength
+	 * @return the last vertex of the arc, or i - 1 if there isn't one
+	 */
+	private int arcEnd(Polygon p, int i, boolean acc, double extrudeBackLength, double valveBackLength)
+	{
+		if(arcFitter == null)
+			return i - 1;
+		Printer printer = layerConditions.getPrinter();
+		if(printer.getExtruder().getShortLength() >= 0 || printer.getExtruder().getAngleSpeedUpLength() > 0)
+			return i - 1;
+		int limit = i;
+		while(limit < p.size() - 1)
+		{
+			if((limit > p.extrudeEnd() && extrudeBackLength > 0) || (limit > p.valveEnd() && valveBackLength > 0))
+				break;
+			if(acc && p.speed(limit + 1) != p.speed(i))
+				break;
+			limit++;
+		}
+		return arcFitter.fit(p, i - 1, limit);
+	}
+	
+	/**
+	 * Reverse the extruder at the end of a track.  The reverse is timed, not
+	 * worked out from a distance, so it is done at the normal extrude ratio
+	 * even when sparse infill has multiplied the ratio for its moves.
+	 * @param extrudeRatio the normal ratio
+	 */
+	private void endReverse(double extrudeRatio)
+	{
+		Printer printer = layerConditions.getPrinter();
+		double ratio = printer.getExtruder().getExtrudeRatio();
+		printer.getExtruder().setExtrudeRatio(extrudeRatio);
+		printer.printEndReverse();
+		printer.getExtruder().setExtrudeRatio(ratio);
+	}
+	
 	/**
 	 * Plot a polygon
 	 * @return
@@ -353,6 +423,7 @@ public class LayerProducer {
 		Attributes att = p.getAttributes();
 		//PolygonAttributes pAtt = p.getPolygonAttribute();
 		Printer printer = layerConditions.getPrinter();
+		boolean accelerations = layerConditions.getConfig().getRepRapAccelerations();
 		double outlineFeedrate = att.getExtruder().getOutlineFeedrate();
 		double infillFeedrate = att.getExtruder().getInfillFeedrate();
 		
@@ -367,12 +438,11 @@ public class LayerProducer {
 		// If the length of the plot is <0.05mm, don't bother with it.
 		// This will not spot an attempt to plot 10,000 points in 1mm.
 		double plotDist=0;
-		Point2D lastPoint=p.point(0);
 		for (int i=1; i<p.size(); i++)
 		{
-			Point2D n=p.point(i);
-			plotDist+=Point2D.d(lastPoint, n);
-			lastPoint=n;
+			double dx=p.x(i) - p.x(i-1);
+			double dy=p.y(i) - p.y(i-1);
+			plotDist+=Math.sqrt(dx*dx + dy*dy);
 		}
 		if (plotDist<Preferences.machineResolution()*0.5) {
 			Debug.d("Rejected line with "+p.size()+" points, length: "+plotDist);
@@ -386,10 +456,10 @@ public class LayerProducer {
 		{
 			// The next line tells the printer that it is already at the first point.  It is not, but code will be added just before this
 			// to put it there by the LayerRules function that reverses the top-down order of the layers.
-			if(Preferences.loadGlobalBool("RepRapAccelerations"))
-				printer.singleMove(p.point(0).x(), p.point(0).y(), currentZ, printer.getSlowXYFeedrate(), false);
+			if(accelerations)
+				printer.singleMove(p.x(0), p.y(0), currentZ, printer.getSlowXYFeedrate(), false);
 			else
-				printer.singleMove(p.point(0).x(), p.point(0).y(), currentZ, printer.getFastXYFeedrate(), false);
+				printer.singleMove(p.x(0), p.y(0), currentZ, printer.getFastXYFeedrate(), false);
 			printer.forceNextExtruder();
 		}
 		printer.selectExtruder(att, p.point(0));
@@ -404,12 +474,15 @@ public class LayerProducer {
 		
 		if(acc)
 		{
-			if(Preferences.loadGlobalBool("RepRapAccelerations"))
+			if(accelerations && planner != null)
+				p.setSpeeds(att.getExtruder().getSlowXYFeedrate(), p.isClosed()?outlineFeedrate:infillFeedrate, 
+					att.getExtruder().getMaxAcceleration(), planner);
+			else if(accelerations)
 				p.setSpeeds(printer.getFastXYFeedrate(), att.getExtruder().getSlowXYFeedrate(), p.isClosed()?outlineFeedrate:infillFeedrate, 
-					att.getExtruder().getMaxAcceleration());
+					att.getExtruder().getMaxAcceleration(), layerConditions.getConfig());
 			else
 				p.setSpeeds(printer.getFastXYFeedrate(), att.getExtruder().getFastXYFeedrate(), p.isClosed()?outlineFeedrate:infillFeedrate, 
-						att.getExtruder().getMaxAcceleration());
+						att.getExtruder().getMaxAcceleration(), layerConditions.getConfig());
 		}
 		
 		double extrudeBackLength = att.getExtruder().getExtrusionOverRun();
@@ -431,7 +504,7 @@ public class LayerProducer {
 		if(liftZ > 0)
 			printer.singleMove(printer.getX(), printer.getY(), currentZ, printer.getFastFeedrateZ(), true);
 		
-		if(acc | (!Preferences.loadGlobalBool("RepRapAccelerations")))
+		if(acc | (!accelerations))
 			currentFeedrate = p.speed(0);
 		else
 		{
@@ -444,7 +517,7 @@ public class LayerProducer {
 			}
 		}
 		
-		plot(p.point(0), p.point(1), false, false);
+		plot(p, 0, 1, false, false);
 		
 		// Print any lead-in.
 		printer.printStartDelay(firstOneInLayer);
@@ -458,12 +531,19 @@ public class LayerProducer {
 		//if(pAtt != null)
 		//.getExtruder().setExtrudeRatio(oldFeedFactor*pAtt.getBridgeThin());
 		
+		// Sparse infill for several layers at once needs that much more material
+		
+		double oldExtrudeRatio = printer.getExtruder().getExtrudeRatio();
+		if(att.getLayers() != 1)
+			printer.getExtruder().setExtrudeRatio(oldExtrudeRatio*att.getLayers());
+		
 		for(int i = 1; i < p.size(); i++)
 		{
-			Point2D next = p.point((i+1)%p.size());
+			int next = (i+1)%p.size();
 
 			if (printer.isCancelled())
 			{
+				printer.getExtruder().setExtrudeRatio(oldExtrudeRatio);
 				printer.stopMotor();
 				singleMove(posNow());
 				move(posNow(), posNow(), lift, lift, true);
@@ -472,19 +552,36 @@ public class LayerProducer {
 
 			if(acc)
 				currentFeedrate = p.speed(i);
+			
+			int arcEnd = arcEnd(p, i, acc, extrudeBackLength, valveBackLength);
+			if(arcEnd > i)
+			{
+				oldexoff = extrudeOff;
+				extrudeOff = (arcEnd > p.extrudeEnd() && extrudeBackLength > 0) || arcEnd == p.size()-1;
+				valveOff = (arcEnd > p.valveEnd() && valveBackLength > 0) || arcEnd == p.size()-1;
+				printer.printArcTo(p.x(arcEnd), p.y(arcEnd), arcFitter.cx(), arcFitter.cy(), arcFitter.clockwise(), 
+						layerConditions.getMachineZ(), currentFeedrate, extrudeOff, valveOff);
+				if(oldexoff ^ extrudeOff)
+					endReverse(oldExtrudeRatio);
+				i = arcEnd;
+				continue;
+			}
+			
 			//Debug.g(printer.getExtruder().getMaterial());
 			oldexoff = extrudeOff;
 			extrudeOff = (i > p.extrudeEnd() && extrudeBackLength > 0) || i == p.size()-1;
 			valveOff = (i > p.valveEnd() && valveBackLength > 0) || i == p.size()-1;			
-			plot(p.point(i), next, extrudeOff, valveOff);
+			plot(p, i, next, extrudeOff, valveOff);
 			if(oldexoff ^ extrudeOff)
-				printer.printEndReverse();
+				endReverse(oldExtrudeRatio);
 		}
 
 		// Restore sanity
 		
 		//att.getExtruder().setExtrudeRatio(oldFeedFactor);
 		
+		printer.getExtruder().setExtrudeRatio(oldExtrudeRatio);
+		
 		if(p.isClosed())
 			move(p.point(0), p.point(0), false, false, true);
 			
@@ -1,18 +1,19 @@
 
 package org.reprap.geometry;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
 import java.io.PrintStream;
 
+import org.reprap.MachineConfig;
 import org.reprap.Printer;
 import org.reprap.Extruder;
+import org.reprap.comms.LayerSpool;
 import org.reprap.geometry.polygons.HalfPlane;
 import org.reprap.geometry.polygons.Rectangle;
 import org.reprap.geometry.polygons.Point2D;
 import org.reprap.geometry.polygons.PolygonList;
+import org.reprap.geometry.polyhedra.AdaptiveLayers;
 import org.reprap.geometry.polyhedra.AllSTLsToBuild;
 import org.reprap.Preferences;
 import org.reprap.utilities.Debug;
@@ -64,9 +65,9 @@ public class LayerRules
 	private String epilogueFileName;
 	
 	/**
-	 * The names of all the files for all the layers
+	 * The spool file holding the G-codes for all the layers
 	 */
-	private String [] layerFileNames;
+	private LayerSpool layerSpool;
 	
 	/**
 	 * Are we reversing the layer orders?
@@ -138,6 +139,12 @@ public class LayerRules
 	 */
 	private double thickestZStep;
 	
+	/**
+	 * With adaptive layers, the height of the top of each model layer above the
+	 * bottom of the model.  Null when every layer is zStep thick.
+	 */
+	private double[] modelTop = null;
+	
 	/**
 	 * If we take a short step, remember it and add it on next time
 	 */
@@ -168,6 +175,11 @@ public class LayerRules
 	 */
 	private Point2D purge;
 	
+	/**
+	 * The machine settings for this build, fixed when it starts
+	 */
+	private MachineConfig config;
+	
 	/**
 	 * The length of the purge trail in mm
 	 */
@@ -190,20 +202,16 @@ public class LayerRules
 	public LayerRules(Printer p, AllSTLsToBuild astls, boolean found)
 	{
 		printer = p;
-		reversing = false;
+		config = p.getConfig();
+		if(config == null)
+			config = MachineConfig.get();
 		alreadyReversed = false;
 		notStartedYet = true;
 		
 		astls.setBoxes();
 		astls.setLayerRules(this);
 		
-		try 
-		{
-			purge = new Point2D(Preferences.loadGlobalDouble("DumpX(mm)"), Preferences.loadGlobalDouble("DumpY(mm)"));
-		} catch (IOException e) 
-		{	
-			Debug.e(e.toString());
-		}
+		purge = new Point2D(config.getDumpX(), config.getDumpY());
 		
 		Rectangle gp = astls.ObjectPlanRectangle();
 		bBox =  new Rectangle(new Point2D(gp.x().low() - 6, gp.y().low() - 6), 
@@ -212,13 +220,11 @@ public class LayerRules
 		modelZMax = astls.maxZ();
 		
 		topDown = printer.getTopDown();
-		if(!topDown)
-		{
-			Debug.e("LayerRules(): Bottom-up slice calculations no longer supported.");
-			topDown = true;
-		}
 		
+		// Built bottom-up, the layers go straight out as they are done, just as they
+		// do when a top-down build is reversed.
 		
+		reversing = !topDown;
 
 		// Run through the extruders checking their layer heights and the
 		// Actual physical extruder used.
@@ -260,22 +266,31 @@ public class LayerRules
 						") is not an integer divisor of the layer height for layer height " + thickestZStep);
 		}
 		
+		if(config.getAdaptiveLayers())
+			modelTop = adaptiveLayers(astls, es);
+		
 		int foundationLayers = Math.max(0, printer.getFoundationLayers());
-		modelLayerMax = (int)(modelZMax/zStep) + 1;
+		if(modelTop != null)
+			modelLayerMax = modelTop.length - 1;
+		else
+			modelLayerMax = (int)(modelZMax/zStep) + 1;
 		machineLayerMax = modelLayerMax + foundationLayers;
 		machineZMax = modelZMax + foundationLayers*zStep;
 		if(topDown)
 		{
-			modelZ = modelZMax;
-			machineZ = machineZMax;
+			// Start where stepping down from above would put us, so the layers
+			// come out the same height whichever way up the build goes.
+			
 			modelLayer = modelLayerMax;
-			machineLayer = machineLayerMax;			
+			machineLayer = machineLayerMax;
+			modelZ = getModelZ(modelLayer);
+			machineZ = machineZ(machineLayer);
 		} else
 		{
-			modelZ = 0;
+			modelLayer = -foundationLayers;
+			modelZ = getModelZ(modelLayer);
+			machineLayer = 0;
 			machineZ = 0;
-			modelLayer = -1;
-			machineLayer = 0;			
 		}
 		addToStep = 0;
 		
@@ -286,11 +301,10 @@ public class LayerRules
 		lastPoint = new Point2D[machineLayerMax+1];
 		lastExtruder = new int[machineLayerMax+1];
 		layerZ = new double[machineLayerMax+1];
-		layerFileNames = new String[machineLayerMax+1];
+		layerSpool = null;
 		extruderUsedThisLayer = new boolean[machineLayerMax+1][maxAddress];
 		for(int i = 0; i < machineLayerMax+1; i++)
 		{
-			layerFileNames[i] = null;
 			for(int j = 0; j < maxAddress; j++)
 				extruderUsedThisLayer[i][j] = false;
 		}
@@ -306,6 +320,48 @@ public class LayerRules
 		new Point2D(gp.x().high() + 6, gp.y().high() + 6));
 	}
 	
+	/**
+	 * A copy to slice with while the original is used to plot.  The two move through
+	 * the layers independently.  The records of what was plotted in each layer
+	 * are shared; only the original should write them.
+	 * @param lr
+	 */
+	public LayerRules(LayerRules lr)
+	{
+		firstPoint = lr.firstPoint;
+		firstExtruder = lr.firstExtruder;
+		lastPoint = lr.lastPoint;
+		lastExtruder = lr.lastExtruder;
+		extruderUsedThisLayer = lr.extruderUsedThisLayer;
+		layerZ = lr.layerZ;
+		modelTop = lr.modelTop;
+		prologueFileName = lr.prologueFileName;
+		epilogueFileName = lr.epilogueFileName;
+		layerSpool = lr.layerSpool;
+		reversing = lr.reversing;
+		alreadyReversed = lr.alreadyReversed;
+		printer = lr.printer;
+		modelZ = lr.modelZ;
+		machineZ = lr.machineZ;
+		modelLayer = lr.modelLayer;
+		machineLayer = lr.machineLayer;
+		modelZMax = lr.modelZMax;
+		machineZMax = lr.machineZMax;
+		modelLayerMax = lr.modelLayerMax;
+		machineLayerMax = lr.machineLayerMax;
+		layingSupport = lr.layingSupport;
+		zStep = lr.zStep;
+		thickestZStep = lr.thickestZStep;
+		addToStep = lr.addToStep;
+		topDown = lr.topDown;
+		notStartedYet = lr.notStartedYet;
+		bBox = lr.bBox;
+		maxSurfaceLayers = lr.maxSurfaceLayers;
+		purge = lr.purge;
+		config = lr.config;
+		maxAddress = lr.maxAddress;
+	}
+	
 	public boolean purgeXOriented()
 	{
 		Point2D middle = Point2D.mul(0.5, printer.getBedNorthEast());
@@ -349,13 +405,102 @@ public class LayerRules
 	public void setPrinter(Printer p) { printer = p; }
 	public Printer getPrinter() { return printer; }
 	
+	/**
+	 * @return the machine settings for this build
+	 */
+	public MachineConfig getConfig() { return config; }
+	
 	public double getModelZ() { return modelZ; }
 	
 	public boolean getReversing() { return reversing; }
 	
+	/**
+	 * @param layer
+	 * @return the height of the bottom of a model layer
+	 */
 	public double getModelZ(int layer) 
 	{
-		return zStep*layer; 
+		if(modelTop == null || layer <= 0)
+			return zStep*layer;
+		if(layer > modelTop.length)
+			return modelTop[modelTop.length - 1] + zStep*(layer - modelTop.length);
+		return modelTop[layer - 1];
+	}
+	
+	/**
+	 * @param layer
+	 * @return how thick a model layer is
+	 */
+	public double getLayerHeight(int layer)
+	{
+		if(modelTop == null || layer < 0 || layer >= modelTop.length)
+			return zStep;
+		return modelTop[layer] - getModelZ(layer);
+	}
+	
+	/**
+	 * @return how thick the layer the machine is on is
+	 */
+	public double getMachineLayerHeight()
+	{
+		return getLayerHeight(machineLayer - getFoundationLayers());
+	}
+	
+	/**
+	 * @return true if the layers are of different heights, chosen to suit the model
+	 */
+	public boolean getAdaptive()
+	{
+		return modelTop != null;
+	}
+	
+	/**
+	 * Where the machine goes for a layer.  The foundation layers are zStep thick; the model 
+	 * layers start on top of them.  The machine is one zStep below the top of each layer.
+	 * @param layer
+	 * @return
+	 */
+	private double machineZ(int layer)
+	{
+		int f = getFoundationLayers();
+		if(modelTop == null || layer <= f)
+			return zStep*layer;
+		return zStep*f + getModelZ(layer - f) + getLayerHeight(layer - f) - zStep;
+	}
+	
+	/**
+	 * Work out the adaptive layer heights.  The thinnest layer is the finest extruder's
+	 * extrusion height; the thickest is 80% of the narrowest extrusion.  This can only be
+	 * done if all the extruders have the same extrusion height.
+	 * @param astls
+	 * @param es
+	 * @return the layer tops, or null if the layers must all be zStep thick
+	 */
+	private double[] adaptiveLayers(AllSTLsToBuild astls, Extruder[] es)
+	{
+		double thickest = Double.MAX_VALUE;
+		for(int i = 0; i < es.length; i++)
+		{
+			if(Math.abs(es[i].getExtrusionHeight() - zStep) > Preferences.tiny())
+			{
+				Debug.e("LayerRules.adaptiveLayers(): not all extruders have the same layer height; using " + zStep + "mm for all layers.");
+				return null;
+			}
+			thickest = Math.min(thickest, 0.8*es[i].getExtrusionSize());
+		}
+		AdaptiveLayers al = new AdaptiveLayers(zStep, thickest, 0.5*zStep);
+		if(!astls.addFacets(al))
+		{
+			Debug.d("LayerRules.adaptiveLayers(): CSG objects can't be analysed; using " + zStep + "mm for all layers.");
+			return null;
+		}
+		
+		// Model layer 0 goes with the foundation and is never built, so 
+		// layer 1 is the first on the bed, and has to be thin as well.
+		
+		double[] tops = al.tops(modelZMax, 2);
+		Debug.a("Adaptive layers: " + tops.length + " layers, " + zStep + " to " + thickest + "mm thick.");
+		return tops;
 	}
 	
 	public double getMachineZ() { return machineZ; }
@@ -371,6 +516,8 @@ public class LayerRules
 	 */
 	public boolean extruderLiveThisLayer(int e)
 	{
+		if(modelTop != null)
+			return true;  // All the extruders have the same height
 		Extruder[] es = printer.getExtruders();
 		double myHeight = es[e].getExtrusionHeight();
 		double eFraction = machineZ/myHeight;
@@ -383,7 +530,20 @@ public class LayerRules
 	
 	public int sliceCacheSize()
 	{
-		return (int)Math.ceil(2*(maxSurfaceLayers*2 + 1)*thickestZStep/zStep);
+		return (int)Math.ceil(2*(maxSurfaceLayers*2 + getSparseInfillLayers())*thickestZStep/zStep);
+	}
+	
+	/**
+	 * How many layers of sparse infill to lay down at once.  If the extruders have 
+	 * different layer heights the infill extruder is not used on every layer anyway, 
+	 * so it is laid down on every layer it can be.
+	 * @return
+	 */
+	public int getSparseInfillLayers()
+	{
+		if(Math.abs(thickestZStep - zStep) > Preferences.tiny())
+			return 1;
+		return config.getSparseInfillLayers();
 	}
 	
 	public void setFirstAndLast(PolygonList[] pl)
@@ -437,9 +597,8 @@ public class LayerRules
 	public void setPrologueFileName(String s) { prologueFileName = s; }
 	public void setEpilogueFileName(String s) { epilogueFileName = s; }
 	
-	public String getLayerFileName(int layer) { return layerFileNames[layer]; }
-	public String getLayerFileName() { return layerFileNames[machineLayer]; }
-	public void setLayerFileName(String s) { layerFileNames[machineLayer] = s; }
+	public LayerSpool getLayerSpool() { return layerSpool; }
+	public void setLayerSpool(LayerSpool s) { layerSpool = s; }
 	
 	public Point2D getFirstPoint(int layer)
 	{
@@ -562,6 +721,8 @@ public class LayerRules
 		double myHeight = e.getExtrusionHeight();
 		double eFraction = machineZ/myHeight;
 		int mylayer = (int)Math.round(eFraction);
+		if(modelTop != null)
+			mylayer = machineLayer;
 
 		double angle;
 		
@@ -624,7 +785,7 @@ public class LayerRules
 		{
 			//machineZ -= (sZ + addToStep);
 			machineLayer--;
-			machineZ = zStep*machineLayer + addToStep;
+			machineZ = machineZ(machineLayer) + addToStep;
 //			ld = getFoundationLayers() - getMachineLayer();
 //			if(ld == 2)
 //				addToStep = zStep*(1 - e.getSeparationFraction());
@@ -636,7 +797,7 @@ public class LayerRules
 		{
 			//machineZ += (sZ + addToStep);
 			machineLayer++;
-			machineZ = zStep*machineLayer + addToStep;
+			machineZ = machineZ(machineLayer) + addToStep;
 //			ld = getFoundationLayers() - getMachineLayer();
 //			if(ld == 2)
 //				addToStep = -zStep*(1 - e.getSeparationFraction());
@@ -653,11 +814,24 @@ public class LayerRules
 
 		if(topDown)
 		{
-			printer.setZ(z - (zStep + addToStep));
+			printer.setZ(z - (getMachineLayerHeight() + addToStep));
 		}
 		printer.singleMove(printer.getX(), printer.getY(), z, printer.getFastFeedrateZ(), really);
 	}
 	
+	/**
+	 * Go straight to a model layer, taking the machine with it
+	 * @param layer
+	 */
+	public void setModelLayer(int layer)
+	{
+		modelLayer = layer;
+		modelZ = getModelZ(modelLayer);
+		machineLayer = modelLayer + getFoundationLayers();
+		machineZ = machineZ(machineLayer);
+		addToStep = 0;
+	}
+	
 	/**
 	 * Move both the model and the machine up/down a layer
 	 * @param e
@@ -673,7 +847,7 @@ public class LayerRules
 			//modelZ += (sZ + addToStep);
 			modelLayer++;
 		}
-		modelZ = modelLayer*zStep + addToStep;
+		modelZ = getModelZ(modelLayer) + addToStep;
 		addToStep = 0;
 		stepMachine();
 	}
@@ -682,31 +856,11 @@ public class LayerRules
 	{
 		// Set -ve to force the system to query the layer rules
 		
+		if(org.reprap.Main.noGUI())
+			return;
 		org.reprap.gui.botConsole.BotConsoleFrame.getBotConsoleFrame().setFractionDone(-1, -1, -1);
 	}
 	
-	private void copyFile(PrintStream ps, String ip)
-	{
-		File f = null;
-		try 
-		{
-			f = new File(ip);
-			FileReader fr = new FileReader(f);
-			int character;
-			while ((character = fr.read()) >= 0)
-			{
-				ps.print((char)character);
-				//System.out.print((char)character);
-			}
-			ps.flush();
-			fr.close();
-		} catch (Exception e) 
-		{  
-			Debug.e("Error copying file: " + e.toString());
-			e.printStackTrace();
-		}
-	}
-	
 	public void reverseLayers()
 	{	
 		// Stop this being called twice...
@@ -721,10 +875,11 @@ public class LayerRules
 		String fileName = getPrinter().getOutputFilename();
 		
 		PrintStream fileOutStream = null;
+		FileOutputStream fileStream = null;
 		try
 		{
-			FileOutputStream fileStream = new FileOutputStream(fileName);
-			fileOutStream = new PrintStream(fileStream);
+			fileStream = new FileOutputStream(fileName);
+			fileOutStream = new PrintStream(new BufferedOutputStream(fileStream, 1 << 16));
 		} catch (Exception e)
 		{
 			Debug.e("Can't write to file " + fileName);
@@ -744,13 +899,17 @@ public class LayerRules
 				getPrinter().startingLayer(this);
 
 				getPrinter().singleMove(getFirstPoint(machineLayer).x(), getFirstPoint(machineLayer).y(), machineZ, getPrinter().getFastXYFeedrate(), true);
-				copyFile(fileOutStream, getLayerFileName(machineLayer));
+				if(layerSpool != null)
+				{
+					fileOutStream.flush();
+					layerSpool.copyLayer(machineLayer, fileStream, getPrinter().getEstimator());
+				}
 				
 				//System.out.println("Layer: " + machineLayer + " z: " + machineZ +
 				//		" first point: " + getFirstPoint(machineLayer) + " last point: " + getLastPoint(machineLayer)
 				//		+ " " + getLayerFileName(machineLayer));
 				
-				if(Preferences.loadGlobalBool("RepRapAccelerations"))
+				if(config.getRepRapAccelerations())
 					getPrinter().singleMove(getLastPoint(machineLayer).x(), getLastPoint(machineLayer).y(), machineZ, getPrinter().getSlowXYFeedrate(), false);
 				else
 					getPrinter().singleMove(getLastPoint(machineLayer).x(), getLastPoint(machineLayer).y(), machineZ, getPrinter().getFastXYFeedrate(), false);
@@ -763,7 +922,11 @@ public class LayerRules
 			e.printStackTrace();
 		}
 		fileOutStream.close();
+		if(layerSpool != null)
+			layerSpool.close();
+		layerSpool = null;
 		reversing = false;
+		
 		//copyFile(fileOutStream, getEpilogueFileName());
 
 		//System.out.println("layerRules.reverseLayers(): exception at layer: " + i + " " + e.toString());
@@ -1,5 +1,7 @@
 package org.reprap.geometry;
 
+import java.util.concurrent.ArrayBlockingQueue;
+
 import javax.swing.JCheckBoxMenuItem;
 import org.reprap.Preferences;
 import org.reprap.Printer;
@@ -15,6 +17,7 @@ import org.reprap.geometry.polyhedra.AllSTLsToBuild;
 import org.reprap.gui.RepRapBuild;
 import org.reprap.utilities.Debug;
 import org.reprap.utilities.RrGraphics;
+import org.reprap.utilities.StageMetrics;
 
 public class Producer {
 	
@@ -47,6 +50,7 @@ public class Producer {
 		bld = builder;
 		
 		allSTLs = bld.getSTLs();
+		allSTLs.thaw();
 		layerRules = new LayerRules(pr, allSTLs, true);
 		pr.setLayerRules(layerRules);
 		
@@ -58,6 +62,24 @@ public class Producer {
 		builder.setGraphics(simulationPlot);
 	}
 	
+	/**
+	 * Build a set of things without the GUI (for slicing from the command line)
+	 * @param pr
+	 * @param stls
+	 * @throws Exception
+	 */
+	public Producer(Printer pr, AllSTLsToBuild stls) throws Exception 
+	{
+		bld = null;
+		
+		allSTLs = stls;
+		allSTLs.thaw();
+		layerRules = new LayerRules(pr, allSTLs, true);
+		pr.setLayerRules(layerRules);
+		
+		simulationPlot = null;
+	}
+	
 	/**
 	 * Set the source checkbox used to determine if there should
 	 * be a pause between segments.
@@ -133,15 +155,28 @@ public class Producer {
 			produceSubtractive();
 		else
 		{
-			if(layerRules.getTopDown())
-				produceAdditiveTopDown();
-			else
-				Debug.e("Producer.produce(): bottom-up builds no longer supported.");
-				//produceAdditiveGroundUp(gp);
+			// Only a build that ran to the end can have its layers used again;
+			// one that failed part way through may have kept half of them.
+			
+			boolean done = false;
+			try
+			{
+				if(layerRules.getTopDown())
+					produceAdditiveTopDown();
+				else
+					produceAdditiveGroundUp();
+				done = true;
+			} finally
+			{
+				if(done)
+					allSTLs.finishedBuild(layerRules.getPrinter().isCancelled());
+				else
+					allSTLs.failedBuild();
+			}
 		}
 	}
 
-	private void fillFoundationRectangle(Printer reprap, Rectangle gp) throws Exception
+	private PolygonList[] foundationRectangle(Printer reprap, LayerRules rules, Rectangle gp)
 	{
 		PolygonList shield = new PolygonList();
 		Extruder e = reprap.getExtruder();
@@ -150,7 +185,13 @@ public class Producer {
 //			shield.add(allSTLs.shieldPolygon(fa));
 		CSG2D rect = CSG2D.RrCSGFromBox(gp);
 		BooleanGrid bg = new BooleanGrid(rect, gp.scale(1.1), fa);
-		PolygonList h[] = {shield, bg.hatch(layerRules.getHatchDirection(e, false), layerRules.getHatchWidth(e), bg.attribute())};
+		PolygonList h[] = {shield, bg.hatch(rules.getHatchDirection(e, false), rules.getHatchWidth(e), bg.attribute(), rules.getConfig())};
+		return h;
+	}
+	
+	private void fillFoundationRectangle(Printer reprap, Rectangle gp) throws Exception
+	{
+		PolygonList h[] = foundationRectangle(reprap, layerRules, gp);
 		LayerProducer lp = new LayerProducer(h, layerRules, simulationPlot);
 		lp.plot();
 		reprap.getExtruder().stopExtruding();
@@ -216,18 +257,12 @@ public class Producer {
 
 	
 	/**
-	 * @throws Exception
+	 * How many physical extruders are there?  (Extruders may share one.)
+	 * @param reprap
+	 * @return
 	 */
-	private void produceAdditiveTopDown() throws Exception 
-	{		
-		bld.mouseToWorld();
-		
-		Printer reprap = layerRules.getPrinter();
-		
-		layerRules.setLayingSupport(false);
-		
-		//BooleanGridList slice, previousSlice;
-		
+	private int physicalExtruderCount(Printer reprap)
+	{
 		int lastExtruder = -1;
 		int totalPhysicalExtruders = 0;
 		for(int extruder = 0; extruder < reprap.getExtruders().length; extruder++)
@@ -238,20 +273,164 @@ public class Producer {
 				totalPhysicalExtruders++;
 				if(thisExtruder - lastExtruder != 1)
 				{
-					Debug.e("Producer.produceAdditiveTopDown(): Physical extruders out of sequence: " + 
+					Debug.e("Producer.physicalExtruderCount(): Physical extruders out of sequence: " + 
 							lastExtruder + " then " + thisExtruder);
 					Debug.e("(Extruder addresses should be monotonically increasing starting at 0.)");
 				}
 				lastExtruder = thisExtruder;				
 			}
 		}
-		
+		return totalPhysicalExtruders;
+	}
+	
+	/**
+	 * Work out the outlines, infill and support for the current model layer, sorted
+	 * by physical extruder and put in a good order to plot them.
+	 * @param totalPhysicalExtruders
+	 * @param travelOptimise
+	 * @param travelTime
+	 * @return
+	 */
+	private PolygonList[] layerPolygons(int totalPhysicalExtruders, boolean travelOptimise, double travelTime)
+	{
 		PolygonList allPolygons[] = new PolygonList[totalPhysicalExtruders];
 		PolygonList tempBorderPolygons[] = new PolygonList[totalPhysicalExtruders];
 		PolygonList tempFillPolygons[] = new PolygonList[totalPhysicalExtruders];
 		
+		// Nothing in this layer changed since the last build?
+		
+		PolygonList keptLayer[] = allSTLs.keptLayer();
+		if(keptLayer != null)
+			return keptLayer;
+		
+		for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
+			allPolygons[physicalExtruder] = new PolygonList();
+		
+		// What was worked out for each thing, for any copies of it
+		
+		PolygonList[] stlFills = new PolygonList[allSTLs.size()];
+		PolygonList[] stlBorders = new PolygonList[allSTLs.size()];
+		PolygonList[] stlSupport = new PolygonList[allSTLs.size()];
+		boolean[] used = new boolean[allSTLs.size()];
+		
+		//boolean shield = true;
+		Point2D startNearHere = new Point2D(0, 0);
+		for(int stl = 0; stl < allSTLs.size(); stl++)
+		{
+				PolygonList fills, borders, support;
+				int master = allSTLs.masterOf(stl);
+				if(master != stl)
+				{
+					fills = allSTLs.instance(stlFills[master], stl);
+					borders = allSTLs.instance(stlBorders[master], stl);
+					support = allSTLs.instance(stlSupport[master], stl);
+				} else
+				{
+					PolygonList kept[] = allSTLs.keptPolygons(stl);
+					if(kept != null)
+					{
+						fills = kept[0];
+						borders = kept[1];
+						support = kept[2];
+					} else
+					{
+						fills = allSTLs.computeInfill(stl);
+						borders = allSTLs.computeOutlines(stl, fills); //, shield);
+						fills = fills.cullShorts();
+						//shield = false;
+						support = allSTLs.computeSupport(stl);
+						allSTLs.keepPolygons(stl, fills, borders, support);
+					}
+					
+					// Copied, as reordering them below joins some together
+					
+					stlFills[stl] = new PolygonList(fills);
+					stlBorders[stl] = new PolygonList(borders);
+					stlSupport[stl] = new PolygonList(support);
+				}
+				used[stl] = fills.size() + borders.size() + support.size() > 0;
+				
+				for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
+				{
+					tempBorderPolygons[physicalExtruder] = new PolygonList();
+					tempFillPolygons[physicalExtruder] = new PolygonList();
+				}
+				for(int pol = 0; pol < borders.size(); pol++)
+				{
+					Polygon p = borders.polygon(pol);
+					tempBorderPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+				}
+				for(int pol = 0; pol < fills.size(); pol++)
+				{
+					Polygon p = fills.polygon(pol);
+					tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+				}
+				for(int pol = 0; pol < support.size(); pol++)
+				{
+					Polygon p = support.polygon(pol);
+					tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+				}
+				
+				for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
+				{
+					if(tempBorderPolygons[physicalExtruder].size() > 0)
+					{
+						double linkUp = tempBorderPolygons[physicalExtruder].polygon(0).getAttributes().getExtruder().getExtrusionSize();
+						linkUp = (4*linkUp*linkUp);
+						tempBorderPolygons[physicalExtruder].radicalReOrder(linkUp);
+						if(travelOptimise)
+							tempBorderPolygons[physicalExtruder] = tempBorderPolygons[physicalExtruder].travelOptimise(startNearHere, travelTime);
+						else
+							tempBorderPolygons[physicalExtruder] = tempBorderPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
+						if(tempBorderPolygons[physicalExtruder].size() > 0)
+						{
+							Polygon last = tempBorderPolygons[physicalExtruder].polygon(tempBorderPolygons[physicalExtruder].size() - 1);
+							startNearHere = last.point(last.size() - 1);
+						}
+						allPolygons[physicalExtruder].add(tempBorderPolygons[physicalExtruder]);
+					}
+					if(tempFillPolygons[physicalExtruder].size() > 0)
+					{
+						double linkUp = tempFillPolygons[physicalExtruder].polygon(0).getAttributes().getExtruder().getExtrusionSize();
+						linkUp = (4*linkUp*linkUp);
+						tempFillPolygons[physicalExtruder].radicalReOrder(linkUp);
+						if(travelOptimise)
+							tempFillPolygons[physicalExtruder] = tempFillPolygons[physicalExtruder].travelOptimise(startNearHere, travelTime);
+						else
+							tempFillPolygons[physicalExtruder] = tempFillPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
+						if(tempFillPolygons[physicalExtruder].size() > 0)
+						{
+							Polygon last = tempFillPolygons[physicalExtruder].polygon(tempFillPolygons[physicalExtruder].size() - 1);
+							startNearHere = last.point(last.size() - 1);
+						}
+						allPolygons[physicalExtruder].add(tempFillPolygons[physicalExtruder]);
+					}
+				}
+		}
+		allSTLs.keepLayer(allPolygons, used);
+		return allPolygons;
+	}
+	
+	/**
+	 * @throws Exception
+	 */
+	private void produceAdditiveTopDown() throws Exception 
+	{		
+		if(bld != null)
+			bld.mouseToWorld();
+		
+		Printer reprap = layerRules.getPrinter();
+		
+		layerRules.setLayingSupport(false);
+		
+		//BooleanGridList slice, previousSlice;
+		
+		int totalPhysicalExtruders = physicalExtruderCount(reprap);
+		
 		boolean firstTimeRound = true;
 		
+		boolean travelOptimise = layerRules.getConfig().getTravelOptimise();
+		double travelTime = layerRules.getConfig().getTravelOptimiseTime();
 		
 		while(layerRules.getModelLayer() > 0 ) 
 		{
@@ -269,74 +448,7 @@ public class Producer {
 			
 			reprap.startingLayer(layerRules);
 			
-			reprap.waitWhileBufferNotEmpty();
-			reprap.slowBuffer();
-			
-
-			for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
-				allPolygons[physicalExtruder] = new PolygonList();
-			
-			//boolean shield = true;
-			Point2D startNearHere = new Point2D(0, 0);
-			for(int stl = 0; stl < allSTLs.size(); stl++)
-			{
-					PolygonList fills = allSTLs.computeInfill(stl);
-					PolygonList borders = allSTLs.computeOutlines(stl, fills); //, shield);
-					fills = fills.cullShorts();
-					//shield = false;
-					PolygonList support = allSTLs.computeSupport(stl);
-					
-					for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
-					{
-						tempBorderPolygons[physicalExtruder] = new PolygonList();
-						tempFillPolygons[physicalExtruder] = new PolygonList();
-					}
-					for(int pol = 0; pol < borders.size(); pol++)
-					{
-						Polygon p = borders.polygon(pol);
-						tempBorderPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-					}
-					for(int pol = 0; pol < fills.size(); pol++)
-					{
-						Polygon p = fills.polygon(pol);
-						tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-					}
-					for(int pol = 0; pol < support.size(); pol++)
-					{
-						Polygon p = support.polygon(pol);
-						tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-					}
-					
-					for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
-					{
-						if(tempBorderPolygons[physicalExtruder].size() > 0)
-						{
-							double linkUp = tempBorderPolygons[physicalExtruder].polygon(0).getAttributes().getExtruder().getExtrusionSize();
-							linkUp = (4*linkUp*linkUp);
-							tempBorderPolygons[physicalExtruder].radicalReOrder(linkUp);
-							tempBorderPolygons[physicalExtruder] = tempBorderPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
-							if(tempBorderPolygons[physicalExtruder].size() > 0)
-							{
-								Polygon last = tempBorderPolygons[physicalExtruder].polygon(tempBorderPolygons[physicalExtruder].size() - 1);
-								startNearHere = last.point(last.size() - 1);
-							}
-							allPolygons[physicalExtruder].add(tempBorderPolygons[physicalExtruder]);
-						}
-						if(tempFillPolygons[physicalExtruder].size() > 0)
-						{
-							double linkUp = tempFillPolygons[physicalExtruder].polygon(0).getAttributes().getExtruder().getExtrusionSize();
-							linkUp = (4*linkUp*linkUp);
-							tempFillPolygons[physicalExtruder].radicalReOrder(linkUp);
-							tempFillPolygons[physicalExtruder] = tempFillPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
-							if(tempFillPolygons[physicalExtruder].size() > 0)
-							{
-								Polygon last = tempFillPolygons[physicalExtruder].polygon(tempFillPolygons[physicalExtruder].size() - 1);
-								startNearHere = last.point(last.size() - 1);
-							}
-							allPolygons[physicalExtruder].add(tempFillPolygons[physicalExtruder]);
-						}
-					}
-			}
+			PolygonList allPolygons[] = layerPolygons(totalPhysicalExtruders, travelOptimise, travelTime);
 			
 			layerRules.setFirstAndLast(allPolygons);
 
@@ -358,12 +470,265 @@ public class Producer {
 			
 		}
 		
+		if(allSTLs.diskCacheReport() != null)
+			Debug.a(allSTLs.diskCacheReport());
+		if(allSTLs.keptReport() != null)
+			Debug.a(allSTLs.keptReport());
+		
 		layFoundationTopDown(layerRules.getBox());
 		
 		layerRules.reverseLayers();
 	}
 	
+	/**
+	 * Plot one layer of a bottom-up build straight to the machine (or file).  
+	 * Empty layers are skipped.
+	 * @param reprap
+	 * @param allPolygons
+	 * @return true if anything was plotted
+	 * @throws Exception
+	 */
+	private boolean plotLayerGroundUp(Printer reprap, PolygonList allPolygons[]) throws Exception
+	{
+		layerRules.setFirstAndLast(allPolygons);
+		Point2D first = layerRules.getFirstPoint(layerRules.getMachineLayer());
+		if(first == null)
+		{
+			Debug.d("Producer.plotLayerGroundUp(): layer " + layerRules.getMachineLayer() + " is empty.");
+			return false;
+		}
+		
+		reprap.startingLayer(layerRules);
+		reprap.singleMove(first.x(), first.y(), layerRules.getMachineZ(), reprap.getFastXYFeedrate(), true);
+		
+		LayerProducer lp = new LayerProducer(allPolygons, layerRules, simulationPlot);
+		lp.plot();
+		
+		reprap.finishedLayer(layerRules);
+		reprap.betweenLayers(layerRules);
+		return true;
+	}
+	
+	/**
+	 * A layer worked out by the Slicer, waiting to be plotted
+	 */
+	private static class SlicedLayer
+	{
+		int modelLayer;
+		boolean foundation;
+		PolygonList polygons[];
+		
+		SlicedLayer(int layer, boolean f, PolygonList p[])
+		{
+			modelLayer = layer;
+			foundation = f;
+			polygons = p;
+		}
+	}
+	
+	/**
+	 * What the Slicer puts in its queue after the last layer
+	 */
+	private static final SlicedLayer noMoreLayers = new SlicedLayer(0, false, null);
+	
+	/**
+	 * The first stage of a bottom-up build.  This works out the layers one after another 
+	 * in a thread of its own, with its own copy of the LayerRules, and puts them in 
+	 * a queue for plotting.  When the queue is full it waits, so it never gets more
+	 * than a few layers ahead of the machine.
+	 */
+	private class Slicer extends Thread
+	{
+		private LayerRules rules;
+		private ArrayBlockingQueue<SlicedLayer> layers;
+		private StageMetrics metrics = new StageMetrics("Slicing");
+		private StageMetrics plotMetrics = new StageMetrics("Plotting");
+		private volatile Exception error = null;
+		
+		/**
+		 * @param ahead how many layers may be waiting to be plotted (at least 1)
+		 */
+		Slicer(int ahead)
+		{
+			rules = new LayerRules(layerRules);
+			layers = new ArrayBlockingQueue<SlicedLayer>(ahead);
+			setName("Slicer");
+			setDaemon(true);
+		}
+		
+		public void run()
+		{
+			allSTLs.setLayerRules(rules);
+			try
+			{
+				slice();
+			} catch (InterruptedException ex)
+			{
+				return;
+			} catch (Exception ex)
+			{
+				Debug.e("Producer.Slicer.run(): " + ex.toString());
+				error = ex;
+			}
+			try
+			{
+				layers.put(noMoreLayers);
+			} catch (InterruptedException ex)
+			{}
+		}
+		
+		private void slice() throws Exception
+		{
+			Printer reprap = rules.getPrinter();
+			int totalPhysicalExtruders = physicalExtruderCount(reprap);
+			boolean travelOptimise = rules.getConfig().getTravelOptimise();
+			double travelTime = rules.getConfig().getTravelOptimiseTime();
+			
+			long t0 = System.nanoTime();
+			rules.setLayingSupport(false);
+			allSTLs.precomputeSupport();
+			metrics.busy(System.nanoTime() - t0);
+			
+			rules.setModelLayer(-rules.getFoundationLayers());
+			rules.step();
+			
+			rules.setLayingSupport(true);
+			while(rules.getMachineLayer() <= rules.getFoundationLayers()) 
+			{
+				if (reprap.isCancelled())
+					return;
+				t0 = System.nanoTime();
+				SlicedLayer sl = new SlicedLayer(rules.getModelLayer(), true, foundationRectangle(reprap, rules, rules.getBox()));
+				metrics.done(System.nanoTime() - t0);
+				hand(sl);
+				rules.step();
+			}
+			rules.setLayingSupport(false);
+			
+			while(rules.getModelLayer() <= rules.getModelLayerMax()) 
+			{
+				if (reprap.isCancelled())
+					return;
+				t0 = System.nanoTime();
+				SlicedLayer sl = new SlicedLayer(rules.getModelLayer(), false, layerPolygons(totalPhysicalExtruders, travelOptimise, travelTime));
+				allSTLs.destroyLayer();
+				metrics.done(System.nanoTime() - t0);
+				hand(sl);
+				rules.step();
+			}
+		}
+		
+		private void hand(SlicedLayer sl) throws InterruptedException
+		{
+			long t0 = System.nanoTime();
+			layers.put(sl);
+			plotMetrics.queued(System.nanoTime() - t0, layers.size());
+		}
+		
+		/**
+		 * @return the next layer to plot; noMoreLayers after the last one
+		 * @throws Exception if the slicing went wrong
+		 */
+		SlicedLayer take() throws Exception
+		{
+			long t0 = System.nanoTime();
+			SlicedLayer sl = layers.take();
+			plotMetrics.starved(System.nanoTime() - t0);
+			if(sl == noMoreLayers && error != null)
+				throw error;
+			return sl;
+		}
+		
+		/**
+		 * Stop slicing and hand the model back to the LayerRules that plot it
+		 */
+		void finish()
+		{
+			interrupt();
+			try
+			{
+				join();
+			} catch (InterruptedException ex)
+			{}
+			allSTLs.setLayerRules(layerRules);
+		}
+	}
+	
+	/**
+	 * Build from the bottom up, sending each layer to the machine (or the file) as soon
+	 * as it has been worked out, so the machine starts straight away rather than waiting
+	 * for the whole model to be sliced.  Support depends on everything above it, so
+	 * that is worked out first in a top-down pass (see AllSTLsToBuild.precomputeSupport()).
+	 * 
+	 * The layers are the same ones that a top-down build makes: machine layer 0 is never
+	 * built, then come the foundation layers, then the model.
+	 * 
+	 * The slicing is done by a Slicer in another thread, up to SliceAhead(layers) layers
+	 * ahead of the plotting done here.  The G-codes from the plotting are sent to the 
+	 * machine by GCodeReaderAndWriter, which can have a sending thread of its own (see the
+	 * GCodeSendQueue(lines) preference).  So a layer that is slow to slice doesn't stop 
+	 * the machine as long as it still has G-codes queued.
+	 * @throws Exception
+	 */
+	private void produceAdditiveGroundUp() throws Exception 
+	{		
+		if(bld != null)
+			bld.mouseToWorld();
+		
+		Printer reprap = layerRules.getPrinter();
+		
+		layerRules.setLayingSupport(false);
+		layerRules.setModelLayer(-layerRules.getFoundationLayers());
+		
+		Slicer slicer = new Slicer(layerRules.getConfig().getSliceAhead());
+		slicer.start();
+		
+		try
+		{
+			reprap.startRun(layerRules);
+			reprap.setSeparating(false);
 
+			while(true) 
+			{
+				SlicedLayer sl = slicer.take();
+				if(sl == noMoreLayers)
+					break;
+				if (reprap.isCancelled())
+					break;
+				waitWhilePaused();
+
+				long t0 = System.nanoTime();
+				layerRules.setModelLayer(sl.modelLayer);
+				layerRules.setLayingSupport(sl.foundation);
+				if(sl.foundation)
+				{
+					Debug.d("Commencing foundation layer at " + layerRules.getMachineZ());
+					plotLayerGroundUp(reprap, sl.polygons);
+					reprap.getExtruder().stopExtruding();
+				} else
+				{
+					Debug.d("Commencing model layer " + layerRules.getModelLayer() + " at " + layerRules.getMachineZ());
+					if(plotLayerGroundUp(reprap, sl.polygons))
+						reprap.setTop(reprap.getX(), reprap.getY(), reprap.getZ());
+				}
+				slicer.plotMetrics.done(System.nanoTime() - t0);
+			}
+		} finally
+		{
+			slicer.finish();
+		}
+		layerRules.setLayingSupport(false);
+		
+		Debug.a(slicer.metrics.toString());
+		Debug.a(slicer.plotMetrics.toString());
+		if(allSTLs.diskCacheReport() != null)
+			Debug.a(allSTLs.diskCacheReport());
+		if(allSTLs.keptReport() != null)
+			Debug.a(allSTLs.keptReport());
+		
+		reprap.terminate(layerRules);
+	}
+	
 	private void produceSubtractive() throws Exception 
 	{
 		Debug.e("Need to implement the Producer.produceSubtractive() function... :-)");
@@ -0,0 +1,163 @@
+package org.reprap.geometry.polygons;
+
+/**
+ * Finds runs of polygon vertices that lie on a circular arc, so that they can be
+ * plotted with one G2/G3 command rather than a G1 for every short side.
+ *
+ * An arc is accepted if every vertex in the run is within the tolerance of the circle
+ * through its first, middle and last vertices, so is the middle of every side, and
+ * all the sides turn the same way.
+ */
+public class ArcFitter
+{
+	/**
+	 * The fewest sides worth replacing by an arc
+	 */
+	private static final int minSides = 3;
+
+	/**
+	 * The most vertices looked at for one arc
+	 */
+	private static final int maxVertices = 256;
+
+	/**
+	 * Radius limits (mm).  Very big circles are as good as straight
+	 * lines, and are a poor way to send them.
+	 */
+	private static final double minRadius = 0.2;
+	private static final double maxRadius = 1000;
+
+	/**
+	 * How far (mm) the polygon may be from the arc
+	 */
+	private double tolerance;
+
+	/**
+	 * The last arc found
+	 */
+	private double cx, cy, radius;
+	private boolean clockwise;
+
+	/**
+	 * @param tol how far the arc may be from the vertices and sides (mm)
+	 */
+	public ArcFitter(double tol)
+	{
+		tolerance = tol;
+	}
+
+	/**
+	 * @return x of the centre of the last arc found
+	 */
+	public double cx() { return cx; }
+
+	/**
+	 * @return y of the centre of the last arc found
+	 */
+	public double cy() { return cy; }
+
+	/**
+	 * @return radius of the last arc found
+	 */
+	public double radius() { return radius; }
+
+	/**
+	 * @return true if the last arc found goes clockwise
+	 */
+	public boolean clockwise() { return clockwise; }
+
+	/**
+	 * Find the longest arc that starts at vertex a and ends at a vertex no later than limit.
+	 * @param p
+	 * @param a
+	 * @param limit
+	 * @return the index of the last vertex on the arc, or a if there isn't one
+	 */
+	public int fit(Polygon p, int a, int limit)
+	{
+		limit = Math.min(limit, Math.min(p.size() - 1, a + maxVertices - 1));
+		int best = a;
+		double bx = 0, by = 0, br = 0;
+		boolean bcw = false;
+		for(int b = a + minSides; b <= limit; b++)
+		{
+			if(!arc(p, a, b))
+				break;
+			best = b;
+			bx = cx;
+			by = cy;
+			br = radius;
+			bcw = clockwise;
+		}
+		cx = bx;
+		cy = by;
+		radius = br;
+		clockwise = bcw;
+		return best;
+	}
+
+	/**
+	 * Do vertices a to b lie on an arc?  If so, set the centre, radius and direction.
+	 * @param p
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private boolean arc(Polygon p, int a, int b)
+	{
+		int m = (a + b)/2;
+		double ax = p.x(a), ay = p.y(a);
+		double mx = p.x(m), my = p.y(m);
+		double ex = p.x(b), ey = p.y(b);
+
+		// Circle through the three points
+
+		double d = 2*(ax*(my - ey) + mx*(ey - ay) + ex*(ay - my));
+		if(Math.abs(d) < 1.0e-12)
+			return false;
+		double a2 = ax*ax + ay*ay;
+		double m2 = mx*mx + my*my;
+		double e2 = ex*ex + ey*ey;
+		double x0 = (a2*(my - ey) + m2*(ey - ay) + e2*(ay - my))/d;
+		double y0 = (a2*(ex - mx) + m2*(ax - ex) + e2*(mx - ax))/d;
+		double r = Math.sqrt((ax - x0)*(ax - x0) + (ay - y0)*(ay - y0));
+		if(r < minRadius || r > maxRadius)
+			return false;
+
+		// All the sides must turn the same way, by less than a quarter turn each
+		// and less than a whole turn altogether, and not stray from the circle
+
+		double sweep = 0;
+		double px = ax - x0, py = ay - y0;
+		int sign = 0;
+		for(int k = a + 1; k <= b; k++)
+		{
+			double qx = p.x(k) - x0, qy = p.y(k) - y0;
+			double dr = Math.sqrt(qx*qx + qy*qy) - r;
+			if(Math.abs(dr) > tolerance)
+				return false;
+			double cross = px*qy - py*qx;
+			double dot = px*qx + py*qy;
+			if(dot <= 0)
+				return false;
+			int s = cross > 0 ? 1 : (cross < 0 ? -1 : 0);
+			if(s == 0 || (sign != 0 && s != sign))
+				return false;
+			sign = s;
+			double hx = 0.5*(px + qx), hy = 0.5*(py + qy);
+			if(Math.abs(Math.sqrt(hx*hx + hy*hy) - r) > tolerance)
+				return false;
+			sweep += Math.atan2(Math.abs(cross), dot);
+			px = qx;
+			py = qy;
+		}
+		if(sweep > 1.9*Math.PI)
+			return false;
+
+		cx = x0;
+		cy = y0;
+		radius = r;
+		clockwise = sign < 0;
+		return true;
+	}
+}
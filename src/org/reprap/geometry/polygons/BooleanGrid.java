@@ -23,10 +23,15 @@ package org.reprap.geometry.polygons;
 
 
 import org.reprap.Attributes;
+import org.reprap.MachineConfig;
 import org.reprap.Preferences;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import org.reprap.utilities.Debug;
 
 
@@ -1260,14 +1265,10 @@ public class BooleanGrid
 	 */
 	private iPoint findSeed_i()
 	{
-		for(int x = 0; x < rec.size.x; x++)
-			for(int y = 0; y < rec.size.y; y++)
-			{
-				iPoint p = new iPoint(x, y);
-				if(get(p))
-					return p;
-			}
-		return null;
+		int i = bits.nextSetBit(0);
+		if(i < 0)
+			return null;
+		return pixel(i);
 	}
 	
 	/**
@@ -1289,21 +1290,17 @@ public class BooleanGrid
 	 */
 	private iPoint findCentroid_i()
 	{
-		iPoint sum = new iPoint(0,0);
+		long sx = 0, sy = 0;
 		int points = 0;
-		for(int x = 0; x < rec.size.x; x++)
-			for(int y = 0; y < rec.size.y; y++)
-			{
-				iPoint p = new iPoint(x, y);
-				if(get(p))
-				{
-					sum = sum.add(p);
-					points++;
-				}
-			}
+		for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+		{
+			sx += i/rec.size.y;
+			sy += i%rec.size.y;
+			points++;
+		}
 		if(points == 0)
 			return null;
-		return new iPoint(sum.x/points, sum.y/points);
+		return new iPoint((int)(sx/points), (int)(sy/points));
 	}
 	
 	/**
@@ -1761,59 +1758,496 @@ public class BooleanGrid
 //	}
 	
 	/**
-	 * Recursive flood-fill of solid pixels from p to return a BooleanGrid of 
-	 * just the shape connected to that pixel.
-	 * TODO - replace with more efficient scan-line algorithm
+	 * Return a BooleanGrid of just the shape connected to the pixel at pp
+	 * (pixels count as connected if they share a side).
 	 * @param pp
 	 * @return
 	 */
 	public BooleanGrid floodCopy(Point2D pp)
 	{
-		iPoint p = new iPoint(pp);
-		if(!this.inside(p) || !this.get(p))
+		Component c = label().at(pp);
+		if(c == null)
 			return nothingThere;
-		BooleanGrid result = new BooleanGrid();
-		result.att = this.att;
-		result.visited = null;
-		result.rec= new iRectangle(this.rec);
-		result.bits = new BitSet(result.rec.size.x*result.rec.size.y);
-		
-		// We implement our own floodfill stack, rather than using recursion to
-		// avoid having to specify a big Java stack just for this one function.
-		
-		int top = 4000000;
-		iPoint[] stack = new iPoint[top];
-		int sp = 0;
-		stack[sp] = p;
-		iPoint q;
+		return c.mask();
+	}
+	
+	//**************************************************************************************************
+	
+	// Connected components
+	
+	/**
+	 * One connected piece of the solid pixels (joined along their sides)
+	 * found by label().
+	 */
+	public class Component
+	{
+		private Labelling labelling;
+		private int index;
+		private int pixels = 0;
+		private long sumX = 0, sumY = 0;
+		private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		private int maxX = -1, maxY = -1;
+		private BooleanGrid mask = null;
 		
-		while(sp > -1)
+		private Component(Labelling l, int i)
 		{
-			p = stack[sp];
-			sp--;
-
-			result.set(p, true);
-			
-			for(int i = 1; i < 8; i += 2)
+			labelling = l;
+			index = i;
+		}
+		
+		private void add(int x, int y)
+		{
+			pixels++;
+			sumX += x;
+			sumY += y;
+			if(x < minX) minX = x;
+			if(x > maxX) maxX = x;
+			if(y < minY) minY = y;
+			if(y > maxY) maxY = y;
+		}
+		
+		/**
+		 * @return where this comes in its Labelling; components are numbered in 
+		 * the order findSeed() would find them
+		 */
+		public int index()
+		{
+			return index;
+		}
+		
+		public int pixelCount()
+		{
+			return pixels;
+		}
+		
+		/**
+		 * @return the centroid of the component (as findCentroid() of its mask)
+		 */
+		public Point2D centroid()
+		{
+			return new iPoint((int)(sumX/pixels), (int)(sumY/pixels)).realPoint();
+		}
+		
+		/**
+		 * @return the pixel rectangle just containing the component
+		 */
+		iRectangle iBox()
+		{
+			return new iRectangle(new iPoint(minX, minY), new iPoint(maxX, maxY));
+		}
+		
+		/**
+		 * @return the real-world rectangle just containing the component
+		 */
+		public Rectangle box()
+		{
+			return new Rectangle(new iPoint(minX, minY).realPoint(), new iPoint(maxX, maxY).realPoint());
+		}
+		
+		/**
+		 * A grid the same size as the one labelled containing just this component.
+		 * Made when first asked for.
+		 * @return
+		 */
+		public BooleanGrid mask()
+		{
+			if(mask != null)
+				return mask;
+			mask = new BooleanGrid();
+			mask.att = att;
+			mask.visited = null;
+			mask.rec = new iRectangle(rec);
+			mask.bits = new BitSet(rec.size.x*rec.size.y);
+			for(int x = minX; x <= maxX; x++)
+				for(int y = minY; y <= maxY; y++)
+				{
+					int i = pixI(x, y);
+					if(labelling.labels[i] == index)
+						mask.bits.set(i);
+				}
+			return mask;
+		}
+		
+		/**
+		 * Find where this component overlaps components of another labelling
+		 * (usually of a different grid).  Components of the other labelling
+		 * flagged in skip are ignored; those that are overlapped are flagged in touched.
+		 * @param other
+		 * @param skip
+		 * @param touched
+		 * @return the centroid of the overlap, or null if there isn't one
+		 */
+		public Point2D overlapCentroid(Labelling other, boolean[] skip, boolean[] touched)
+		{
+			BooleanGrid og = other.grid();
+			int dx = rec.swCorner.x - og.rec.swCorner.x;
+			int dy = rec.swCorner.y - og.rec.swCorner.y;
+			long sx = 0, sy = 0;
+			int count = 0;
+			for(int x = minX; x <= maxX; x++)
 			{
-				q = p.add(neighbour[i]);
-				if(this.get(q) && !result.get(q))
+				int ox = x + dx;
+				if(ox < 0 || ox >= og.rec.size.x)
+					continue;
+				for(int y = minY; y <= maxY; y++)
 				{
-					sp++;
-					if(sp >= top)
-					{
-						Debug.e("BooleanGrid.floodCopy(): stack overflow!");
-						return result;
-					}
-					stack[sp] = q;
+					int oy = y + dy;
+					if(oy < 0 || oy >= og.rec.size.y)
+						continue;
+					if(labelling.labels[pixI(x, y)] != index)
+						continue;
+					int l = other.labels[og.pixI(ox, oy)];
+					if(l < 0 || skip[l])
+						continue;
+					touched[l] = true;
+					sx += x;
+					sy += y;
+					count++;
+				}
+			}
+			if(count == 0)
+				return null;
+			return new iPoint((int)(sx/count), (int)(sy/count)).realPoint();
+		}
+	}
+	
+	/**
+	 * All the connected components of a grid at once
+	 */
+	public class Labelling
+	{
+		/**
+		 * The component each pixel belongs to, or -1 for air
+		 */
+		private int[] labels;
+		private List<Component> components;
+		
+		private Labelling(int[] l, List<Component> c)
+		{
+			labels = l;
+			components = c;
+		}
+		
+		private BooleanGrid grid()
+		{
+			return BooleanGrid.this;
+		}
+		
+		/**
+		 * @return how many components there are
+		 */
+		public int size()
+		{
+			return components.size();
+		}
+		
+		public Component get(int i)
+		{
+			return components.get(i);
+		}
+		
+		/**
+		 * @param p
+		 * @return the component containing real-world point p, or null if it's in air
+		 */
+		public Component at(Point2D p)
+		{
+			iPoint ip = new iPoint(p);
+			if(!inside(ip))
+				return null;
+			int l = labels[pixI(ip)];
+			if(l < 0)
+				return null;
+			return components.get(l);
+		}
+	}
+	
+	/**
+	 * Root of a union-find tree, halving the path on the way
+	 * @param parent
+	 * @param l
+	 * @return
+	 */
+	private static int findRoot(int[] parent, int l)
+	{
+		while(parent[l] != l)
+		{
+			parent[l] = parent[parent[l]];
+			l = parent[l];
+		}
+		return l;
+	}
+	
+	/**
+	 * Find all the connected components of the solid pixels in two passes over the
+	 * grid, merging provisional labels with union-find.  This takes time proportional
+	 * to the size of the grid however many components there are, where repeated 
+	 * findSeed() and floodCopy() calls take time proportional to both.
+	 * @return
+	 */
+	public Labelling label()
+	{
+		int sy = rec.size.y;
+		int n = rec.size.x*sy;
+		int[] labels = new int[Math.max(n, 0)];
+		Arrays.fill(labels, -1);
+		int[] parent = new int[64];
+		int next = 0;
+		
+		// First pass: provisional labels, recording which ones meet
+		
+		for(int i = bits.nextSetBit(0); i >= 0 && i < n; i = bits.nextSetBit(i + 1))
+		{
+			int left = i >= sy ? labels[i - sy] : -1;
+			int down = i%sy > 0 ? labels[i - 1] : -1;
+			int l;
+			if(left < 0 && down < 0)
+			{
+				if(next >= parent.length)
+				{
+					int[] p = new int[2*parent.length];
+					System.arraycopy(parent, 0, p, 0, next);
+					parent = p;
 				}
+				parent[next] = next;
+				l = next++;
+			} else if(left < 0)
+				l = down;
+			else if(down < 0)
+				l = left;
+			else
+			{
+				int a = findRoot(parent, left);
+				int b = findRoot(parent, down);
+				if(a < b)
+					parent[b] = a;
+				else if(b < a)
+					parent[a] = b;
+				l = Math.min(a, b);
 			}
+			labels[i] = l;
 		}
 		
+		// Second pass: number the components in the order their first pixels come
+		
+		int[] number = new int[next];
+		Arrays.fill(number, -1);
+		List<Component> components = new ArrayList<Component>();
+		Labelling result = new Labelling(labels, components);
+		for(int i = bits.nextSetBit(0); i >= 0 && i < n; i = bits.nextSetBit(i + 1))
+		{
+			int r = findRoot(parent, labels[i]);
+			int c = number[r];
+			if(c < 0)
+			{
+				c = components.size();
+				number[r] = c;
+				components.add(new Component(result, c));
+			}
+			labels[i] = c;
+			components.get(c).add(i/sy, i%sy);
+		}
 		return result;
 	}
 	
-
+	//**************************************************************************************************
+	
+	// Binary form for storing slices on disc (see DiskSliceCache)
+	
+	/**
+	 * Write the grid, but not its attributes
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(rec.swCorner.x);
+		out.writeInt(rec.swCorner.y);
+		out.writeInt(rec.size.x);
+		out.writeInt(rec.size.y);
+		out.writeBoolean(isThin);
+		long[] words = bits.toLongArray();
+		out.writeInt(words.length);
+		for(int i = 0; i < words.length; i++)
+			out.writeLong(words[i]);
+	}
+	
+	/**
+	 * Read a grid written by write()
+	 * @param in
+	 * @param a the attributes to give it
+	 * @return
+	 * @throws IOException if what's there can't be a grid
+	 */
+	public static BooleanGrid read(DataInput in, Attributes a) throws IOException
+	{
+		int x = in.readInt();
+		int y = in.readInt();
+		int sx = in.readInt();
+		int sy = in.readInt();
+		boolean thin = in.readBoolean();
+		int n = in.readInt();
+		if(sx <= 0 || sy <= 0 || (long)sx*sy > Integer.MAX_VALUE || n < 0 || n > ((long)sx*sy + 63)/64)
+			throw new IOException("BooleanGrid.read(): bad grid size");
+		long[] words = new long[n];
+		for(int i = 0; i < n; i++)
+			words[i] = in.readLong();
+		BooleanGrid result = new BooleanGrid();
+		result.att = a;
+		result.isThin = thin;
+		result.rec.swCorner = result.new iPoint(x, y);
+		result.rec.size = result.new iPoint(sx, sy);
+		result.bits = BitSet.valueOf(words);
+		return result;
+	}
+	
+	//**************************************************************************************************
+	
+	// In-place operations for building up one grid from many (see SupportColumns)
+	
+	/**
+	 * An empty grid covering rectangle r
+	 * @param a
+	 * @param r
+	 */
+	BooleanGrid(Attributes a, iRectangle r)
+	{
+		att = a;
+		visited = null;
+		isThin = false;
+		rec = new iRectangle(r);
+		bits = new BitSet(rec.size.x*rec.size.y);
+	}
+	
+	/**
+	 * An empty grid covering real-world rectangle r
+	 * @param a
+	 * @param r
+	 */
+	BooleanGrid(Attributes a, Rectangle r)
+	{
+		att = a;
+		visited = null;
+		isThin = false;
+		rec = new iRectangle();
+		rec.swCorner = new iPoint(iScale(r.sw().x()), iScale(r.sw().y()));
+		rec.size = new iPoint(iScale(r.ne().x()) - rec.swCorner.x + 1, iScale(r.ne().y()) - rec.swCorner.y + 1);
+		bits = new BitSet(rec.size.x*rec.size.y);
+	}
+	
+	/**
+	 * Set a disc of pixels centre c radius r, both in the real world
+	 * @param c
+	 * @param r
+	 */
+	void disc(Point2D c, double r)
+	{
+		disc(new iPoint(c), iScale(r), true);
+	}
+	
+	/**
+	 * Does this grid's rectangle cover all of e's?
+	 * @param e
+	 * @return
+	 */
+	boolean covers(BooleanGrid e)
+	{
+		return rec.union(e.rec).coincidesWith(rec);
+	}
+	
+	/**
+	 * A copy of this grid big enough to cover e as well, with margin
+	 * pixels to spare all round
+	 * @param e
+	 * @param margin
+	 * @return
+	 */
+	BooleanGrid grownToCover(BooleanGrid e, int margin)
+	{
+		BooleanGrid result = new BooleanGrid(att, rec.union(e.rec.offset(margin)));
+		result.or(this);
+		return result;
+	}
+	
+	/**
+	 * Set (v true) or clear (v false) all the pixels in this grid that
+	 * are set in e.  When the rectangles differ this goes a run of pixels at a time,
+	 * and the parts of e outside this grid's rectangle are ignored.
+	 * @param e
+	 * @param v
+	 */
+	private void setRuns(BooleanGrid e, boolean v)
+	{
+		if(e == nothingThere || e.isEmpty())
+			return;
+		if(rec.coincidesWith(e.rec))
+		{
+			if(v)
+				bits.or(e.bits);
+			else
+				bits.andNot(e.bits);
+			return;
+		}
+		iRectangle s = rec.intersection(e.rec);
+		if(s.size.x <= 0 || s.size.y <= 0)
+			return;
+		int dx = e.rec.swCorner.x - rec.swCorner.x;
+		int dy = e.rec.swCorner.y - rec.swCorner.y;
+		int ex = s.swCorner.x - e.rec.swCorner.x;
+		int ey = s.swCorner.y - e.rec.swCorner.y;
+		for(int x = ex; x < ex + s.size.x; x++)
+		{
+			int column = e.pixI(x, 0);
+			int end = column + ey + s.size.y;
+			int i = e.bits.nextSetBit(column + ey);
+			while(i >= 0 && i < end)
+			{
+				int j = Math.min(e.bits.nextClearBit(i), end);
+				int here = pixI(x + dx, i - column + dy);
+				bits.set(here, here + j - i, v);
+				i = e.bits.nextSetBit(j);
+			}
+		}
+	}
+	
+	/**
+	 * Add e to this grid in place
+	 * @param e
+	 */
+	void or(BooleanGrid e)
+	{
+		setRuns(e, true);
+	}
+	
+	/**
+	 * Remove e from this grid in place
+	 * @param e
+	 */
+	void andNot(BooleanGrid e)
+	{
+		setRuns(e, false);
+		deWhisker();
+	}
+	
+	/**
+	 * A copy of this grid cut down to just the columns with something in them.
+	 * @return the copy, or the empty grid if there's nothing there
+	 */
+	BooleanGrid trimmed()
+	{
+		int first = bits.nextSetBit(0);
+		if(first < 0)
+			return nothingThere;
+		int x0 = first/rec.size.y;
+		int x1 = (bits.length() - 1)/rec.size.y;
+		BooleanGrid result = new BooleanGrid();
+		result.att = att;
+		result.isThin = isThin;
+		result.rec = new iRectangle(new iPoint(rec.swCorner.x + x0, rec.swCorner.y), 
+				new iPoint(rec.swCorner.x + x1, rec.swCorner.y + rec.size.y - 1));
+		result.bits = bits.get(pixI(x0, 0), pixI(x1 + 1, 0));
+		return result;
+	}
 	
 	/**
 	 * Calculate the 4-bit marching squares value for a point
@@ -2572,9 +3006,10 @@ public class BooleanGrid
 	 * @param hp
 	 * @param gap
 	 * @param a
+	 * @param config the settings for the build this is in
 	 * @return a polygon list of hatch lines as the result with attributes a
 	 */
-	public PolygonList hatch(HalfPlane hp, double gap, Attributes a) //, Rr2Point startNearHere)
+	public PolygonList hatch(HalfPlane hp, double gap, Attributes a, MachineConfig config) //, Rr2Point startNearHere)
 	{	
 		//push("Computing hatching... ");
 		
@@ -2657,12 +3092,8 @@ public class BooleanGrid
 		} while(segment >= 0);
 		
 
-		try
-		{
-			if(Preferences.loadGlobalBool("PathOptimise"))
-				joinUpSnakes(snakes, hatches, gap);
-		} catch (Exception e)
-		{}
+		if(config.getPathOptimise())
+			joinUpSnakes(snakes, hatches, gap);
 		
 		resetVisited();
 		
@@ -248,7 +248,10 @@ public class BooleanGridList
 				{
 					ei = e.getInfillExtruder();
 					if(ei != null)
-						att = new Attributes(ei.getMaterial(), null, null, ei.getAppearance());
+					{
+						Attributes ia = new Attributes(ei.getMaterial(), null, null, ei.getAppearance());
+						att = att.getLayers() == 1 ? ia : new Attributes(ia, att.getLayers());
+					}
 				} else
 					ei = e;
 				if(ei != null)
@@ -258,7 +261,7 @@ public class BooleanGridList
 						hatchLine = overrideDirection;
 					else
 						hatchLine = layerConditions.getHatchDirection(ei, support);
-					result.add(get(i).hatch(hatchLine, layerConditions.getHatchWidth(ei), att)); 
+					result.add(get(i).hatch(hatchLine, layerConditions.getHatchWidth(ei), att, layerConditions.getConfig())); 
 					
 				}
 			}	
@@ -68,16 +68,18 @@
 
 package org.reprap.geometry.polygons;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
 import org.reprap.Attributes;
+import org.reprap.MachineConfig;
 import org.reprap.Preferences;
 import org.reprap.Extruder;
 import org.reprap.geometry.LayerRules;
 //import org.reprap.geometry.polygons.PolygonAttributes;
+import org.reprap.machines.LookAheadPlanner;
 import org.reprap.machines.VelocityProfile;
 import org.reprap.utilities.Debug;
 
@@ -90,63 +92,80 @@ public class Polygon
 	 * End joined to beginning?
 	 */
 	private boolean closed = false;
-	
+
 	/**
 	 * Used to choose the starting point for a randomized-start copy of a polygon
 	 */
 	private static Random rangen = new Random(918273);
-	
+
 	/**
-	 * The (X, Y) points round the polygon as Rr2Points
+	 * Initial room for points in a new polygon
 	 */
-	private List<Point2D> points = null;
-	
+	private static final int initialCapacity = 8;
+
 	/**
-	 * The speed of the machine at each corner
+	 * The X coordinates of the points round the polygon.  Only the first
+	 * n entries are used; the arrays grow as needed.
 	 */
-	private List<Double> speeds = null;
-	
+	private double[] xs = null;
+
+	/**
+	 * The Y coordinates of the points round the polygon
+	 */
+	private double[] ys = null;
+
+	/**
+	 * The speed of the machine at each corner (null if not set)
+	 */
+	private double[] speeds = null;
+
+	/**
+	 * The number of points in the polygon
+	 */
+	private int n = 0;
+
 	/**
 	 * The atributes of the STL object that this polygon represents
 	 */
 	private Attributes att = null;
-	
-	
+
+
 	//private PolygonAttributes pa = null;
-	
+
 	/**
-	 * The minimum enclosing X-Y box round the polygon
+	 * The minimum enclosing X-Y box round the polygon.
+	 * This is null when it needs to be recomputed.
 	 */
 	private Rectangle box = null;
-	
+
 	/**
 	 * Flag to prevent cyclic graphs going round forever
 	 */
 	private boolean beingDestroyed = false;
-	
+
 	/**
 	 * The index of the last point to draw to, if there are more that should just be moved over
 	 */
 	private int extrudeEnd;
-	
+
 	/**
 	 * The squared distance from the end of the polygon of the extrude end
 	 */
 	private double extrudeEndDistance2;
-	
+
 	/**
 	 * The index of the last point at which the valve (if any) is open.
 	 */
 	private int valveEnd;
-	
+
 	/**
 	 * The squared distance from the end of the polygon of the valve end
 	 */
 	private double valveEndDistance2;
-	
 
-	
-	
+
+
+
 	/**
 	 * Make an empty polygon
 	 */
@@ -154,8 +173,10 @@ public class Polygon
 	{
 		if(a == null)
 			Debug.e("RrPolygon(): null attributes!");
-		points = new ArrayList<Point2D>();
+		xs = new double[initialCapacity];
+		ys = new double[initialCapacity];
 		speeds = null;
+		n = 0;
 		att = a;
 		box = new Rectangle();
 		closed = c;
@@ -165,7 +186,7 @@ public class Polygon
 		valveEndDistance2 = 0;
 		//pa = null;
 	}
-	
+
 	/**
 	 * Set the polygon as closed
 	 */
@@ -173,7 +194,7 @@ public class Polygon
 	{
 		closed = true;
 	}
-	
+
 	/**
 	 * Set the polygon not closed
 	 */
@@ -181,7 +202,69 @@ public class Polygon
 	{
 		closed = false;
 	}
-	
+
+	/**
+	 * Check an index is in range
+	 * @param i
+	 */
+	private void check(int i)
+	{
+		if(i < 0 || i >= n)
+			throw new IndexOutOfBoundsException("Polygon index: " + i + ", size: " + n);
+	}
+
+	/**
+	 * Make sure there is room for at least need points
+	 * @param need
+	 */
+	private void ensureCapacity(int need)
+	{
+		if(need <= xs.length)
+			return;
+		int cap = Math.max(need, 2*xs.length);
+		double[] a = new double[cap];
+		System.arraycopy(xs, 0, a, 0, n);
+		xs = a;
+		a = new double[cap];
+		System.arraycopy(ys, 0, a, 0, n);
+		ys = a;
+		if(speeds != null)
+		{
+			a = new double[cap];
+			System.arraycopy(speeds, 0, a, 0, n);
+			speeds = a;
+		}
+	}
+
+	/**
+	 * Insert a point and speed at i without any checks or updates of the extrude
+	 * and valve ends.  The speed is ignored if speeds are not set.
+	 * @param i
+	 * @param x
+	 * @param y
+	 * @param s
+	 */
+	private void insert(int i, double x, double y, double s)
+	{
+		if(i < 0 || i > n)
+			throw new IndexOutOfBoundsException("Polygon index: " + i + ", size: " + n);
+		ensureCapacity(n + 1);
+		if(i < n)
+		{
+			System.arraycopy(xs, i, xs, i + 1, n - i);
+			System.arraycopy(ys, i, ys, i + 1, n - i);
+			if(speeds != null)
+				System.arraycopy(speeds, i, speeds, i + 1, n - i);
+		}
+		xs[i] = x;
+		ys[i] = y;
+		if(speeds != null)
+			speeds[i] = s;
+		n++;
+		if(box != null)
+			box.expand(new Point2D(x, y));
+	}
+
 	/**
 	 * Get the data
 	 * @param i
@@ -189,10 +272,60 @@ public class Polygon
 	 */
 	public Point2D point(int i)
 	{
-		//return new Rr2Point(points.get(i));
-		return points.get(i);
+		check(i);
+		return new Point2D(xs[i], ys[i]);
 	}
-	
+
+	/**
+	 * Get the X coordinate of a point without making a point object
+	 * @param i
+	 * @return X coordinate of the i-th point
+	 */
+	public double x(int i)
+	{
+		check(i);
+		return xs[i];
+	}
+
+	/**
+	 * Get the Y coordinate of a point without making a point object
+	 * @param i
+	 * @return Y coordinate of the i-th point
+	 */
+	public double y(int i)
+	{
+		check(i);
+		return ys[i];
+	}
+
+	/**
+	 * Squared distance from the i-th point to (x, y) without making a point object
+	 * @param i
+	 * @param x
+	 * @param y
+	 * @return distance^2
+	 */
+	public double dSquared(int i, double x, double y)
+	{
+		check(i);
+		double dx = xs[i] - x;
+		double dy = ys[i] - y;
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * Distance between the i-th and j-th points
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	private double edge(int i, int j)
+	{
+		double dx = xs[i] - xs[j];
+		double dy = ys[i] - ys[j];
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
 //	/**
 //	 * Get the polygon attribute (may be null)
 //	 * @return
@@ -201,7 +334,7 @@ public class Polygon
 //	{
 //		return pa;
 //	}
-	
+
 	/**
 	 * Get the speed
 	 * @param i
@@ -214,10 +347,11 @@ public class Polygon
 			Debug.e("Rr2Point.speed(int i): speeds null!");
 			return 0;
 		}
-		return speeds.get(i).doubleValue();
+		check(i);
+		return speeds[i];
 	}
 
-	
+
 	/**
 	 * As a string
 	 * @return string representation of polygon
@@ -226,7 +360,7 @@ public class Polygon
 	{
 		String result = " Polygon -  vertices: ";
 		result += size() + ", enclosing box: ";
-		result += box.toString();
+		result += getBox().toString();
 		result += "\n";
 		for(int i = 0; i < size(); i++)
 		{
@@ -236,10 +370,10 @@ public class Polygon
 			else
 				result += "; ";
 		}
-		
+
 		return result;
 	}
-	
+
 	/**
 	 * Do we loop back on ourself?
 	 * @return
@@ -248,7 +382,7 @@ public class Polygon
 	{
 		return closed;
 	}
-	
+
 	/**
 	 * Something has been done to the polygon that may require its
 	 * extrude and valve endings to be updated
@@ -272,8 +406,8 @@ public class Polygon
 		}
 		// if speeds are set, interpolate
 	}
-	
-	
+
+
 	/**
 	 * What's the last point to plot to?
 	 * @return
@@ -285,7 +419,7 @@ public class Polygon
 		else
 			return extrudeEnd;
 	}
-	
+
 	/**
 	 * What's the last point at which the valve should be open to?
 	 * @return
@@ -297,16 +431,16 @@ public class Polygon
 		else
 			return valveEnd;
 	}
-		
+
 	/**
 	 * Length
 	 * @return number of points in polygon
 	 */
 	public int size()
 	{
-		return points.size();
+		return n;
 	}
-	
+
 	/**
 	 * Deep copy - NB: Attributes _not_ deep copied, but
 	 * PolygonAttribute are.
@@ -315,14 +449,21 @@ public class Polygon
 	public Polygon(Polygon p)
 	{
 		this(p.att, p.closed);
-		for(int i = 0; i < p.size(); i++)
-			add(new Point2D(p.point(i)));
+		n = p.n;
+		int cap = Math.max(n, initialCapacity);
+		xs = new double[cap];
+		ys = new double[cap];
+		System.arraycopy(p.xs, 0, xs, 0, n);
+		System.arraycopy(p.ys, 0, ys, 0, n);
 		if(p.speeds != null)
 		{
-			speeds = new ArrayList<Double>();
-			for(int i = 0; i < p.size(); i++)
-				speeds.add(new Double(p.speed(i)));
+			speeds = new double[cap];
+			System.arraycopy(p.speeds, 0, speeds, 0, n);
 		}
+		if(p.box != null)
+			box = new Rectangle(p.box);
+		else
+			box = null;
 		closed = p.closed;
 		extrudeEnd = p.extrudeEnd;
 		valveEnd  = p.valveEnd;
@@ -333,7 +474,7 @@ public class Polygon
 //		else
 //			pa = null;
 	}
-	
+
 //	/**
 //	 * Set the polygon attribute
 //	 * @return
@@ -342,7 +483,7 @@ public class Polygon
 //	{
 //		pa = p;
 //	}
-	
+
 	/**
 	 * Add a new point to the polygon
 	 * @param p
@@ -352,11 +493,10 @@ public class Polygon
 	{
 		if(speeds != null)
 			Debug.e("Rr2Point.add(): adding a point to a polygon with its speeds set.");
-		points.add(new Point2D(p));
-		box.expand(p);
+		insert(n, p.x(), p.y(), 0);
 		updateExtrudeValveEnd();
 	}
-	
+
 	/**
 	 * Insert a new point into the polygon
 	 * @param i
@@ -366,9 +506,8 @@ public class Polygon
 	{
 		if(speeds != null)
 			Debug.e("Rr2Point.add(): adding a point to a polygon with its speeds set.");
-		
-		points.add(i, new Point2D(p));
-		box.expand(p);
+
+		insert(i, p.x(), p.y(), 0);
 		boolean update = false;
 		if(i <= extrudeEnd)
 			extrudeEnd++;
@@ -381,7 +520,7 @@ public class Polygon
 		if(update)
 			updateExtrudeValveEnd();
 	}
-	
+
 	/**
 	 * Set a point to be p
 	 * @param i
@@ -391,8 +530,10 @@ public class Polygon
 	{
 		if(speeds != null)
 			Debug.e("Rr2Point.set(): adding a point to a polygon with its speeds set.");
-		points.set(i, new Point2D(p));
-		box.expand(p);  // Note if the old point was on the convex hull, and the new one is within, box will be too big after this
+		check(i);
+		xs[i] = p.x();
+		ys[i] = p.y();
+		box = null;
 		updateExtrudeValveEnd();
 	}
 
@@ -409,9 +550,7 @@ public class Polygon
 			Debug.e("Rr2Point.add(): adding a point and a speed to a polygon without its speeds set.");
 			return;
 		}
-		points.add(i, new Point2D(p));
-		speeds.add(i, s);
-		box.expand(p);
+		insert(i, p.x(), p.y(), s);
 		boolean update = false;
 		if(i <= extrudeEnd)
 			extrudeEnd++;
@@ -423,8 +562,8 @@ public class Polygon
 			update = true;
 		if(update)
 			updateExtrudeValveEnd();
-	}		
-	
+	}
+
 	/**
 	 * Set a new point and speed
 	 * @param i
@@ -434,13 +573,18 @@ public class Polygon
 	public void set(int i, Point2D p, double s)
 	{
 		if(speeds == null)
+		{
 			Debug.e("Rr2Point.set(): adding a point and a speed to a polygon without its speeds set.");
-		points.set(i, new Point2D(p));
-		speeds.set(i, s);
-		box.expand(p); // Note if the old point was on the convex hull, and the new one is within, box will be too big after this
+			return;
+		}
+		check(i);
+		xs[i] = p.x();
+		ys[i] = p.y();
+		speeds[i] = s;
+		box = null;
 		updateExtrudeValveEnd();
 	}
-	
+
 	/**
 	 * Add a speed to the polygon
 	 * @param p
@@ -450,14 +594,11 @@ public class Polygon
 	{
 		// Lazy initialization
 		if(speeds == null)
-		{
-			speeds = new ArrayList<Double>();
-			for(int j = 0; j < size(); j++)
-				speeds.add(new Double(0));
-		}
-		speeds.set(i, new Double(s));
+			speeds = new double[xs.length];
+		check(i);
+		speeds[i] = s;
 	}
-	
+
 	/**
 	 * Eet the last point to plot to
 	 * @param d
@@ -467,7 +608,7 @@ public class Polygon
 		extrudeEnd = d;
 		extrudeEndDistance2 = d2;
 	}
-	
+
 	/**
 	 * Eet the last point to valve-open to
 	 * @param d
@@ -477,17 +618,38 @@ public class Polygon
 		valveEnd = d;
 		valveEndDistance2 = d2;
 	}
-	
+
 	/**
 	 * @return the attributes
 	 */
 	public Attributes getAttributes() { return att; }
-	
+
 	/**
+	 * The box is only worked out when it's asked for after the polygon has changed.
 	 * @return the current surrounding box
 	 */
-	public Rectangle getBox() { return box; }
-	
+	public Rectangle getBox()
+	{
+		if(box == null)
+		{
+			box = new Rectangle();
+			if(n > 0)
+			{
+				double xlo = xs[0], xhi = xs[0], ylo = ys[0], yhi = ys[0];
+				for(int i = 1; i < n; i++)
+				{
+					if(xs[i] < xlo) xlo = xs[i];
+					if(xs[i] > xhi) xhi = xs[i];
+					if(ys[i] < ylo) ylo = ys[i];
+					if(ys[i] > yhi) yhi = ys[i];
+				}
+				box.expand(new Point2D(xlo, ylo));
+				box.expand(new Point2D(xhi, yhi));
+			}
+		}
+		return box;
+	}
+
 	/**
 	 * Sum of the edge lengths
 	 * @return
@@ -495,13 +657,13 @@ public class Polygon
 	public double getLength()
 	{
 		double len = 0;
-		for(int i = 1; i < size(); i++)
-			len = len + Point2D.d(point(i), point(i-1));
-		if(closed)
-			len = len + Point2D.d(point(0), point(size()-1));
+		for(int i = 1; i < n; i++)
+			len = len + Math.hypot(xs[i] - xs[i-1], ys[i] - ys[i-1]);
+		if(closed && n > 0)
+			len = len + Math.hypot(xs[0] - xs[n-1], ys[0] - ys[n-1]);
 		return len;
 	}
-	
+
 	/**
 	 * Put a new polygon on the end
 	 * (N.B. Attributes of the new polygon are ignored)
@@ -513,10 +675,25 @@ public class Polygon
 			return;
 		if(extrudeEnd >= 0 || valveEnd >= 0)
 			Debug.e("Rr2Point.add(): adding a polygon to another polygon with its extrude or valve ending set.");
-		for(int i = 0; i < p.size(); i++)
-			points.add(new Point2D(p.point(i)));
-
-		box.expand(p.box);
+		int m = p.n;
+		ensureCapacity(n + m);
+		System.arraycopy(p.xs, 0, xs, n, m);
+		System.arraycopy(p.ys, 0, ys, n, m);
+		if(speeds != null)
+		{
+			if(p.speeds != null)
+				System.arraycopy(p.speeds, 0, speeds, n, m);
+			else
+				Arrays.fill(speeds, n, n + m, 0);
+		}
+		n += m;
+		if(box != null)
+		{
+			if(p.box != null)
+				box.expand(p.box);
+			else
+				box = null;
+		}
 		if(speeds == null)
 		{
 			if(p.speeds != null)
@@ -528,13 +705,9 @@ public class Polygon
 			Debug.e("Rr2Point.add(): adding a polygon to another polygon, but it has no needed speeds.");
 			return;
 		}
-		for(int i = 0; i < p.size(); i++)
-		{
-			speeds.add(new Double(p.speed(i)));
-		}
 		updateExtrudeValveEnd();
 	}
-	
+
 	/**
 	 * Put a new polygon in the middle (at vertex k, which will be at
 	 * the end of the inserted polygon afterwards).
@@ -550,45 +723,47 @@ public class Polygon
 		{
 			Debug.e("Rr2Point.add(): attempt to add a polygon to another polygon when one has speeds and the other doesn't.");
 			return;
-		}	
+		}
 		for(int i = 0; i < p.size(); i++)
 		{
 			if(speeds != null)
-				add(k, new Point2D(p.point(i)), p.speed(i));
+				add(k, p.point(i), p.speed(i));
 			else
-				points.add(k, new Point2D(p.point(i)));
+				insert(k, p.xs[i], p.ys[i], 0);
 			k++;
 		}
-		box.expand(p.box);
 		updateExtrudeValveEnd();
 	}
-	
+
 	/**
 	 * Remove a point.
-	 * N.B. This does not amend the enclosing box
 	 * @param i
 	 */
 	public void remove(int i)
 	{
-		points.remove(i);
-		if(speeds != null)
-			speeds.remove(i);
+		check(i);
+		int m = n - i - 1;
+		if(m > 0)
+		{
+			System.arraycopy(xs, i + 1, xs, i, m);
+			System.arraycopy(ys, i + 1, ys, i, m);
+			if(speeds != null)
+				System.arraycopy(speeds, i + 1, speeds, i, m);
+		}
+		n--;
+		box = null;
 	}
-	
+
 	/**
-	 * Recompute the box (sometimes useful if points have been deleted) 
+	 * Recompute the box (sometimes useful if points have been deleted).
+	 * This is now done lazily by getBox(), so this just marks it as stale.
 	 */
 	public void re_box()
 	{
-		box = new Rectangle();
-		int leng = size();
-		for(int i = 0; i < leng; i++)
-		{
-			box.expand(points.get(i)); 
-		}
+		box = null;
 	}
-	
-	
+
+
 	/**
 	 * Output the polygon in SVG XML format
 	 * This ignores any speeds
@@ -597,37 +772,106 @@ public class Polygon
 	public String svg()
 	{
 		String result = "<polygon points=\"";
-		int leng = size();
-		for(int i = 0; i < leng; i++)
-			result += Double.toString((point(i)).x()) + "," 
-					+ Double.toString((point(i)).y());
+		for(int i = 0; i < n; i++)
+			result += Double.toString(xs[i]) + ","
+					+ Double.toString(ys[i]);
 		result +="\" />";
 		return result;
 	}
-		
+
+	/**
+	 * Reverse the cyclic order of this polygon in place
+	 */
+	public void reverse()
+	{
+		for(int i = 0, j = n - 1; i < j; i++, j--)
+		{
+			double t = xs[i]; xs[i] = xs[j]; xs[j] = t;
+			t = ys[i]; ys[i] = ys[j]; ys[j] = t;
+			if(speeds != null)
+			{
+				t = speeds[i]; speeds[i] = speeds[j]; speeds[j] = t;
+			}
+		}
+	}
+
+	/**
+	 * Rotate the first n entries of an array left by i by three reversals
+	 * @param a
+	 * @param i
+	 */
+	private void rotateArray(double[] a, int i)
+	{
+		reverseArray(a, 0, i - 1);
+		reverseArray(a, i, n - 1);
+		reverseArray(a, 0, n - 1);
+	}
+
+	private static void reverseArray(double[] a, int i, int j)
+	{
+		for(; i < j; i++, j--)
+		{
+			double t = a[i];
+			a[i] = a[j];
+			a[j] = t;
+		}
+	}
+
 	/**
 	 * Negate (i.e. reverse cyclic order)
 	 * @return reversed polygon object
 	 */
 	public Polygon negate()
 	{
-		Polygon result = new Polygon(att, closed);
-		for(int i = size() - 1; i >= 0; i--)
-		{
-			result.add(point(i)); 
-		}
+		Polygon result = new Polygon(this);
+		result.reverse();
 		if(speeds == null)
-			return result;
-		for(int i = size() - 1; i >= 0; i--)
 		{
-			result.setSpeed(i, speed(i)); 
+			result.setExtrudeEnd(-1, 0);
+			result.setValveEnd(-1, 0);
+			return result;
 		}
-		result.setExtrudeEnd(extrudeEnd, extrudeEndDistance2);
-		result.setValveEnd(valveEnd, valveEndDistance2);
 		result.updateExtrudeValveEnd();
 		return result;
 	}
-	
+
+	/**
+	 * A copy turned about the origin through a number of right angles
+	 * anticlockwise, then moved.
+	 * @param quarterTurns
+	 * @param shift
+	 * @return
+	 */
+	public Polygon turnedAndMoved(int quarterTurns, Point2D shift)
+	{
+		Polygon result = new Polygon(this);
+		for(int i = 0; i < n; i++)
+		{
+			double x = xs[i];
+			double y = ys[i];
+			switch(quarterTurns & 3)
+			{
+			case 1:
+				x = -ys[i];
+				y = xs[i];
+				break;
+			case 2:
+				x = -xs[i];
+				y = -ys[i];
+				break;
+			case 3:
+				x = ys[i];
+				y = -xs[i];
+				break;
+			default:
+			}
+			result.xs[i] = x + shift.x();
+			result.ys[i] = y + shift.y();
+		}
+		result.re_box();
+		return result;
+	}
+
 	/**
 	 * @return same polygon starting at a random vertex
 	 */
@@ -635,7 +879,7 @@ public class Polygon
 	{
 		return newStart(rangen.nextInt(size()));
 	}
-	
+
 	/**
 	 * @return same polygon, but starting at vertex i
 	 */
@@ -643,28 +887,23 @@ public class Polygon
 	{
 		if(!isClosed())
 			Debug.e("RrPolygon.newStart(i): reordering an open polygon!");
-	
+
 		if(i < 0 || i >= size())
 		{
 			Debug.e("RrPolygon.newStart(i): dud index: " + i);
 			return this;
 		}
-		Polygon result = new Polygon(att, closed);
-		for(int j = 0; j < size(); j++)
+		Polygon result = new Polygon(this);
+		if(i > 0)
 		{
-			result.add(point(i));
-			if(speeds != null)
-				result.setSpeed(j, speed(i));
-			i++;
-			if(i >= size())
-				i = 0;
+			result.rotateArray(result.xs, i);
+			result.rotateArray(result.ys, i);
+			if(result.speeds != null)
+				result.rotateArray(result.speeds, i);
 		}
-		result.setExtrudeEnd(extrudeEnd, extrudeEndDistance2);
-		result.setValveEnd(valveEnd, valveEndDistance2);
 		result.updateExtrudeValveEnd();
 		return result;
 	}
-	
 	/**
 	 * @return same polygon starting at point incremented from last polygon
 	 */
@@ -682,12 +921,25 @@ public class Polygon
 	 * @return
 	 */
 	public int nearestVertex(Point2D p)
+	{
+		return nearestVertex(p.x(), p.y());
+	}
+	
+	/**
+	 * Find the nearest vertex on a polygon to the point (px, py)
+	 * @param px
+	 * @param py
+	 * @return
+	 */
+	public int nearestVertex(double px, double py)
 	{
 		double d = Double.POSITIVE_INFINITY;
 		int result = -1;
-		for(int i = 0; i < size(); i++)
+		for(int i = 0; i < n; i++)
 		{
-			double d2 = Point2D.dSquared(point(i), p);
+			double dx = xs[i] - px;
+			double dy = ys[i] - py;
+			double d2 = dx*dx + dy*dy;
 			if(d2 < d)
 			{
 				d = d2;
@@ -720,8 +972,8 @@ public class Polygon
 		int itsPoint = -1;
 		for(int i = 0; i < size(); i++)
 		{
-			int j = p.nearestVertex(point(i));
-			double d2 = Point2D.dSquared(point(i), p.point(j));
+			int j = p.nearestVertex(xs[i], ys[i]);
+			double d2 = p.dSquared(j, xs[i], ys[i]);
 			if(d2 < d)
 			{
 				d = d2;
@@ -750,9 +1002,13 @@ public class Polygon
 	{
 		double d = Double.NEGATIVE_INFINITY;
 		int result = -1;
+		double ox = ln.origin().x();
+		double oy = ln.origin().y();
+		double dx = ln.direction().x();
+		double dy = ln.direction().y();
 		for(int i = 0; i < size(); i++)
 		{
-			double d2 = ln.projection(point(i));
+			double d2 = dx*(xs[i] - ox) + dy*(ys[i] - oy);
 			if(d2 > d)
 			{
 				d = d2;
@@ -778,8 +1034,10 @@ public class Polygon
 			lim--;
 		for(int i = 0; i < lim; i++)
 		{
-			int j = (i + 1)%size();
-			double d2 = Point2D.dSquared(point(i), point(j));
+			int j = (i + 1)%n;
+			double dx = xs[j] - xs[i];
+			double dy = ys[j] - ys[i];
+			double d2 = dx*dx + dy*dy;
 			if(d2 > d)
 			{
 				d = d2;
@@ -798,14 +1056,15 @@ public class Polygon
 	public double area()
 	{
 		double a = 0;
-		Point2D p, q;
 		int j;
-		for(int i = 1; i < size() - 1; i++)
+		for(int i = 1; i < n - 1; i++)
 		{
 			j = i + 1;
-			p = Point2D.sub(point(i), point(0));
-			q = Point2D.sub(point(j), point(0));
-			a += Point2D.op(q, p);
+			double px = xs[i] - xs[0];
+			double py = ys[i] - ys[0];
+			double qx = xs[j] - xs[0];
+			double qy = ys[j] - ys[0];
+			a += qx*py - qy*px;
 		} 
 		return a*0.5;
 	}
@@ -819,11 +1078,11 @@ public class Polygon
 		double result = 0;
 		
 		for(int i = 1; i < size() - 1; i++)
-			result = result + Point2D.d(point(i), point(i+1));
+			result = result + edge(i, i+1);
 		
 		if(closed)
 		{
-			result = result + Point2D.d(point(0), point(size()-1));
+			result = result + edge(0, size()-1);
 			return result/size();
 		}
 		
@@ -842,7 +1101,6 @@ public class Polygon
 		if(d <= 0)
 			return;
 		
-		Point2D p, q;
 		int start, last;
 		
 		if(extrudeEnd >= 0)
@@ -867,30 +1125,22 @@ public class Polygon
 		double sum = 0;
 		for(int i = start; i >= 0; i--)
 		{
-			sum += Point2D.d(point(i), point(last));
+			double len = edge(last, i);
+			sum += len;
 			if(sum > d)
 			{
 				sum = sum - d;
-				q = Point2D.sub(point(last), point(i));
-				p = Point2D.add(point(i), Point2D.mul(sum/q.mod(), q));
+				double f = sum/len;
+				double x = xs[i] + f*(xs[last] - xs[i]);
+				double y = ys[i] + f*(ys[last] - ys[i]);
 				double s = 0;
 				if(speeds != null)
 				{
-					s = speeds.get(last) - speeds.get(i);
-					s = speeds.get(i) + s*sum/q.mod();
+					s = speeds[last] - speeds[i];
+					s = speeds[i] + s*sum/len;
 				}
 				int j = i + 1;
-				if(j < size())
-				{
-					points.add(j, p);
-					if(speeds != null)
-						speeds.add(j, new Double(s)); 
-				} else
-				{
-					points.add(p);
-					if(speeds != null)						
-						speeds.add(new Double(s)); 
-				}
+				insert(j, x, y, s);
 				extrudeEnd = j;
 				return;
 			}
@@ -911,7 +1161,6 @@ public class Polygon
 		if(d <= 0)
 			return;
 		
-		Point2D p, q;
 		int start, last;
 		
 		if(valveEnd >= 0)
@@ -936,30 +1185,22 @@ public class Polygon
 		double sum = 0;
 		for(int i = start; i >= 0; i--)
 		{
-			sum += Point2D.d(point(i), point(last));
+			double len = edge(last, i);
+			sum += len;
 			if(sum > d)
 			{
 				sum = sum - d;
-				q = Point2D.sub(point(last), point(i));
-				p = Point2D.add(point(i), Point2D.mul(sum/q.mod(), q));
+				double f = sum/len;
+				double x = xs[i] + f*(xs[last] - xs[i]);
+				double y = ys[i] + f*(ys[last] - ys[i]);
 				double s = 0;
 				if(speeds != null)
 				{
-					s = speeds.get(last) - speeds.get(i);
-					s = speeds.get(i) + s*sum/q.mod();
+					s = speeds[last] - speeds[i];
+					s = speeds[i] + s*sum/len;
 				}
 				int j = i + 1;
-				if(j < size())
-				{
-					points.add(j, p);
-					if(speeds != null)
-						speeds.add(j, new Double(s)); 
-				} else
-				{
-					points.add(p);
-					if(speeds != null)						
-						speeds.add(new Double(s)); 
-				}
+				insert(j, x, y, s);
 				valveEnd = j;
 				return;
 			}
@@ -975,13 +1216,13 @@ public class Polygon
 	 */
 	public int findBackPoint(double d)
 	{
-		Point2D last, p;
 		int start = size() - 1;
+		int last;
 		if(isClosed())
-			last = point(0);
+			last = 0;
 		else
 		{
-			last = point(start);
+			last = start;
 			start--;
 		}
 		double sum = 0;
@@ -989,8 +1230,7 @@ public class Polygon
 		int lasti = 0;
 		for(int i = start; i >= 0; i--)
 		{
-			p = point(i);
-			sum += Point2D.d(p, last);
+			sum += edge(i, last);
 			if(sum > d)
 			{
 				if(sum - d < d - lastSum)
@@ -998,7 +1238,7 @@ public class Polygon
 				else
 					return lasti;
 			}
-			last = p;
+			last = i;
 			lastSum = sum;
 			lasti = i;
 		}
@@ -1006,32 +1246,106 @@ public class Polygon
 	}
 	
 	/**
-	 * @param v1
-	 * @param d2
-	 * @return the vertex at which the polygon deviates from a (nearly) straight line from v1
+	 * Distance from vertex i to the line segment from vertex a to vertex b.
+	 * @param i
+	 * @param a
+	 * @param b
+	 * @return distance
+	 */
+	private double segmentD(int i, int a, int b)
+	{
+		double fx = xs[b] - xs[a];
+		double fy = ys[b] - ys[a];
+		double px = xs[i] - xs[a];
+		double py = ys[i] - ys[a];
+		double ff = fx*fx + fy*fy;
+		double t = 0;
+		if(ff > 0)
+		{
+			t = (px*fx + py*fy)/ff;
+			if(t < 0)
+				t = 0;
+			else if(t > 1)
+				t = 1;
+		}
+		px -= t*fx;
+		py -= t*fy;
+		return Math.sqrt(px*px + py*py);
+	}
+	
+	/**
+	 * The most vertices between two that simplify() looks at one by one
 	 */
-	private int findAngleStart(int v1, double d2)
+	private static final int simplifyWindow = 256;
+	
+	/**
+	 * What it would cost simplify() to delete vertex v, joining vertices a and b:
+	 * how far the furthest point between them, deleted already or not, would be from
+	 * the segment ab.  If there are too many of them to look at each one, it is 
+	 * the distance of v plus the most the ones already deleted either side of v can
+	 * be from their segments; that is never less than the true distance.
+	 * @param v
+	 * @param a
+	 * @param b
+	 * @param error
+	 * @return
+	 */
+	private double deletionCost(int v, int a, int b, double[] error)
 	{
 		int leng = size();
-		Point2D p1 = point(v1%leng);
-		int v2 = v1;
-		for(int i = 0; i <= leng; i++)
+		if((b - a + leng)%leng > simplifyWindow)
+			return segmentD(v, a, b) + Math.max(error[a], error[v]);
+		double worst = 0;
+		for(int i = (a + 1)%leng; i != b; i = (i + 1)%leng)
+			worst = Math.max(worst, segmentD(i, a, b));
+		return worst;
+	}
+	
+	/**
+	 * Swap two entries in the heap used by simplify()
+	 */
+	private static void heapSwap(int[] heap, int[] where, int i, int j)
+	{
+		int t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+		where[heap[i]] = i;
+		where[heap[j]] = j;
+	}
+	
+	/**
+	 * Move an entry in the heap used by simplify() up or down to where its cost puts it
+	 */
+	private static void heapFix(int[] heap, int[] where, double[] cost, int size, int i)
+	{
+		while(i > 0 && cost[heap[i]] < cost[heap[(i - 1)/2]])
 		{
-			v2++;
-			Line line = new Line(p1, point(v2%leng));
-			for (int j = v1+1; j < v2; j++)
-			{
-				if (line.d_2(point(j%leng)).x() > d2)
-					return v2 - 1;
-			}	
+			heapSwap(heap, where, i, (i - 1)/2);
+			i = (i - 1)/2;
+		}
+		while(true)
+		{
+			int c = 2*i + 1;
+			if(c >= size)
+				return;
+			if(c + 1 < size && cost[heap[c + 1]] < cost[heap[c]])
+				c++;
+			if(cost[heap[c]] >= cost[heap[i]])
+				return;
+			heapSwap(heap, where, i, c);
+			i = c;
 		}
-		Debug.d("RrPolygon.findAngleStart(): polygon is all one straight line!");
-		return -1;
 	}
 	
 	/**
 	 * Simplify a polygon by deleting points from it that
-	 * are closer than d to lines joining other points
+	 * are closer than d to lines joining other points.
+	 * This is Visvalingam-Whyatt elimination: the vertices are kept in a heap 
+	 * ordered by the cost of deleting them, and the cheapest is deleted and its
+	 * neighbours re-costed until the cheapest costs more than d.  The cost is never
+	 * less than how far a deleted point would end up from the simplified polygon (see
+	 * deletionCost()), so none is further than d.  Re-costing looks at no more than a 
+	 * fixed number of points, so this takes O(n log n) time whatever the shape.
 	 * NB - this ignores speeds
 	 * @param d
 	 * @return simplified polygon object
@@ -1041,48 +1355,81 @@ public class Polygon
 		int leng = size();
 		if(leng <= 3)
 			return new Polygon(this);
-		Polygon r = new Polygon(att, closed);
-		double d2 = d*d;
-
-		int v1 = findAngleStart(0, d2);
-		// We get back -1 if the points are in a straight line.
-		if (v1<0)
+		
+		// The vertices still in are a doubly linked list (round in a loop if
+		// the polygon is closed); error[i] is how far points deleted between 
+		// vertex i and the next one may be from the segment joining them.
+		// Vertex i costs cost[i] to delete.
+		
+		boolean loop = isClosed();
+		int[] prev = new int[leng];
+		int[] next = new int[leng];
+		double[] error = new double[leng];
+		double[] cost = new double[leng];
+		int[] heap = new int[leng];
+		int[] where = new int[leng];
+		for(int i = 0; i < leng; i++)
 		{
-			r.add(point(0));
-			r.add(point(leng-1));
-			return r;
+			prev[i] = (i + leng - 1)%leng;
+			next[i] = (i + 1)%leng;
 		}
 		
-		if(!isClosed())
-			r.add(point(0));
-
-		r.add(point(v1%leng));
-		int v2 = v1;
-		while(true)
+		// The ends of an open polygon always stay
+		
+		int size = 0;
+		for(int i = 0; i < leng; i++)
 		{
-			// We get back -1 if the points are in a straight line. 
-			v2 = findAngleStart(v2, d2);
-			if(v2<0)
-			{
-				Debug.e("RrPolygon.simplify(): points were not in a straight line; now they are!");
-				return(r);
-			}
+			where[i] = -1;
+			if(!loop && (i == 0 || i == leng - 1))
+				continue;
+			cost[i] = segmentD(i, prev[i], next[i]);
+			heap[size] = i;
+			where[i] = size;
+			size++;
+		}
+		for(int i = size/2 - 1; i >= 0; i--)
+			heapFix(heap, where, cost, size, i);
+		
+		int left = leng;
+		while(size > 0 && cost[heap[0]] <= d && (!loop || left > 3))
+		{
+			int v = heap[0];
+			heapSwap(heap, where, 0, size - 1);
+			size--;
+			where[v] = -1;
+			heapFix(heap, where, cost, size, 0);
 			
-			if(v2 > leng || (!isClosed() && v2 == leng))
+			int p = prev[v];
+			int q = next[v];
+			error[p] = cost[v];
+			next[p] = q;
+			prev[q] = p;
+			left--;
+			
+			for(int k = 0, u = p; k < 2; k++, u = q)
 			{
-				return(r);
+				if(where[u] < 0)
+					continue;
+				cost[u] = deletionCost(u, prev[u], next[u], error);
+				heapFix(heap, where, cost, size, where[u]);
 			}
-			
-			if(v2 == leng && isClosed())
+		}
+		
+		// Copy out the survivors in their original order
+		
+		Polygon r = new Polygon(att, closed);
+		r.ensureCapacity(left);
+		for(int i = 0; i < leng; i++)
+		{
+			if(where[i] >= 0 || (!loop && (i == 0 || i == leng - 1)))
 			{
-				r.points.add(0, point(0));
-				r.re_box();
-				return r;
+				r.xs[r.n] = xs[i];
+				r.ys[r.n] = ys[i];
+				r.n++;
 			}
-			r.add(point(v2%leng));
 		}
-		// The compiler is very clever to spot that no return
-		// is needed here...
+		r.box = null;
+		return r;
 	}
 	
 	/**
@@ -1249,8 +1596,9 @@ public class Polygon
 	 * @param minSpeed
 	 * @param maxSpeed
 	 * @param maxAcceleration
+	 * @param config the settings for the build this polygon is in
 	 */
-	public void setSpeeds(double airSpeed, double minSpeed, double maxSpeed, double acceleration)
+	public void setSpeeds(double airSpeed, double minSpeed, double maxSpeed, double acceleration, MachineConfig config)
 	{
 		//if(isClosed())System.out.println(toString());
 		//RrPolygon pg = simplify(Preferences.gridRes());
@@ -1262,21 +1610,13 @@ public class Polygon
 
 		// If not doing RepRap style accelerations, just move in air to the
 		// first point and then go round as fast as possible.
-		try 
+		if(!config.getRepRapAccelerations())
 		{
-			if(!Preferences.loadGlobalBool("RepRapAccelerations"))
+			setSpeed(0, airSpeed);
+			for(int i = 1; i < size(); i++)
 			{
-				setSpeed(0, airSpeed);
-				for(int i = 1; i < size(); i++)
-				{
-					setSpeed(i, maxSpeed);
-				}
-				return;
+				setSpeed(i, maxSpeed);
 			}
-		} catch (IOException e) 
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 			return;
 		}
 
@@ -1369,9 +1709,73 @@ public class Polygon
 			} 
 		}
 
+	}
+	
+	/**
+	 * Set the speeds at each vertex using a look-ahead planner that slows for corners according
+	 * to their junction deviation.  The polygon starts and ends at minSpeed (a closed one ends
+	 * back at its first point).  Points are added where a move has to accelerate and then slow down.
+	 * 
+	 * @param minSpeed
+	 * @param maxSpeed
+	 * @param acceleration
+	 * @param planner
+	 */
+	public void setSpeeds(double minSpeed, double maxSpeed, double acceleration, LookAheadPlanner planner)
+	{
+		int m = isClosed() ? n + 1 : n;
+		if(n < 2)
+		{
+			for(int i = 0; i < n; i++)
+				setSpeed(i, minSpeed);
+			return;
+		}
+		double[] px = new double[m];
+		double[] py = new double[m];
+		double[] v = new double[m];
+		System.arraycopy(xs, 0, px, 0, n);
+		System.arraycopy(ys, 0, py, 0, n);
+		if(isClosed())
+		{
+			px[n] = xs[0];
+			py[n] = ys[0];
+		}
+		planner.plan(px, py, m, minSpeed, maxSpeed, acceleration, v);
+		for(int i = 0; i < n; i++)
+			setSpeed(i, v[i]);
+		
+		// Working backwards (so the indices don't change) put in the points
+		// where moves reach their top speed
 		
-		if(speeds.size() != points.size())
-			Debug.e("Speeds and points arrays different: " + speeds.size() + ", " + points.size());
+		for(int i = m - 1; i > 0; i--)
+		{
+			double dx = px[i] - px[i - 1];
+			double dy = py[i] - py[i - 1];
+			double s = Math.sqrt(dx*dx + dy*dy);
+			if(s <= 0)
+				continue;
+			VelocityProfile vp = new VelocityProfile(s, v[i - 1], maxSpeed, v[i], acceleration);
+			switch(vp.flat())
+			{
+			case 0:
+				break;
+				
+			case 1:
+				if(vp.v() > Math.max(v[i - 1], v[i]) && vp.s1() > 0 && vp.s1() < s)
+					add(i, new Point2D(px[i - 1] + dx*vp.s1()/s, py[i - 1] + dy*vp.s1()/s), vp.v());
+				break;
+				
+			case 2:
+				if(vp.s2() < s)
+					add(i, new Point2D(px[i - 1] + dx*vp.s2()/s, py[i - 1] + dy*vp.s2()/s), maxSpeed);
+				if(vp.s1() > 0)
+					add(i, new Point2D(px[i - 1] + dx*vp.s1()/s, py[i - 1] + dy*vp.s1()/s), maxSpeed);
+				break;
+				
+			default:
+				Debug.e("Polygon.setSpeeds(): dud VelocityProfile flat value.");	
+			}
+		}
 	}
 	
 	// ****************************************************************************
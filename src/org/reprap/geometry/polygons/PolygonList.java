@@ -560,9 +560,9 @@ public class PolygonList
 	public PolygonList(PolygonList lst)
 	{
 		polygons = new ArrayList<Polygon>();
-		box = new Rectangle(lst.box);
+		box = new Rectangle();
 		for(int i = 0; i < lst.size(); i++)
-			polygons.add(new Polygon(lst.polygon(i)));
+			add(new Polygon(lst.polygon(i)));
 	}
 	
 	/**
@@ -802,7 +802,23 @@ public class PolygonList
 //	}
 	
 
-	
+
+	/**
+	 * Re-order and (if need be) reverse the polygons in a list to minimise
+	 * the in-air travel between them, starting near startNearHere.  This
+	 * improves on the nearEnds() ordering with 2-opt and Or-opt moves until
+	 * no more improvement is found or timeBudget milliseconds have passed.
+	 * Open polygons may be reversed; closed ones keep their start points.
+	 *
+	 * @param startNearHere
+	 * @param timeBudget
+	 * @return new ordered polygon list
+	 */
+	public PolygonList travelOptimise(Point2D startNearHere, double timeBudget)
+	{
+		return new TravelTour(this, startNearHere, timeBudget).optimise();
+	}
+
 	/**
 	 * Re-order and (if need be) reverse the order of the polygons
 	 * in a list so the end of the first is near the start of the second and so on.
@@ -843,12 +859,14 @@ public class PolygonList
 		
 		if(startNearHere != null)
 		{
+			double sx = startNearHere.x();
+			double sy = startNearHere.y();
 			for(i = 0; i < size(); i++)
 			{
 				if(r.polygon(i).isClosed() && reOrder)
 				{
-					int nv = polygon(i).nearestVertex(startNearHere);
-					d2 = Point2D.dSquared(startNearHere, polygon(i).point(nv));
+					int nv = polygon(i).nearestVertex(sx, sy);
+					d2 = polygon(i).dSquared(nv, sx, sy);
 					if(d2 < d)
 					{
 						near = i;
@@ -858,7 +876,7 @@ public class PolygonList
 					}
 				} else
 				{
-					d2 = Point2D.dSquared(startNearHere, r.polygon(i).point(0));
+					d2 = r.polygon(i).dSquared(0, sx, sy);
 					if(d2 < d)
 					{
 						near = i;
@@ -868,7 +886,7 @@ public class PolygonList
 					}
 					if(!r.polygon(i).isClosed())
 					{
-						d2 = Point2D.dSquared(startNearHere, r.polygon(i).point(r.polygon(i).size() - 1));
+						d2 = r.polygon(i).dSquared(r.polygon(i).size() - 1, sx, sy);
 						if(d2 < d)
 						{
 							near = i;
@@ -905,17 +923,16 @@ public class PolygonList
 		
 		for(i = 0; i < r.size() - 1; i++)
 		{
-			Point2D end;
-			if(r.polygon(i).isClosed())
-				end = r.polygon(i).point(0);
-			else
-				end = r.polygon(i).point(r.polygon(i).size() - 1);
+			Polygon pi = r.polygon(i);
+			int end = pi.isClosed() ? 0 : pi.size() - 1;
+			double ex = pi.x(end);
+			double ey = pi.y(end);
 			neg = false;
 			near = -1;
 			d = Double.POSITIVE_INFINITY;
 			for(j = i+1; j < r.size(); j++)
 			{	
-				d2 = Point2D.dSquared(end, r.polygon(j).point(0));
+				d2 = r.polygon(j).dSquared(0, ex, ey);
 				if(d2 < d)
 				{
 					near = j;
@@ -925,7 +942,7 @@ public class PolygonList
 
 				if(!r.polygon(j).isClosed())
 				{
-					d2 = Point2D.dSquared(end, r.polygon(j).point(r.polygon(j).size() - 1));
+					d2 = r.polygon(j).dSquared(r.polygon(j).size() - 1, ex, ey);
 					if(d2 < d)
 					{
 						near = j;
@@ -1011,9 +1028,11 @@ public class PolygonList
 					
 					reverseMe = true;
 					reverseIt = false;
-					d = Point2D.dSquared(myPolygon.point(0), itsPolygon.point(0));
+					int myEnd = myPolygon.size() - 1;
+					int itsEnd = itsPolygon.size() - 1;
+					d = itsPolygon.dSquared(0, myPolygon.x(0), myPolygon.y(0));
 					
-					d2 = Point2D.dSquared(myPolygon.point(myPolygon.size() - 1), itsPolygon.point(0));
+					d2 = itsPolygon.dSquared(0, myPolygon.x(myEnd), myPolygon.y(myEnd));
 					if(d2 < d)
 					{
 						reverseMe = false;
@@ -1021,7 +1040,7 @@ public class PolygonList
 						d = d2;
 					}
 					
-					d2 = Point2D.dSquared(myPolygon.point(0), itsPolygon.point(itsPolygon.size() - 1));
+					d2 = itsPolygon.dSquared(itsEnd, myPolygon.x(0), myPolygon.y(0));
 					if(d2 < d)
 					{
 						reverseMe = true;
@@ -1029,7 +1048,7 @@ public class PolygonList
 						d = d2;
 					}
 					
-					d2 = Point2D.dSquared(myPolygon.point(myPolygon.size() - 1), itsPolygon.point(itsPolygon.size() - 1));
+					d2 = itsPolygon.dSquared(itsEnd, myPolygon.x(myEnd), myPolygon.y(myEnd));
 					if(d2 < d)
 					{
 						reverseMe = false;
@@ -1054,10 +1073,11 @@ public class PolygonList
 					// Compare my end points with all its points
 					
 					reverseMe = true;
-					itsPoint = itsPolygon.nearestVertex(myPolygon.point(0));
-					d = Point2D.dSquared(itsPolygon.point(itsPoint), myPolygon.point(0));
-					itsTempPoint = itsPolygon.nearestVertex(myPolygon.point(myPolygon.size() - 1));
-					d2 = Point2D.dSquared(itsPolygon.point(itsTempPoint), myPolygon.point(myPolygon.size() - 1));
+					int myEnd = myPolygon.size() - 1;
+					itsPoint = itsPolygon.nearestVertex(myPolygon.x(0), myPolygon.y(0));
+					d = itsPolygon.dSquared(itsPoint, myPolygon.x(0), myPolygon.y(0));
+					itsTempPoint = itsPolygon.nearestVertex(myPolygon.x(myEnd), myPolygon.y(myEnd));
+					d2 = itsPolygon.dSquared(itsTempPoint, myPolygon.x(myEnd), myPolygon.y(myEnd));
 					if(d2 < d)
 					{
 						itsPoint = itsTempPoint;
@@ -1084,8 +1104,10 @@ public class PolygonList
 					
 					for(int k = 0; k < itsPolygon.size(); k++)
 					{
-						myTempPoint = myPolygon.nearestVertex(itsPolygon.point(k));
-						d2 = Point2D.dSquared(myPolygon.point(myTempPoint), itsPolygon.point(k));
+						double kx = itsPolygon.x(k);
+						double ky = itsPolygon.y(k);
+						myTempPoint = myPolygon.nearestVertex(kx, ky);
+						d2 = myPolygon.dSquared(myTempPoint, kx, ky);
 						if(d2 < d)
 						{
 							myPoint = myTempPoint;
@@ -1181,7 +1203,7 @@ public class PolygonList
 				if(physicalExtruder == pgon.getAttributes().getExtruder().getPhysicalExtruderNumber())
 				{
 					int n = pgon.nearestVertex(p);
-					double d2 = Point2D.dSquared(p, pgon.point(n));
+					double d2 = pgon.dSquared(n, p.x(), p.y());
 					if(d2 < d)
 					{
 						if(result == null)
@@ -1403,6 +1425,21 @@ public class PolygonList
 		return r;		
 	}
 	
+	/**
+	 * A copy with every polygon turned about the origin through a number of
+	 * right angles anticlockwise, then moved.
+	 * @param quarterTurns
+	 * @param shift
+	 * @return
+	 */
+	public PolygonList turnedAndMoved(int quarterTurns, Point2D shift)
+	{
+		PolygonList r = new PolygonList();
+		for(int i = 0; i < size(); i++)
+			r.add(polygon(i).turnedAndMoved(quarterTurns, shift));
+		return r;
+	}
+	
 	/**
 	 * Remove polygons shorter than 3 times the infillwidth
 	 * @return
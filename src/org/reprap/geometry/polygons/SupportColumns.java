@@ -0,0 +1,78 @@
+package org.reprap.geometry.polygons;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Support that goes straight down.  Everything above a layer needs support on that layer
+ * (separately for each extruder), except where the layer itself is, grown a bit so the
+ * support stays clear of it.
+ *
+ * The union of everything above is kept as one bitmap per extruder that only ever grows,
+ * so each layer just costs a word-by-word OR and AND NOT, rather than a new union of two
+ * grids.  The answers are trimmed to the columns that have something in them.
+ */
+public class SupportColumns extends SupportGenerator
+{
+	/**
+	 * How much spare room (mm) to give the union bitmaps when they have to grow
+	 */
+	private static final double growMargin = 10;
+
+	/**
+	 * The union of everything above the next layer down; one per extruder
+	 */
+	private List<BooleanGrid> above;
+
+	/**
+	 * @param top the highest layer there will be
+	 */
+	public SupportColumns(int top)
+	{
+		super(top);
+		above = new ArrayList<BooleanGrid>();
+	}
+
+	/**
+	 * Work out the support for a layer from the union of everything above,
+	 * then add the layer to that union.
+	 * @param layer
+	 * @param shape
+	 * @param clearance
+	 * @return
+	 */
+	protected BooleanGridList nextLayerDown(int layer, BooleanGridList shape, BooleanGrid clearance)
+	{
+		BooleanGridList result = new BooleanGridList();
+		for(int i = 0; i < above.size(); i++)
+		{
+			BooleanGrid s = new BooleanGrid(above.get(i));
+			if(clearance != null)
+				s.andNot(clearance);
+			s = s.trimmed();
+			if(!s.isEmpty())
+				result.add(s);
+		}
+
+		for(int j = 0; shape != null && j < shape.size(); j++)
+		{
+			BooleanGrid g = shape.get(j);
+			if(g.isEmpty())
+				continue;
+			int id = g.attribute().getExtruder().getID();
+			int i = 0;
+			while(i < above.size() && above.get(i).attribute().getExtruder().getID() != id)
+				i++;
+			int margin = BooleanGrid.iScale(growMargin);
+			if(i >= above.size())
+			{
+				above.add(g.grownToCover(g, margin));
+				continue;
+			}
+			if(!above.get(i).covers(g))
+				above.set(i, above.get(i).grownToCover(g, margin));
+			above.get(i).or(g);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,81 @@
+package org.reprap.geometry.polygons;
+
+/**
+ * Works out where support goes on every layer of a build.  What a layer needs
+ * depends on everything above it, so the layers are worked out from the top down.
+ * But they can be handed in in any order, and from more than one thread: each
+ * layer is worked out as soon as all the layers above it have arrived.
+ */
+public abstract class SupportGenerator
+{
+	/**
+	 * What's been handed in for each layer and not yet used
+	 */
+	private BooleanGridList[] shapes;
+	private BooleanGrid[] clearances;
+	private boolean[] arrived;
+
+	/**
+	 * Support for each layer that has been worked out and not yet asked for
+	 */
+	private BooleanGridList[] support;
+
+	/**
+	 * The highest layer not yet worked out
+	 */
+	private int next;
+
+	/**
+	 * @param top the highest layer there will be
+	 */
+	public SupportGenerator(int top)
+	{
+		shapes = new BooleanGridList[top + 1];
+		clearances = new BooleanGrid[top + 1];
+		arrived = new boolean[top + 1];
+		support = new BooleanGridList[top + 1];
+		next = top;
+	}
+
+	/**
+	 * Hand in a layer.
+	 * @param layer
+	 * @param shape the parts of the layer that will need support beneath them
+	 * @param clearance where support must not go on this layer
+	 */
+	public synchronized void setLayer(int layer, BooleanGridList shape, BooleanGrid clearance)
+	{
+		shapes[layer] = shape;
+		clearances[layer] = clearance;
+		arrived[layer] = true;
+		while(next >= 0 && arrived[next])
+		{
+			support[next] = nextLayerDown(next, shapes[next], clearances[next]);
+			shapes[next] = null;
+			clearances[next] = null;
+			next--;
+		}
+	}
+
+	/**
+	 * Get the support for a layer.  Each is only wanted once, so it is forgotten after this.
+	 * @param layer
+	 * @return the support, or null if not all the layers above this have been handed in yet
+	 */
+	public synchronized BooleanGridList getSupport(int layer)
+	{
+		BooleanGridList result = support[layer];
+		support[layer] = null;
+		return result;
+	}
+
+	/**
+	 * Work out the support for the layer below the last one done.
+	 * This is called for each layer in turn from the top down.
+	 * @param layer the layer being worked out
+	 * @param shape the parts of the layer that will need support beneath them (may be null)
+	 * @param clearance where support must not go on this layer (may be null)
+	 * @return the support for this layer
+	 */
+	protected abstract BooleanGridList nextLayerDown(int layer, BooleanGridList shape, BooleanGrid clearance);
+}
@@ -0,0 +1,389 @@
+package org.reprap.geometry.polygons;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.reprap.Attributes;
+
+/**
+ * Branching support.  Rather than filling everything under an overhang, thin branches
+ * are started at points spaced out over the places straight-down support would go, and
+ * grown down towards the bed.  On the way down they lean towards their neighbours and
+ * join them (no more steeply than the angle given), they get thicker, and they are
+ * pushed sideways out of the way of the model.  A branch that can't get out of the way
+ * ends on the model.
+ */
+public class SupportTrees extends SupportGenerator
+{
+	/**
+	 * Branch radius (mm) at the top, how much it grows for each mm down, and the most it can be
+	 */
+	private static final double tipRadius = 1;
+	private static final double taper = 0.05;
+	private static final double maxRadius = 5;
+
+	/**
+	 * How many ways to try to move a branch that has run into the model
+	 */
+	private static final int directions = 16;
+
+	/**
+	 * One branch at the current layer
+	 */
+	private static class Branch
+	{
+		double x, y, r;
+
+		Branch(double xa, double ya, double ra)
+		{
+			x = xa;
+			y = ya;
+			r = ra;
+		}
+	}
+
+	/**
+	 * All the branches for one extruder
+	 */
+	private static class Tree
+	{
+		Attributes att;
+		List<Branch> branches = new ArrayList<Branch>();
+
+		/**
+		 * The lattice points that have had a branch started under them
+		 */
+		Set<Long> started = new HashSet<Long>();
+
+		/**
+		 * Where branches were started away from the lattice
+		 */
+		List<Point2D> seeds = new ArrayList<Point2D>();
+
+		Tree(Attributes a)
+		{
+			att = a;
+		}
+	}
+
+	/**
+	 * Where straight-down support would go; new branches start there
+	 */
+	private SupportColumns columns;
+
+	private List<Tree> trees;
+
+	/**
+	 * Distance (mm) between the points branches start from
+	 */
+	private double spacing;
+
+	/**
+	 * How thick (mm) each layer is
+	 */
+	private double[] layerHeights;
+
+	/**
+	 * The tangent of the most branches may lean from the vertical
+	 */
+	private double lean;
+
+	/**
+	 * How far (mm) a branch may move sideways, and how much its radius grows, going
+	 * down into the layer being worked out
+	 */
+	private double maxMove;
+	private double grow;
+
+	/**
+	 * How close (mm) another branch has to be for a branch to lean towards it
+	 */
+	private double reach;
+
+	/**
+	 * @param layerHeights how thick each layer is (mm), from layer 0 up to the highest there will be
+	 * @param spacing distance between branch starting points (mm)
+	 * @param angle the most branches may lean from the vertical (degrees)
+	 */
+	public SupportTrees(double[] layerHeights, double spacing, double angle)
+	{
+		super(layerHeights.length - 1);
+		columns = new SupportColumns(layerHeights.length - 1);
+		trees = new ArrayList<Tree>();
+		this.layerHeights = layerHeights;
+		this.spacing = spacing;
+		lean = Math.tan(Math.toRadians(angle));
+		reach = 4*spacing;
+	}
+
+	/**
+	 * Move the existing branches down a layer, start any new ones that are needed,
+	 * and draw them all.
+	 * @param layer
+	 * @param shape
+	 * @param clearance
+	 * @return
+	 */
+	protected BooleanGridList nextLayerDown(int layer, BooleanGridList shape, BooleanGrid clearance)
+	{
+		maxMove = layerHeights[layer]*lean;
+		grow = layerHeights[layer]*taper;
+
+		for(int i = 0; i < trees.size(); i++)
+			grow(trees.get(i), clearance);
+
+		BooleanGridList wanted = columns.nextLayerDown(layer, shape, clearance);
+		for(int i = 0; i < wanted.size(); i++)
+			start(tree(wanted.get(i).attribute()), wanted.get(i));
+
+		BooleanGridList result = new BooleanGridList();
+		for(int i = 0; i < trees.size(); i++)
+		{
+			BooleanGrid g = draw(trees.get(i), clearance);
+			if(!g.isEmpty())
+				result.add(g);
+		}
+		return result;
+	}
+
+	/**
+	 * The tree for the extruder with attributes a, made if need be
+	 * @param a
+	 * @return
+	 */
+	private Tree tree(Attributes a)
+	{
+		int id = a.getExtruder().getID();
+		for(int i = 0; i < trees.size(); i++)
+			if(trees.get(i).att.getExtruder().getID() == id)
+				return trees.get(i);
+		Tree t = new Tree(a);
+		trees.add(t);
+		return t;
+	}
+
+	/**
+	 * Is a point somewhere support mustn't go?
+	 * @param clearance
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private static boolean blocked(BooleanGrid clearance, double x, double y)
+	{
+		return clearance != null && clearance.get(new Point2D(x, y));
+	}
+
+	/**
+	 * Grow all the branches of a tree down one layer: join or lean them towards their
+	 * neighbours, thicken them, and move them out of the model.
+	 * @param t
+	 * @param clearance
+	 */
+	private void grow(Tree t, BooleanGrid clearance)
+	{
+		List<Branch> b = t.branches;
+		boolean[] gone = new boolean[b.size()];
+		for(int i = 0; i < b.size(); i++)
+		{
+			if(gone[i])
+				continue;
+			Branch bi = b.get(i);
+
+			// Find the nearest other branch
+
+			int nearest = -1;
+			double d2 = Double.MAX_VALUE;
+			for(int j = 0; j < b.size(); j++)
+			{
+				if(j == i || gone[j])
+					continue;
+				double dx = b.get(j).x - bi.x;
+				double dy = b.get(j).y - bi.y;
+				if(dx*dx + dy*dy < d2)
+				{
+					d2 = dx*dx + dy*dy;
+					nearest = j;
+				}
+			}
+			if(nearest < 0)
+				continue;
+			Branch bj = b.get(nearest);
+			double d = Math.sqrt(d2);
+
+			if(d <= 2*maxMove)
+			{
+				// Close enough to join them half way, so neither leans more than it may
+
+				double x = 0.5*(bi.x + bj.x);
+				double y = 0.5*(bi.y + bj.y);
+				if(!blocked(clearance, x, y))
+				{
+					bi.x = x;
+					bi.y = y;
+					bi.r = Math.max(bi.r, bj.r);
+					gone[nearest] = true;
+					continue;
+				}
+			}
+			if(d < reach)
+			{
+				double x = bi.x + (bj.x - bi.x)*maxMove/d;
+				double y = bi.y + (bj.y - bi.y)*maxMove/d;
+				if(!blocked(clearance, x, y))
+				{
+					bi.x = x;
+					bi.y = y;
+				}
+			}
+		}
+
+		List<Branch> left = new ArrayList<Branch>();
+		for(int i = 0; i < b.size(); i++)
+		{
+			if(gone[i])
+				continue;
+			Branch bi = b.get(i);
+			bi.r = Math.min(maxRadius, bi.r + grow);
+			if(blocked(clearance, bi.x, bi.y) && !dodge(bi, clearance))
+				continue;
+			left.add(bi);
+		}
+		t.branches = left;
+	}
+
+	/**
+	 * Try to move a branch that has run into the model sideways out of it.
+	 * @param b
+	 * @param clearance
+	 * @return false if it can't be done, so the branch ends here
+	 */
+	private boolean dodge(Branch b, BooleanGrid clearance)
+	{
+		for(int k = 0; k < directions; k++)
+		{
+			double a = 2*Math.PI*k/directions;
+			double x = b.x + maxMove*Math.cos(a);
+			double y = b.y + maxMove*Math.sin(a);
+			if(!blocked(clearance, x, y))
+			{
+				b.x = x;
+				b.y = y;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start new branches at the lattice points in g that haven't had
+	 * one yet and that no branch already covers.  A piece of g too small
+	 * to have a lattice point in it gets a branch at its centroid, unless
+	 * a branch is already in it.
+	 * @param t
+	 * @param g
+	 */
+	private void start(Tree t, BooleanGrid g)
+	{
+		BooleanGrid.Labelling pieces = g.label();
+		boolean[] held = new boolean[pieces.size()];
+		for(int i = 0; i < t.branches.size(); i++)
+			hold(pieces, held, new Point2D(t.branches.get(i).x, t.branches.get(i).y));
+		for(int i = 0; i < t.seeds.size(); i++)
+			hold(pieces, held, t.seeds.get(i));
+
+		Rectangle box = g.box();
+		int i0 = (int)Math.ceil(box.sw().x()/spacing);
+		int i1 = (int)Math.floor(box.ne().x()/spacing);
+		int j0 = (int)Math.ceil(box.sw().y()/spacing);
+		int j1 = (int)Math.floor(box.ne().y()/spacing);
+		for(int i = i0; i <= i1; i++)
+			for(int j = j0; j <= j1; j++)
+			{
+				double x = i*spacing;
+				double y = j*spacing;
+				Point2D p = new Point2D(x, y);
+				if(!g.get(p))
+					continue;
+				hold(pieces, held, p);
+				if(!t.started.add(((long)i << 32) ^ (j & 0xffffffffL)))
+					continue;
+				if(!covered(t, x, y))
+					t.branches.add(new Branch(x, y, tipRadius));
+			}
+
+		for(int i = 0; i < held.length; i++)
+		{
+			if(held[i])
+				continue;
+			Point2D c = pieces.get(i).centroid();
+			t.seeds.add(c);
+			if(!covered(t, c.x(), c.y()))
+				t.branches.add(new Branch(c.x(), c.y(), tipRadius));
+		}
+	}
+
+	/**
+	 * Note that the piece of a labelled grid that a point is in has something in it.
+	 * @param pieces
+	 * @param held
+	 * @param p
+	 */
+	private static void hold(BooleanGrid.Labelling pieces, boolean[] held, Point2D p)
+	{
+		BooleanGrid.Component c = pieces.at(p);
+		if(c != null)
+			held[c.index()] = true;
+	}
+
+	/**
+	 * Is a point inside one of a tree's branches?
+	 * @param t
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private static boolean covered(Tree t, double x, double y)
+	{
+		for(int i = 0; i < t.branches.size(); i++)
+		{
+			Branch b = t.branches.get(i);
+			if((b.x - x)*(b.x - x) + (b.y - y)*(b.y - y) < b.r*b.r)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Draw a tree's branches in this layer
+	 * @param t
+	 * @param clearance
+	 * @return
+	 */
+	private static BooleanGrid draw(Tree t, BooleanGrid clearance)
+	{
+		if(t.branches.size() <= 0)
+			return BooleanGrid.nullBooleanGrid();
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for(int i = 0; i < t.branches.size(); i++)
+		{
+			Branch b = t.branches.get(i);
+			x0 = Math.min(x0, b.x - b.r);
+			y0 = Math.min(y0, b.y - b.r);
+			x1 = Math.max(x1, b.x + b.r);
+			y1 = Math.max(y1, b.y + b.r);
+		}
+		double pad = 2*BooleanGrid.scale(1);
+		BooleanGrid g = new BooleanGrid(t.att, new Rectangle(new Point2D(x0 - pad, y0 - pad), new Point2D(x1 + pad, y1 + pad)));
+		for(int i = 0; i < t.branches.size(); i++)
+		{
+			Branch b = t.branches.get(i);
+			g.disc(new Point2D(b.x, b.y), b.r);
+		}
+		if(clearance != null)
+			g.andNot(clearance);
+		return g.trimmed();
+	}
+}
@@ -0,0 +1,448 @@
+/**
+ * This class orders a list of polygons to minimise the in-air travel between
+ * them.  It treats the problem as a generalised travelling salesman problem:
+ * each polygon is a city with an entry and an exit point.  For an open polygon
+ * these are its two ends, and it may be visited either way round.  For a closed
+ * polygon they are both its first vertex (the start vertices of closed polygons
+ * are chosen elsewhere - see PolygonList.middleStarts() - and are left alone here).
+ *
+ * The tour is built by nearest-neighbour, then improved by 2-opt (reversing runs
+ * of the tour) and Or-opt (moving short runs elsewhere) until no improvement
+ * is found or the time budget runs out.
+ *
+ * All the working data are kept in primitive arrays so that no objects
+ * are created in the improvement loops.
+ *
+ */
+
+package org.reprap.geometry.polygons;
+
+import org.reprap.Preferences;
+
+class TravelTour
+{
+	/**
+	 * How many improvement moves to try between looks at the clock
+	 */
+	private static final int clockCheck = 256;
+
+	/**
+	 * Improvements smaller than this are ignored, so rounding errors
+	 * can't keep the improvement loops going round forever.
+	 */
+	private static final double small = Math.sqrt(Preferences.tiny());
+
+	/**
+	 * The longest run of polygons that Or-opt moves
+	 */
+	private static final int maxRun = 3;
+
+	/**
+	 * The polygons to be ordered
+	 */
+	private PolygonList pols;
+
+	/**
+	 * The coordinates of the first and last point of each polygon
+	 */
+	private double[] headX, headY, tailX, tailY;
+
+	/**
+	 * Can polygon i be plotted backwards?
+	 */
+	private boolean[] open;
+
+	/**
+	 * The order of visiting; tour[k] is the index of the k-th polygon
+	 */
+	private int[] tour;
+
+	/**
+	 * Is the polygon at tour position k to be plotted backwards?
+	 */
+	private boolean[] reversed;
+
+	/**
+	 * Where move() holds the run it is moving
+	 */
+	private int[] runTour;
+	private boolean[] runReversed;
+
+	/**
+	 * Where we start from
+	 */
+	private double startX, startY;
+
+	/**
+	 * When we must stop improving (System.nanoTime())
+	 */
+	private long deadline;
+
+	/**
+	 * Count of moves tried since the clock was last checked
+	 */
+	private int sinceCheck;
+
+	/**
+	 * Set up the tour for a list of polygons
+	 * @param p
+	 * @param startNearHere
+	 * @param timeBudget in milliseconds
+	 */
+	TravelTour(PolygonList p, Point2D startNearHere, double timeBudget)
+	{
+		pols = p;
+		int n = pols.size();
+		headX = new double[n];
+		headY = new double[n];
+		tailX = new double[n];
+		tailY = new double[n];
+		open = new boolean[n];
+		tour = new int[n];
+		reversed = new boolean[n];
+		runTour = new int[maxRun];
+		runReversed = new boolean[maxRun];
+		for(int i = 0; i < n; i++)
+		{
+			Polygon pg = pols.polygon(i);
+			Point2D h = pg.point(0);
+			headX[i] = h.x();
+			headY[i] = h.y();
+			open[i] = !pg.isClosed();
+			if(open[i])
+			{
+				Point2D t = pg.point(pg.size() - 1);
+				tailX[i] = t.x();
+				tailY[i] = t.y();
+			} else
+			{
+				tailX[i] = headX[i];
+				tailY[i] = headY[i];
+			}
+		}
+		if(startNearHere != null)
+		{
+			startX = startNearHere.x();
+			startY = startNearHere.y();
+		} else
+		{
+			startX = headX[0];
+			startY = headY[0];
+		}
+		deadline = System.nanoTime() + (long)(timeBudget*1.0e6);
+		sinceCheck = 0;
+	}
+
+	private static double d(double x0, double y0, double x1, double y1)
+	{
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
+	// Entry and exit coordinates of the polygon at tour position k, allowing for
+	// its direction.  flip inverts the direction (used to cost reversals).
+
+	private double inX(int k, boolean flip) { int i = tour[k]; return (reversed[k] ^ flip) ? tailX[i] : headX[i]; }
+	private double inY(int k, boolean flip) { int i = tour[k]; return (reversed[k] ^ flip) ? tailY[i] : headY[i]; }
+	private double outX(int k, boolean flip) { int i = tour[k]; return (reversed[k] ^ flip) ? headX[i] : tailX[i]; }
+	private double outY(int k, boolean flip) { int i = tour[k]; return (reversed[k] ^ flip) ? headY[i] : tailY[i]; }
+
+	/**
+	 * The cost of the link into tour position k from the position before it
+	 * (or from the start point if k == 0).
+	 * @param k
+	 * @return
+	 */
+	private double linkIn(int k)
+	{
+		if(k == 0)
+			return d(startX, startY, inX(0, false), inY(0, false));
+		return d(outX(k - 1, false), outY(k - 1, false), inX(k, false), inY(k, false));
+	}
+
+	/**
+	 * Total in-air travel for the current tour
+	 * @return
+	 */
+	double length()
+	{
+		double result = 0;
+		for(int k = 0; k < tour.length; k++)
+			result += linkIn(k);
+		return result;
+	}
+
+	/**
+	 * Have we run out of time?
+	 * @return
+	 */
+	private boolean outOfTime()
+	{
+		sinceCheck++;
+		if(sinceCheck < clockCheck)
+			return false;
+		sinceCheck = 0;
+		return System.nanoTime() > deadline;
+	}
+
+	/**
+	 * Build the initial tour by always going to the nearest free entry point.
+	 */
+	private void nearestNeighbour()
+	{
+		int n = tour.length;
+		boolean[] used = new boolean[n];
+		double x = startX;
+		double y = startY;
+		for(int k = 0; k < n; k++)
+		{
+			double best = Double.POSITIVE_INFINITY;
+			int near = -1;
+			boolean neg = false;
+			for(int i = 0; i < n; i++)
+			{
+				if(used[i])
+					continue;
+				double dd = d(x, y, headX[i], headY[i]);
+				if(dd < best)
+				{
+					best = dd;
+					near = i;
+					neg = false;
+				}
+				if(open[i])
+				{
+					dd = d(x, y, tailX[i], tailY[i]);
+					if(dd < best)
+					{
+						best = dd;
+						near = i;
+						neg = true;
+					}
+				}
+			}
+			used[near] = true;
+			tour[k] = near;
+			reversed[k] = neg;
+			x = outX(k, false);
+			y = outY(k, false);
+		}
+	}
+
+	/**
+	 * Reverse the run of the tour from a to b inclusive, turning each
+	 * open polygon in it round.
+	 * @param a
+	 * @param b
+	 */
+	private void reverse(int a, int b)
+	{
+		while(a < b)
+		{
+			int ti = tour[a];
+			tour[a] = tour[b];
+			tour[b] = ti;
+			boolean tr = reversed[a];
+			reversed[a] = !reversed[b] && open[tour[a]];
+			reversed[b] = !tr && open[tour[b]];
+			a++;
+			b--;
+		}
+		if(a == b)
+			reversed[a] = !reversed[a] && open[tour[a]];
+	}
+
+	/**
+	 * One pass of 2-opt: try reversing every run tour[i..j].  Because
+	 * the tour is an open path, the run may extend to the end.
+	 * @return true if the tour was improved
+	 */
+	private boolean twoOpt()
+	{
+		int n = tour.length;
+		boolean improved = false;
+		for(int i = 0; i < n - 1; i++)
+		{
+			double bx, by;
+			if(i == 0)
+			{
+				bx = startX;
+				by = startY;
+			} else
+			{
+				bx = outX(i - 1, false);
+				by = outY(i - 1, false);
+			}
+			for(int j = i + 1; j < n; j++)
+			{
+				if(outOfTime())
+					return improved;
+
+				// The links inside the run keep their lengths when it is reversed,
+				// so only the two links at its ends change.
+
+				double before = d(bx, by, inX(i, false), inY(i, false));
+				double after = d(bx, by, inX(j, true), inY(j, true));
+				if(j < n - 1)
+				{
+					double nx = inX(j + 1, false);
+					double ny = inY(j + 1, false);
+					before += d(outX(j, false), outY(j, false), nx, ny);
+					after += d(outX(i, true), outY(i, true), nx, ny);
+				}
+				if(after < before - small)
+				{
+					reverse(i, j);
+					improved = true;
+				}
+			}
+		}
+		return improved;
+	}
+
+	/**
+	 * One pass of Or-opt: try moving every run of one to maxRun polygons
+	 * to between two others, either way round.
+	 * @return true if the tour was improved
+	 */
+	private boolean orOpt()
+	{
+		int n = tour.length;
+		boolean improved = false;
+		for(int len = 1; len <= maxRun; len++)
+		{
+			for(int i = 0; i + len <= n; i++)
+			{
+				int j = i + len - 1;
+
+				// Cost saved by cutting the run out and joining up the gap
+
+				double px, py;
+				if(i == 0)
+				{
+					px = startX;
+					py = startY;
+				} else
+				{
+					px = outX(i - 1, false);
+					py = outY(i - 1, false);
+				}
+				double removed = d(px, py, inX(i, false), inY(i, false));
+				double joined = 0;
+				if(j < n - 1)
+				{
+					removed += d(outX(j, false), outY(j, false), inX(j + 1, false), inY(j + 1, false));
+					joined = d(px, py, inX(j + 1, false), inY(j + 1, false));
+				}
+				double gain = removed - joined;
+				if(gain <= 0)
+					continue;
+
+				// Try putting it after position k (k == -1 means at the front)
+
+				for(int k = -1; k < n; k++)
+				{
+					if(k >= i - 1 && k <= j)
+						continue;
+					if(outOfTime())
+						return improved;
+					double ax, ay;
+					if(k < 0)
+					{
+						ax = startX;
+						ay = startY;
+					} else
+					{
+						ax = outX(k, false);
+						ay = outY(k, false);
+					}
+					boolean last = k == n - 1;
+					double nx = 0, ny = 0, gap = 0;
+					if(!last)
+					{
+						nx = inX(k + 1, false);
+						ny = inY(k + 1, false);
+						gap = d(ax, ay, nx, ny);
+					}
+
+					double forward = d(ax, ay, inX(i, false), inY(i, false)) - gap;
+					double backward = d(ax, ay, inX(j, true), inY(j, true)) - gap;
+					if(!last)
+					{
+						forward += d(outX(j, false), outY(j, false), nx, ny);
+						backward += d(outX(i, true), outY(i, true), nx, ny);
+					}
+
+					boolean flip = backward < forward;
+					double added = flip ? backward : forward;
+					if(added < gain - small)
+					{
+						move(i, j, k, flip);
+						return true;
+					}
+				}
+			}
+		}
+		return improved;
+	}
+
+	/**
+	 * Move the run tour[i..j] (no longer than maxRun) to go after position k,
+	 * reversing it if flip is set.
+	 * @param i
+	 * @param j
+	 * @param k
+	 * @param flip
+	 */
+	private void move(int i, int j, int k, boolean flip)
+	{
+		if(flip)
+			reverse(i, j);
+		int len = j - i + 1;
+		System.arraycopy(tour, i, runTour, 0, len);
+		System.arraycopy(reversed, i, runReversed, 0, len);
+		if(k > j)
+		{
+			System.arraycopy(tour, j + 1, tour, i, k - j);
+			System.arraycopy(reversed, j + 1, reversed, i, k - j);
+			System.arraycopy(runTour, 0, tour, k - len + 1, len);
+			System.arraycopy(runReversed, 0, reversed, k - len + 1, len);
+		} else
+		{
+			System.arraycopy(tour, k + 1, tour, k + 1 + len, i - k - 1);
+			System.arraycopy(reversed, k + 1, reversed, k + 1 + len, i - k - 1);
+			System.arraycopy(runTour, 0, tour, k + 1, len);
+			System.arraycopy(runReversed, 0, reversed, k + 1, len);
+		}
+	}
+
+	/**
+	 * Compute the tour and return the polygons in that order, turned round where needed.
+	 * @return
+	 */
+	PolygonList optimise()
+	{
+		PolygonList result = new PolygonList();
+		if(tour.length <= 0)
+			return result;
+
+		nearestNeighbour();
+
+		boolean improved = tour.length > 2;
+		while(improved && System.nanoTime() <= deadline)
+		{
+			improved = twoOpt();
+			improved = orOpt() || improved;
+		}
+
+		for(int k = 0; k < tour.length; k++)
+		{
+			Polygon p = pols.polygon(tour[k]);
+			if(reversed[k])
+				p = p.negate();
+			result.add(p);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,135 @@
+package org.reprap.geometry.polyhedra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.vecmath.Point3d;
+
+/**
+ * Chooses how thick to make each layer from the slopes of the facets of the things
+ * being built.  A layer of height h over a surface whose normal is at angle a to the
+ * vertical leaves steps (cusps) about h*cos(a) deep, so a vertical wall can have layers
+ * as thick as the extruders allow, but flat and gently sloping tops need thin ones.
+ * Each layer is made as thick as it can be without any facet it crosses getting cusps
+ * deeper than the tolerance.
+ */
+public class AdaptiveLayers
+{
+	/**
+	 * The thinnest and thickest layers allowed (mm)
+	 */
+	private double minHeight;
+	private double maxHeight;
+
+	/**
+	 * The deepest cusp allowed (mm)
+	 */
+	private double cusp;
+
+	/**
+	 * The facets that matter (vertical ones don't): their bottom and top z and the z
+	 * component of their unit normal
+	 */
+	private int facets = 0;
+	private double[] zLow = new double[1024];
+	private double[] zHigh = new double[1024];
+	private double[] nz = new double[1024];
+
+	/**
+	 * @param min thinnest layer (mm)
+	 * @param max thickest layer (mm)
+	 * @param tolerance deepest cusp allowed (mm)
+	 */
+	public AdaptiveLayers(double min, double max, double tolerance)
+	{
+		minHeight = min;
+		maxHeight = Math.max(min, max);
+		cusp = tolerance;
+	}
+
+	/**
+	 * Add a triangle of the model (already in its build position)
+	 * @param a
+	 * @param b
+	 * @param c
+	 */
+	public void addFacet(Point3d a, Point3d b, Point3d c)
+	{
+		double ux = b.x - a.x, uy = b.y - a.y, uz = b.z - a.z;
+		double vx = c.x - a.x, vy = c.y - a.y, vz = c.z - a.z;
+		double x = uy*vz - uz*vy;
+		double y = uz*vx - ux*vz;
+		double z = ux*vy - uy*vx;
+		double len = Math.sqrt(x*x + y*y + z*z);
+		if(len <= 0)
+			return;
+		double n = Math.abs(z)/len;
+		if(n*maxHeight <= cusp)
+			return;
+		if(facets >= nz.length)
+		{
+			zLow = Arrays.copyOf(zLow, 2*facets);
+			zHigh = Arrays.copyOf(zHigh, 2*facets);
+			nz = Arrays.copyOf(nz, 2*facets);
+		}
+		zLow[facets] = Math.min(a.z, Math.min(b.z, c.z));
+		zHigh[facets] = Math.max(a.z, Math.max(b.z, c.z));
+		nz[facets] = n;
+		facets++;
+	}
+
+	/**
+	 * Work out the layers.  The first few are always the thinnest, and they go on until
+	 * they reach zMax.  Heights are multiples of 0.01mm.
+	 * @param zMax
+	 * @param thin how many layers at the bottom to make as thin as possible
+	 * @return the height of the top of each layer above the bottom of the first
+	 */
+	public double[] tops(double zMax, int thin)
+	{
+		Integer[] order = new Integer[facets];
+		for(int i = 0; i < facets; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(zLow[a], zLow[b]);
+			}
+		});
+
+		List<Integer> active = new ArrayList<Integer>();
+		int next = 0;
+		List<Double> tops = new ArrayList<Double>();
+		double z = 0;
+		double h = minHeight;
+		while(z < zMax)
+		{
+			if(tops.size() >= thin)
+			{
+				// The facets that could be crossed by this layer
+
+				while(next < facets && zLow[order[next]] < z + maxHeight)
+					active.add(order[next++]);
+				h = maxHeight;
+				for(int i = active.size() - 1; i >= 0; i--)
+				{
+					int f = active.get(i);
+					if(zHigh[f] <= z)
+						active.remove(i);
+					else if(zLow[f] < z + h)
+						h = Math.min(h, cusp/nz[f]);
+				}
+				h = Math.max(minHeight, Math.floor(h*100 + 1.0e-6)/100);
+			}
+			z += h;
+			tops.add(z);
+		}
+
+		double[] result = new double[tops.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = tops.get(i);
+		return result;
+	}
+}
@@ -7,8 +7,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import org.reprap.geometry.LayerRules;
 import org.reprap.geometry.polygons.BooleanGrid;
 import org.reprap.geometry.polygons.BooleanGridList;
@@ -19,6 +21,9 @@ import org.reprap.geometry.polygons.Point2D;
 import org.reprap.geometry.polygons.Polygon;
 import org.reprap.geometry.polygons.PolygonList;
 import org.reprap.geometry.polygons.Rectangle;
+import org.reprap.geometry.polygons.SupportColumns;
+import org.reprap.geometry.polygons.SupportGenerator;
+import org.reprap.geometry.polygons.SupportTrees;
 import org.reprap.gui.RepRapBuild;
 import org.reprap.Attributes;
 import org.reprap.Extruder;
@@ -37,6 +42,7 @@ import javax.media.j3d.Shape3D;
 import javax.media.j3d.Transform3D;
 import javax.swing.JRadioButton;
 import javax.vecmath.Color3f;
+import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
@@ -302,6 +308,48 @@ public class AllSTLsToBuild
 	 */
 	private SliceCache cache;
 	
+	/**
+	 * Support patterns for each model layer and STL, worked out top-down before
+	 * a bottom-up build (null when building top-down)
+	 */
+	private PolygonList[][] supportPolygons = null;
+	
+	/**
+	 * For each STL, the branching support being grown down a top-down build
+	 * (null when not wanted)
+	 */
+	private SupportGenerator[] supportTrees = null;
+	
+	/**
+	 * For each STL, the region that is inside on every layer of the last group of layers 
+	 * whose sparse infill is laid down all at once, and the bottom layer of that group
+	 */
+	private BooleanGridList[] sparseRegion = null;
+	private int[] sparseBottom = null;
+	
+	/**
+	 * Slices kept on disc from previous runs (null if not wanted), and the hash of
+	 * everything that goes into slicing each STL (null for ones that can't be kept) 
+	 * with the attributes of its parts
+	 */
+	private DiskSliceCache diskCache = null;
+	private byte[][] stlKeys = null;
+	private Attributes[][] stlParts = null;
+	
+	/**
+	 * For each STL, the earlier one it is a copy of (or itself), and how
+	 * to turn and move that one's layers to give its own
+	 */
+	private int[] master = null;
+	private int[] quarterTurns = null;
+	private Point2D[] shift = null;
+	
+	/**
+	 * What was worked out in earlier builds for the things that haven't changed
+	 * since (null if it isn't to be kept)
+	 */
+	private KeptLayers kept = null;
+	
 	/**
 	 * Simple constructor
 	 *
@@ -509,6 +557,7 @@ public class AllSTLsToBuild
 		stls = newstls;
 		newstls = null;
 		cache = null;  // Just in case...
+		sparseRegion = null;
 		
 		return false;
 	}
@@ -573,7 +622,8 @@ public class AllSTLsToBuild
 	/**
 	 * Freeze the list - no more editing.
 	 * Also compute the XY box round everything.
-	 * Also compute the individual plan boxes round each STLObject.
+	 * Also compute the individual plan boxes round each STLObject, and
+	 * the hash of each so we can tell which have changed since the last build.
 	 */
 	private void freeze()
 	{
@@ -586,6 +636,341 @@ public class AllSTLsToBuild
 		if(cache == null)
 			cache = new SliceCache(layerRules);
 		setBoxes();
+		stlKeys = new byte[stls.size()][];
+		stlParts = new Attributes[stls.size()][];
+		for(int stl = 0; stl < stls.size(); stl++)
+			stlKeys[stl] = stlKey(stl);
+		setUpDiskCache();
+		findInstances();
+		setUpKeptLayers();
+	}
+	
+	/**
+	 * Unfreeze the list, so it can be edited again, and forget everything worked out
+	 * for the last build except what is kept for the things that don't change.
+	 */
+	public void thaw()
+	{
+		frozen = false;
+		cache = null;
+		XYZbox = null;
+		supportPolygons = null;
+		supportTrees = null;
+		sparseRegion = null;
+		sparseBottom = null;
+		master = null;
+	}
+	
+	/**
+	 * The build has finished.  If it was all done, everything worked out for it can be
+	 * used in the next one.  The list is unfrozen.
+	 * @param cancelled
+	 */
+	public void finishedBuild(boolean cancelled)
+	{
+		if(kept != null && frozen && !cancelled)
+			kept.finished(stlKeys);
+		thaw();
+	}
+	
+	/**
+	 * The build stopped with an error.  Whatever was kept during it may be only part
+	 * of what is needed, so everything kept is thrown away.  The list is unfrozen.
+	 */
+	public void failedBuild()
+	{
+		kept = null;
+		thaw();
+	}
+	
+	/**
+	 * Get what was kept from earlier builds ready for this one.  It is all 
+	 * thrown away if the preferences or the layer heights have changed.
+	 */
+	private void setUpKeptLayers()
+	{
+		if(!layerRules.getConfig().getKeepLayers())
+		{
+			kept = null;
+			return;
+		}
+		if(kept == null)
+			kept = new KeptLayers();
+		byte[] build = null;
+		MessageDigest md = DiskSliceCache.digest();
+		if(md != null)
+		{
+			try
+			{
+				DiskSliceCache.add(md, Preferences.allGlobal());
+				DiskSliceCache.add(md, layerRules.getZStep());
+				if(layerRules.getAdaptive())
+					for(int layer = 0; layer <= layerRules.getModelLayerMax() + 1; layer++)
+						DiskSliceCache.add(md, layerRules.getModelZ(layer));
+				build = md.digest();
+			} catch (Exception e)
+			{
+				Debug.e("AllSTLsToBuild.setUpKeptLayers(): can't read the preferences - " + e.toString());
+			}
+		}
+		kept.start(build, stlKeys);
+	}
+	
+	/**
+	 * @param stl
+	 * @return copies of the fills, borders and support for an STL at the current layer
+	 * kept from an earlier build, or null if they have to be worked out
+	 */
+	public PolygonList[] keptPolygons(int stl)
+	{
+		freeze();
+		if(kept == null)
+			return null;
+		return kept.get(stlKeys[stl], layerRules.getModelLayer());
+	}
+	
+	/**
+	 * Keep the fills, borders and support worked out for an STL at the current layer
+	 * @param stl
+	 * @param fills
+	 * @param borders
+	 * @param support
+	 */
+	public void keepPolygons(int stl, PolygonList fills, PolygonList borders, PolygonList support)
+	{
+		if(kept != null)
+			kept.put(stlKeys[stl], layerRules.getModelLayer(), new PolygonList[] {fills, borders, support});
+	}
+	
+	/**
+	 * The hash of what is in a layer: the STLs that have something in it, in order
+	 * @param used which STLs have something in the layer
+	 * @return null if any of them can't be kept
+	 */
+	private byte[] layerKey(boolean[] used)
+	{
+		MessageDigest md = DiskSliceCache.digest();
+		if(md == null)
+			return null;
+		for(int stl = 0; stl < used.length; stl++)
+		{
+			if(!used[stl])
+				continue;
+			if(stlKeys[stl] == null)
+				return null;
+			md.update(stlKeys[stl]);
+		}
+		return md.digest();
+	}
+	
+	/**
+	 * @return copies of the current layer's polygons, merged and in order, kept from an 
+	 * earlier build, or null if the layer has to be worked out because something in it 
+	 * has changed
+	 */
+	public PolygonList[] keptLayer()
+	{
+		freeze();
+		if(kept == null)
+			return null;
+		int layer = layerRules.getModelLayer();
+		boolean[] used = new boolean[stls.size()];
+		for(int stl = 0; stl < stls.size(); stl++)
+		{
+			byte[] k = stlKeys[master[stl]];
+			if(!kept.complete(k))
+				return null;
+			used[stl] = !kept.empty(k, layer);
+		}
+		return kept.getLayer(layer, layerKey(used));
+	}
+	
+	/**
+	 * Keep the current layer's polygons, merged and in order
+	 * @param polygons
+	 * @param used which STLs have something in the layer
+	 */
+	public void keepLayer(PolygonList[] polygons, boolean[] used)
+	{
+		if(kept != null)
+			kept.putLayer(layerRules.getModelLayer(), layerKey(used), polygons);
+	}
+	
+	/**
+	 * What has been used from earlier builds, for the log
+	 * @return null if nothing is being kept
+	 */
+	public String keptReport()
+	{
+		if(kept == null)
+			return null;
+		return kept.toString();
+	}
+	
+	/**
+	 * Find the things being built that are copies of earlier ones: the same triangles 
+	 * and materials, placed the same way up, but moved in X and Y and maybe turned about
+	 * Z through a multiple of 90 degrees.  Their layers are just those of the first one
+	 * turned and moved, and need not be worked out again.
+	 */
+	private void findInstances()
+	{
+		int n = stls.size();
+		master = new int[n];
+		quarterTurns = new int[n];
+		shift = new Point2D[n];
+		byte[][] shape = new byte[n][];
+		Point3d[] anchor = new Point3d[n];
+		Matrix3d[] turn = new Matrix3d[n];
+		int copies = 0;
+		for(int stl = 0; stl < n; stl++)
+		{
+			master[stl] = stl;
+			shift[stl] = new Point2D(0, 0);
+			
+			// The shape, moved so its first vertex is at the origin
+			
+			STLObject stlObject = stls.get(stl);
+			MessageDigest md = DiskSliceCache.digest();
+			Point3d[] first = new Point3d[1];
+			for(int i = 0; i < stlObject.getCount(); i++)
+			{
+				if(stlObject.getCSG(i) != null)
+					md = null;
+				if(md == null)
+					break;
+				DiskSliceCache.add(md, stlObject.attributes(i).getMaterial());
+				recursiveShapeHash(stlObject.getSTL(i), md, first);
+			}
+			if(md == null || first[0] == null)
+				continue;
+			shape[stl] = md.digest();
+			Matrix4d m4 = new Matrix4d();
+			stlObject.getTransform().get(m4);
+			anchor[stl] = new Point3d(first[0]);
+			m4.transform(anchor[stl]);
+			turn[stl] = new Matrix3d();
+			m4.getRotationScale(turn[stl]);
+			
+			for(int m = 0; m < stl && master[stl] == stl; m++)
+			{
+				if(master[m] != m || shape[m] == null || !Arrays.equals(shape[m], shape[stl]))
+					continue;
+				for(int q = 0; q < 4; q++)
+				{
+					Matrix3d r = new Matrix3d();
+					r.rotZ(0.5*Math.PI*q);
+					r.m00 = Math.rint(r.m00);
+					r.m01 = Math.rint(r.m01);
+					r.m10 = Math.rint(r.m10);
+					r.m11 = Math.rint(r.m11);
+					Matrix3d rm = new Matrix3d();
+					rm.mul(r, turn[m]);
+					if(!rm.epsilonEquals(turn[stl], Preferences.tiny()))
+						continue;
+					Point3d a = new Point3d(anchor[m]);
+					r.transform(a);
+					if(Math.abs(anchor[stl].z - a.z) > Preferences.tiny())
+						continue;
+					master[stl] = m;
+					quarterTurns[stl] = q;
+					shift[stl] = new Point2D(anchor[stl].x - a.x, anchor[stl].y - a.y);
+					copies++;
+					break;
+				}
+			}
+		}
+		if(copies > 0)
+			Debug.d("AllSTLsToBuild.findInstances(): " + copies + " of the " + n + " things are copies.");
+	}
+	
+	/**
+	 * @param stl
+	 * @return the index of the thing that stl is a copy of (stl itself if it isn't one)
+	 */
+	public int masterOf(int stl)
+	{
+		freeze();
+		return master[stl];
+	}
+	
+	/**
+	 * Turn polygons worked out for the thing an STL is a copy of into its own.
+	 * @param pl
+	 * @param stl
+	 * @return
+	 */
+	public PolygonList instance(PolygonList pl, int stl)
+	{
+		return pl.turnedAndMoved(quarterTurns[stl], shift[stl]);
+	}
+	
+	/**
+	 * Set up the slices kept on disc, if they are wanted.
+	 */
+	private void setUpDiskCache()
+	{
+		diskCache = null;
+		int mb = layerRules.getConfig().getDiskSliceCache();
+		if(mb <= 0)
+			return;
+		diskCache = new DiskSliceCache(new File(Preferences.getUsersRootDir() + "slicecache"), mb*1048576L);
+	}
+	
+	/**
+	 * Hash the triangles of an STL, where they are, and the preferences that 
+	 * change the shape of its slices.
+	 * @param stl
+	 * @return the hash, or null if its slices can't be kept
+	 */
+	private byte[] stlKey(int stl)
+	{
+		STLObject stlObject = stls.get(stl);
+		Rectangle r = rectangles.get(stl);
+		MessageDigest md = DiskSliceCache.digest();
+		if(md == null || r == null)
+			return null;
+		DiskSliceCache.add(md, Preferences.machineResolution());
+		DiskSliceCache.add(md, Preferences.gridRes());
+		DiskSliceCache.add(md, Preferences.tiny());
+		DiskSliceCache.add(md, r.sw().x());
+		DiskSliceCache.add(md, r.sw().y());
+		DiskSliceCache.add(md, r.ne().x());
+		DiskSliceCache.add(md, r.ne().y());
+		Matrix4d m4 = new Matrix4d();
+		stlObject.getTransform().get(m4);
+		for(int i = 0; i < 4; i++)
+			for(int j = 0; j < 4; j++)
+				DiskSliceCache.add(md, m4.getElement(i, j));
+		
+		stlParts[stl] = new Attributes[stlObject.getCount()];
+		for(int i = 0; i < stlObject.getCount(); i++)
+		{
+			if(stlObject.getCSG(i) != null)
+				return null;
+			Attributes att = (Attributes)(stlObject.getSTL(i).getUserData());
+			stlParts[stl][i] = att;
+			Extruder e = att.getExtruder();
+			DiskSliceCache.add(md, att.getMaterial());
+			DiskSliceCache.add(md, e.getID());
+			DiskSliceCache.add(md, e.getArcCompensationFactor());
+			DiskSliceCache.add(md, e.getArcShortSides());
+			DiskSliceCache.add(md, e.getExtrusionSize());
+			DiskSliceCache.add(md, e.getExtrusionInfillWidth());
+			recursiveHash(stlObject.getSTL(i), md);
+		}
+		return md.digest();
+	}
+	
+	/**
+	 * What the slices kept on disc have done, for the log
+	 * @return null if they aren't being kept
+	 */
+	public String diskCacheReport()
+	{
+		if(diskCache == null)
+			return null;
+		return diskCache.toString();
 	}
 	
 	/**
@@ -841,6 +1226,84 @@ public class AllSTLsToBuild
 		return result;
 	}
 	
+	/**
+	 * Work out the support patterns for every layer before a bottom-up build.
+	 * Support depends on everything above it; the layers are sliced (but no infill
+	 * or outlines worked out) and handed to a SupportGenerator for each STL, which 
+	 * keeps track of what's above each layer.  If no extruder has a support material 
+	 * there is nothing to do.  This leaves the layer rules at the bottom model layer.
+	 */
+	public void precomputeSupport()
+	{
+		freeze();
+		int top = layerRules.getModelLayerMax();
+		supportPolygons = new PolygonList[top + 1][stls.size()];
+		
+		boolean anySupport = false;
+		Extruder[] es = layerRules.getPrinter().getExtruders();
+		for(int i = 0; i < es.length; i++)
+			if(es[i].getSupportExtruder() != null)
+				anySupport = true;
+		
+		if(anySupport)
+		{
+			SupportGenerator[] columns = new SupportGenerator[stls.size()];
+			for(int stl = 0; stl < stls.size(); stl++)
+				columns[stl] = supportGenerator(top);
+			
+			// The support generators will take the layers in any order, but going from the top
+			// down means the support for each can be hatched (and forgotten) straight away.
+			
+			Debug.d("AllSTLsToBuild.precomputeSupport(): working out support from layer " + top + " down.");
+			for(int layer = top; layer > 0; layer--)
+			{
+				if(layerRules.getPrinter().isCancelled())
+					break;
+				layerRules.setModelLayer(layer);
+				for(int stl = 0; stl < stls.size(); stl++)
+				{
+					if(master[stl] != stl || (kept != null && kept.complete(stlKeys[stl])))
+						continue;
+					BooleanGridList thisLayer = slice(stl, layer);
+					BooleanGridList needing = new BooleanGridList();
+					for(int i = 0; i < thisLayer.size(); i++)
+						if(thisLayer.attribute(i).getExtruder().getSupportExtruder() != null)
+							needing.add(thisLayer.get(i));
+					columns[stl].setLayer(layer, needing, supportClearance(stl, thisLayer));
+					supportPolygons[layer][stl] = supportHatch(columns[stl].getSupport(layer));
+				}
+			}
+		}
+		layerRules.setModelLayer(0);
+	}
+	
+	/**
+	 * Make the support generator the preferences ask for: branching support if
+	 * TreeSupport is set, otherwise straight-down columns.
+	 * @param top the highest model layer
+	 * @return
+	 */
+	private SupportGenerator supportGenerator(int top)
+	{
+		if(treeSupport())
+		{
+			double[] heights = new double[top + 1];
+			for(int layer = 0; layer <= top; layer++)
+				heights[layer] = layerRules.getLayerHeight(layer);
+			return new SupportTrees(heights, layerRules.getConfig().getTreeSupportSpacing(),
+					layerRules.getConfig().getTreeSupportAngle());
+		}
+		return new SupportColumns(top);
+	}
+	
+	/**
+	 * @return true if the preferences ask for branching support
+	 */
+	private boolean treeSupport()
+	{
+		return layerRules.getConfig().getTreeSupport();
+	}
+	
 	/**
 	 * Compute the support hatching polygons for this set of patterns
 	 * @param stl
@@ -849,46 +1312,74 @@ public class AllSTLsToBuild
 	 */
 	public PolygonList computeSupport(int stl)
 	{
-		// No more additions or movements, please
+		// Already worked out for a bottom-up build?  Each is only wanted once.
 		
-		freeze();
+		if(supportPolygons != null)
+		{
+			int layer = layerRules.getModelLayer();
+			PolygonList result = null;
+			if(layer >= 0 && layer < supportPolygons.length)
+			{
+				result = supportPolygons[layer][stl];
+				supportPolygons[layer][stl] = null;
+			}
+			if(result == null)
+				result = new PolygonList();
+			return result;
+		}
 		
-		// We start by computing the union of everything in this layer because
-		// that is everywhere that support _isn't_ needed.
-		// We give the union the attribute of the first thing found, though
-		// clearly it will - in general - represent many different substances.
-		// But it's only going to be subtracted from other shapes, so what it's made
-		// from doesn't matter.
+		// Top-down the layers come in order, so branches can be grown down as they do
+		
+		if(layerRules.getTopDown() && treeSupport())
+			return growSupport(stl);
+		return supportHatch(stl);
+	}
+	
+	/**
+	 * Hand the slice of this layer to the STL's branching support generator, and
+	 * hatch the support it works out for the layer.
+	 * @param stl
+	 * @return
+	 */
+	private PolygonList growSupport(int stl)
+	{
+		freeze();
 		
 		int layer = layerRules.getModelLayer();
+		int top = layerRules.getModelLayerMax();
+		if(layer < 0 || layer > top)
+			return new PolygonList();
+		if(supportTrees == null)
+			supportTrees = new SupportGenerator[stls.size()];
+		if(supportTrees[stl] == null)
+			supportTrees[stl] = supportGenerator(top);
 		
 		BooleanGridList thisLayer = slice(stl, layer);
+		BooleanGridList needing = new BooleanGridList();
+		for(int i = 0; i < thisLayer.size(); i++)
+			if(thisLayer.attribute(i).getExtruder().getSupportExtruder() != null)
+				needing.add(thisLayer.get(i));
+		supportTrees[stl].setLayer(layer, needing, supportClearance(stl, thisLayer));
+		return supportHatch(supportTrees[stl].getSupport(layer));
+	}
+	
+	/**
+	 * Compute the support hatching polygons for this set of patterns from the
+	 * slice of this layer and the support needed by the layer above.
+	 * @param stl
+	 * @return
+	 */
+	private PolygonList supportHatch(int stl)
+	{
+		// No more additions or movements, please
 		
-		BooleanGrid unionOfThisLayer;
-		Attributes a;
+		freeze();
 		
-		if(thisLayer.size() > 0)
-		{
-			unionOfThisLayer = thisLayer.get(0);
-			a = unionOfThisLayer.attribute();
-		}else
-		{
-			a = stls.get(stl).attributes(0);
-			unionOfThisLayer = BooleanGrid.nullBooleanGrid();
-		}
-		for(int i = 1; i < thisLayer.size(); i++)
-			unionOfThisLayer = BooleanGrid.union(unionOfThisLayer, thisLayer.get(i), a);
+		int layer = layerRules.getModelLayer();
 		
-		// Expand the union of this layer a bit, so that any support is a little clear of 
-		// this layer's boundaries.
+		BooleanGridList thisLayer = slice(stl, layer);
 		
-		BooleanGridList allThis = new BooleanGridList();
-		allThis.add(unionOfThisLayer);
-		allThis = allThis.offset(layerRules, true, 2);  // 2mm gap is a bit of a hack...
-		if(allThis.size() > 0)
-			unionOfThisLayer = allThis.get(0);
-		else
-			unionOfThisLayer = BooleanGrid.nullBooleanGrid();
+		BooleanGrid unionOfThisLayer = supportClearance(stl, thisLayer);
 
 		// Get the layer above and union it with this layer.  That's what needs
 		// support on the next layer down.
@@ -906,19 +1397,72 @@ public class AllSTLsToBuild
 			for(int i = 0; i < previousSupport.size(); i++)
 			{
 				BooleanGrid above = previousSupport.get(i);
-				a = above.attribute();
+				Attributes a = above.attribute();
 				Extruder e = a.getExtruder().getSupportExtruder();
 				if(e != null)
-				{
-					if(layerRules.extruderLiveThisLayer(e.getID()))
-						support.add(BooleanGrid.difference(above, unionOfThisLayer, a));
-				}
+					support.add(BooleanGrid.difference(above, unionOfThisLayer, a));
 			}
-			support = support.unionDuplicates();
 		}
 		
+		return supportHatch(support);
+	}
+	
+	/**
+	 * Where support must not go in this layer: the union of everything in it
+	 * (which is everywhere that support _isn't_ needed), expanded a bit so that 
+	 * any support is a little clear of this layer's boundaries.
+	 * @param stl
+	 * @param thisLayer
+	 * @return
+	 */
+	private BooleanGrid supportClearance(int stl, BooleanGridList thisLayer)
+	{
+		// We give the union the attribute of the first thing found, though
+		// clearly it will - in general - represent many different substances.
+		// But it's only going to be subtracted from other shapes, so what it's made
+		// from doesn't matter.
+		
+		BooleanGrid unionOfThisLayer;
+		Attributes a;
+		
+		if(thisLayer.size() > 0)
+		{
+			unionOfThisLayer = thisLayer.get(0);
+			a = unionOfThisLayer.attribute();
+		}else
+		{
+			a = stls.get(stl).attributes(0);
+			unionOfThisLayer = BooleanGrid.nullBooleanGrid();
+		}
+		for(int i = 1; i < thisLayer.size(); i++)
+			unionOfThisLayer = BooleanGrid.union(unionOfThisLayer, thisLayer.get(i), a);
+		
+		BooleanGridList allThis = new BooleanGridList();
+		allThis.add(unionOfThisLayer);
+		allThis = allThis.offset(layerRules, true, 2);  // 2mm gap is a bit of a hack...
+		if(allThis.size() > 0)
+			return allThis.get(0);
+		return BooleanGrid.nullBooleanGrid();
+	}
+	
+	/**
+	 * Hatch the support needed in this layer, for the materials that are active in it.
+	 * @param needed what needs support, by material
+	 * @return
+	 */
+	private PolygonList supportHatch(BooleanGridList needed)
+	{
+		BooleanGridList support = new BooleanGridList();
+		for(int i = 0; needed != null && i < needed.size(); i++)
+		{
+			Extruder e = needed.attribute(i).getExtruder().getSupportExtruder();
+			if(e != null && layerRules.extruderLiveThisLayer(e.getID()))
+				support.add(needed.get(i));
+		}
+		support = support.unionDuplicates();
+		
 		// Now force the attributes of the support pattern to be the support extruders
-		// for all the materials in it.  If the material isn't active in this layer, remove it from the list
+		// for all the materials in it.
 		
 		for(int i = 0; i < support.size(); i++)
 		{
@@ -938,37 +1482,6 @@ public class AllSTLsToBuild
 		return result;
 	}
 	
-	/**
-	 * This finds an individual land in landPattern
-	 * @param landPattern
-	 * @return
-	 */
-	private BooleanGrid findLand(BooleanGrid landPattern)
-	{
-		Point2D seed = landPattern.findSeed();
-		if(seed == null)
-			return null;
-		
-		return landPattern.floodCopy(seed);
-	}
-	
-	/**
-	 * This finds the bridges that cover cen.  It assumes that there is only one material at one point in space...
-	 * @param unSupported
-	 * @param cen1
-	 * @return
-	 */
-	int findBridges(BooleanGridList unSupported, Point2D cen)
-	{
-		for(int i = 0; i < unSupported.size(); i++)
-		{
-			BooleanGrid bridges = unSupported.get(i);
-			if(bridges.get(cen))
-				return i;
-		}
-		return -1;
-	}
-	
 //	private void nameAtt(BooleanGridList bgl, String name)
 //	{
 //		for(int i = 0; i < bgl.size(); i++)
@@ -991,56 +1504,61 @@ public class AllSTLsToBuild
 	public InFillPatterns bridgeHatch(InFillPatterns infill, BooleanGridList lands, LayerRules layerConditions)
 	{
 		InFillPatterns result = new InFillPatterns(infill);
-		BooleanGridList b;
+		
+		// Find all the separate bridges and lands in one go, rather than 
+		// flood-filling and subtracting them one at a time.
+		
+		BooleanGrid.Labelling[] bridgePieces = new BooleanGrid.Labelling[result.bridges.size()];
+		boolean[][] bridgeBuilt = new boolean[result.bridges.size()][];
+		for(int j = 0; j < bridgePieces.length; j++)
+		{
+			bridgePieces[j] = result.bridges.get(j).label();
+			bridgeBuilt[j] = new boolean[bridgePieces[j].size()];
+		}
+		BooleanGridList built = new BooleanGridList();
 		
 		for(int i = 0; i < lands.size(); i++)
 		{
-			BooleanGrid landPattern = lands.get(i);
-			BooleanGrid land1;
+			BooleanGrid.Labelling landPieces = lands.get(i).label();
+			boolean[] landUsed = new boolean[landPieces.size()];
+			boolean[] touched = new boolean[landPieces.size()];
 			
-			// Find a land
+			// Take each land in turn
 			
-			while((land1 = findLand(landPattern)) != null)
+			for(int k = 0; k < landPieces.size(); k++)
 			{
-				// Find the middle of the land
+				if(landUsed[k])
+					continue;
+				landUsed[k] = true;
 				
-				Point2D cen1 = land1.findCentroid();
+				// Find the middle of the land
 				
-				// Wipe this land from the land pattern
+				Point2D cen1 = landPieces.get(k).centroid();
 				
-				landPattern = BooleanGrid.difference(landPattern, land1);
+				// Find the bridge that goes with the land.  It assumes that there 
+				// is only one material at one point in space...
 				
-				if(cen1 == null)
+				BooleanGrid.Component piece = null;
+				for(int j = 0; j < bridgePieces.length && piece == null; j++)
 				{
-					Debug.e("AllSTLsToBuild.bridges(): First land found with no centroid!");
-					continue;
+					piece = bridgePieces[j].at(cen1);
+					if(piece != null && bridgeBuilt[j][piece.index()])
+						piece = null;
+					else if(piece != null)
+						bridgeBuilt[j][piece.index()] = true;
 				}
-				
-				// Find the bridge that goes with the land
-				
-				int bridgesIndex = findBridges(result.bridges, cen1);
-				if(bridgesIndex < 0)
+				if(piece == null)
 				{
 					Debug.d("AllSTLsToBuild.bridges(): Land found with no corresponding bridge.");
 					continue;
 				}
-				BooleanGrid bridges = result.bridges.get(bridgesIndex);
-				
-				// The bridge must cover the land too
+				BooleanGrid bridge = piece.mask();
 				
-				BooleanGrid bridge = bridges.floodCopy(cen1);
-				if(bridge == null)
-					continue;
-				
-				// Find the other land (the first has been wiped)
-				
-				BooleanGrid land2 = null;
-
-				land2 = BooleanGrid.intersection(bridge, landPattern);
+				// Find the other land (the first has been used) and its middle.
+				// Any land the bridge touches is used up by it.
 				
-				// Find the middle of this land
-				
-				Point2D cen2 = land2.findCentroid();
+				Arrays.fill(touched, false);
+				Point2D cen2 = piece.overlapCentroid(landPieces, landUsed, touched);
 				if(cen2 == null)
 				{
 					Debug.d("AllSTLsToBuild.bridges(): Second land found with no centroid.");
@@ -1049,19 +1567,14 @@ public class AllSTLsToBuild
 					
 					result.hatchedPolygons.add(bridge.hatch(layerConditions.getHatchDirection(bridge.attribute().getExtruder(), false), 
 							bridge.attribute().getExtruder().getExtrusionInfillWidth(), 
-							bridge.attribute()));
-					
-					// Remove this bridge (in fact, just its lands) from the other infill patterns.
-					
-					b = new BooleanGridList();
-					b.add(bridge);
-					result.insides = BooleanGridList.differences(result.insides, b, false);
-					result.surfaces = BooleanGridList.differences(result.surfaces, b, false);
+							bridge.attribute(), layerConditions.getConfig()));
 				} else
 				{
 					// Wipe this land from the land pattern
 					//System.out.println("Two lands");
-					landPattern = BooleanGrid.difference(landPattern, land2);
+					for(int t = 0; t < touched.length; t++)
+						if(touched[t])
+							landUsed[t] = true;
 
 					// (Roughly) what direction does the bridge go in?
 
@@ -1097,22 +1610,23 @@ public class AllSTLsToBuild
 
 					result.hatchedPolygons.add(bridge.hatch(new HalfPlane(new Point2D(0,0), bridgeDirection), 
 							bridge.attribute().getExtruder().getExtrusionInfillWidth(), 
-							bridge.attribute()));
-					
-					// Remove this bridge (in fact, just its lands) from the other infill patterns.
-					
-					b = new BooleanGridList();
-					b.add(bridge);
-					result.insides = BooleanGridList.differences(result.insides, b, false);
-					result.surfaces = BooleanGridList.differences(result.surfaces, b, false);
+							bridge.attribute(), layerConditions.getConfig()));
 				}
-				// remove the bridge from the bridge patterns.
-				b = new BooleanGridList();
-				b.add(bridge);
-				result.bridges = BooleanGridList.differences(result.bridges, b, false);
+				built.add(bridge);
 			}
 		}
 		
+		// Remove the bridges (in fact, just their lands) from the other infill patterns
+		// and from the bridge patterns.
+		
+		if(built.size() > 0)
+		{
+			built = built.unionDuplicates();
+			result.insides = BooleanGridList.differences(result.insides, built, false);
+			result.surfaces = BooleanGridList.differences(result.surfaces, built, false);
+			result.bridges = BooleanGridList.differences(result.bridges, built, false);
+		}
+		
 		return result;
 	}
 	
@@ -1274,6 +1788,7 @@ public class AllSTLsToBuild
 		
 		infill = bridgeHatch(infill, lands, layerRules);
 		infill.insides = neededThisLayer(infill.insides, true, false);
+		infill = sparseHatch(infill, stl, layer, surfaceLayers);
 		infill.hatchedPolygons.add(infill.insides.hatch(layerRules, false, null, false));
 		infill.surfaces = neededThisLayer(infill.surfaces, false, false);
 		infill.hatchedPolygons.add(infill.surfaces.hatch(layerRules, true, null, false));
@@ -1281,6 +1796,80 @@ public class AllSTLsToBuild
 		return infill.hatchedPolygons;
 	}
 	
+	/**
+	 * Sparse infill can be laid down once every few layers, that many layers thick,
+	 * rather than thinly on every one.  The layers are taken in groups; the part of
+	 * the insides that is inside on every layer of a group is left out of the group's 
+	 * layers and hatched on the top one with enough material for all of them.  The 
+	 * rest of the insides are left to be hatched as usual.
+	 * @param infill
+	 * @param stl
+	 * @param layer
+	 * @param surfaceLayers
+	 * @return
+	 */
+	private InFillPatterns sparseHatch(InFillPatterns infill, int stl, int layer, int surfaceLayers)
+	{
+		int n = layerRules.getSparseInfillLayers();
+		if(n <= 1)
+			return infill;
+		
+		// The solid bottom layers can't be in a group
+		
+		int bottom = layer - layer%n;
+		if(bottom <= surfaceLayers)
+			return infill;
+		
+		BooleanGridList region = sparseRegion(stl, bottom, n, surfaceLayers);
+		BooleanGridList sparse = BooleanGridList.intersections(infill.insides, region);
+		infill.insides = BooleanGridList.differences(infill.insides, region, false);
+		if(layer != bottom + n - 1)
+			return infill;
+		
+		double layers = (layerRules.getModelZ(bottom + n) - layerRules.getModelZ(bottom))/layerRules.getLayerHeight(layer);
+		BooleanGridList thick = new BooleanGridList();
+		for(int i = 0; i < sparse.size(); i++)
+		{
+			BooleanGrid g = new BooleanGrid(sparse.get(i));
+			g.forceAttribute(new Attributes(g.attribute(), layers));
+			thick.add(g);
+		}
+		infill.hatchedPolygons.add(thick.hatch(layerRules, false, null, false));
+		return infill;
+	}
+	
+	/**
+	 * Find the region that is inside (i.e. not surface) on all n layers of the 
+	 * group starting at bottom.  That is the intersection of the slices from 
+	 * surfaceLayers below the group to surfaceLayers above it, shrunk as the insides
+	 * are to leave room for the outlines.  It is needed for each layer of the group,
+	 * so the last one is remembered.
+	 * @param stl
+	 * @param bottom
+	 * @param n
+	 * @param surfaceLayers
+	 * @return
+	 */
+	private BooleanGridList sparseRegion(int stl, int bottom, int n, int surfaceLayers)
+	{
+		if(sparseRegion == null || sparseRegion.length != stls.size())
+		{
+			sparseRegion = new BooleanGridList[stls.size()];
+			sparseBottom = new int[stls.size()];
+		}
+		if(sparseRegion[stl] != null && sparseBottom[stl] == bottom)
+			return sparseRegion[stl];
+		
+		BooleanGridList region = slice(stl, bottom - surfaceLayers);
+		for(int i = bottom - surfaceLayers + 1; i < bottom + n + surfaceLayers; i++)
+			region = BooleanGridList.intersections(slice(stl, i), region);
+		region = region.offset(layerRules, false, -1);
+		
+		sparseRegion[stl] = region;
+		sparseBottom[stl] = bottom;
+		return region;
+	}
+	
 	/**
 	 * Compute the polygon to lay down for the machine to wipe its nose on.
 	 * @param a
@@ -1361,7 +1950,10 @@ public class AllSTLsToBuild
 			Debug.e(e.toString());
 		}
 		
-		org.reprap.Main.gui.getBuilder().anotherSTL(s, att, 0);
+		if(org.reprap.Main.gui.getBuilder() != null)
+			org.reprap.Main.gui.getBuilder().anotherSTL(s, att, 0);
+		else
+			stls.add(0, s);
 		
 
 		
@@ -1461,7 +2053,22 @@ public class AllSTLsToBuild
 		
 		// Probably...
 		
-		double z = layerRules.getModelZ(layer) + layerRules.getZStep()*0.5;
+		double z = layerRules.getModelZ(layer) + layerRules.getLayerHeight(layer)*0.5;
+		
+		// Was it worked out on a previous run?
+		
+		byte[] key = null;
+		if(diskCache != null && stlKeys[stlIndex] != null)
+		{
+			key = DiskSliceCache.key(stlKeys[stlIndex], z);
+			result = diskCache.get(key, stlParts[stlIndex]);
+			if(result != null)
+			{
+				cache.setSlice(result, layer, stlIndex);
+				return result;
+			}
+		}
+		
 		Extruder[] extruders = layerRules.getPrinter().getExtruders();
 		result = new BooleanGridList();
 		CSG2D csgp = null;
@@ -1554,6 +2161,8 @@ public class AllSTLsToBuild
 		// We may need this later...
 		
 		cache.setSlice(result, layer, stlIndex);
+		if(key != null)
+			diskCache.put(key, result, stlParts[stlIndex]);
 		
 		return result;
 	}
@@ -1710,6 +2319,141 @@ public class AllSTLsToBuild
         }
     }
 	
+	/**
+	 * Give all the facets of everything to be built (in their build positions) to a layer scheduler.
+	 * @param al
+	 * @return false if something is made from CSG, and so has no facets to give
+	 */
+	public boolean addFacets(AdaptiveLayers al)
+	{
+		boolean allFacets = true;
+		for(int stl = 0; stl < stls.size(); stl++)
+		{
+			STLObject stlObject = stls.get(stl);
+			Transform3D trans = stlObject.getTransform();
+			for(int i = 0; i < stlObject.getCount(); i++)
+			{
+				if(stlObject.getCSG(i) != null)
+					allFacets = false;
+				else
+					recursiveAddFacets(stlObject.getSTL(i), trans, al);
+			}
+		}
+		return allFacets;
+	}
+	
+	/**
+	 * Unpack the Shape3D(s) from value and give their facets to a layer scheduler
+	 * @param value
+	 * @param trans
+	 * @param al
+	 */
+	private void recursiveAddFacets(Object value, Transform3D trans, AdaptiveLayers al) 
+    {
+        if(value instanceof SceneGraphObject) 
+        {
+            SceneGraphObject sg = (SceneGraphObject)value;
+            if(sg instanceof Group) 
+            {
+                Group g = (Group)sg;
+                java.util.Enumeration<?> enumKids = g.getAllChildren( );
+                while(enumKids.hasMoreElements())
+                    recursiveAddFacets(enumKids.nextElement(), trans, al);
+            } else if (sg instanceof Shape3D) 
+            {
+                GeometryArray g = (GeometryArray)((Shape3D)sg).getGeometry();
+                if(g == null)
+                	return;
+                Point3d p1 = new Point3d();
+                Point3d p2 = new Point3d();
+                Point3d p3 = new Point3d();
+                for(int i = 0; i + 2 < g.getVertexCount(); i+=3) 
+                {
+                    g.getCoordinate(i, p1);
+                    g.getCoordinate(i+1, p2);
+                    g.getCoordinate(i+2, p3);
+                    trans.transform(p1);
+                    trans.transform(p2);
+                    trans.transform(p3);
+                    al.addFacet(p1, p2, p3);
+                }
+            }
+        }
+    }
+	
+	/**
+	 * Unpack the Shape3D(s) from value and add their vertices to a hash
+	 * @param value
+	 * @param md
+	 */
+	private void recursiveHash(Object value, MessageDigest md) 
+    {
+        if(value instanceof SceneGraphObject) 
+        {
+            SceneGraphObject sg = (SceneGraphObject)value;
+            if(sg instanceof Group) 
+            {
+                Group g = (Group)sg;
+                java.util.Enumeration<?> enumKids = g.getAllChildren( );
+                while(enumKids.hasMoreElements())
+                    recursiveHash(enumKids.nextElement(), md);
+            } else if (sg instanceof Shape3D) 
+            {
+                GeometryArray g = (GeometryArray)((Shape3D)sg).getGeometry();
+                if(g == null)
+                	return;
+                Point3d p = new Point3d();
+                DiskSliceCache.add(md, g.getVertexCount());
+                for(int i = 0; i < g.getVertexCount(); i++) 
+                {
+                    g.getCoordinate(i, p);
+                    DiskSliceCache.add(md, p.x);
+                    DiskSliceCache.add(md, p.y);
+                    DiskSliceCache.add(md, p.z);
+                }
+            }
+        }
+    }
+	
+	/**
+	 * Unpack the Shape3D(s) from value and add their vertices to a hash, relative
+	 * to the first vertex found (which is put in first[0]).  The relative positions 
+	 * are rounded so that the same shape loaded in different places matches.
+	 * @param value
+	 * @param md
+	 * @param first
+	 */
+	private void recursiveShapeHash(Object value, MessageDigest md, Point3d[] first) 
+    {
+        if(value instanceof SceneGraphObject) 
+        {
+            SceneGraphObject sg = (SceneGraphObject)value;
+            if(sg instanceof Group) 
+            {
+                Group g = (Group)sg;
+                java.util.Enumeration<?> enumKids = g.getAllChildren( );
+                while(enumKids.hasMoreElements())
+                    recursiveShapeHash(enumKids.nextElement(), md, first);
+            } else if (sg instanceof Shape3D) 
+            {
+                GeometryArray g = (GeometryArray)((Shape3D)sg).getGeometry();
+                if(g == null)
+                	return;
+                Point3d p = new Point3d();
+                DiskSliceCache.add(md, g.getVertexCount());
+                for(int i = 0; i < g.getVertexCount(); i++) 
+                {
+                    g.getCoordinate(i, p);
+                    if(first[0] == null)
+                    	first[0] = new Point3d(p);
+                    DiskSliceCache.add(md, Math.rint((p.x - first[0].x)*1.0e5));
+                    DiskSliceCache.add(md, Math.rint((p.y - first[0].y)*1.0e5));
+                    DiskSliceCache.add(md, Math.rint((p.z - first[0].z)*1.0e5));
+                }
+            }
+        }
+    }
+	
 	/**
 	 * Unpack the Shape3D(s) from value and set edges from them
 	 * @param value
@@ -1,9 +1,11 @@
 package org.reprap.geometry.polyhedra;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -70,6 +72,17 @@ public class CSGReader
 			csgAvailable = readModel(fileName);
 		}
 		
+		/**
+		 * This reads a CSG file already read into memory (from an RFO file, say).
+		 * @param fileName the file it came from, just for messages
+		 * @param data the contents of the file (null if there isn't one)
+		 */
+		public CSGReader(String fileName, byte[] data)
+		{
+			if(data != null)
+				csgAvailable = readModel(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data))), fileName);
+		}
+		
 		/**
 		 * Check if the constructor found a model.
 		 * @return
@@ -137,12 +150,27 @@ public class CSGReader
 			String fileName = CSGFileExists(STLfileName);
 			if(fileName == null)
 				return false;
-			
+			try 
+			{
+				return readModel(new BufferedReader(new FileReader(fileName)), fileName);
+			} catch (FileNotFoundException e) 
+			{
+				return false;
+			}
+		}
+		
+		/**
+		 * Read a CSG model from an open file.
+		 * @param inputStream
+		 * @param fileName
+		 * @return
+		 */
+		private boolean readModel(BufferedReader inputStream, String fileName)
+		{
 			model = new String();
 			
 			try 
 			{
-				BufferedReader inputStream = new BufferedReader(new FileReader(fileName));
 				String line;
 
 				while ((line = inputStream.readLine()) != null)
@@ -159,9 +187,7 @@ public class CSGReader
 					line = line.replaceAll("^\\s+", "");  // kill more leading white space
 					model += line;
 				}
-			} catch (FileNotFoundException e) 
-			{
-				return false;
+				inputStream.close();
 			} catch (IOException e) 
 			{
 				return false;
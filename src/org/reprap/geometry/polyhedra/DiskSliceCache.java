@@ -0,0 +1,319 @@
+package org.reprap.geometry.polyhedra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.reprap.Attributes;
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.utilities.Debug;
+
+/**
+ * Slices kept on disc between runs, so that building the same things again with only
+ * (say) the speeds or temperatures changed doesn't mean slicing them all again.
+ *
+ * Each slice is in its own file, named from a hash of everything that went into making it:
+ * the triangles, where they are, the height of the slice, and the preferences that change
+ * the shape of a slice.  So a slice is never found unless it would come out the same if it were
+ * worked out again, and nothing ever needs to be invalidated.  A file that can't be read,
+ * or whose checksum is wrong, is deleted and the slice worked out again.  When the files
+ * take up more than the space allowed, the ones least recently used are deleted.
+ */
+public class DiskSliceCache
+{
+	/**
+	 * Change this whenever the slicing code changes what it produces, or the file format
+	 */
+	static final int version = 1;
+
+	/**
+	 * At the start of every file
+	 */
+	private static final int magic = 0x52525343; // "RRSC"
+
+	private static final String suffix = ".slice";
+
+	private File dir;
+
+	/**
+	 * Most bytes to use, and how many are in use
+	 */
+	private long maxBytes;
+	private long bytes;
+
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param dir where to keep the files (made if need be)
+	 * @param maxBytes the most space to use
+	 */
+	public DiskSliceCache(File dir, long maxBytes)
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if(!dir.isDirectory() && !dir.mkdirs())
+			Debug.e("DiskSliceCache(): can't make directory " + dir);
+		bytes = 0;
+		File[] files = files();
+		for(int i = 0; i < files.length; i++)
+			bytes += files[i].length();
+	}
+
+	/**
+	 * Start a hash of what goes into some slices.
+	 * @return
+	 */
+	public static MessageDigest digest()
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(intBytes(version));
+			return md;
+		} catch (NoSuchAlgorithmException e)
+		{
+			Debug.e("DiskSliceCache.digest(): " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Add a number to a hash
+	 * @param md
+	 * @param d
+	 */
+	public static void add(MessageDigest md, double d)
+	{
+		long l = Double.doubleToLongBits(d);
+		md.update(intBytes((int)(l >>> 32)));
+		md.update(intBytes((int)l));
+	}
+
+	/**
+	 * Add a string to a hash
+	 * @param md
+	 * @param s
+	 */
+	public static void add(MessageDigest md, String s)
+	{
+		if(s == null)
+			s = "";
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		md.update(intBytes(b.length));
+		md.update(b);
+	}
+
+	private static byte[] intBytes(int i)
+	{
+		return new byte[] {(byte)(i >>> 24), (byte)(i >>> 16), (byte)(i >>> 8), (byte)i};
+	}
+
+	/**
+	 * The key for one slice of something
+	 * @param thing the hash of the thing (see digest())
+	 * @param z the height of the slice
+	 * @return
+	 */
+	public static byte[] key(byte[] thing, double z)
+	{
+		MessageDigest md = digest();
+		md.update(thing);
+		add(md, z);
+		return md.digest();
+	}
+
+	private File file(byte[] key)
+	{
+		StringBuilder name = new StringBuilder();
+		for(int i = 0; i < key.length; i++)
+			name.append(String.format("%02x", key[i] & 0xff));
+		name.append(suffix);
+		return new File(dir, name.toString());
+	}
+
+	private File[] files()
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+			return new File[0];
+		int n = 0;
+		for(int i = 0; i < files.length; i++)
+			if(files[i].getName().endsWith(suffix))
+				files[n++] = files[i];
+		return Arrays.copyOf(files, n);
+	}
+
+	/**
+	 * Look up a slice.
+	 * @param key
+	 * @param parts the attributes of each part of the thing sliced, so the grids can be
+	 * given the same attributes they had when they were made
+	 * @return the slice, or null if it isn't there
+	 */
+	public synchronized BooleanGridList get(byte[] key, Attributes[] parts)
+	{
+		File f = file(key);
+		if(!f.exists())
+		{
+			misses++;
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+					new InflaterInputStream(new FileInputStream(f))), crc));
+			if(in.readInt() != magic || in.readInt() != version)
+				throw new IOException("not a slice file");
+			byte[] k = new byte[key.length];
+			in.readFully(k);
+			if(!Arrays.equals(k, key))
+				throw new IOException("wrong key");
+			int n = in.readInt();
+			if(n < 0)
+				throw new IOException("bad grid count");
+			BooleanGridList result = new BooleanGridList();
+			for(int i = 0; i < n; i++)
+			{
+				int part = in.readInt();
+				if(part < 0 || part >= parts.length)
+					throw new IOException("bad part " + part);
+				result.add(BooleanGrid.read(in, parts[part]));
+			}
+			long sum = crc.getValue();
+			if(in.readLong() != sum)
+				throw new IOException("bad checksum");
+			in.close();
+			in = null;
+			f.setLastModified(System.currentTimeMillis());
+			hits++;
+			return result;
+		} catch (IOException e)
+		{
+			Debug.e("DiskSliceCache.get(): deleting " + f + " - " + e.toString());
+			close(in);
+			bytes -= f.length();
+			f.delete();
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Store a slice
+	 * @param key
+	 * @param slice
+	 * @param parts the attributes of each part of the thing sliced
+	 */
+	public synchronized void put(byte[] key, BooleanGridList slice, Attributes[] parts)
+	{
+		File f = file(key);
+		File temp = null;
+		CRC32 crc = new CRC32();
+		DataOutputStream out = null;
+		try
+		{
+			// Other runs may be storing the same slice at the same time, so each
+			// writes its own file and renames it into place when it's complete
+			
+			temp = File.createTempFile(f.getName(), ".tmp", dir);
+			out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(
+					new DeflaterOutputStream(new FileOutputStream(temp))), crc));
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.write(key);
+			out.writeInt(slice.size());
+			for(int i = 0; i < slice.size(); i++)
+			{
+				int part = Arrays.asList(parts).indexOf(slice.get(i).attribute());
+				if(part < 0)
+					throw new IOException("slice attributes not in the thing sliced");
+				out.writeInt(part);
+				slice.get(i).write(out);
+			}
+			out.writeLong(crc.getValue());
+			out.close();
+			out = null;
+			long old = f.length();
+			if(f.exists())
+				f.delete();
+			if(!temp.renameTo(f))
+				throw new IOException("can't rename " + temp);
+			bytes += f.length() - old;
+		} catch (IOException e)
+		{
+			Debug.e("DiskSliceCache.put(): " + e.toString());
+			close(out);
+			if(temp != null)
+				temp.delete();
+			return;
+		}
+		if(bytes > maxBytes)
+			evict();
+	}
+
+	/**
+	 * Delete the least recently used files till what's left fits in 90% of the space
+	 */
+	private void evict()
+	{
+		File[] files = files();
+		final long[] used = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		bytes = 0;
+		for(int i = 0; i < files.length; i++)
+		{
+			used[i] = files[i].lastModified();
+			order[i] = i;
+			bytes += files[i].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return used[a] < used[b] ? -1 : (used[a] > used[b] ? 1 : 0);
+			}
+		});
+		for(int i = 0; i < order.length && bytes > 0.9*maxBytes; i++)
+		{
+			File f = files[order[i]];
+			long l = f.length();
+			if(f.delete())
+				bytes -= l;
+		}
+	}
+
+	private static void close(java.io.Closeable c)
+	{
+		if(c == null)
+			return;
+		try
+		{
+			c.close();
+		} catch (IOException e)
+		{}
+	}
+
+	public synchronized String toString()
+	{
+		return "Slice cache " + dir + ": " + hits + " found, " + misses + " worked out, " + (bytes >> 10) + "kB on disc";
+	}
+}
@@ -0,0 +1,216 @@
+package org.reprap.geometry.polyhedra;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.reprap.geometry.polygons.PolygonList;
+
+/**
+ * What was worked out for each layer of each thing in the last build, kept so that
+ * the next build only has to work out again the things that have changed (been moved,
+ * scaled, given another material, added...).  Each thing is known by the hash of
+ * everything that goes into slicing it, so one that has changed is simply not found.
+ *
+ * Whole layers, after the polygons of all the things in them have been merged and put
+ * in order, are kept too.  A layer is used again if everything in it is unchanged, so
+ * moving one thing only means merging the layers it is in.
+ *
+ * Everything kept is thrown away if the preferences or the layer heights change.
+ */
+public class KeptLayers
+{
+	/**
+	 * The hash of the preferences and layer heights in use
+	 */
+	private byte[] build = null;
+
+	/**
+	 * For each thing, its fills, borders and support for each model layer
+	 */
+	private Map<ByteBuffer, Map<Integer, PolygonList[]>> things;
+
+	/**
+	 * The things that have every layer kept
+	 */
+	private Set<ByteBuffer> complete;
+
+	/**
+	 * The hash of what is in each merged layer, and its polygons (one list per physical extruder)
+	 */
+	private Map<Integer, byte[]> layerKeys;
+	private Map<Integer, PolygonList[]> layers;
+
+	private int thingsUsed = 0;
+	private int thingsWorkedOut = 0;
+	private int layersUsed = 0;
+
+	public KeptLayers()
+	{
+		things = new HashMap<ByteBuffer, Map<Integer, PolygonList[]>>();
+		complete = new HashSet<ByteBuffer>();
+		layerKeys = new HashMap<Integer, byte[]>();
+		layers = new HashMap<Integer, PolygonList[]>();
+	}
+
+	/**
+	 * Get ready for a new build.  Things no longer being built, and things whose
+	 * layers weren't all worked out last time, are forgotten.
+	 * @param buildKey the hash of the preferences and layer heights
+	 * @param thingKeys the hashes of the things in this build (null entries for ones that can't be kept)
+	 */
+	public synchronized void start(byte[] buildKey, byte[][] thingKeys)
+	{
+		if(build == null || buildKey == null || !Arrays.equals(build, buildKey))
+		{
+			things.clear();
+			complete.clear();
+			layerKeys.clear();
+			layers.clear();
+		}
+		build = buildKey;
+
+		Set<ByteBuffer> wanted = new HashSet<ByteBuffer>();
+		for(int i = 0; i < thingKeys.length; i++)
+			if(thingKeys[i] != null)
+				wanted.add(ByteBuffer.wrap(thingKeys[i]));
+		Iterator<ByteBuffer> it = things.keySet().iterator();
+		while(it.hasNext())
+		{
+			ByteBuffer k = it.next();
+			if(!wanted.contains(k) || !complete.contains(k))
+			{
+				it.remove();
+				complete.remove(k);
+			}
+		}
+		thingsUsed = 0;
+		thingsWorkedOut = 0;
+		layersUsed = 0;
+	}
+
+	/**
+	 * Have all the layers of a thing been kept?
+	 * @param thing
+	 * @return
+	 */
+	public synchronized boolean complete(byte[] thing)
+	{
+		return thing != null && complete.contains(ByteBuffer.wrap(thing));
+	}
+
+	/**
+	 * @param thing
+	 * @param layer
+	 * @return copies of the fills, borders and support of a thing at a layer, or null
+	 * if they weren't all kept
+	 */
+	public synchronized PolygonList[] get(byte[] thing, int layer)
+	{
+		if(!complete(thing))
+			return null;
+		PolygonList[] kept = things.get(ByteBuffer.wrap(thing)).get(layer);
+		if(kept == null)
+			return null;
+		thingsUsed++;
+		return copy(kept);
+	}
+
+	/**
+	 * Does a complete thing have anything in a layer?
+	 * @param thing
+	 * @param layer
+	 * @return
+	 */
+	public synchronized boolean empty(byte[] thing, int layer)
+	{
+		PolygonList[] kept = things.get(ByteBuffer.wrap(thing)).get(layer);
+		if(kept == null)
+			return true;
+		for(int i = 0; i < kept.length; i++)
+			if(kept[i].size() > 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Keep (copies of) the fills, borders and support of a thing at a layer
+	 * @param thing
+	 * @param layer
+	 * @param polygons
+	 */
+	public synchronized void put(byte[] thing, int layer, PolygonList[] polygons)
+	{
+		thingsWorkedOut++;
+		if(thing == null)
+			return;
+		ByteBuffer k = ByteBuffer.wrap(thing);
+		Map<Integer, PolygonList[]> t = things.get(k);
+		if(t == null)
+		{
+			t = new HashMap<Integer, PolygonList[]>();
+			things.put(k, t);
+		}
+		t.put(layer, copy(polygons));
+	}
+
+	/**
+	 * Every layer of these things has now been kept.
+	 * @param thingKeys
+	 */
+	public synchronized void finished(byte[][] thingKeys)
+	{
+		for(int i = 0; i < thingKeys.length; i++)
+			if(thingKeys[i] != null && things.containsKey(ByteBuffer.wrap(thingKeys[i])))
+				complete.add(ByteBuffer.wrap(thingKeys[i]));
+	}
+
+	/**
+	 * @param layer
+	 * @param key the hash of what is in the layer
+	 * @return a copy of the merged layer, or null if it wasn't kept with that key
+	 */
+	public synchronized PolygonList[] getLayer(int layer, byte[] key)
+	{
+		if(key == null || !Arrays.equals(layerKeys.get(layer), key))
+			return null;
+		layersUsed++;
+		return copy(layers.get(layer));
+	}
+
+	/**
+	 * Keep (a copy of) a merged layer
+	 * @param layer
+	 * @param key the hash of what is in the layer
+	 * @param polygons
+	 */
+	public synchronized void putLayer(int layer, byte[] key, PolygonList[] polygons)
+	{
+		if(key == null)
+		{
+			layerKeys.remove(layer);
+			layers.remove(layer);
+			return;
+		}
+		layerKeys.put(layer, key);
+		layers.put(layer, copy(polygons));
+	}
+
+	private static PolygonList[] copy(PolygonList[] p)
+	{
+		PolygonList[] result = new PolygonList[p.length];
+		for(int i = 0; i < p.length; i++)
+			result[i] = new PolygonList(p[i]);
+		return result;
+	}
+
+	public synchronized String toString()
+	{
+		return "Kept layers: " + thingsUsed + " used and " + thingsWorkedOut + " worked out for single things, " +
+			layersUsed + " whole layers used";
+	}
+}
@@ -126,15 +126,19 @@ public class STLObject
 	class Contents
 	{
 	    private String sourceFile = null;   // The STL file I was loaded from
+	    private byte[] stlData = null;      // That file, if it isn't on disc
+	    private byte[] csgData = null;      // Its CSG file, if that isn't on disc
 	    private BranchGroup stl = null;     // The actual STL geometry
 	    private CSG3D csg = null;           // CSG if available
 	    private Attributes att = null;		// The attributes associated with it
 	    private double volume;				// Useful to know
 	    private int unique = 0;
 	    
-	    Contents(String s, BranchGroup st, CSG3D c, Attributes a, double v)
+	    Contents(Mesh m, BranchGroup st, CSG3D c, Attributes a, double v)
 	    {
-	    	sourceFile = s;
+	    	sourceFile = m.location;
+	    	stlData = m.stlData;
+	    	csgData = m.csgData;
 	    	stl = st;
 	    	csg = c;
 	    	att = a;
@@ -152,6 +156,64 @@ public class STLObject
 	    }
 	}
 	
+	/**
+	 * An STL file (and its CSG, if any) read into Java3D geometry, but not yet part of
+	 * an STLObject.  Reading is most of the work of loading, and it doesn't touch anything
+	 * shared, so several of these can be made in parallel and then added in order.  Each can
+	 * only be added once.
+	 */
+	public static class Mesh
+	{
+		private String location;
+		private byte[] stlData;
+		private byte[] csgData;
+		private Scene scene = null;
+		private CSG3D csg = null;
+		
+		/**
+		 * Read an STL file, and its CSG file if there is one.
+		 * @param location
+		 */
+		public Mesh(String location)
+		{
+			this(location, null, null);
+		}
+		
+		/**
+		 * Read an STL file that is already in memory (from an RFO file, say).  The data
+		 * are kept, so it can be saved again.
+		 * @param location the name of the file
+		 * @param stlData the STL file (null to read it from location)
+		 * @param csgData its CSG file (null if it hasn't got one)
+		 */
+		public Mesh(String location, byte[] stlData, byte[] csgData)
+		{
+			this.location = location;
+			this.stlData = stlData;
+			this.csgData = csgData;
+			StlFile loader = new StlFile();
+			try
+			{
+				CSGReader csgr;
+				if(stlData == null)
+				{
+					scene = loader.load(location);
+					csgr = new CSGReader(location);
+				} else
+				{
+					scene = loader.load(location, stlData);
+					csgr = new CSGReader(location, csgData);
+				}
+				if(csgr.csgAvailable())
+					csg = csgr.csg();
+			} catch (Exception e)
+			{
+				Debug.e("STLObject.Mesh(): Exception loading STL file from: " + location);
+				e.printStackTrace();
+			}
+		}
+	}
+	
     private MouseObject mouse = null;   // The mouse, if it is controlling us
     private BranchGroup top = null;     // The thing that links us to the world
     private BranchGroup handle = null;  // Internal handle for the mouse to grab
@@ -225,9 +287,24 @@ public class STLObject
      * @param app
      */
     public Attributes addSTL(String location, Vector3d offset, Appearance app, STLObject lastPicked) 
+    {
+    	return addSTL(new Mesh(location), offset, app, lastPicked);
+    }
+    
+    /**
+     * Add an STL object that has already been read, with a known offset (set that null to put
+     * the object in the middle of the bed) and set its appearance
+     * 
+     * @param mesh
+     * @param offset
+     * @param app
+     * @param lastPicked
+     * @return
+     */
+    public Attributes addSTL(Mesh mesh, Vector3d offset, Appearance app, STLObject lastPicked) 
     {
     	Attributes att = new Attributes(null, this, null, app);
-    	Contents child = loadSingleSTL(location, att, offset, lastPicked);
+    	Contents child = loadSingleSTL(mesh, att, offset, lastPicked);
     	if(child == null)
     		return null;
     	if(lastPicked == null)
@@ -239,36 +316,27 @@ public class STLObject
  
 
     /**
-     * Actually load the stl file and set its attributes.  Offset decides where to put it relative to 
+     * Actually add the stl file and set its attributes.  Offset decides where to put it relative to 
      * the origin.  If lastPicked is null, the file is loaded as a new independent STLObject; if not
      * it is added to lastPicked and subsequently is subjected to all the same transforms, so they retain
      * their relative positions.  This is how multi-material objects are loaded.
      * 
-     * @param location
+     * @param mesh
      * @param att
      * @param offset
      * @param lastPicked
      * @return
      */
-    private Contents loadSingleSTL(String location, Attributes att, Vector3d offset, STLObject lastPicked)
+    private Contents loadSingleSTL(Mesh mesh, Attributes att, Vector3d offset, STLObject lastPicked)
     {
     	BranchGroup bgResult = null;
-    	CSG3D csgResult = null;
+    	CSG3D csgResult = mesh.csg;
     	
-    	//STLLoader loader = new STLLoader();
-    	StlFile loader = new StlFile();
-    	
-        Scene scene;
+        Scene scene = mesh.scene;
+        mesh.scene = null;
         double volume = 0;
         try 
         {
-        	
-        	//location=location.substring(5);
-        	//System.out.println(location);
-            scene = loader.load(location);
-        	CSGReader csgr = new CSGReader(location);
-        	if(csgr.csgAvailable())
-        		csgResult = csgr.csg();
             if (scene != null) 
             {
                 bgResult = scene.getSceneGroup();
@@ -328,11 +396,11 @@ public class STLObject
         } catch ( Exception e ) 
         {
             Debug.e("loadSingelSTL(): Exception loading STL file from: " 
-                    + location);
+                    + mesh.location);
             e.printStackTrace();
         }
         
-        return new Contents(location, bgResult, csgResult, att, volume);
+        return new Contents(mesh, bgResult, csgResult, att, volume);
     }
     
     private void updateBox(BoundingBox bb)
@@ -402,6 +470,26 @@ public class STLObject
     	return fn;
     }
     
+    /**
+     * The STL file of a part, if it isn't on disc (because it came from an RFO file)
+     * @param i
+     * @return the file, or null if it is on disc
+     */
+    public byte[] stlDataItCameFrom(int i)
+    {
+    	return contents.get(i).stlData;
+    }
+    
+    /**
+     * The CSG file of a part, if it has one and it isn't on disc
+     * @param i
+     * @return
+     */
+    public byte[] csgDataItCameFrom(int i)
+    {
+    	return contents.get(i).csgData;
+    }
+    
     public String toSCAD()
     {
     	String result = " multmatrix(m = [ [";
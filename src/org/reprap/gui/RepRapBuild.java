@@ -609,7 +609,8 @@ public class RepRapBuild extends Panel3D implements MouseListener {
 		for(int i = 0; i < number; i++)
 		{
 			STLObject stl = new STLObject();
-			Attributes newAtt = stl.addSTL(fileName, null, original.getAppearance(), null);
+			STLObject.Mesh mesh = new STLObject.Mesh(fileName, original.stlDataItCameFrom(0), original.csgDataItCameFrom(0));
+			Attributes newAtt = stl.addSTL(mesh, null, original.getAppearance(), null);
 			if(newAtt != null)
 			{
 				newAtt.setMaterial(originalAttributes.getMaterial());
@@ -22,6 +22,7 @@ import org.reprap.Main;
 import org.reprap.Preferences;
 import org.reprap.Printer;
 import org.reprap.pcb.PCB;
+import org.reprap.utilities.Debug;
 
 /**
  *
@@ -913,7 +914,15 @@ private void sliceButtonActionPerformed(java.awt.event.ActionEvent evt)
        	{
     		JOptionPane.showMessageDialog(null, "The loaded file is not an STL or an RFO file.");
     	}   		
-    	printer.setTopDown(true);	
+    	boolean bottomUp = false;
+    	try
+    	{
+    		bottomUp = Preferences.loadGlobalBool("BuildBottomUp");
+    	} catch (Exception e)
+    	{
+    		Debug.e("PrintTabFrame: can't load preference BuildBottomUp.");
+    	}
+    	printer.setTopDown(!bottomUp);	
     	if(printer.setGCodeFileForOutput(loadedFiles.substring(0, sp)) == null)
     	{
     		restoreSliceButton();
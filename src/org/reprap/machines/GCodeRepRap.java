@@ -11,7 +11,9 @@ package org.reprap.machines;
  */
 
 import org.reprap.Extruder;
+import org.reprap.MachineConfig;
 import org.reprap.Preferences;
+import org.reprap.comms.GCodeLine;
 import org.reprap.comms.GCodeReaderAndWriter;
 import org.reprap.utilities.Debug;
 import org.reprap.devices.GCodeExtruder;
@@ -34,6 +36,13 @@ public class GCodeRepRap extends GenericRepRap {
 	*/
 	GCodeReaderAndWriter gcode;
 	
+	/**
+	 * Reused to build the commonest G-codes (moves) without making Strings.
+	 * (No initializer - the superclass constructor calls refreshPreferences(),
+	 * which creates it.)
+	 */
+	private GCodeLine line;
+	
 	/**
 	 * @param prefs
 	 * @throws Exception
@@ -82,39 +91,71 @@ public class GCodeRepRap extends GenericRepRap {
 		return new GCodeExtruder(gcode, count, this);
 	}
 	
+	/**
+	 * Re-read the preferences, including how to write numbers in G-codes
+	 */
+	public void refreshPreferences()
+	{
+		super.refreshPreferences();
+		if(line == null)
+			line = new GCodeLine();
+		line.setCompact(config.getCompactGCodeNumbers());
+	}
+	
 	private void qFeedrate(double feedrate) throws Exception
 	{		
 		if(currentFeedrate == feedrate)
 			return;
-		String s = "G1 F" + feedrate;
+		line.reset().append("G1 F").append(feedrate, 1);
 		if(Debug.d())
-			s += " ; feed for start of next move";
-		gcode.queue(s);
+			line.append(" ; feed for start of next move");
+		gcode.queue(line);
 		currentFeedrate = feedrate;		
 	}
 	
-	private void qXYMove(double x, double y, double feedrate) throws Exception
-	{	
-		double dx = x - currentX;
-		double dy = y - currentY;
-		
-		double extrudeLength = extruders[extruder].getDistance(Math.sqrt(dx*dx + dy*dy));
+	/**
+	 * Record the material extruded while the head moves a given distance
+	 * @param distance
+	 * @return the length extruded (0 if none)
+	 * @throws Exception
+	 */
+	private double extrude(double distance) throws Exception
+	{
+		double extrudeLength = extruders[extruder].getDistance(distance);
 		//Debug.g(extruders[extruder].getMaterial());
-		String se = "";
 
 		if(extrudeLength > 0)
 		{
 			if(extruders[extruder].getReversing())
 				extrudeLength = -extrudeLength;
 			extruders[extruder].getExtruderState().add(extrudeLength);
-			if(extruders[extruder].get5D())
-			{
-				if(Preferences.loadGlobalBool("ExtrusionRelative"))
-					se = " E" + round(extrudeLength, 3);
-				else
-					se = " E" + round(extruders[extruder].getExtruderState().length(), 3);
-			}
+			return extrudeLength;
 		}
+		return 0;
+	}
+	
+	/**
+	 * @param extrudeLength what was just extruded
+	 * @return the value for the E field, or NaN if there shouldn't be one
+	 * @throws Exception
+	 */
+	private double eValue(double extrudeLength) throws Exception
+	{
+		if(extrudeLength == 0 || !extruders[extruder].get5D())
+			return Double.NaN;
+		if(config.getExtrusionRelative())
+			return round(extrudeLength, 3);
+		return round(extruders[extruder].getExtruderState().length(), 3);
+	}
+	
+	private void qXYMove(double x, double y, double feedrate) throws Exception
+	{	
+		double dx = x - currentX;
+		double dy = y - currentY;
+		
+		double extrudeLength = extrude(Math.sqrt(dx*dx + dy*dy));
+		double e = eValue(extrudeLength);
+		boolean doE = !Double.isNaN(e);
 		
 		double xyFeedrate = round(extruders[extruder].getFastXYFeedrate(), 1);
 		
@@ -136,26 +177,85 @@ public class GCodeRepRap extends GenericRepRap {
 		}
 		
 		
-		String s = "G1 ";
-
+		// This is built to match what gcode.queue(String) made of the old
+		// "G1 " + "X" + x + " Y" + y + ... after tidying it.
+		
+		line.reset().append("G1");
 		if (dx != 0)
-			s += "X" + x;
+			line.append(" X").append(x, 2);
 		if (dy != 0)
-			s += " Y" + y;
-
-		s += se;
+			line.append(" Y").append(y, 2);
+		if(doE)
+			line.append(" E").append(e, 3);
 		
 		if (currentFeedrate != feedrate)
 		{
-			s += " F" + feedrate;
+			line.append(" F").append(feedrate, 1);
 			currentFeedrate = feedrate;
 		}
 		
 		if(Debug.d())
-			s += " ;horizontal move";
-		gcode.queue(s);
+			line.append(" ;horizontal move");
+		gcode.queue(line);
+		currentX = x;
+		currentY = y;
+	}
+	
+	/**
+	 * Queue a G2 (clockwise) or G3 (anticlockwise) move round an arc
+	 * @param x end
+	 * @param y end
+	 * @param cx centre
+	 * @param cy centre
+	 * @param clockwise
+	 * @param feedrate
+	 * @return the length of the arc
+	 * @throws Exception
+	 */
+	private double qArcMove(double x, double y, double cx, double cy, boolean clockwise, double feedrate) throws Exception
+	{
+		double r = Math.sqrt((currentX - cx)*(currentX - cx) + (currentY - cy)*(currentY - cy));
+		double a0 = Math.atan2(currentY - cy, currentX - cx);
+		double a1 = Math.atan2(y - cy, x - cx);
+		double sweep = clockwise ? a0 - a1 : a1 - a0;
+		if(sweep <= 0)
+			sweep += 2*Math.PI;
+		double length = r*sweep;
+		
+		double extrudeLength = extrude(length);
+		double e = eValue(extrudeLength);
+		
+		double xyFeedrate = round(extruders[extruder].getFastXYFeedrate(), 1);
+		
+		if(xyFeedrate < feedrate && Math.abs(extrudeLength) > Preferences.tiny())
+		{
+			Debug.d("GCodeRepRap().qArcMove: extruding feedrate (" + feedrate + ") exceeds maximum (" + xyFeedrate + ").");
+			feedrate = xyFeedrate;
+		}
+		
+		if(getExtruder().getMaxAcceleration() <= 0)
+			qFeedrate(feedrate);
+		
+		line.reset().append(clockwise ? "G2" : "G3");
+		line.append(" X").append(x, 2);
+		line.append(" Y").append(y, 2);
+		line.append(" I").append(round(cx - currentX, 3), 3);
+		line.append(" J").append(round(cy - currentY, 3), 3);
+		if(!Double.isNaN(e))
+			line.append(" E").append(e, 3);
+		
+		if (currentFeedrate != feedrate)
+		{
+			line.append(" F").append(feedrate, 1);
+			currentFeedrate = feedrate;
+		}
+		
+		if(Debug.d())
+			line.append(" ;arc");
+		gcode.queue(line);
 		currentX = x;
 		currentY = y;
+		return length;
 	}
 	
 	private void qZMove(double z, double feedrate) throws Exception
@@ -178,10 +278,9 @@ public class GCodeRepRap extends GenericRepRap {
 		if(dz == 0.0)
 			return;
 		
-		String code;
 		double extrudeLength;
 		
-		String s = "G1 Z" + z;
+		line.reset().append("G1 Z").append(z, 4);
 
 		extrudeLength = extruders[extruder].getDistance(dz);
 
@@ -192,22 +291,22 @@ public class GCodeRepRap extends GenericRepRap {
 			extruders[extruder].getExtruderState().add(extrudeLength);
 			if(extruders[extruder].get5D())
 			{
-				if(Preferences.loadGlobalBool("ExtrusionRelative"))
-					s += " E" + round(extrudeLength, 3);
+				if(config.getExtrusionRelative())
+					line.append(" E").append(round(extrudeLength, 3), 3);
 				else
-					s += " E" + round(extruders[extruder].getExtruderState().length(), 3);
+					line.append(" E").append(round(extruders[extruder].getExtruderState().length(), 3), 3);
 			}
 		}
 		
 		if (currentFeedrate != feedrate)
 		{
-			s += " F" + feedrate;
+			line.append(" F").append(feedrate, 1);
 			currentFeedrate = feedrate;
 		}
 		
 		if(Debug.d())
-			s += " ;z move";
-		gcode.queue(s);
+			line.append(" ;z move");
+		gcode.queue(line);
 		currentZ = z;	
 	}
 
@@ -221,25 +320,22 @@ public class GCodeRepRap extends GenericRepRap {
 		if (isCancelled())
 			return;
 		
-		try
-		{
-		if(x > Preferences.loadGlobalDouble("WorkingX(mm)") || x < 0)
+		MachineConfig c = config;
+		if(x > c.getWorkingX() || x < 0)
 		{
-			Debug.e("Attempt to move x to " + x + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingX(mm)") + "]");
-			x = Math.max(0, Math.min(x, Preferences.loadGlobalDouble("WorkingX(mm)")));
+			Debug.e("Attempt to move x to " + x + " which is outside [0, " + c.getWorkingX() + "]");
+			x = Math.max(0, Math.min(x, c.getWorkingX()));
 		}
-		if(y > Preferences.loadGlobalDouble("WorkingY(mm)") || y < 0)
+		if(y > c.getWorkingY() || y < 0)
 		{
-			Debug.e("Attempt to move y to " + y + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingY(mm)") + "]");
-			y = Math.max(0, Math.min(y, Preferences.loadGlobalDouble("WorkingY(mm)")));
+			Debug.e("Attempt to move y to " + y + " which is outside [0, " + c.getWorkingY() + "]");
+			y = Math.max(0, Math.min(y, c.getWorkingY()));
 		}
-		if(z > Preferences.loadGlobalDouble("WorkingZ(mm)") || z < 0)
+		if(z > c.getWorkingZ() || z < 0)
 		{
-			Debug.d("Attempt to move z to " + z + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingZ(mm)") + "]");
-			z = Math.max(0, Math.min(z, Preferences.loadGlobalDouble("WorkingZ(mm)")));
+			Debug.d("Attempt to move z to " + z + " which is outside [0, " + c.getWorkingZ() + "]");
+			z = Math.max(0, Math.min(z, c.getWorkingZ()));
 		}
-		} catch (Exception e)
-		{}
 
 		x = round(x, 2);
 		y = round(y, 2);
@@ -339,7 +435,7 @@ public class GCodeRepRap extends GenericRepRap {
 		
 		try 
 		{
-			if(!Preferences.loadGlobalBool("RepRapAccelerations"))
+			if(!config.getRepRapAccelerations())
 			{
 				moveTo(x, y, z, feedrate, false, false);
 				return;
@@ -451,6 +547,36 @@ public class GCodeRepRap extends GenericRepRap {
 			getExtruder().setValve(false);
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.reprap.Printer#printArcTo(double, double, double, double, boolean, double, double, boolean, boolean)
+	 */
+	public void printArcTo(double x, double y, double cx, double cy, boolean clockwise, double z, double feedrate, 
+			boolean stopExtruder, boolean closeValve) throws Exception
+	{
+		if (isCancelled())
+			return;
+		
+		x = round(x, 2);
+		y = round(y, 2);
+		feedrate = round(feedrate, 1);
+		
+		// Anything that isn't a plain arc at this height is done with straight lines
+		
+		if(round(z, 4) != currentZ || (x == currentX && y == currentY))
+		{
+			super.printArcTo(x, y, cx, cy, clockwise, z, feedrate, stopExtruder, closeValve);
+			return;
+		}
+		
+		totalDistanceMoved += qArcMove(x, y, cx, cy, clockwise, feedrate);
+		XYEAtZero = false;
+		
+		if(stopExtruder)
+			getExtruder().stopExtruding();
+		if(closeValve)
+			getExtruder().setValve(false);
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.reprap.Printer#dispose()
 	 */
@@ -504,6 +630,12 @@ public class GCodeRepRap extends GenericRepRap {
 		
 		gcode.startRun();
 		
+		// A bottom-up build is queued in the order it will be made, so it can be timed 
+		// as it goes.  A top-down one is timed when its layers are put back in order.
+		
+		if(!lc.getTopDown() || lc.getReversing())
+			gcode.setEstimator(new PrintEstimator());
+		
 		gcode.queue("; GCode generated by RepRap Java Host Software");
 		Date myDate = new Date();
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd:HH-mm-ss");
@@ -585,6 +717,12 @@ public class GCodeRepRap extends GenericRepRap {
 		//write/close our file/serial port
 		//gcode.reverseLayers(layerRules);
 		gcode.finish(lc);
+		if(gcode.getEstimator() != null)
+		{
+			gcode.getEstimator().finish();
+			Debug.a(gcode.getEstimator().toString());
+			gcode.setEstimator(null);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -640,7 +778,7 @@ public class GCodeRepRap extends GenericRepRap {
 				
 				if(getExtruder().getFeedDiameter() > 0)
 				{
-					fr = fr*getExtruder().getExtrusionHeight()*getExtruder().getExtrusionSize()/
+					fr = fr*getExtruder().getLayerHeight()*getExtruder().getExtrusionSize()/
 						(getExtruder().getFeedDiameter()*getExtruder().getFeedDiameter()*Math.PI/4);
 				}
 				
@@ -661,7 +799,7 @@ public class GCodeRepRap extends GenericRepRap {
 			
 			if(extruders[extruder].get5D())
 			{
-				if(Preferences.loadGlobalBool("ExtrusionRelative"))
+				if(config.getExtrusionRelative())
 					s = "G1 E" + round(extrudeLength, 3);
 				else
 					s = "G1 E" + round(extruders[extruder].getExtruderState().length(), 3);
@@ -673,7 +811,7 @@ public class GCodeRepRap extends GenericRepRap {
 						s += " ; extruder dwell";
 				}
 				double fr;
-				if(Preferences.loadGlobalBool("RepRapAccelerations"))
+				if(config.getRepRapAccelerations())
 					fr = getExtruder().getSlowXYFeedrate();
 				else
 					fr = getExtruder().getFastXYFeedrate();
@@ -983,6 +1121,13 @@ public class GCodeRepRap extends GenericRepRap {
 	{
 //		while(!gcode.bufferEmpty())
 //			gcode.sleep(97);
+		try
+		{
+			gcode.drain();
+		} catch (Exception e)
+		{
+			Debug.e("GCodeRepRap.waitWhileBufferNotEmpty(): " + e.toString());
+		}
 	}
 	
 	public void slowBuffer()
@@ -1014,6 +1159,15 @@ public class GCodeRepRap extends GenericRepRap {
 		return gcode.setGCodeFileForOutput(getTopDown(), fileRoot);
 	}
 	
+	/**
+	 * Set an output file without asking the user
+	 * @return
+	 */
+	public String openGCodeFileForOutput(String fileName)
+	{
+		return gcode.openGCodeFileForOutput(getTopDown(), new File(fileName));
+	}
+	
 	/**
 	 * If a file replay is being done, do it and return true
 	 * otherwise return false.
@@ -1063,7 +1217,7 @@ public class GCodeRepRap extends GenericRepRap {
 		Extruder oldExtruder = getExtruder();
 		int newPhysicalExtruder = extruders[materialIndex].getPhysicalExtruderNumber();
 		double y = 0;
-		boolean shield = Preferences.loadGlobalBool("Shield");
+		boolean shield = config.getShield();
 		Point2D purge;
 		
 		if(newPhysicalExtruder != oldPhysicalExtruder || forceSelection)
@@ -1198,5 +1352,14 @@ public class GCodeRepRap extends GenericRepRap {
 	{
 		return gcode.getOutputFilename();
 	}
+
+	/**
+	 * The estimator timing the G-codes as they are queued
+	 * @return the estimator, or null
+	 */
+	public PrintEstimator getEstimator()
+	{
+		return gcode.getEstimator();
+	}
 	
 }
@@ -6,6 +6,7 @@ import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import org.reprap.Attributes;
 import org.reprap.CartesianPrinter;
+import org.reprap.MachineConfig;
 import org.reprap.Preferences;
 import org.reprap.RepRapException;
 import org.reprap.devices.NullExtruder;
@@ -54,6 +55,11 @@ public abstract class GenericRepRap implements CartesianPrinter
 	 */
 	protected StatusMessage statusWindow;
 	
+	/**
+	 * Whether the build has been cancelled, when there is no status window to hold it
+	 */
+	private boolean cancelled = false;
+	
 	
 	/**
 	 * 
@@ -116,6 +122,13 @@ public abstract class GenericRepRap implements CartesianPrinter
 	 */
 	protected double currentX, currentY, currentZ;
 	
+	/**
+	 * The machine settings, replaced whole by refreshPreferences().  Volatile, as they
+	 * are replaced from the GUI thread while a build reads them on its own.
+	 * (No initializer - the constructor calls refreshPreferences().)
+	 */
+	protected volatile MachineConfig config;
+	
 	/**
 	 * X, Y and Z position of the extruder at the end of the topmost layer 
 	 */
@@ -220,7 +233,10 @@ public abstract class GenericRepRap implements CartesianPrinter
 		XYEAtZero = false;
 		startTime = System.currentTimeMillis();
 		startCooling = -1;
-		statusWindow = new StatusMessage(new JFrame());
+		if(org.reprap.Main.noGUI())
+			statusWindow = null;
+		else
+			statusWindow = new StatusMessage(new JFrame());
 		forceSelection = true;
 		
 		//load extruder prefs
@@ -294,6 +310,7 @@ public abstract class GenericRepRap implements CartesianPrinter
 	
 	public void refreshPreferences()
 	{
+		config = MachineConfig.refresh();
 		try
 		{
 			//load axis prefs
@@ -478,7 +495,7 @@ public abstract class GenericRepRap implements CartesianPrinter
 		// Don't home the first layer
 		// The startup procedure has already done that
 
-		if(lc.getMachineLayer() > 0 && Preferences.loadGlobalBool("InterLayerCooling"))
+		if(lc.getMachineLayer() > 0 && config.getInterLayerCooling())
 		{
 			double liftZ = -1;
 			for(int i = 0; i < extruders.length; i++)
@@ -725,6 +742,14 @@ public abstract class GenericRepRap implements CartesianPrinter
 	{
 		return extruders;
 	}
+
+	/* (non-Javadoc)
+	 * @see org.reprap.Printer#getConfig()
+	 */
+	public MachineConfig getConfig()
+	{
+		return config;
+	}
 	
 //	public void delay(long millis)
 //	{
@@ -837,16 +862,13 @@ public abstract class GenericRepRap implements CartesianPrinter
 	
 	private void checkCoordinates(double x, double y, double z)
 	{
-		try
-		{
-		if(x > Preferences.loadGlobalDouble("WorkingX(mm)") || x < 0)
-			Debug.e("Attempt to move x to " + x + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingX(mm)") + "]");
-		if(y > Preferences.loadGlobalDouble("WorkingY(mm)") || y < 0)
-			Debug.e("Attempt to move y to " + y + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingY(mm)") + "]");
-		if(z > Preferences.loadGlobalDouble("WorkingZ(mm)") || z < 0)
-			Debug.e("Attempt to move z to " + z + " which is outside [0, " + Preferences.loadGlobalDouble("WorkingZ(mm)") + "]");
-		} catch (Exception e)
-		{}
+		MachineConfig c = config;
+		if(x > c.getWorkingX() || x < 0)
+			Debug.e("Attempt to move x to " + x + " which is outside [0, " + c.getWorkingX() + "]");
+		if(y > c.getWorkingY() || y < 0)
+			Debug.e("Attempt to move y to " + y + " which is outside [0, " + c.getWorkingY() + "]");
+		if(z > c.getWorkingZ() || z < 0)
+			Debug.e("Attempt to move z to " + z + " which is outside [0, " + c.getWorkingZ() + "]");
 	}
 	
 	/* (non-Javadoc)
@@ -870,6 +892,29 @@ public abstract class GenericRepRap implements CartesianPrinter
 		XYEAtZero = false;
 	}
 	
+	/**
+	 * Print an arc as a series of short straight lines (for machines that can't do arcs themselves).
+	 * @see org.reprap.Printer#printArcTo(double, double, double, double, boolean, double, double, boolean, boolean)
+	 */
+	public void printArcTo(double x, double y, double cx, double cy, boolean clockwise, double z, double feedrate, 
+			boolean stopExtruder, boolean closeValve) throws RepRapException, IOException, Exception
+	{
+		double r = Math.sqrt((currentX - cx)*(currentX - cx) + (currentY - cy)*(currentY - cy));
+		double a0 = Math.atan2(currentY - cy, currentX - cx);
+		double a1 = Math.atan2(y - cy, x - cx);
+		double sweep = clockwise ? a0 - a1 : a1 - a0;
+		if(sweep <= 0)
+			sweep += 2*Math.PI;
+		int steps = Math.max(1, (int)Math.ceil(sweep/Math.toRadians(5)));
+		double step = (clockwise ? -sweep : sweep)/steps;
+		for(int i = 1; i < steps; i++)
+		{
+			double a = a0 + step*i;
+			printTo(cx + r*Math.cos(a), cy + r*Math.sin(a), z, feedrate, false, false);
+		}
+		printTo(x, y, z, feedrate, stopExtruder, closeValve);
+	}
+	
 	public void singleMove(double x, double y, double z, double feedrate, boolean really)
 	{
 		try
@@ -1151,7 +1196,11 @@ public abstract class GenericRepRap implements CartesianPrinter
 	}
 
 	public void setMessage(String message) {
-		if (message == null)
+		if (statusWindow == null)
+		{
+			if(message != null)
+				Debug.d(message);
+		} else if (message == null)
 			statusWindow.setVisible(false);
 		else {
 			statusWindow.setMessage(message);
@@ -1160,11 +1209,16 @@ public abstract class GenericRepRap implements CartesianPrinter
 	}
 	
 	public boolean isCancelled() {
+		if (statusWindow == null)
+			return cancelled;
 		return statusWindow.isCancelled();
 	}
 
 	public void setCancelled(boolean isCancelled) {
-		statusWindow.setCancelled(isCancelled);
+		if (statusWindow == null)
+			cancelled = isCancelled;
+		else
+			statusWindow.setCancelled(isCancelled);
 	}
 	
 	
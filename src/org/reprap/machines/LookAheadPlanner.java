@@ -0,0 +1,144 @@
+package org.reprap.machines;
+
+/**
+ * Plans the speeds at the corners of a path of moves, RepRap style (the speed
+ * given for each move is the speed to reach at its end, changing linearly from
+ * the speed at its start).
+ *
+ * The speed allowed through each corner comes from the junction deviation: the
+ * head is taken round an arc that stays within that distance of the corner, at
+ * the speed that keeps the sideways acceleration within the limit.  It is never
+ * less than the minimum speed (the speed the machine can start and stop at
+ * without accelerating) nor more than the maximum.  A backward pass then makes
+ * sure that the machine can always slow down in time for the corners coming up, and
+ * a forward pass that it can reach the speeds planned.
+ *
+ * The backward pass for each corner only looks lookAhead moves ahead, and
+ * assumes the machine must be down to the minimum speed after that, just as the
+ * planner in the firmware does with its buffer of moves.
+ */
+public class LookAheadPlanner
+{
+	/**
+	 * How many moves ahead to look
+	 */
+	private int lookAhead;
+
+	/**
+	 * How far (mm) the head may cut inside a corner
+	 */
+	private double junctionDeviation;
+
+	/**
+	 * Working space
+	 */
+	private double[] lengths = new double[0];
+	private double[] limits = new double[0];
+
+	/**
+	 * @param moves how many moves ahead to look
+	 * @param deviation the junction deviation (mm)
+	 */
+	public LookAheadPlanner(int moves, double deviation)
+	{
+		lookAhead = Math.max(1, moves);
+		junctionDeviation = deviation;
+	}
+
+	/**
+	 * The fastest the head can go round a corner.  (ux1, uy1) is the unit vector
+	 * along the move into it, (ux2, uy2) the one along the move out.
+	 * @return the speed (between minSpeed and maxSpeed)
+	 */
+	public double junctionSpeed(double ux1, double uy1, double ux2, double uy2, double minSpeed,
+			double maxSpeed, double acceleration)
+	{
+		// Half the angle between the reversed incoming move and the outgoing one;
+		// 90 degrees if we're going straight on
+
+		double cosTheta = -(ux1*ux2 + uy1*uy2);
+		if(cosTheta < -0.999999)
+			return maxSpeed;
+		if(cosTheta > 0.999999)
+			return minSpeed; // Straight back the way we came (rounding can put this over 1)
+		double sinHalf = Math.sqrt(0.5*(1 - cosTheta));
+		double r = junctionDeviation*sinHalf/(1 - sinHalf);
+		double v = Math.sqrt(acceleration*r);
+		return Math.max(minSpeed, Math.min(maxSpeed, v));
+	}
+
+	private void room(int n)
+	{
+		if(lengths.length >= n)
+			return;
+		lengths = new double[2*n];
+		limits = new double[2*n];
+	}
+
+	/**
+	 * Plan the speeds for the path through points 0 to n - 1.  The machine is at minSpeed
+	 * at the start and the end.
+	 * @param xs
+	 * @param ys
+	 * @param n
+	 * @param minSpeed
+	 * @param maxSpeed
+	 * @param acceleration
+	 * @param speeds the speed at each point (the speed at which to end the move to it)
+	 */
+	public void plan(double[] xs, double[] ys, int n, double minSpeed, double maxSpeed,
+			double acceleration, double[] speeds)
+	{
+		if(n <= 0)
+			return;
+		room(n);
+
+		// lengths[i] is the length of the move from point i - 1 to point i
+
+		lengths[0] = 0;
+		for(int i = 1; i < n; i++)
+		{
+			double dx = xs[i] - xs[i - 1];
+			double dy = ys[i] - ys[i - 1];
+			lengths[i] = Math.sqrt(dx*dx + dy*dy);
+		}
+
+		// The corner limits.  Moves of no length are ignored for the angles.
+
+		limits[0] = minSpeed;
+		limits[n - 1] = minSpeed;
+		int last = -1;
+		for(int i = 1; i < n - 1; i++)
+		{
+			if(lengths[i] > 0)
+				last = i;
+			int next = i + 1;
+			while(next < n && lengths[next] <= 0)
+				next++;
+			if(last < 0 || next >= n)
+			{
+				limits[i] = minSpeed;
+				continue;
+			}
+			double ux1 = (xs[last] - xs[last - 1])/lengths[last];
+			double uy1 = (ys[last] - ys[last - 1])/lengths[last];
+			double ux2 = (xs[next] - xs[next - 1])/lengths[next];
+			double uy2 = (ys[next] - ys[next - 1])/lengths[next];
+			limits[i] = junctionSpeed(ux1, uy1, ux2, uy2, minSpeed, maxSpeed, acceleration);
+		}
+
+		// Backward pass over the look-ahead window for each point, then forward pass
+
+		double twoA = 2*acceleration;
+		speeds[0] = minSpeed;
+		for(int i = 1; i < n; i++)
+		{
+			int h = Math.min(i + lookAhead, n - 1);
+			double v = h < n - 1 ? minSpeed : limits[h];
+			for(int j = h - 1; j >= i; j--)
+				v = Math.min(limits[j], Math.sqrt(v*v + twoA*lengths[j + 1]));
+			double up = Math.sqrt(speeds[i - 1]*speeds[i - 1] + twoA*lengths[i]);
+			speeds[i] = Math.min(v, up);
+		}
+	}
+}
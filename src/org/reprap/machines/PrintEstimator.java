@@ -0,0 +1,1043 @@
+package org.reprap.machines;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.reprap.MachineConfig;
+import org.reprap.Preferences;
+import org.reprap.utilities.Debug;
+
+/**
+ * Works out how long a G-code file will take to print, and how much filament it
+ * will use, without a machine.  The G-codes are fed in a line at a time (or a whole
+ * file read as bytes, which is fast enough for very big files) and each move is
+ * timed with a trapezoidal speed profile: accelerate, cruise at the feedrate (limited
+ * by the fastest each axis, and the extruder, can go), then slow down.  The fastest
+ * speed through a corner comes from the junction deviation, as in the LookAheadPlanner;
+ * the machine stops dead before and after Z moves and arcs.  Moves are queued between
+ * stops and planned in both directions, so that a run of short moves is entered no
+ * faster than the machine can stop by the end of it.  Each tool (T-code) has the
+ * extruder limits and filament diameter of its own extruder.  Dwells (G4) take the time asked for, and
+ * heat-up waits (M109, M190) the time taken to heat at a fixed rate from whatever
+ * temperature the heater had reached, with the machine stopped.
+ *
+ * The time is also totalled for each layer.  Layers start at ";#!LAYER:" comments
+ * if there are any, and otherwise whenever Z goes up.  Layer 0 is everything before
+ * the first layer.
+ *
+ * All the working is done in mm and seconds.
+ */
+public class PrintEstimator
+{
+	/**
+	 * Rates of heating and cooling (C/s), and where the heaters start
+	 */
+	private static final double extruderHeating = 2.5;
+	private static final double bedHeating = 0.3;
+	private static final double cooling = 1.0;
+	private static final double roomTemperature = 20;
+
+	private static final int maxTools = 16;
+
+	/**
+	 * Machine limits
+	 */
+	private double maxXY, maxZ;
+	private double accelerationXY, accelerationZ;
+	private LookAheadPlanner corners;
+
+	/**
+	 * Extruder limits and filament cross-section area for each tool
+	 */
+	private double[] maxE = new double[maxTools];
+	private double[] accelerationE = new double[maxTools];
+	private double[] feedArea = new double[maxTools];
+
+	/**
+	 * Where the machine is, and how it is working
+	 */
+	private double x = 0, y = 0, z = 0, e = 0;
+	private double feedrate;
+	private boolean relative = false;
+	private boolean relativeE = false;
+	private double units = 1;
+	private int tool = 0;
+
+	/**
+	 * The moves that have been read but not timed, as we don't yet know how fast
+	 * they can go.  For each its length, top speed, acceleration, the fastest it can
+	 * be started at (from the corner into it), the speed the backward pass allows it
+	 * to be started at, and its layer.  queued moves are waiting; the first starts at
+	 * startSpeed.
+	 */
+	private int queued = 0;
+	private double[] qLength = new double[256];
+	private double[] qSpeed = new double[256];
+	private double[] qAcceleration = new double[256];
+	private double[] qEntryMax = new double[256];
+	private double[] qEntry = new double[256];
+	private int[] qLayer = new int[256];
+	private double startSpeed = 0;
+
+	/**
+	 * The unit vector in XY along the last move queued; the next can only go round
+	 * a corner from it without stopping if lastXY is true.
+	 */
+	private double lastUx, lastUy;
+	private boolean lastXY = false;
+
+	/**
+	 * The heaters: temperatures when last set, targets, and when they were set.
+	 * The bed is the last one.
+	 */
+	private double[] heaterTemp = new double[maxTools + 1];
+	private double[] heaterTarget = new double[maxTools + 1];
+	private double[] heaterSetAt = new double[maxTools + 1];
+
+	/**
+	 * Results
+	 */
+	private double time = 0;
+	private double filament = 0;
+	private double volume = 0;
+	private double[] layerTimes = new double[64];
+	private int layer = 0;
+	private boolean layerComments = false;
+	private long lines = 0;
+
+	/**
+	 * Working space for the line being read
+	 */
+	private byte[] lineBuffer = new byte[256];
+
+	/**
+	 * The start of a line that read(byte[], int, int) hasn't seen the end of
+	 */
+	private byte[] partialLine = new byte[256];
+	private int partial = 0;
+	private double[] values = new double[26];
+	private long[] present = new long[26];
+
+	/**
+	 * Reciprocals of powers of ten, for numbers with up to 17 digits after the point
+	 */
+	private static final double[] tenths = new double[18];
+	static
+	{
+		double p = 1;
+		for(int i = 0; i < tenths.length; i++)
+		{
+			tenths[i] = 1/p;
+			p *= 10;
+		}
+	}
+
+	/**
+	 * Make an estimator with the machine limits from the preferences.  Each extruder's
+	 * limits go to the tool with its address; tools no extruder uses get Extruder0's.
+	 */
+	public PrintEstimator()
+	{
+		this(loadDouble("MaximumFeedrateX(mm/minute)", 15000),
+				loadDouble("MaximumFeedrateZ(mm/minute)", 200),
+				loadDouble("Extruder0_FastEFeedrate(mm/minute)", 40000),
+				loadDouble("MaxXYAcceleration(mm/mininute/minute)", 1200000),
+				loadDouble("MaxZAcceleration(mm/mininute/minute)", 3000),
+				loadDouble("Extruder0_MaxAcceleration(mm/minute/minute)", 1200000),
+				loadDouble("Extruder0_FeedDiameter(mm)", 1.75),
+				MachineConfig.get().getJunctionDeviation());
+		int extruders = loadInt("NumberOfExtruders", 1);
+		
+		// Go backwards so that the first extruder at an address sets its tool
+		
+		for(int i = extruders - 1; i >= 0; i--)
+		{
+			String p = "Extruder" + i + "_";
+			int t = loadInt(p + "Address", i);
+			if(t < 0 || t >= maxTools)
+				continue;
+			setTool(t, loadDouble(p + "FastEFeedrate(mm/minute)", 40000),
+					loadDouble(p + "MaxAcceleration(mm/minute/minute)", 1200000),
+					loadDouble(p + "FeedDiameter(mm)", 1.75));
+		}
+	}
+
+	/**
+	 * The extruder limits and filament diameter are used for every tool until
+	 * setTool() is called.
+	 * @param maxXYFeedrate (mm/minute)
+	 * @param maxZFeedrate (mm/minute)
+	 * @param maxEFeedrate (mm/minute)
+	 * @param xyAcceleration (mm/minute/minute)
+	 * @param zAcceleration (mm/minute/minute)
+	 * @param eAcceleration (mm/minute/minute)
+	 * @param diameter of the filament (mm)
+	 * @param junctionDeviation (mm)
+	 */
+	public PrintEstimator(double maxXYFeedrate, double maxZFeedrate, double maxEFeedrate, double xyAcceleration,
+			double zAcceleration, double eAcceleration, double diameter, double junctionDeviation)
+	{
+		maxXY = maxXYFeedrate/60;
+		maxZ = maxZFeedrate/60;
+		accelerationXY = xyAcceleration/3600;
+		accelerationZ = zAcceleration/3600;
+		for(int t = 0; t < maxTools; t++)
+			setTool(t, maxEFeedrate, eAcceleration, diameter);
+		corners = new LookAheadPlanner(1, junctionDeviation);
+		feedrate = maxXY;
+		for(int i = 0; i <= maxTools; i++)
+		{
+			heaterTemp[i] = roomTemperature;
+			heaterTarget[i] = roomTemperature;
+		}
+	}
+
+	/**
+	 * Set the extruder limits for a tool
+	 * @param t the tool (as in T-codes)
+	 * @param maxEFeedrate (mm/minute)
+	 * @param eAcceleration (mm/minute/minute)
+	 * @param diameter of the filament (mm); not positive if it isn't fed as filament
+	 */
+	public void setTool(int t, double maxEFeedrate, double eAcceleration, double diameter)
+	{
+		maxE[t] = maxEFeedrate/60;
+		accelerationE[t] = eAcceleration/3600;
+		feedArea[t] = diameter > 0 ? Math.PI*diameter*diameter*0.25 : 0;
+	}
+
+	private static double loadDouble(String name, double dflt)
+	{
+		try
+		{
+			return Preferences.loadGlobalDouble(name);
+		} catch (Exception ex)
+		{
+			Debug.e("PrintEstimator: " + name + " - " + ex.toString());
+			return dflt;
+		}
+	}
+
+	private static int loadInt(String name, int dflt)
+	{
+		try
+		{
+			return Preferences.loadGlobalInt(name);
+		} catch (Exception ex)
+		{
+			Debug.e("PrintEstimator: " + name + " - " + ex.toString());
+			return dflt;
+		}
+	}
+
+	/**
+	 * @return the estimated time so far (s)
+	 */
+	public double getTime()
+	{
+		return time;
+	}
+
+	/**
+	 * @return the length of filament fed in so far, less any taken back (mm)
+	 */
+	public double getFilamentLength()
+	{
+		return filament;
+	}
+
+	/**
+	 * @return the volume of filament fed in so far (mm^3)
+	 */
+	public double getFilamentVolume()
+	{
+		return volume;
+	}
+
+	/**
+	 * @return the number of layers (layer 0 is anything before the first one)
+	 */
+	public int getLayers()
+	{
+		return layer + 1;
+	}
+
+	/**
+	 * @param l
+	 * @return the estimated time for layer l (s)
+	 */
+	public double getLayerTime(int l)
+	{
+		return layerTimes[l];
+	}
+
+	/**
+	 * @return the number of lines read
+	 */
+	public long getLines()
+	{
+		return lines;
+	}
+
+	/**
+	 * Read a whole G-code file.  finish() is called at the end.
+	 * @param in
+	 * @throws IOException
+	 */
+	public void read(InputStream in) throws IOException
+	{
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while((n = in.read(buf)) > 0)
+			read(buf, 0, n);
+		finish();
+	}
+
+	/**
+	 * Take account of the G-code in bytes start to end - 1 of b.  These need not
+	 * start or end at a line break; the part of a line after the last one is kept
+	 * till the rest of it comes in the next call (or finish()).
+	 * @param b
+	 * @param start
+	 * @param end
+	 */
+	public void read(byte[] b, int start, int end)
+	{
+		int i = start;
+		if(partial > 0)
+		{
+			int e = lineEnd(b, i, end);
+			keep(b, i, e);
+			if(e == end)
+				return;
+			parse(partialLine, 0, partial);
+			partial = 0;
+			i = e + 1;
+		}
+		int last = end;
+		while(last > i && b[last - 1] != '\n')
+			last--;
+		while(i < last)
+			i = parse(b, i, last) + 1;
+		keep(b, last, end);
+	}
+
+	/**
+	 * Add bytes start to end - 1 of b to the unfinished line
+	 */
+	private void keep(byte[] b, int start, int end)
+	{
+		int n = end - start;
+		if(n <= 0)
+			return;
+		if(partial + n > partialLine.length)
+		{
+			byte[] p = new byte[2*(partial + n)];
+			System.arraycopy(partialLine, 0, p, 0, partial);
+			partialLine = p;
+		}
+		System.arraycopy(b, start, partialLine, partial, n);
+		partial += n;
+	}
+
+	/**
+	 * Take account of one line of G-code
+	 * @param s
+	 */
+	public void line(String s)
+	{
+		int n = s.length();
+		if(n > lineBuffer.length)
+			lineBuffer = new byte[2*n];
+		for(int i = 0; i < n; i++)
+			lineBuffer[i] = (byte)s.charAt(i);
+		line(lineBuffer, 0, n);
+	}
+
+	/**
+	 * Take account of one line of G-code held in bytes start to end - 1 of b
+	 * @param b
+	 * @param start
+	 * @param end
+	 */
+	public void line(byte[] b, int start, int end)
+	{
+		parse(b, start, end);
+	}
+
+	/**
+	 * Take account of the line of G-code starting at b[i], which ends at the
+	 * first newline or at end
+	 * @return the index of the newline (or end)
+	 */
+	private int parse(byte[] b, int i, int end)
+	{
+		lines++;
+		while(i < end && b[i] <= ' ' && b[i] != '\n')
+			i++;
+		if(i >= end || b[i] == '\n')
+			return i;
+		if(b[i] == ';')
+		{
+			comment(b, i, end);
+			return lineEnd(b, i, end);
+		}
+
+		// Pick out the letters and the numbers after them.  A letter is
+		// present in this line if its entry in present[] is the line number.
+
+		while(i < end)
+		{
+			int c = b[i];
+			if(c == '\n')
+				break;
+			if(c == ';' || c == '*')
+			{
+				i = lineEnd(b, i, end);
+				break;
+			}
+			if(c == '(')
+			{
+				while(i < end && b[i] != ')' && b[i] != '\n')
+					i++;
+				if(i < end && b[i] == ')')
+					i++;
+				continue;
+			}
+			if(c >= 'a' && c <= 'z')
+				c -= 'a' - 'A';
+			if(c < 'A' || c > 'Z')
+			{
+				i++;
+				continue;
+			}
+			i = number(b, i + 1, end);
+			values[c - 'A'] = parsed;
+			present[c - 'A'] = lines;
+		}
+
+		if(has('G'))
+			gCode((int)values['G' - 'A']);
+		else if(has('M'))
+			mCode((int)values['M' - 'A']);
+		else if(has('T'))
+			tool = Math.max(0, Math.min(maxTools - 1, (int)values['T' - 'A']));
+		return i;
+	}
+
+	/**
+	 * @return the index of the first newline from b[i] on (or end)
+	 */
+	private static int lineEnd(byte[] b, int i, int end)
+	{
+		while(i < end && b[i] != '\n')
+			i++;
+		return i;
+	}
+
+	/**
+	 * The last number read by number()
+	 */
+	private double parsed;
+
+	/**
+	 * Read the number starting at b[i] into parsed.
+	 * @return the index of the first byte after it
+	 */
+	private int number(byte[] b, int i, int end)
+	{
+		while(i < end && b[i] == ' ')
+			i++;
+		int first = i;
+		boolean negative = false;
+		if(i < end && (b[i] == '-' || b[i] == '+'))
+		{
+			negative = b[i] == '-';
+			i++;
+		}
+		long whole = 0;
+		int digits = 0;
+		while(i < end && b[i] >= '0' && b[i] <= '9')
+		{
+			whole = whole*10 + (b[i] - '0');
+			digits++;
+			i++;
+		}
+		int places = 0;
+		if(i < end && b[i] == '.')
+		{
+			i++;
+			while(i < end && b[i] >= '0' && b[i] <= '9')
+			{
+				whole = whole*10 + (b[i] - '0');
+				places++;
+				digits++;
+				i++;
+			}
+		}
+		if(digits > 17 || (i + 1 < end && (b[i] == 'e' || b[i] == 'E') &&
+				(b[i + 1] == '-' || b[i + 1] == '+' || (b[i + 1] >= '0' && b[i + 1] <= '9'))))
+			return slowNumber(b, first, i, end);
+		parsed = (negative ? -whole : whole)*tenths[places];
+		return i;
+	}
+
+	/**
+	 * Read a number that is too long, or has an exponent, the slow way.  This is
+	 * kept out of number() so that number() is small enough to be compiled inline.
+	 * @param first the index of the start of the number
+	 * @param i the index of the end of its digits
+	 * @return the index of the first byte after it
+	 */
+	private int slowNumber(byte[] b, int first, int i, int end)
+	{
+		if(i < end && (b[i] == 'e' || b[i] == 'E'))
+		{
+			i++;
+			if(i < end && (b[i] == '-' || b[i] == '+'))
+				i++;
+		}
+		while(i < end && ((b[i] >= '0' && b[i] <= '9') || b[i] == '.'))
+			i++;
+		try
+		{
+			parsed = Double.parseDouble(new String(b, first, i - first));
+		} catch (NumberFormatException ex)
+		{
+			parsed = 0;
+		}
+		return i;
+	}
+
+	private void comment(byte[] b, int i, int end)
+	{
+		if(end - i < 9 || b[i + 1] != '#' || b[i + 2] != '!' || b[i + 3] != 'L' || b[i + 4] != 'A' ||
+				b[i + 5] != 'Y' || b[i + 6] != 'E' || b[i + 7] != 'R' || b[i + 8] != ':')
+			return;
+		if(!layerComments)
+		{
+			// Anything before the first one goes in layer 0
+			
+			for(int l = 1; l <= layer; l++)
+			{
+				layerTimes[0] += layerTimes[l];
+				layerTimes[l] = 0;
+			}
+			layer = 0;
+			for(int q = 0; q < queued; q++)
+				qLayer[q] = 0;
+			layerComments = true;
+		}
+		newLayer();
+	}
+
+	private void newLayer()
+	{
+		layer++;
+		if(layer >= layerTimes.length)
+		{
+			double[] lt = new double[2*layerTimes.length];
+			System.arraycopy(layerTimes, 0, lt, 0, layerTimes.length);
+			layerTimes = lt;
+		}
+	}
+
+	private boolean has(char c)
+	{
+		return present[c - 'A'] == lines;
+	}
+
+	private double value(char c)
+	{
+		return values[c - 'A'];
+	}
+
+	private void gCode(int g)
+	{
+		switch(g)
+		{
+		case 0:
+		case 1:
+			move(false, false);
+			break;
+
+		case 2:
+		case 3:
+			move(true, g == 2);
+			break;
+
+		case 4:
+			stop();
+			if(has('P'))
+				wait(value('P')*0.001);
+			else if(has('S'))
+				wait(value('S'));
+			break;
+
+		case 20:
+			units = 25.4;
+			break;
+
+		case 21:
+			units = 1;
+			break;
+
+		case 28:
+			if(!has('X') && !has('Y') && !has('Z'))
+			{
+				present['X' - 'A'] = lines;
+				present['Y' - 'A'] = lines;
+				present['Z' - 'A'] = lines;
+			}
+			values['X' - 'A'] = 0;
+			values['Y' - 'A'] = 0;
+			values['Z' - 'A'] = 0;
+			present['E' - 'A'] = 0;
+			present['F' - 'A'] = 0;
+			boolean r = relative;
+			relative = false;
+			double f = feedrate;
+			feedrate = 1.0e10;
+			move(false, false);
+			feedrate = f;
+			relative = r;
+			break;
+
+		case 90:
+			relative = false;
+			relativeE = false;
+			break;
+
+		case 91:
+			relative = true;
+			relativeE = true;
+			break;
+
+		case 92:
+			if(has('X'))
+				x = value('X')*units;
+			if(has('Y'))
+				y = value('Y')*units;
+			if(has('Z'))
+				z = value('Z')*units;
+			if(has('E'))
+				e = value('E')*units;
+			break;
+
+		default:
+		}
+	}
+
+	private void mCode(int m)
+	{
+		int t = has('T') ? Math.max(0, Math.min(maxTools - 1, (int)value('T'))) : tool;
+		switch(m)
+		{
+		case 82:
+			relativeE = false;
+			break;
+
+		case 83:
+			relativeE = true;
+			break;
+
+		case 104:
+			if(has('S'))
+				setHeater(t, value('S'));
+			break;
+
+		case 109:
+			stop();
+			if(has('S'))
+				setHeater(t, value('S'));
+			heatUp(t, extruderHeating);
+			break;
+
+		case 140:
+			if(has('S'))
+				setHeater(maxTools, value('S'));
+			break;
+
+		case 190:
+			stop();
+			if(has('S'))
+				setHeater(maxTools, value('S'));
+			heatUp(maxTools, bedHeating);
+			break;
+
+		default:
+		}
+	}
+
+	/**
+	 * How hot is heater h now?
+	 */
+	private double temperature(int h, double rate)
+	{
+		double dt = time - heaterSetAt[h];
+		if(heaterTarget[h] >= heaterTemp[h])
+			return Math.min(heaterTarget[h], heaterTemp[h] + rate*dt);
+		return Math.max(heaterTarget[h], heaterTemp[h] - cooling*dt);
+	}
+
+	private void setHeater(int h, double target)
+	{
+		heaterTemp[h] = temperature(h, h == maxTools ? bedHeating : extruderHeating);
+		heaterTarget[h] = target;
+		heaterSetAt[h] = time;
+	}
+
+	/**
+	 * Wait until heater h has got up to its target
+	 */
+	private void heatUp(int h, double rate)
+	{
+		double now = temperature(h, rate);
+		if(heaterTarget[h] > now)
+			wait((heaterTarget[h] - now)/rate);
+	}
+
+	private void wait(double seconds)
+	{
+		if(seconds <= 0)
+			return;
+		time += seconds;
+		layerTimes[layer] += seconds;
+	}
+
+	/**
+	 * A G0, G1, G2 or G3
+	 */
+	private void move(boolean arc, boolean clockwise)
+	{
+		if(has('F') && value('F') > 0)
+			feedrate = value('F')*units/60;
+		double nx = x, ny = y, nz = z, ne = e;
+		if(has('X'))
+			nx = relative ? x + value('X')*units : value('X')*units;
+		if(has('Y'))
+			ny = relative ? y + value('Y')*units : value('Y')*units;
+		if(has('Z'))
+			nz = relative ? z + value('Z')*units : value('Z')*units;
+		if(has('E'))
+			ne = relativeE ? e + value('E')*units : value('E')*units;
+		double dx = nx - x, dy = ny - y, dz = nz - z, de = ne - e;
+		filament += de;
+		volume += de*feedArea[tool];
+
+		if(dz > 0 && !layerComments)
+		{
+			stop();
+			newLayer();
+		}
+
+		double xy = Math.sqrt(dx*dx + dy*dy);
+		double ux = 0, uy = 0;
+		if(xy > 0)
+		{
+			double r = 1/xy;
+			ux = dx*r;
+			uy = dy*r;
+		}
+		if(arc)
+		{
+			double cx = x + (has('I') ? value('I')*units : 0);
+			double cy = y + (has('J') ? value('J')*units : 0);
+			double r = Math.sqrt((x - cx)*(x - cx) + (y - cy)*(y - cy));
+			double a0 = Math.atan2(y - cy, x - cx);
+			double a1 = Math.atan2(ny - cy, nx - cx);
+			double sweep = clockwise ? a0 - a1 : a1 - a0;
+			if(sweep <= 0)
+				sweep += 2*Math.PI;
+			xy = r*sweep;
+		}
+		x = nx;
+		y = ny;
+		z = nz;
+		e = ne;
+
+		double length = dz == 0 ? xy : Math.sqrt(xy*xy + dz*dz);
+		double speed = feedrate;
+		double acceleration;
+		if(length <= 0)
+		{
+			// Just the extruder
+
+			length = Math.abs(de);
+			if(length <= 0)
+				return;
+			speed = Math.min(speed, maxE[tool]);
+			acceleration = accelerationE[tool];
+		} else
+		{
+			if(dz == 0)
+			{
+				speed = Math.min(speed, maxXY);
+				acceleration = accelerationXY;
+			} else
+			{
+				acceleration = Double.MAX_VALUE;
+				if(xy > 0)
+				{
+					speed = Math.min(speed, maxXY*length/xy);
+					acceleration = accelerationXY*length/xy;
+				}
+				speed = Math.min(speed, maxZ*length/Math.abs(dz));
+				acceleration = Math.min(acceleration, accelerationZ*length/Math.abs(dz));
+			}
+			
+			// The extruder has to keep up too
+			
+			double ae = Math.abs(de);
+			if(speed*ae > maxE[tool]*length && maxE[tool] > 0)
+				speed = maxE[tool]*length/ae;
+			if(acceleration*ae > accelerationE[tool]*length && accelerationE[tool] > 0)
+				acceleration = accelerationE[tool]*length/ae;
+		}
+
+		// How fast can we go from the last move into this one?  If
+		// we have to stop, everything before can be timed now.
+
+		boolean turns = xy > 0 && dz == 0 && !arc;
+		double entry = 0;
+		if(turns && lastXY && queued > 0)
+			entry = corners.junctionSpeed(lastUx, lastUy, ux, uy, 0, Math.min(speed, qSpeed[queued - 1]),
+					Math.min(acceleration, qAcceleration[queued - 1]));
+		else
+			stop();
+		
+		if(queued == qLength.length)
+		{
+			plan(false);
+			if(queued == qLength.length)
+				room(2*queued);
+		}
+		qLength[queued] = length;
+		qSpeed[queued] = speed;
+		qAcceleration[queued] = acceleration;
+		qEntryMax[queued] = entry;
+		qLayer[queued] = layer;
+		queued++;
+		lastUx = ux;
+		lastUy = uy;
+		lastXY = turns;
+	}
+
+	/**
+	 * Make the queue big enough for n moves
+	 */
+	private void room(int n)
+	{
+		qLength = grow(qLength, n);
+		qSpeed = grow(qSpeed, n);
+		qAcceleration = grow(qAcceleration, n);
+		qEntryMax = grow(qEntryMax, n);
+		qEntry = new double[n];
+		int[] l = new int[n];
+		System.arraycopy(qLayer, 0, l, 0, queued);
+		qLayer = l;
+	}
+
+	private double[] grow(double[] a, int n)
+	{
+		double[] b = new double[n];
+		System.arraycopy(a, 0, b, 0, queued);
+		return b;
+	}
+
+	/**
+	 * Plan and time the queued moves.  If all is true the machine stops at the end of
+	 * the last one.  Otherwise more moves are still to come, and only those before a
+	 * move that can be started at its fastest however the rest go are timed; their speeds
+	 * can't change whatever comes next.
+	 * @param all
+	 */
+	private void plan(boolean all)
+	{
+		// Backward pass: the fastest each move can be started at and still slow down
+		// in time for the ones after it
+		
+		double v = 0;
+		for(int i = queued - 1; i >= 0; i--)
+		{
+			double a = qAcceleration[i];
+			double m = qEntryMax[i];
+			double v2 = v*v + 2*a*qLength[i];
+			if(a <= 0 || m*m <= v2)
+				v = m;
+			else
+				v = Math.sqrt(v2);
+			qEntry[i] = v;
+		}
+		
+		int n = queued;
+		if(!all)
+		{
+			n--;
+			while(n > 0 && qEntry[n] < qEntryMax[n])
+				n--;
+			if(n <= 0)
+				return;
+		}
+		
+		// Forward pass: the fastest each move can get up to from the one before
+		
+		double v0 = startSpeed;
+		for(int i = 0; i < n; i++)
+		{
+			double s = qLength[i];
+			double a = qAcceleration[i];
+			double vMax = qSpeed[i];
+			if(v0 > vMax)
+				v0 = vMax;
+			double v1 = i + 1 < queued ? qEntry[i + 1] : 0;
+			double v2 = v0*v0 + 2*a*s;
+			if(a > 0 && v1*v1 > v2)
+				v1 = Math.sqrt(v2);
+			double t = moveTime(s, v0, v1, vMax, a);
+			time += t;
+			layerTimes[qLayer[i]] += t;
+			v0 = v1;
+		}
+		startSpeed = v0;
+		
+		queued -= n;
+		System.arraycopy(qLength, n, qLength, 0, queued);
+		System.arraycopy(qSpeed, n, qSpeed, 0, queued);
+		System.arraycopy(qAcceleration, n, qAcceleration, 0, queued);
+		System.arraycopy(qEntryMax, n, qEntryMax, 0, queued);
+		System.arraycopy(qLayer, n, qLayer, 0, queued);
+	}
+
+	/**
+	 * How long to go a distance s, starting at v0, ending at v1, going no faster than
+	 * vMax, and accelerating at a
+	 */
+	static double moveTime(double s, double v0, double v1, double vMax, double a)
+	{
+		if(vMax <= 0)
+			return 0;
+		if(a <= 0 || a == Double.MAX_VALUE)
+			return s/vMax;
+		double peak2 = a*s + 0.5*(v0*v0 + v1*v1);
+		double lower = Math.min(v0, v1);
+		double upper = Math.max(v0, v1);
+		if(peak2 <= upper*upper)
+		{
+			// Not room to change speed as much as wanted
+
+			double v = Math.sqrt(Math.max(0, upper*upper - 2*a*s));
+			return 2*s/(upper + Math.max(lower, v));
+		}
+		if(peak2 >= vMax*vMax)
+		{
+			// Up to vMax, cruise, and down again
+			
+			double up = vMax - v0;
+			double down = vMax - v1;
+			return (2*a*s + up*up + down*down)/(2*a*vMax);
+		}
+		return (2*Math.sqrt(peak2) - v0 - v1)/a;
+	}
+
+	/**
+	 * Bring the machine to a halt at the end of the last move
+	 */
+	private void stop()
+	{
+		if(queued > 0)
+			plan(true);
+		startSpeed = 0;
+		lastXY = false;
+	}
+
+	/**
+	 * Call at the end to time the last move
+	 */
+	public void finish()
+	{
+		if(partial > 0)
+		{
+			parse(partialLine, 0, partial);
+			partial = 0;
+		}
+		stop();
+	}
+
+	/**
+	 * Estimate the time for a G-code file
+	 * @param fileName
+	 * @return the estimate, or null if the file can't be read
+	 */
+	public static PrintEstimator estimateFile(String fileName)
+	{
+		PrintEstimator pe = new PrintEstimator();
+		try
+		{
+			FileInputStream in = new FileInputStream(fileName);
+			try
+			{
+				pe.read(in);
+			} finally
+			{
+				in.close();
+			}
+		} catch (IOException ex)
+		{
+			Debug.e("PrintEstimator.estimateFile(): can't read " + fileName + " - " + ex.toString());
+			return null;
+		}
+		return pe;
+	}
+
+	/**
+	 * @param s seconds
+	 * @return s as h:mm:ss
+	 */
+	public static String hms(double s)
+	{
+		long t = Math.round(s);
+		long h = t/3600;
+		long m = (t/60)%60;
+		long sec = t%60;
+		return h + ":" + (m < 10 ? "0" : "") + m + ":" + (sec < 10 ? "0" : "") + sec;
+	}
+
+	public String toString()
+	{
+		return "Estimated print time " + hms(time) + " for " + (getLayers() - 1) + " layers, filament " +
+				Math.round(filament) + "mm (" + Math.round(getFilamentVolume()) + "mm^3)";
+	}
+
+	/**
+	 * Estimate the time for G-code files.  With -layers the time for each layer is
+	 * printed too.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean perLayer = false;
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-layers"))
+			{
+				perLayer = true;
+				continue;
+			}
+			long start = System.nanoTime();
+			PrintEstimator pe = estimateFile(args[i]);
+			if(pe == null)
+				continue;
+			double s = (System.nanoTime() - start)*1.0e-9;
+			if(perLayer)
+			{
+				for(int l = 0; l < pe.getLayers(); l++)
+					System.out.println("Layer " + l + ": " + Math.round(pe.getLayerTime(l)*10)/10.0 + "s");
+			}
+			System.out.println(args[i] + ": " + pe + "  (" + pe.getLines() + " lines read in " +
+					Math.round(s*1000) + "ms)");
+		}
+	}
+}
@@ -173,6 +173,12 @@ public class Simulator extends GenericRepRap {
 		return null;		
 	}
 	
+	public String openGCodeFileForOutput(String fileName)
+	{
+		Debug.e("Simulator: cannot generate GCode file.");
+		return null;		
+	}
+	
 	public Thread filePlay()
 	{
 		return null;
@@ -193,6 +199,8 @@ public class Simulator extends GenericRepRap {
 	
 	public String getOutputFilename() { return "RepRapSimulatorOutput"; }
 
+	public PrintEstimator getEstimator() { return null; }
+
 	@Override
 	public String[] getSDFiles() 
 	{
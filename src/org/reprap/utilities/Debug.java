@@ -89,6 +89,16 @@ public class Debug {
 		System.out.flush();
 	}
 	
+	/**
+	 * Is comms debugging on?  Check this before building a message for c(s).
+	 * @return
+	 */
+	static public boolean c()
+	{
+		initialiseIfNeedBe();
+		return db.commsDebug;
+	}
+	
 	static public void c(String s)
 	{
 		initialiseIfNeedBe();
@@ -0,0 +1,83 @@
+package org.reprap.utilities;
+
+/**
+ * Counts what one stage of a pipeline (slicing, G-code generation, sending to
+ * the machine...) did during a build, so we can see which stage held the others up.
+ *
+ * Each stage takes its work from a queue.  The time a stage spends waiting for
+ * something to arrive in that queue is the time it was starved; the time whatever feeds
+ * it spends waiting for room in the queue is the back-pressure it applied.
+ */
+public class StageMetrics
+{
+	private String name;
+	private long items = 0;
+	private long busy = 0;
+	private long starved = 0;
+	private long backPressure = 0;
+	private int mostQueued = 0;
+
+	/**
+	 * @param name what the stage is called in reports
+	 */
+	public StageMetrics(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * The stage has done one more thing
+	 * @param ns how long it took
+	 */
+	public synchronized void done(long ns)
+	{
+		items++;
+		busy += ns;
+	}
+
+	/**
+	 * The stage has been working, but not on one of the things it passes on
+	 * @param ns how long for
+	 */
+	public synchronized void busy(long ns)
+	{
+		busy += ns;
+	}
+
+	/**
+	 * @param ns time the stage spent waiting for work
+	 */
+	public synchronized void starved(long ns)
+	{
+		starved += ns;
+	}
+
+	/**
+	 * @param ns time the stage before spent waiting for room in this stage's queue
+	 * @param queued how many things are now in the queue
+	 */
+	public synchronized void queued(long ns, int queued)
+	{
+		backPressure += ns;
+		if(queued > mostQueued)
+			mostQueued = queued;
+	}
+
+	public synchronized long items() { return items; }
+	public synchronized double busySeconds() { return busy*1.0e-9; }
+	public synchronized double starvedSeconds() { return starved*1.0e-9; }
+	public synchronized double backPressureSeconds() { return backPressure*1.0e-9; }
+	public synchronized int mostQueued() { return mostQueued; }
+
+	public synchronized String toString()
+	{
+		return name + ": " + items + " done, busy " + round(busySeconds()) + "s, starved " +
+			round(starvedSeconds()) + "s, held up the stage before for " + round(backPressureSeconds()) +
+			"s, most queued " + mostQueued;
+	}
+
+	private static double round(double s)
+	{
+		return Math.round(s*1000)/1000.0;
+	}
+}
@@ -16,9 +16,11 @@ import java.net.MalformedURLException;
 
 import java.io.Reader;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -82,6 +84,7 @@ public class StlFile implements Loader
   private boolean fromUrl = false;          // Usefull for binary files
   private boolean Ascii = true;             // File type Ascii -> true o binary -> false
   private String fileName = null;
+  private byte[] fileData = null;           // The whole file, if it has been read already
 
   // Arrays with coordinates and normals
   // Needed for reading ASCII files because its size is unknown until the end
@@ -462,7 +465,7 @@ public class StlFile implements Loader
    */
   private void readBinaryFile(String file) throws IOException
   {
-    FileInputStream data;                 // For reading the file
+    InputStream data;                     // For reading the file
     ByteBuffer dataBuffer;                // For reading in the correct endian
     byte[] Info=new byte[80];             // Header data
     byte[] Array_number= new byte[4];     // Holds the number of faces
@@ -480,8 +483,11 @@ public class StlFile implements Loader
       System.out.println("This version doesn't support reading binary files from internet");
     }
     else
-    { // It's a local file
-      data = new FileInputStream(file);
+    { // It's a local file, or already read
+      if(fileData != null)
+        data = new ByteArrayInputStream(fileData);
+      else
+        data = new FileInputStream(file);
 
       // First 80 bytes aren't important
       if(80 != data.read(Info))
@@ -641,6 +647,30 @@ public class StlFile implements Loader
     return load(reader);
   } // End of load(String)
 
+  /**
+   * The Stl file is loaded from the whole file, already read into memory
+   * (from an RFO file, say).  The file name is just for messages.
+   *
+   * @param filename The name of the file the data came from
+   * @param data The contents of the file
+   *
+   * @return Scene The scene with the object loaded.
+   *
+   * @throws FileNotFoundException
+   * @throws IncorrectFormatException
+   * @throws ParsingErrorException
+   */
+  public Scene load(String filename, byte[] data) throws FileNotFoundException,
+					    IncorrectFormatException,
+					    ParsingErrorException
+  {
+    setFileName(filename);
+    fileData = data;
+
+    Reader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+    return load(reader);
+  } // End of load(String, byte[])
+
    /**
    * The Stl file is loaded off of the web.
    * To attach the model to your scene, call getSceneGroup() on
@@ -0,0 +1,208 @@
+package org.reprap.geometry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.reprap.BatchSlicer;
+
+/**
+ * Checks that sparse infill (SparseInfillLayers > 1) lays N times the material
+ * along its paths, and that every polygon's retract at the end is taken back by
+ * the prime at the start of the next, so nothing is lost between polygons.
+ *
+ * A box is sliced twice, once with one layer of infill at a time and once with
+ * N, and the extrusion per mm of each polygon is compared.  The G-code must use
+ * relative E (M83), which GCodeRepRap does.
+ *
+ * Run with the RepRap classes and libraries on the classpath:
+ * java org.reprap.geometry.SparseInfillTest [N]
+ * It exits with status 1 if a check fails.
+ */
+public class SparseInfillTest
+{
+	/**
+	 * How closely extrusion rates must match (the E values are rounded)
+	 */
+	private static final double tolerance = 0.03;
+
+	/**
+	 * A polygon: the E fed in along it and the XY distance it covers,
+	 * with the prime before it and the retract after it
+	 */
+	private static class Track
+	{
+		double e = 0, length = 0, prime = 0, retract = 0;
+		double rate() { return e/length; }
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		File stl = File.createTempFile("box", ".stl");
+		File one = File.createTempFile("sparse1", ".gcode");
+		File many = File.createTempFile("sparse" + n, ".gcode");
+		stl.deleteOnExit();
+		one.deleteOnExit();
+		many.deleteOnExit();
+		box(stl, 20, 20, 10);
+
+		if(BatchSlicer.run(new String[] {"-set", "SparseInfillLayers=1", "-o", one.getPath(), stl.getPath()}) != BatchSlicer.ok ||
+				BatchSlicer.run(new String[] {"-set", "SparseInfillLayers=" + n, "-o", many.getPath(), stl.getPath()}) != BatchSlicer.ok)
+			fail("slicing failed");
+
+		List<Track> normal = tracks(one);
+		List<Track> sparse = tracks(many);
+		check(normal);
+		check(sparse);
+
+		// Every sparse build track must go at a rate seen in the normal
+		// build, or N times one; and there must be some at N times.
+
+		int multiplied = 0;
+		for(Track t : sparse)
+		{
+			if(t.length <= 1)
+				continue;
+			if(near(t.rate(), normal, 1))
+				continue;
+			if(near(t.rate(), normal, n))
+			{
+				multiplied++;
+				continue;
+			}
+			fail("track of " + t.length + "mm extrudes " + t.rate() + "mm/mm, which is neither 1 nor " + n +
+					" times any rate in the normal build");
+		}
+		if(multiplied == 0)
+			fail("no track extrudes at " + n + " times the normal rate");
+
+		System.out.println("SparseInfillTest: OK (" + multiplied + " tracks at " + n + " times the normal rate)");
+		System.exit(0);
+	}
+
+	/**
+	 * Each retract must equal the prime that starts the track it ends
+	 */
+	private static void check(List<Track> tracks)
+	{
+		for(Track t : tracks)
+		{
+			if(t.prime <= 0 || t.retract <= 0)
+				continue;
+			if(Math.abs(t.prime - t.retract) > 0.002)
+				fail("track of " + t.length + "mm is primed by " + t.prime + "mm but retracted by " + t.retract + "mm");
+		}
+	}
+
+	private static boolean near(double rate, List<Track> normal, int times)
+	{
+		for(Track t : normal)
+		{
+			if(t.length <= 1)
+				continue;
+			double r = t.rate()*times;
+			if(Math.abs(rate - r) <= tolerance*r)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Split a G-code file into tracks at its E-only moves
+	 */
+	private static List<Track> tracks(File f) throws Exception
+	{
+		List<Track> result = new ArrayList<Track>();
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		double x = 0, y = 0;
+		double prime = 0;
+		Track t = null;
+		String line;
+		while((line = r.readLine()) != null)
+		{
+			int c = line.indexOf(';');
+			if(c >= 0)
+				line = line.substring(0, c);
+			line = line.trim();
+			if(!line.startsWith("G1 ") && !line.startsWith("G0 "))
+				continue;
+			double nx = value(line, 'X', x);
+			double ny = value(line, 'Y', y);
+			double e = value(line, 'E', 0);
+			boolean moves = nx != x || ny != y;
+			if(!moves && e > 0)
+			{
+				// The first is the prime; any more are the lead-in
+				
+				if(prime == 0)
+					prime = e;
+			} else if(!moves && e < 0)
+			{
+				if(t != null)
+				{
+					t.retract = -e;
+					result.add(t);
+				}
+				t = null;
+			} else if(moves && e > 0)
+			{
+				if(t == null)
+				{
+					t = new Track();
+					t.prime = prime;
+					prime = 0;
+				}
+				t.e += e;
+				t.length += Math.sqrt((nx - x)*(nx - x) + (ny - y)*(ny - y));
+			}
+			x = nx;
+			y = ny;
+		}
+		r.close();
+		if(t != null)
+			result.add(t);
+		return result;
+	}
+
+	private static double value(String line, char letter, double dflt)
+	{
+		int i = line.indexOf(" " + letter);
+		if(i < 0)
+			return dflt;
+		int j = line.indexOf(' ', i + 1);
+		return Double.parseDouble(line.substring(i + 2, j < 0 ? line.length() : j));
+	}
+
+	/**
+	 * Write an ASCII STL of a box with a corner at the origin
+	 */
+	private static void box(File f, double a, double b, double c) throws Exception
+	{
+		double[][] v = {{0, 0, 0}, {a, 0, 0}, {a, b, 0}, {0, b, 0}, {0, 0, c}, {a, 0, c}, {a, b, c}, {0, b, c}};
+		int[][] faces = {{0, 2, 1}, {0, 3, 2}, {4, 5, 6}, {4, 6, 7}, {0, 1, 5}, {0, 5, 4},
+				{1, 2, 6}, {1, 6, 5}, {2, 3, 7}, {2, 7, 6}, {3, 0, 4}, {3, 4, 7}};
+		PrintWriter w = new PrintWriter(f);
+		w.println("solid box");
+		for(int[] face : faces)
+		{
+			w.println("facet normal 0 0 0");
+			w.println("outer loop");
+			for(int k : face)
+				w.println("vertex " + v[k][0] + " " + v[k][1] + " " + v[k][2]);
+			w.println("endloop");
+			w.println("endfacet");
+		}
+		w.println("endsolid box");
+		w.close();
+	}
+
+	private static void fail(String why)
+	{
+		System.err.println("SparseInfillTest: FAILED - " + why);
+		System.exit(1);
+	}
+}